@@ -0,0 +1,19 @@
+-- Author: Thomas Thompson
+-- Adds the statistics needed to Delta Train a stored model (see /admin/delta_train)
+-- Run once on an existing database, then run a full re-train (/admin/re_train) to fill in the new columns & table
+
+USE flixr;
+
+-- Sum & Count behind every Average Rating Difference
+ALTER TABLE RecEngineModel
+	ADD COLUMN SumDifference float(53) NULL,
+	ADD COLUMN RatingCount int NULL;
+
+-- Snapshot of the ratings the stored model was trained on
+-- Compared against the ratings table to find the users that changed since then
+CREATE TABLE IF NOT EXISTS ModelRatings(
+	userId int NOT NULL,
+	imdbId int NOT NULL,
+	rating double NOT NULL,
+	PRIMARY KEY (userId, imdbId)
+);
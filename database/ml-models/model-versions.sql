@@ -0,0 +1,26 @@
+-- Author: Thomas Thompson
+-- Versioned model tables (see ModelVersionDAO), created automatically by the first re-train in database mode
+-- Each training run writes RecEngineModel_v<Version>, which is only served once the pointer row is updated to it
+-- Roll back to the previous version with /admin/rollback_model
+
+USE flixr;
+
+-- Every model version & its table
+CREATE TABLE IF NOT EXISTS RecEngineModelVersions(
+	Version int NOT NULL,
+	TableName varchar(64) NOT NULL,
+	Status varchar(16) NOT NULL, -- BUILDING, READY, FAILED or DROPPED
+	RowCount bigint,
+	CreatedAt timestamp DEFAULT CURRENT_TIMESTAMP,
+	PRIMARY KEY (Version)
+);
+
+-- Single pointer row to the active version (RecEngineModel is served until a version is promoted)
+CREATE TABLE IF NOT EXISTS RecEngineModelPointer(
+	PointerId int NOT NULL,
+	ActiveVersion int NOT NULL,
+	PRIMARY KEY (PointerId)
+);
+
+-- Verify Results:
+SELECT v.* FROM RecEngineModelPointer p JOIN RecEngineModelVersions v ON v.Version = p.ActiveVersion;
@@ -5,13 +5,20 @@ USE flixr;
 
 DROP TABLE IF EXISTS RecEngineModel;
 
+-- Sparse models only hold the co-rated pairs (a missing pair has no evidence, i.e. 0) and the diagonal row (i, i, 0) of every movie,
+-- so SELECT MovieIDi UNION SELECT MovieIDj still lists every movie of the model
 CREATE TABLE RecEngineModel(
 	MovieIDi int NOT NULL,
 	MovieIDj int NOT NULL,
 	AvgDifference float(53),
+	SumDifference float(53), -- NULL for models saved without their statistics
+	RatingCount int,
 	PRIMARY KEY (MovieIDi, MovieIDj)
 );
 
+-- Rows of a lazily served model (LAZY_DB_MODEL) also read the pairs (i, m) of a movie m
+CREATE INDEX RecEngineModel_MovieIDj ON RecEngineModel (MovieIDj, MovieIDi);
+
 SHOW VARIABLES LIKE 'secure_file_priv';
 -- Use this path in the query below...
 -- ex. mine was 'C:\ProgramData\MySQL\MySQL Server 5.7\Uploads'
@@ -20,8 +27,10 @@ SHOW VARIABLES LIKE 'secure_file_priv';
 LOAD DATA LOCAL INFILE 'C:\\ProgramData\\MySQL\\MySQL Server 5.7\\Uploads\\model-ml-small-ratings.csv' INTO TABLE recenginemodel
 	FIELDS TERMINATED BY ','
     LINES TERMINATED BY '\r\n'
-    IGNORE 1 LINES;
--- insert CSV to DB
+    IGNORE 1 LINES
+    (MovieIDi, MovieIDj, AvgDifference, @SumDifference, @RatingCount)
+    SET SumDifference = NULLIF(@SumDifference, ''), RatingCount = NULLIF(@RatingCount, '');
+-- insert CSV to DB (3 column files from older models leave SumDifference & RatingCount empty)
 
 
 -- Verify Results:
@@ -0,0 +1,54 @@
+package com.flixr.engine;
+
+import com.flixr.interfaces.IScoringKernel;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * @author Thomas Thompson
+ *
+ * SIMD loops of the row accumulation kernel, with the JDK Vector API (preferred vector size of the CPU, ex. 4 doubles
+ * with AVX2), and scalar loops for the tail of a run
+ *
+ * Compiled by the vector-api Maven profile only, and loaded by name (see ScoringKernels)
+ * Lanes do the same add & divide as the ScalarScoringKernel (no fused multiply-add), so the predictions are identical
+ */
+public class VectorScoringKernel implements IScoringKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void addRun(double rating, double[] values, int valuesFrom, double[] accumulator, int accumulatorFrom, int length) {
+        int t = 0;
+        int vectorLength = SPECIES.loopBound(length);
+        if (vectorLength > 0) {
+            DoubleVector ratings = DoubleVector.broadcast(SPECIES, rating);
+            for (; t < vectorLength; t += SPECIES.length()) {
+                DoubleVector sums = DoubleVector.fromArray(SPECIES, accumulator, accumulatorFrom + t);
+                DoubleVector preferences = ratings.add(DoubleVector.fromArray(SPECIES, values, valuesFrom + t));
+                sums.add(preferences).intoArray(accumulator, accumulatorFrom + t);
+            }
+        }
+        for (; t < length; t++) {
+            accumulator[accumulatorFrom + t] += rating + values[valuesFrom + t];
+        }
+    }
+
+    @Override
+    public void divide(double[] sums, int sumsFrom, double divisor, double[] output, int outputFrom, int length) {
+        int t = 0;
+        int vectorLength = SPECIES.loopBound(length);
+        for (; t < vectorLength; t += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, sums, sumsFrom + t).div(divisor).intoArray(output, outputFrom + t);
+        }
+        for (; t < length; t++) {
+            output[outputFrom + t] = sums[sumsFrom + t] / divisor;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Vector API (" + SPECIES.length() + " x double)";
+    }
+
+}
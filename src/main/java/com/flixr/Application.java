@@ -15,8 +15,12 @@
  */
 package com.flixr;
 
+import com.flixr.exceptions.DAOException;
+import com.flixr.model.PredictionModelHolder;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 
 /**
  * @author Green Team
@@ -27,4 +31,20 @@ public class Application {
 	public static void main(String[] args) {
 		SpringApplication.run(Application.class, args);
 	}
+
+	/**
+	 * Loads the trained Recommendation Model once at startup, so the first /recommend call does not pay for it
+	 * If the model cannot be loaded yet, it will be retried on the first request
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void loadPredictionModel() {
+		if (PredictionModelHolder.isLazyModel()) {
+			return; // rows are loaded on demand
+		}
+		try {
+			PredictionModelHolder.getModel();
+		} catch (DAOException e) {
+			System.out.println("Unable to load Prediction Model at startup: " + e.getMessage());
+		}
+	}
 }
\ No newline at end of file
@@ -25,6 +25,7 @@ import com.flixr.dao.MovieDAO;
 import com.flixr.dao.OmdbDAO;
 import com.flixr.dao.RatingDAO;
 import com.flixr.dao.UserDAO;
+import com.flixr.engine.TrainingMode;
 import com.flixr.exceptions.ApiException;
 import com.flixr.exceptions.DAOException;
 import com.flixr.exceptions.EngineException;
@@ -33,11 +34,15 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 @Controller
 public class ApplicationController {
 
+	// Held by a re-train or delta training, both read & rewrite the stored model and its ModelRatings snapshot
+	private static final ReentrantLock modelTrainingLock = new ReentrantLock();
+
 	// Tracks user sessions
 //	private static HashMap<String, UserSession> mapOfUserEmailToUserSession = new HashMap<>();
 
@@ -177,9 +182,14 @@ public class ApplicationController {
 	@ResponseBody
 	public void postMovieRating(@RequestParam(value="user_id") int userId,
 								@RequestParam(name="movie_id") int movieId,
-						   		@RequestParam(name="grade") double movieRating) {
+						   		@RequestParam(name="grade") double movieRating) throws ApiException {
 		RatingDAO ratingDAO = new RatingDAO();
-		ratingDAO.addMovieRating(userId, movieId, movieRating);
+		try {
+			ratingDAO.addMovieRating(userId, movieId, movieRating);
+		} catch (DAOException e) {
+			System.out.println("Unable to save rating of movieId: " + movieId + " for userId: " + userId);
+			throw new ApiException();
+		}
 	}
 
 
@@ -278,15 +288,94 @@ public class ApplicationController {
 
 	@GetMapping("/admin/re_train")
 	@ResponseBody
-	public String reTrainModel() {
+	public String reTrainModel(@RequestParam(name="mode", required=false) String mode) {
+		if (!modelTrainingLock.tryLock()) {
+			return "Error. A model training is already running.";
+		}
 		RecommendationController recommendationController = new RecommendationController();
 		try {
-			recommendationController.reTrainModel();
+			// Optional kernel override, e.g. /admin/re_train?mode=PAIRWISE
+			if (mode != null) {
+				recommendationController.reTrainModel(TrainingMode.valueOf(mode.toUpperCase()));
+			}
+			else {
+				recommendationController.reTrainModel();
+			}
 			return "Success. Model is now training... Please Wait...";
 		} catch (EngineException e) {
 			return "Error. Unable to Train model: " + e.getEngineMessage();
+		} catch (IllegalArgumentException e) {
+			return "Error. Unknown training mode: " + mode;
+		} finally {
+			modelTrainingLock.unlock();
+		}
+
+	}
+
+
+	@GetMapping("/admin/export_ratings")
+	@ResponseBody
+	public String exportRatingsSnapshot() {
+		RecommendationController recommendationController = new RecommendationController();
+		try {
+			recommendationController.exportRatingsSnapshot();
+			return "Success. Ratings have been exported.";
+		} catch (EngineException e) {
+			return "Error. Unable to export ratings: " + e.getEngineMessage();
+		}
+
+	}
+
+
+	@GetMapping("/admin/delta_train")
+	@ResponseBody
+	public String deltaTrainModel() {
+		if (!modelTrainingLock.tryLock()) {
+			return "Error. A model training is already running.";
 		}
+		RecommendationController recommendationController = new RecommendationController();
+		try {
+			recommendationController.deltaTrainModel();
+			return "Success. Model has been updated with the latest ratings.";
+		} catch (EngineException e) {
+			return "Error. Unable to Delta Train model: " + e.getEngineMessage();
+		} finally {
+			modelTrainingLock.unlock();
+		}
+
+	}
+
+
+	@GetMapping("/admin/rollback_model")
+	@ResponseBody
+	public String rollbackModel() {
+		RecommendationController recommendationController = new RecommendationController();
+		try {
+			int version = recommendationController.rollbackModel();
+			return "Success. Model has been rolled back to version " + version + ".";
+		} catch (EngineException e) {
+			return "Error. Unable to roll back model: " + e.getEngineMessage();
+		}
+
+	}
+
+
+	@GetMapping("/admin/reload_model")
+	@ResponseBody
+	public String reloadModel() {
+		RecommendationController recommendationController = new RecommendationController();
+		if (recommendationController.reloadModel()) {
+			return "Success. Model is reloading in the background, the current model is served until it is ready.";
+		}
+		return "Error. A model reload is already running.";
+	}
 
+
+	@GetMapping("/admin/model_metrics")
+	@ResponseBody
+	public ModelRegistryMetrics getModelMetrics() {
+		RecommendationController recommendationController = new RecommendationController();
+		return recommendationController.getModelMetrics();
 	}
 
 
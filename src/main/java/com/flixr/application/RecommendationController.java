@@ -1,21 +1,30 @@
 package com.flixr.application;
 
 
+import com.flixr.beans.ModelRegistryMetrics;
 import com.flixr.beans.MovieWithPrediction;
 import com.flixr.beans.UserSubmission;
 import com.flixr.dao.EngineDAO;
+import com.flixr.dao.ModelDAO;
+import com.flixr.dao.ModelVersionDAO;
 import com.flixr.dao.PredictionDAO;
 import com.flixr.dao.UserDAO;
+import com.flixr.engine.AccumulatorType;
+import com.flixr.engine.ModelDeltaTrainer;
 import com.flixr.engine.PredictionEngine;
+import com.flixr.engine.TrainingMode;
 import com.flixr.beans.Prediction;
 import com.flixr.exceptions.DAOException;
 import com.flixr.exceptions.EngineException;
-import com.flixr.threads.RecEngineThread;
+import com.flixr.model.PredictionModel;
+import com.flixr.model.PredictionModelHolder;
+import com.flixr.model.RatingsSnapshot;
+import com.flixr.threads.RecEngineScheduler;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static com.flixr.configuration.ApplicationConstants.*;
 
@@ -35,11 +44,10 @@ public class RecommendationController {
      * Returns a list of top "X" movie predictions, sorted by highest to lowest predicted rating
      * @param userId                    UserId of user
      * @param numberOfMoviePredictions  "X" Number of predictions (ex. top "10")
-     * @return Returns the top "X" movie predictions
+     * @return Returns the top "X" movie predictions (fewer if fewer movies can be predicted)
      * @throws SQLException                 Thrown if DB Connection issue
-     * @throws IndexOutOfBoundsException    Thrown if top "X" is greater than the number of predicted movies available
      */
-    public List<MovieWithPrediction> getTopMoviePredictions(int userId, int numberOfMoviePredictions) throws EngineException, DAOException, IndexOutOfBoundsException {
+    public List<MovieWithPrediction> getTopMoviePredictions(int userId, int numberOfMoviePredictions) throws EngineException, DAOException {
 
         // Get UserSubmission
         EngineDAO engineDAO = new EngineDAO();
@@ -48,10 +56,14 @@ public class RecommendationController {
         // Get MovieIds not rated by user
         Collection<Integer> movieIdsNotRatedByUser = engineDAO.getMovieIdsNotRatedByUserId(userId);
 
-        // Generate Prediction from Engine
+        // Generate Prediction from Engine (borrows the shared, pre-loaded model)
         PredictionDAO predictionDAO = new PredictionDAO();
         PredictionEngine predictionEngine = new PredictionEngine(userSubmission, movieIdsNotRatedByUser, predictionDAO);
-        predictionEngine.generatePredictions();
+        try {
+            predictionEngine.generatePredictions();
+        } finally {
+            predictionDAO.release();
+        }
 
         // Check if user is underAged
         UserDAO userDAO = new UserDAO();
@@ -75,55 +87,81 @@ public class RecommendationController {
     }
 
 
+    /**
+     * Launches the Recommendation Engine to begin a new training session, using the default kernel
+     * This is a very time & CPU intensive process. Use with caution.
+     */
+    public void reTrainModel() throws EngineException {
+        reTrainModel(REC_ENGINE_TRAINING_MODE);
+    }
+
+
     /**
      * Launches the Recommendation Engine to begin a new training session
      * This is a very time & CPU intensive process. Use with caution.
+     * @param trainingMode  Kernel used to generate the Correlation Matrix
      */
-    public void reTrainModel() throws EngineException{
+    public void reTrainModel(TrainingMode trainingMode) throws EngineException {
+
+        // An EXTERNAL accumulator streams its rows from disk only once, which the CSV / DB model already uses up
+        if (USE_BINARY_MODEL && REC_ENGINE_ACCUMULATOR == AccumulatorType.EXTERNAL) {
+            EngineException ee = new EngineException(new IllegalStateException("EXTERNAL accumulator with USE_BINARY_MODEL."));
+            ee.setEngineMessage("The binary model cannot be saved from an EXTERNAL accumulator, use a DENSE / SPARSE accumulator or turn off USE_BINARY_MODEL.");
+            throw ee;
+        }
 
         try {
-            // Get a list of all Rated Movies
             EngineDAO engineDAO = new EngineDAO();
-            TreeSet<Integer> sortedListOfMovieIds = engineDAO.getDistinctMovieIds();
+            RecEngineScheduler recEngineScheduler;
+            RatingsSnapshot ratingsSnapshot = null;
+            TreeMap<Integer, UserSubmission> sortedListOfUserSubmissions = null;
+            if (USE_RATINGS_SNAPSHOT) {
+                // Memory-map the exported ratings (no database access)
+                ratingsSnapshot = openRatingsSnapshot();
+                recEngineScheduler = new RecEngineScheduler(ratingsSnapshot, trainingMode, REC_ENGINE_PARALLELISM);
+            }
+            else {
+                // Get a list of all Rated Movies
+                TreeSet<Integer> sortedListOfMovieIds = engineDAO.getDistinctMovieIds();
 
-            // Generate all UserSubmissions
-            TreeMap<Integer, UserSubmission> sortedListOfUserSubmissions = engineDAO.getAllUserSubmissions();
+                // Generate all UserSubmissions
+                sortedListOfUserSubmissions = engineDAO.getAllUserSubmissions();
+                recEngineScheduler = new RecEngineScheduler(sortedListOfMovieIds, sortedListOfUserSubmissions,
+                        trainingMode, REC_ENGINE_PARALLELISM);
+            }
 
-            // Support Multi Threading by splitting up rated movies
-            int[] splitIndxs = this.getMatrixSplitPoints(sortedListOfMovieIds);
+            // Compute the Correlation Matrix on a work-stealing pool (blocks until all rows are complete)
+            recEngineScheduler.generateCorrelationMatrix();
 
-            // Convert TreeSet to ArrayList (to facilitate splitting by index)
-            List<Integer> listOfDistinctMovieIds = new ArrayList<>(sortedListOfMovieIds);
+            // Either Save to CSV or Database
+            if (USE_CSV_MATRIX) {
+                String matrixFilePrefix = System.getProperty("user.dir") + CSV_MATRIX_FILE_PATH + CSV_MATRIX_FILE_PREFIX;
+                recEngineScheduler.saveModelToCSV(matrixFilePrefix, REC_ENGINE_THREADS);
+            }
+            else {
+                recEngineScheduler.saveModelToDB();
+            }
+            if (USE_BINARY_MODEL) {
+                recEngineScheduler.saveModelToBinary(System.getProperty("user.dir") + BINARY_MODEL_FILE_PATH);
+            }
 
-            // Spawn Threads for faster run time
-            ExecutorService executor = Executors.newFixedThreadPool(REC_ENGINE_THREADS);
-            try {
-                for (int i = 1; i <= REC_ENGINE_THREADS; i++) {
-                    // Create a subset of the movies for Rec Engine Thread
-                    TreeSet<Integer> subsetOfDistinctMovieIds = new TreeSet<>( listOfDistinctMovieIds.subList(splitIndxs[i-1], splitIndxs[i]) ) ;
-
-                    // Instantiate the given Engine Thread (select between DB or CSV mode)
-                    RecEngineThread recEngineThread;
-                    if (USE_CSV_MATRIX) {
-                        String matrixFilePrefix = CSV_MATRIX_FILE_PATH + CSV_MATRIX_FILE_PREFIX + "-" + i + "-of-" + REC_ENGINE_THREADS;
-                        recEngineThread = new RecEngineThread(i, subsetOfDistinctMovieIds, sortedListOfMovieIds, sortedListOfUserSubmissions, matrixFilePrefix);
-                    }
-                    else {
-                        recEngineThread = new RecEngineThread(i, subsetOfDistinctMovieIds, sortedListOfMovieIds, sortedListOfUserSubmissions);
-                    }
-
-                    // Run a service to compute a subset of the matrix, using the given Engine Thread
-                    executor.execute(recEngineThread);
-                }
-
-                // Wait for threads to complete
-                executor.shutdown();
-                while (!executor.isTerminated()) {}
-
-            } catch (RuntimeException e) {
-                System.out.println("Unable to compute Correlation Matrix! Problem encountered within Threads!");
-                e.printStackTrace();
-                throw new EngineException(e);
+            // Record the ratings the model was trained on, so the next training can be a delta
+            // A snapshot model is not recorded (that would rebuild every UserSubmission the snapshot avoids), so the
+            // previous record is cleared instead: delta training then needs a re-train from the database first
+            if (SAVE_MODEL_STATISTICS && ratingsSnapshot == null) {
+                saveModelRatings(engineDAO, sortedListOfUserSubmissions, true);
+            }
+            else if (SAVE_MODEL_STATISTICS) {
+                engineDAO.clearModelRatings();
+            }
+
+            // Serve the newly trained model right away (an EXTERNAL model is loaded in the background from storage)
+            PredictionModel trainedModel = recEngineScheduler.createPredictionModel();
+            if (trainedModel != null) {
+                PredictionModelHolder.publish(trainedModel.quantize(MODEL_ENCODING));
+            }
+            else {
+                PredictionModelHolder.reloadInBackground();
             }
 
         } catch (DAOException e) {
@@ -134,33 +172,158 @@ public class RecommendationController {
     }
 
 
+
     /**
-     * Determines the Start / End indices that evenly divide the full list of MovieIds
-     * The list will be divided by # of REC_ENGINE_THREADS
-     *
-     * @param sortedListOfMovieIds  List of all Movie Ids
-     * @return  Indexes of the Movie Ids List that dictate start/end points of the subset lists
+     * Updates the stored model with the ratings that changed since it was trained (see ModelDeltaTrainer)
+     * Much cheaper than a re-train when few users changed, but the model must have been saved with its statistics
+     * and movies added since the last full re-train are only picked up by the next full re-train
      */
-    private int[] getMatrixSplitPoints(TreeSet<Integer> sortedListOfMovieIds) {
-        // Determine # of entries per subset of movie list (partitioned by thread count)
-        int dividedCount = 1;
+    public void deltaTrainModel() throws EngineException {
+
+        long startTime = System.currentTimeMillis();
         try {
-            dividedCount = (int) Math.floor( (double) sortedListOfMovieIds.size() / REC_ENGINE_THREADS ) ;
-        } catch (ArithmeticException e) {
-            System.out.println("Warning: Number of Recommendation Engine Threads must be at least 1!");
-            System.out.println("Proceeding with a single-threaded configuration: REC_ENGINE_THREADS = 1");
+            // The rating snapshot of the stored model is needed to find what changed
+            EngineDAO engineDAO = new EngineDAO();
+            if (!engineDAO.hasModelRatings()) {
+                EngineException ee = new EngineException(new IllegalStateException("ModelRatings table is empty."));
+                ee.setEngineMessage("No rating snapshot for the stored model, a full re-train from the database is required.");
+                throw ee;
+            }
+
+            // Load the stored model (not the served one, which may already include online updates)
+            ModelDeltaTrainer modelDeltaTrainer = new ModelDeltaTrainer(new ModelDAO().loadModelWithStatistics());
+
+            // Replace the contribution of every changed user
+            TreeSet<Integer> changedUserIds = engineDAO.getChangedUserIds();
+            TreeMap<Integer, UserSubmission> previousUserSubmissions = engineDAO.getModelUserSubmissions(changedUserIds);
+            TreeMap<Integer, UserSubmission> currentUserSubmissions = engineDAO.getUserSubmissions(changedUserIds);
+            for (int userId : changedUserIds) {
+                modelDeltaTrainer.applyUserChange(previousUserSubmissions.get(userId), currentUserSubmissions.get(userId));
+            }
+
+            // Either Save to CSV or Database
+            if (USE_CSV_MATRIX) {
+                String matrixFilePrefix = System.getProperty("user.dir") + CSV_MATRIX_FILE_PATH + CSV_MATRIX_FILE_PREFIX;
+                modelDeltaTrainer.saveModelToCSV(matrixFilePrefix, REC_ENGINE_THREADS);
+            }
+            else {
+                modelDeltaTrainer.saveModelToDB();
+            }
+            if (USE_BINARY_MODEL) {
+                modelDeltaTrainer.saveModelToBinary(System.getProperty("user.dir") + BINARY_MODEL_FILE_PATH);
+            }
+            saveModelRatings(engineDAO, currentUserSubmissions, false);
+
+            // Serve the updated model right away
+            PredictionModelHolder.publish(modelDeltaTrainer.createPredictionModel().quantize(MODEL_ENCODING));
+
+            System.out.println("Delta Training: " + modelDeltaTrainer.getChangedUserCount() + " changed users, "
+                    + modelDeltaTrainer.getUpdatedPairCount() + " pair updates, " + modelDeltaTrainer.getSkippedRatingCount()
+                    + " ratings of new movies skipped, in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds.");
+
+        } catch (DAOException e) {
+            System.out.println("Unable to Delta Train model!");
+            e.printStackTrace();
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("Unable to load the stored model or its ratings.");
+            throw ee;
         }
+    }
 
-        // Determine split indices for new movie list sublists
-        int currentIndx = 0;
-        int[] splitIndxs = new int[REC_ENGINE_THREADS + 1];
-        for (int i = 0; i < splitIndxs.length - 1; i++) {
-            splitIndxs[i] = currentIndx;
-            currentIndx += dividedCount;
+
+
+    // Records the ratings of the saved model (see EngineDAO.saveModelRatings)
+    // If that fails the snapshot no longer matches the stored model, so it is cleared: delta training then refuses to
+    // run until the next full re-train, instead of subtracting or adding the wrong contributions
+    private void saveModelRatings(EngineDAO engineDAO, Map<Integer, UserSubmission> userSubmissions, boolean replaceAll) throws EngineException {
+        try {
+            engineDAO.saveModelRatings(userSubmissions, replaceAll);
+        } catch (DAOException e) {
+            try {
+                engineDAO.clearModelRatings();
+            } catch (DAOException clearException) {
+                System.out.println("Unable to clear Model Ratings! " + clearException.getMessage());
+            }
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("Model was saved, but its ratings could not be recorded. A full re-train from the database is required before the next delta training.");
+            throw ee;
+        }
+    }
+
+
+
+    /**
+     * Exports the ratings table to a binary ratings snapshot, so training runs can skip the database
+     * (see USE_RATINGS_SNAPSHOT)
+     */
+    public void exportRatingsSnapshot() throws EngineException {
+        try {
+            long startTime = System.currentTimeMillis();
+            TreeMap<Integer, UserSubmission> sortedListOfUserSubmissions = new EngineDAO().getAllUserSubmissions();
+            File snapshotFile = new File(System.getProperty("user.dir") + RATINGS_SNAPSHOT_FILE_PATH);
+            RatingsSnapshot.write(snapshotFile, sortedListOfUserSubmissions);
+            System.out.println("Exported " + sortedListOfUserSubmissions.size() + " users to " + snapshotFile + " ("
+                    + snapshotFile.length() / 1024 + " KB) in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds.");
+
+        } catch (DAOException | IOException | IllegalArgumentException e) {
+            System.out.println("Unable to export Ratings Snapshot!");
+            e.printStackTrace();
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("Unable to export Ratings Snapshot.");
+            throw ee;
+        }
+    }
+
+    /**
+     * Re-activates the previous database model version (see ModelVersionDAO), ex. after a bad training run
+     * The rollback itself is a single pointer update, the model is then reloaded in the background
+     * @return  Version that is now active
+     */
+    public int rollbackModel() throws EngineException {
+        try {
+            int version = new ModelVersionDAO().rollbackModelVersion();
+            if (!USE_CSV_MATRIX && !USE_BINARY_MODEL) {
+                PredictionModelHolder.reloadInBackground();
+            }
+            return version;
+        } catch (DAOException e) {
+            System.out.println("Unable to roll back the model!");
+            e.printStackTrace();
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("No earlier model version to roll back to.");
+            throw ee;
         }
-        splitIndxs[splitIndxs.length - 1] = sortedListOfMovieIds.size(); // any remainders will just get tacked on to the last thread
+    }
+
+    /**
+     * Loads the latest stored model in the background, the current model keeps serving until it is swapped in
+     * (ex. after a model was trained or uploaded by another process)
+     * @return  False if a reload is already running
+     */
+    public boolean reloadModel() {
+        return PredictionModelHolder.reloadInBackground();
+    }
 
-        return splitIndxs;
+    /**
+     * @return  Swap & load times, and the memory used by the served models
+     */
+    public ModelRegistryMetrics getModelMetrics() {
+        return PredictionModelHolder.getMetrics();
+    }
+
+    // Opens the exported ratings snapshot
+    private RatingsSnapshot openRatingsSnapshot() throws EngineException {
+        File snapshotFile = new File(System.getProperty("user.dir") + RATINGS_SNAPSHOT_FILE_PATH);
+        try {
+            RatingsSnapshot ratingsSnapshot = RatingsSnapshot.open(snapshotFile);
+            System.out.println("Mapped Ratings Snapshot: " + ratingsSnapshot.getRatingCount() + " ratings of "
+                    + ratingsSnapshot.getUserCount() + " users & " + ratingsSnapshot.getMovieCount() + " movies.");
+            return ratingsSnapshot;
+        } catch (IOException e) {
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("Unable to open Ratings Snapshot " + snapshotFile + ", export it first.");
+            throw ee;
+        }
     }
 
 }
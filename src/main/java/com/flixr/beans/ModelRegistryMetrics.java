@@ -0,0 +1,176 @@
+package com.flixr.beans;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Metrics of the served Prediction Model (see PredictionModelHolder), reported by /admin/model_metrics
+ *
+ */
+public class ModelRegistryMetrics {
+
+    private boolean loaded;
+    private boolean reloading;
+    private int movieCount;
+    private int activeReaders;
+    private int retiredModelsInUse;
+    private long reloadCount;
+    private long lastLoadMillis;
+    private long lastSwapNanos;
+    private long residentModelBytes;
+    private long highWaterModelBytes;
+    private long highWaterHeapBytes;
+
+    // Tiered binary model only
+    private int hotRowCount;
+    private long hotRowBytes;
+    private long rowPromotions;
+    private long rowDemotions;
+
+    // Lazy database model only
+    private int cachedRowCount;
+    private long cachedRowBytes;
+    private long rowCacheHits;
+    private long rowCacheMisses;
+    private long rowCacheEvictions;
+
+    public ModelRegistryMetrics() {}
+
+    public ModelRegistryMetrics(boolean loaded, boolean reloading, int movieCount, int activeReaders, int retiredModelsInUse,
+                                long reloadCount, long lastLoadMillis, long lastSwapNanos,
+                                long residentModelBytes, long highWaterModelBytes, long highWaterHeapBytes) {
+        this.loaded = loaded;
+        this.reloading = reloading;
+        this.movieCount = movieCount;
+        this.activeReaders = activeReaders;
+        this.retiredModelsInUse = retiredModelsInUse;
+        this.reloadCount = reloadCount;
+        this.lastLoadMillis = lastLoadMillis;
+        this.lastSwapNanos = lastSwapNanos;
+        this.residentModelBytes = residentModelBytes;
+        this.highWaterModelBytes = highWaterModelBytes;
+        this.highWaterHeapBytes = highWaterHeapBytes;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public boolean isReloading() {
+        return reloading;
+    }
+
+    public int getMovieCount() {
+        return movieCount;
+    }
+
+    /**
+     * @return  Requests reading the current model
+     */
+    public int getActiveReaders() {
+        return activeReaders;
+    }
+
+    /**
+     * @return  Replaced models that are still read by in-flight requests
+     */
+    public int getRetiredModelsInUse() {
+        return retiredModelsInUse;
+    }
+
+    public long getReloadCount() {
+        return reloadCount;
+    }
+
+    /**
+     * @return  Time taken to load the last model (background reloads & first load)
+     */
+    public long getLastLoadMillis() {
+        return lastLoadMillis;
+    }
+
+    /**
+     * @return  Time taken to swap in the last model
+     */
+    public long getLastSwapNanos() {
+        return lastSwapNanos;
+    }
+
+    /**
+     * @return  Estimated bytes of all models in memory (current, retired but still read, and being loaded)
+     */
+    public long getResidentModelBytes() {
+        return residentModelBytes;
+    }
+
+    /**
+     * @return  Highest residentModelBytes so far (ex. the overlap of the old & new model during a reload)
+     */
+    public long getHighWaterModelBytes() {
+        return highWaterModelBytes;
+    }
+
+    /**
+     * @return  Highest used JVM heap measured when a model was swapped in
+     */
+    public long getHighWaterHeapBytes() {
+        return highWaterHeapBytes;
+    }
+
+    /**
+     * Sets the tier counters of a tiered binary model (see TieredModelRows)
+     */
+    public void setTierMetrics(int hotRowCount, long hotRowBytes, long rowPromotions, long rowDemotions) {
+        this.hotRowCount = hotRowCount;
+        this.hotRowBytes = hotRowBytes;
+        this.rowPromotions = rowPromotions;
+        this.rowDemotions = rowDemotions;
+    }
+
+    public int getHotRowCount() {
+        return hotRowCount;
+    }
+
+    public long getHotRowBytes() {
+        return hotRowBytes;
+    }
+
+    public long getRowPromotions() {
+        return rowPromotions;
+    }
+
+    public long getRowDemotions() {
+        return rowDemotions;
+    }
+
+    /**
+     * Sets the row cache counters of a lazy database model (see ModelRowCache)
+     */
+    public void setRowCacheMetrics(int cachedRowCount, long cachedRowBytes, long rowCacheHits, long rowCacheMisses, long rowCacheEvictions) {
+        this.cachedRowCount = cachedRowCount;
+        this.cachedRowBytes = cachedRowBytes;
+        this.rowCacheHits = rowCacheHits;
+        this.rowCacheMisses = rowCacheMisses;
+        this.rowCacheEvictions = rowCacheEvictions;
+    }
+
+    public int getCachedRowCount() {
+        return cachedRowCount;
+    }
+
+    public long getCachedRowBytes() {
+        return cachedRowBytes;
+    }
+
+    public long getRowCacheHits() {
+        return rowCacheHits;
+    }
+
+    public long getRowCacheMisses() {
+        return rowCacheMisses;
+    }
+
+    public long getRowCacheEvictions() {
+        return rowCacheEvictions;
+    }
+
+}
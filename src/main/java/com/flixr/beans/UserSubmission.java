@@ -1,6 +1,7 @@
 package com.flixr.beans;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -13,13 +14,17 @@ import java.util.List;
  */
 public class UserSubmission { // implements Comparable {
 
+    private static final int INITIAL_CAPACITY = 16;
+
     private int userId;
 
-    // Two Lists are used to track user ratings, ratings and movies are at the same index
+    // Two primitive arrays are used to track user ratings, ratings and movies are at the same index
     // If: MoviesViewed = {10000, 100001, 100023} MovieRatings = {1.0, 4.0, 3.0}
     // Then: 100001 was rated as 4.0
-    private List<Integer> moviesViewed;
-    private List<Double> movieRatings;
+    // (12 bytes per rating, instead of ~40 bytes for a boxed Integer & Double in two ArrayLists)
+    private int[] moviesViewed;
+    private double[] movieRatings;
+    private int ratingCount;
 
     /**
      * Creates a User Submission
@@ -27,8 +32,8 @@ public class UserSubmission { // implements Comparable {
      */
     public UserSubmission(int userId) {
         this.userId = userId;
-        this.movieRatings = new ArrayList<>();
-        this.moviesViewed = new ArrayList<>();
+        this.moviesViewed = new int[INITIAL_CAPACITY];
+        this.movieRatings = new double[INITIAL_CAPACITY];
     }
 
     /**
@@ -38,13 +43,24 @@ public class UserSubmission { // implements Comparable {
      */
     public void addMovieRating(int movieId, double rating) {
 
-        moviesViewed.add(movieId);
-        movieRatings.add(rating);
+        // Grow both arrays together, so indexes stay aligned
+        if (ratingCount == moviesViewed.length) {
+            int capacity = moviesViewed.length * 2;
+            moviesViewed = Arrays.copyOf(moviesViewed, capacity);
+            movieRatings = Arrays.copyOf(movieRatings, capacity);
+        }
+
+        moviesViewed[ratingCount] = movieId;
+        movieRatings[ratingCount] = rating;
+        ratingCount++;
+    }
 
-        // Must verify that indexes are aligned
-        int lengthOfMovieList = moviesViewed.size();
-        int lengthOfMovieRatings = movieRatings.size();
-        assert lengthOfMovieList == lengthOfMovieRatings;
+    /**
+     * Releases unused capacity, once all ratings have been added
+     */
+    public void trimToSize() {
+        moviesViewed = Arrays.copyOf(moviesViewed, ratingCount);
+        movieRatings = Arrays.copyOf(movieRatings, ratingCount);
     }
 
 
@@ -52,13 +68,63 @@ public class UserSubmission { // implements Comparable {
         return userId;
     }
 
+    /**
+     * @return  Read-only view of the rated MovieIds
+     */
     public List<Integer> getMoviesViewed() {
-        return moviesViewed;
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                return getMovieIdAt(index);
+            }
+
+            @Override
+            public int size() {
+                return ratingCount;
+            }
+        };
     }
 
+    /**
+     * @return  Read-only view of the Ratings, aligned with getMoviesViewed()
+     */
+    public List<Double> getMovieRatings() {
+        return new AbstractList<Double>() {
+            @Override
+            public Double get(int index) {
+                return getMovieRatingAt(index);
+            }
+
+            @Override
+            public int size() {
+                return ratingCount;
+            }
+        };
+    }
+
+    /**
+     * @return  First rating of the movie
+     * @throws IndexOutOfBoundsException if the movie was not rated
+     */
     public double getMovieRating(int movieId) {
-        int movieIndex = moviesViewed.indexOf(movieId);
-        return movieRatings.get(movieIndex);
+        for (int k = 0; k < ratingCount; k++) {
+            if (moviesViewed[k] == movieId) return movieRatings[k];
+        }
+        throw new IndexOutOfBoundsException("Movie " + movieId + " was not rated by user " + userId);
+    }
+
+    public int getRatingCount() {
+        return ratingCount;
+    }
+
+    public int getMovieIdAt(int index) {
+        if (index >= ratingCount) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + ratingCount);
+        return moviesViewed[index];
+    }
+
+    public double getMovieRatingAt(int index) {
+        if (index >= ratingCount) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + ratingCount);
+        return movieRatings[index];
     }
 
 
@@ -1,5 +1,11 @@
 package com.flixr.configuration;
 
+import com.flixr.engine.AccumulatorType;
+import com.flixr.engine.ScoringBackend;
+import com.flixr.engine.ScoringMode;
+import com.flixr.engine.TrainingMode;
+import com.flixr.model.ModelEncoding;
+
 /**
  * @author Green Team
  * Add any application constants here
@@ -10,19 +16,90 @@ public class ApplicationConstants {
     public static final String DB_USERNAME = "root";
     public static final String DB_PASSWORD = "root";
     public static final String DB_CONNECTION_URL = "jdbc:mysql://localhost:3306/flixr";
+    public static final int DB_STREAMING_FETCH_SIZE = 10000; // rows per fetch when streaming whole tables (ex. all ratings)
+    public static final int DB_USER_ID_BATCH_SIZE = 500; // UserIds per "IN (...)" list when loading the ratings of many users
+    public static final int DB_MODEL_LOAD_CURSORS = 4; // ranges of the model table read in parallel when loading the model
+    public static final int DB_BULK_WRITER_CONNECTIONS = 4; // connections inserting the model in parallel
+    public static final int DB_BULK_INSERT_ROWS = 1000; // rows per multi-row INSERT statement
+    public static final int DB_BULK_COMMIT_ROWS = 50000; // rows each connection inserts before it commits
+    public static final int MODEL_VERSIONS_KEPT = 3; // complete model versions kept in the database for rollback
 
     // OMDB API Key
     public static final String OMDB_API_KEY = "9ba6dc15";
 
     // Engine Thread Counts
     public static final int PRED_ENGINE_THREADS = 4;
-    public static final int REC_ENGINE_THREADS = 4;
+    public static final int REC_ENGINE_THREADS = 4; // number of model CSV files written (any number can be loaded)
+    public static final int REC_ENGINE_PARALLELISM = Runtime.getRuntime().availableProcessors(); // training worker threads
+    public static final int MODEL_LOAD_THREADS = Runtime.getRuntime().availableProcessors(); // model CSV parser threads
+
+    // Recommendation Engine kernel (both produce the same model, USER_CENTRIC is much faster)
+    public static final TrainingMode REC_ENGINE_TRAINING_MODE = TrainingMode.USER_CENTRIC;
+
+    // Prediction Engine kernel (both produce the same predictions, ROW_ACCUMULATION is much faster)
+    public static final ScoringMode PRED_ENGINE_SCORING_MODE = ScoringMode.ROW_ACCUMULATION;
+
+    // Prediction Engine row kernel loops (all backends produce the same predictions, see ScoringKernels)
+    // VECTOR / AUTO need a JDK 16+ build & JVM, they measured on par with the JIT-vectorised SCALAR loops on the production model
+    public static final ScoringBackend PRED_ENGINE_SCORING_BACKEND = ScoringBackend.SCALAR;
+
+    // Prediction Engine intra-request parallelism: the unrated movies of a large request are scored in partitions,
+    // one per PRED_ENGINE_PARTITION_WORK pair reads (rated x unrated movies), on a pool shared by all requests
+    public static final int PRED_ENGINE_SCORING_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    public static final long PRED_ENGINE_PARTITION_WORK = 2_000_000L; // about 1 ms of row accumulation
+
+    // Train & save only the upper triangle (i < j) of the model, since (j, i) = -(i, j) and (i, i) = 0
+    // (the model loaders accept both the triangular and the full layout)
+    public static final boolean REC_ENGINE_TRIANGULAR_MODEL = true;
+
+    // Keep the Sum & Count behind every model average in memory, so new ratings update the model without a re-train
+    // Opt-in: the statistics take another 12 bytes per movie pair on top of the model, and are only kept by a FLOAT64 model
+    public static final boolean ONLINE_MODEL_UPDATES = false;
+
+    // Save the Sum & Count behind every model average with the model (CSV / DB), so it can be delta trained
+    public static final boolean SAVE_MODEL_STATISTICS = true;
+
+    // Save only the co-rated pairs of the model (CSV / DB), a missing pair is loaded as 0 (no evidence)
+    // Each movie keeps its diagonal entry (i, i, 0), so the stored model still lists every movie
+    public static final boolean SPARSE_MODEL_OUTPUT = true;
+
+    // Recommendation Engine training statistics storage (DENSE uses 12 bytes per cell, SPARSE only stores co-rated pairs)
+    public static final AccumulatorType REC_ENGINE_ACCUMULATOR = AccumulatorType.AUTO;
+    public static final long DENSE_ACCUMULATOR_MAX_CELLS = 25_000_000L; // ~300 MB, i.e. about 5,000 movies
+
+    // EXTERNAL accumulator: memory used to buffer pair deltas before they are spilled to temporary run files
+    public static final long REC_ENGINE_MEMORY_BUDGET_BYTES = 256L * 1024 * 1024;
+    public static final String REC_ENGINE_SPILL_DIRECTORY = System.getProperty("java.io.tmpdir");
+
+    // Train from a binary ratings snapshot (exported by /admin/export_ratings) instead of the ratings table
+    // The ratings of a snapshot model are not recorded in ModelRatings, so delta training needs a re-train from the database
+    public static final boolean USE_RATINGS_SNAPSHOT = false;
+    public static final String RATINGS_SNAPSHOT_FILE_PATH = "/src/main/resources/ml-models/ratings-snapshot.bin";
 
     // Toggle Trained Model type (DB vs CSV)
     public static final boolean USE_CSV_MATRIX = true;
     public static final String CSV_MATRIX_FILE_PATH = "/src/main/resources/ml-models/";
     public static final String CSV_MATRIX_FILE_PREFIX = "model";
 
+    // Also save the model as a binary file & serve it from a memory mapping (near zero load time, kept off the Java heap)
+    // The CSV files / database are still written, they hold the Sums & Counts used by delta training
+    // Needs a DENSE / SPARSE accumulator (the rows of an EXTERNAL accumulator are streamed to the CSV files / database)
+    public static final boolean USE_BINARY_MODEL = false;
+    public static final String BINARY_MODEL_FILE_PATH = "/src/main/resources/ml-models/model.bin";
+    // Binary model only: copy the most read rows onto the heap, up to this budget (0 serves every row from the mapping)
+    public static final long TIERED_MODEL_HOT_BYTES = 0;
+    public static final int TIERED_MODEL_REBALANCE_SECONDS = 30; // how often rows are promoted / demoted
+
+    // Encoding of the served model & binary model file: FLOAT32 / FLOAT16 / INT8 cut its memory 2x / 4x / 8x for a small
+    // loss of accuracy (see PredictionEngineTestHarness-3), but a quantized model cannot be updated online
+    // (delta training always loads the full precision CSV files / database)
+    public static final ModelEncoding MODEL_ENCODING = ModelEncoding.FLOAT64;
+
+    // Database model only: load the rows each request needs on demand instead of the whole model, keeping the
+    // least recently used rows up to a byte budget (for nodes with less heap than the model needs)
+    public static final boolean LAZY_DB_MODEL = false;
+    public static final long MODEL_ROW_CACHE_BYTES = 256L * 1024 * 1024;
+
     // Max Admin Page Limit
     public static final int MAX_ADMIN_LIMIT = 50;
 
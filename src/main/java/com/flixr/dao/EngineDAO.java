@@ -11,7 +11,8 @@ import static com.flixr.configuration.ApplicationConstants.*;
 /**
  * @author Thomas Thompson
  *
- * Used to query the database to create Recommendation Engine user submission inputs & save the trained model to the database
+ * Used to query the database to create Recommendation Engine user submission inputs & record the ratings of the trained model
+ * (the trained model itself is written to a new model version by the ModelBulkWriter, see ModelVersionDAO)
  * Also used to by the Prediction Engine to create user submission inputs & query the trained model
  *
  */
@@ -110,28 +111,28 @@ public class EngineDAO {
 
 
     /**
+     * Streams the whole Ratings table in a single ordered scan over one connection
+     * (instead of one query & connection per user)
      * @return  Returns a list of all UserSubmissions in the Ratings table
      * @throws DAOException
      */
     public TreeMap<Integer, UserSubmission> getAllUserSubmissions() throws DAOException {
         try {
-            // Initialize user submissions
-            TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+            long startTime = System.currentTimeMillis();
 
-            // Query Ratings table for all UserSubmissions
-            Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
-            PreparedStatement stmt = conn.prepareStatement("SELECT DISTINCT userId FROM ratings");
-            ResultSet resultSet = stmt.executeQuery();
+            // Server side cursor, so MySQL sends the rows in fetches instead of one huge result
+            int connectionCount = 1; // the whole table is read by a single ordered scan
+            Connection conn = StreamingConnections.getStreamingConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
+            TreeMap<Integer, UserSubmission> userSubmissions = readAllUserSubmissions(conn);
+            conn.close();
 
-            // Iterate over all User Id's in the ResultSet
-            while (resultSet.next()) {
-                int userId = resultSet.getInt("userId");
-                UserSubmission userSubmission = this.getUserSubmission(userId);
-                userSubmissions.put(userId, userSubmission);
+            // Report load
+            long ratingCount = 0;
+            for (UserSubmission userSubmission : userSubmissions.values()) {
+                ratingCount += userSubmission.getRatingCount();
             }
-
-            // Close connection and return
-            conn.close();
+            System.out.println("Loaded " + ratingCount + " ratings of " + userSubmissions.size() + " users over " + connectionCount
+                    + " connection(s) in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds.");
             return userSubmissions;
 
         } catch (SQLException e) {
@@ -139,59 +140,225 @@ public class EngineDAO {
         }
     }
 
+    /**
+     * Builds every UserSubmission in one pass over the Ratings table, ordered by user
+     * (each user's ratings arrive together, so a submission is complete when the next user starts)
+     * @param conn  Open connection, left open
+     * @return  All UserSubmissions
+     * @throws SQLException
+     */
+    TreeMap<Integer, UserSubmission> readAllUserSubmissions(Connection conn) throws SQLException {
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        PreparedStatement stmt = conn.prepareStatement("SELECT userId, imdbId, rating FROM ratings ORDER BY userId, imdbId",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(DB_STREAMING_FETCH_SIZE);
+        readUserSubmissions(stmt, userSubmissions);
+        return userSubmissions;
+    }
 
     /**
-     * Saves the Correlation Matrix to the Database
-     * @param matrixRow Matrix Row to be saved: {}movieId_i, movieId_j, averageRatingDifference}
+     * Builds the UserSubmissions of the given users over one connection, with one ordered scan per batch of UserIds
+     * (instead of one query per user), users without ratings get an empty UserSubmission
+     * @param conn          Open connection, left open
+     * @param ratingsTable  Table with (userId, imdbId, rating) rows, ex. ratings or ModelRatings
+     * @param userIds       User Ids
+     * @param batchSize     UserIds per "IN (...)" list
+     * @return  UserSubmissions of the given users
+     * @throws SQLException
+     */
+    TreeMap<Integer, UserSubmission> readUserSubmissions(Connection conn, String ratingsTable, Collection<Integer> userIds,
+                                                         int batchSize) throws SQLException {
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        List<Integer> sortedUserIds = new ArrayList<>(new TreeSet<>(userIds));
+        for (int from = 0; from < sortedUserIds.size(); from += batchSize) {
+            List<Integer> batchUserIds = sortedUserIds.subList(from, Math.min(from + batchSize, sortedUserIds.size()));
+            String placeholders = String.join(",", Collections.nCopies(batchUserIds.size(), "?"));
+            PreparedStatement stmt = conn.prepareStatement("SELECT userId, imdbId, rating FROM " + ratingsTable
+                    + " WHERE userId IN (" + placeholders + ") ORDER BY userId, imdbId");
+            for (int k = 0; k < batchUserIds.size(); k++) {
+                stmt.setInt(k + 1, batchUserIds.get(k));
+            }
+            readUserSubmissions(stmt, userSubmissions);
+        }
+
+        // Users without ratings in the table (ex. all ratings removed, or new since the model was trained)
+        for (int userId : sortedUserIds) {
+            userSubmissions.putIfAbsent(userId, new UserSubmission(userId));
+        }
+        return userSubmissions;
+    }
+
+    // Reads (userId, imdbId, rating) rows ordered by user into UserSubmissions, then closes the statement
+    private void readUserSubmissions(PreparedStatement stmt, TreeMap<Integer, UserSubmission> userSubmissions) throws SQLException {
+        ResultSet resultSet = stmt.executeQuery();
+
+        // Iterate over all Ratings, starting a new UserSubmission whenever the UserId changes
+        UserSubmission userSubmission = null;
+        while (resultSet.next()) {
+            int userId = resultSet.getInt(1);
+            if (userSubmission == null || userSubmission.getUserId() != userId) {
+                if (userSubmission != null) userSubmission.trimToSize();
+                userSubmission = new UserSubmission(userId);
+                userSubmissions.put(userId, userSubmission);
+            }
+            userSubmission.addMovieRating(resultSet.getInt(2), resultSet.getDouble(3));
+        }
+        if (userSubmission != null) userSubmission.trimToSize();
+
+        resultSet.close();
+        stmt.close();
+    }
+
+
+
+    // Model Rating Snapshot (the ratings a stored model was trained on, used for delta training)
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * @return  Returns "true" if the ModelRatings table holds the ratings of the stored model
      * @throws DAOException
      */
-    public void saveMatrixRowToDB(List<Number[]> matrixRow) throws DAOException {
+    public boolean hasModelRatings() throws DAOException {
+        try {
+            Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
+            PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM ModelRatings LIMIT 1");
+            ResultSet resultSet = stmt.executeQuery();
+            boolean hasModelRatings = resultSet.next();
+            conn.close();
+            return hasModelRatings;
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
 
-        // Generate Query for current Matrix Row
+    /**
+     * Finds every user whose ratings were added, changed or removed since the stored model was trained
+     * @return  Returns a list of (sorted) UserIds
+     * @throws DAOException
+     */
+    public TreeSet<Integer> getChangedUserIds() throws DAOException {
+        TreeSet<Integer> changedUserIds = new TreeSet<>();
         try {
+            String query = "SELECT r.userId FROM ratings r " +
+                    "LEFT JOIN ModelRatings m ON m.userId = r.userId AND m.imdbId = r.imdbId " +
+                    "WHERE m.rating IS NULL OR m.rating <> r.rating " +
+                    "UNION " +
+                    "SELECT m.userId FROM ModelRatings m " +
+                    "LEFT JOIN ratings r ON r.userId = m.userId AND r.imdbId = m.imdbId " +
+                    "WHERE r.userId IS NULL";
             Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
-            PreparedStatement stmt = conn.prepareStatement("INSERT INTO RecEngineModel VALUES (?,?,?)");
-
-            // Iterate over all indexes in matrix row
-            for (Number[] matrixIndex : matrixRow) {
-                int movieId_i = (int) matrixIndex[0];
-                int movieId_j = (int) matrixIndex[1];
-                double avgDifference = (double) matrixIndex[2];
-                stmt.setInt(1, movieId_i);
-                stmt.setInt(2, movieId_j);
-                stmt.setDouble(3, avgDifference);
-                stmt.addBatch();
+            PreparedStatement stmt = conn.prepareStatement(query);
+            ResultSet resultSet = stmt.executeQuery();
+            while (resultSet.next()) {
+                changedUserIds.add(resultSet.getInt("userId"));
             }
+            conn.close();
+            return changedUserIds;
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
 
-            // Insert all matrix row entries in 1 batch
-            stmt.executeBatch();
+    /**
+     * @param userIds   User Ids
+     * @return  UserSubmissions (current ratings) of the given users
+     * @throws DAOException
+     */
+    public TreeMap<Integer, UserSubmission> getUserSubmissions(Collection<Integer> userIds) throws DAOException {
+        return getUserSubmissions("ratings", userIds);
+    }
 
-            // Close connection
-            conn.close();
+    /**
+     * @param userIds   User Ids
+     * @return  UserSubmissions of the given users, as they were when the stored model was trained
+     * @throws DAOException
+     */
+    public TreeMap<Integer, UserSubmission> getModelUserSubmissions(Collection<Integer> userIds) throws DAOException {
+        return getUserSubmissions("ModelRatings", userIds);
+    }
 
+    // Loads the UserSubmissions of the given users from a ratings table, over one connection
+    private TreeMap<Integer, UserSubmission> getUserSubmissions(String ratingsTable, Collection<Integer> userIds) throws DAOException {
+        try (Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD)) {
+            return readUserSubmissions(conn, ratingsTable, userIds, DB_USER_ID_BATCH_SIZE);
         } catch (SQLException e) {
             throw new DAOException(e);
         }
     }
 
     /**
-     * Deletes the current Correlation Matrix from the Database
-     * Warning: This should be used only when the site is under maintenance
+     * Clears the record of the ratings the stored model was trained on (ex. a model trained from a ratings snapshot),
+     * so it cannot be delta trained against ratings it was not trained on
      * @throws DAOException
      */
-    public void deleteMatrixFromDB() throws DAOException {
-        // TODO: Might want to look into better ways of sorting the last revision
+    public void clearModelRatings() throws DAOException {
         try {
             Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
-            PreparedStatement stmt = conn.prepareStatement("DELETE FROM RecEngineModel");
-            stmt.executeUpdate();
+            conn.prepareStatement("DELETE FROM ModelRatings").executeUpdate();
             conn.close();
         } catch (SQLException e) {
-            System.out.println("Unable to delete Correlation Matrix!");
-            e.printStackTrace();
             throw new DAOException(e);
         }
+    }
+
+    /**
+     * Records the ratings a model was trained on
+     * @param userSubmissions   UserSubmissions used for training
+     * @param replaceAll        True after a full training (the whole snapshot is replaced),
+     *                          false after a delta training (only the given users are replaced)
+     * @throws DAOException
+     */
+    public void saveModelRatings(Map<Integer, UserSubmission> userSubmissions, boolean replaceAll) throws DAOException {
+        try (Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD)) {
+
+            // Replace the snapshot in one transaction, so a failed insert never leaves a partial snapshot behind
+            // (delta training would then subtract ratings the stored model was trained on but the snapshot lost)
+            conn.setAutoCommit(false);
+            try {
+                writeModelRatings(conn, userSubmissions, replaceAll);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
 
+        } catch (SQLException e) {
+            System.out.println("Unable to save Model Ratings, the previous snapshot is kept.");
+            throw new DAOException(e);
+        }
+    }
+
+    // Deletes the previous snapshot (all of it, or the given users) and inserts the given ratings
+    private void writeModelRatings(Connection conn, Map<Integer, UserSubmission> userSubmissions, boolean replaceAll) throws SQLException {
+
+        // Clear previous snapshot
+        if (replaceAll) {
+            conn.prepareStatement("DELETE FROM ModelRatings").executeUpdate();
+        }
+        else {
+            PreparedStatement deleteStmt = conn.prepareStatement("DELETE FROM ModelRatings WHERE userId = ?");
+            for (int userId : userSubmissions.keySet()) {
+                deleteStmt.setInt(1, userId);
+                deleteStmt.addBatch();
+            }
+            deleteStmt.executeBatch();
+        }
+
+        // Insert ratings in batches (a movie rated twice keeps its first rating, same as training)
+        PreparedStatement stmt = conn.prepareStatement("INSERT INTO ModelRatings (userId, imdbId, rating) VALUES (?,?,?)");
+        int batchSize = 0;
+        for (UserSubmission userSubmission : userSubmissions.values()) {
+            Set<Integer> savedMovieIds = new HashSet<>();
+            for (int movieId : userSubmission.getMoviesViewed()) {
+                if (!savedMovieIds.add(movieId)) continue;
+                stmt.setInt(1, userSubmission.getUserId());
+                stmt.setInt(2, movieId);
+                stmt.setDouble(3, userSubmission.getMovieRating(movieId));
+                stmt.addBatch();
+                if (++batchSize % 1000 == 0) stmt.executeBatch();
+            }
+        }
+        stmt.executeBatch();
     }
 
 }
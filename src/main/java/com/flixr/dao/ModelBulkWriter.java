@@ -0,0 +1,284 @@
+package com.flixr.dao;
+
+import com.flixr.exceptions.DAOException;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.flixr.configuration.ApplicationConstants.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Streams the Correlation Matrix into a model table (ex. a new version created by the ModelVersionDAO)
+ *
+ * Entries are collected into blocks of primitive arrays (no boxing), and each block is inserted by a single
+ * multi-row INSERT ... VALUES (...),(...) statement. A few long-lived connections insert blocks in parallel,
+ * each committing in chunks, instead of a new connection & batch for every matrix row
+ *
+ * Usage: add every entry, then close() to flush the last block, wait for all inserts and commit
+ */
+public class ModelBulkWriter implements AutoCloseable {
+
+    private static final String INSERT_STATISTICS_COLUMNS = " (MovieIDi, MovieIDj, AvgDifference, SumDifference, RatingCount) VALUES ";
+    private static final String INSERT_COLUMNS = " (MovieIDi, MovieIDj, AvgDifference) VALUES ";
+
+    private static final int MAX_STATEMENT_PARAMETERS = 65535; // MySQL limit of a prepared statement
+
+    private final String tableName;
+    private final boolean hasStatistics;
+    private final int rowsPerStatement;
+    private final int commitRows;
+    private final int connectionCount;
+
+    // Filled blocks are handed to the connection threads (bounded, so a slow database slows down the caller)
+    private final BlockingQueue<EntryBlock> filledBlocks;
+    private final EntryBlock endOfEntries = new EntryBlock(0);
+    private final ExecutorService executorService;
+    private final List<Future<?>> connectionWriters = new ArrayList<>();
+    private final AtomicReference<SQLException> failure = new AtomicReference<>();
+    private EntryBlock currentBlock;
+    private boolean closed;
+
+    // Write statistics
+    private final AtomicLong savedRowCount = new AtomicLong();
+    private final long startTime;
+    private double writeSeconds;
+
+    /**
+     * Writes to the application database, with the configured connection count & batch sizes
+     * @param tableName         Model table (must exist)
+     * @param hasStatistics     True to also write the SumDifference & RatingCount columns
+     * @throws DAOException if a connection cannot be opened
+     */
+    public ModelBulkWriter(String tableName, boolean hasStatistics) throws DAOException {
+        this(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD, tableName, hasStatistics, DB_BULK_WRITER_CONNECTIONS, DB_BULK_INSERT_ROWS, DB_BULK_COMMIT_ROWS);
+    }
+
+    /**
+     * @param connectionUrl     JDBC URL (ex. MySQL, or H2 for testing)
+     * @param tableName         Model table (must exist)
+     * @param hasStatistics     True to also write the SumDifference & RatingCount columns
+     * @param connectionCount   Number of connections inserting in parallel
+     * @param rowsPerStatement  Rows per multi-row INSERT statement
+     * @param commitRows        Rows each connection inserts before it commits
+     * @throws DAOException if a connection cannot be opened
+     */
+    public ModelBulkWriter(String connectionUrl, String username, String password, String tableName, boolean hasStatistics,
+                           int connectionCount, int rowsPerStatement, int commitRows) throws DAOException {
+        this.tableName = tableName;
+        this.hasStatistics = hasStatistics;
+        this.connectionCount = Math.max(1, connectionCount);
+        this.rowsPerStatement = Math.max(1, Math.min(rowsPerStatement, MAX_STATEMENT_PARAMETERS / 5));
+        this.commitRows = Math.max(this.rowsPerStatement, commitRows);
+        this.filledBlocks = new ArrayBlockingQueue<>(2 * this.connectionCount);
+        this.currentBlock = new EntryBlock(this.rowsPerStatement);
+
+        // Open all connections up front, so a connection problem fails before any entry is produced
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (int c = 0; c < this.connectionCount; c++) {
+                Connection conn = DriverManager.getConnection(connectionUrl, username, password);
+                conn.setAutoCommit(false);
+                connections.add(conn);
+            }
+        } catch (SQLException e) {
+            for (Connection conn : connections) closeQuietly(conn);
+            throw new DAOException(e);
+        }
+
+        this.startTime = System.nanoTime();
+        this.executorService = Executors.newFixedThreadPool(this.connectionCount);
+        for (Connection conn : connections) {
+            connectionWriters.add(executorService.submit(() -> writeBlocks(conn)));
+        }
+    }
+
+
+    /**
+     * Adds an entry of the Correlation Matrix (the statistics are ignored unless the writer has statistics)
+     * @throws DAOException if a previous insert failed
+     */
+    public void addEntry(int movieId_i, int movieId_j, double avgDifference, double sumDifference, int ratingCount) throws DAOException {
+        EntryBlock block = currentBlock;
+        block.movieIds_i[block.size] = movieId_i;
+        block.movieIds_j[block.size] = movieId_j;
+        block.avgDifferences[block.size] = avgDifference;
+        block.sumDifferences[block.size] = sumDifference;
+        block.ratingCounts[block.size] = ratingCount;
+        block.size++;
+        if (block.size == rowsPerStatement) {
+            hand(block);
+            currentBlock = new EntryBlock(rowsPerStatement);
+        }
+    }
+
+    /**
+     * Inserts the remaining entries, commits every connection and reports the throughput
+     * @throws DAOException if any insert or commit failed (rows committed by earlier chunks stay in the table)
+     */
+    @Override
+    public void close() throws DAOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (currentBlock.size > 0) putBlock(currentBlock);
+            for (int c = 0; c < connectionCount; c++) {
+                putBlock(endOfEntries);
+            }
+            for (Future<?> connectionWriter : connectionWriters) {
+                connectionWriter.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DAOException(new SQLException("Interrupted while saving the Correlation Matrix.", e));
+        } catch (ExecutionException e) {
+            throw new DAOException(new SQLException("Unable to save the Correlation Matrix.", e.getCause()));
+        } finally {
+            executorService.shutdown();
+        }
+        if (failure.get() != null) throw new DAOException(failure.get());
+
+        writeSeconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println(String.format("Saved %d Matrix entries over %d connection(s) in %.3f seconds: %.0f rows/sec.",
+                savedRowCount.get(), connectionCount, writeSeconds, writeSeconds > 0 ? savedRowCount.get() / writeSeconds : 0.0));
+    }
+
+    public long getSavedRowCount() {
+        return savedRowCount.get();
+    }
+
+    public double getWriteSeconds() {
+        return writeSeconds;
+    }
+
+
+    // Hands a filled block to the connection threads
+    private void hand(EntryBlock block) throws DAOException {
+        if (failure.get() != null) throw new DAOException(failure.get());
+        try {
+            putBlock(block);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DAOException(new SQLException("Interrupted while saving the Correlation Matrix.", e));
+        }
+    }
+
+    private void putBlock(EntryBlock block) throws InterruptedException {
+        filledBlocks.put(block);
+    }
+
+    /**
+     * Runs on its own connection until the end of the entries: inserts each block with one statement,
+     * and commits every commitRows rows
+     * After a failure the remaining blocks are drained without inserting, so the caller is never blocked
+     */
+    private Void writeBlocks(Connection conn) throws InterruptedException {
+        PreparedStatement fullBlockStmt = null;
+        long uncommittedRows = 0;
+        try {
+            while (true) {
+                EntryBlock block = filledBlocks.take();
+                if (block == endOfEntries) break;
+                if (failure.get() != null) continue;
+
+                if (block.size == rowsPerStatement) {
+                    if (fullBlockStmt == null) fullBlockStmt = conn.prepareStatement(getInsertSql(rowsPerStatement));
+                    insert(fullBlockStmt, block);
+                }
+                else {
+                    try (PreparedStatement lastBlockStmt = conn.prepareStatement(getInsertSql(block.size))) {
+                        insert(lastBlockStmt, block);
+                    }
+                }
+
+                uncommittedRows += block.size;
+                if (uncommittedRows >= commitRows) {
+                    conn.commit();
+                    savedRowCount.addAndGet(uncommittedRows);
+                    uncommittedRows = 0;
+                }
+            }
+            if (failure.get() == null) {
+                conn.commit();
+                savedRowCount.addAndGet(uncommittedRows);
+            }
+
+        } catch (SQLException e) {
+            failure.compareAndSet(null, e);
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {}
+            drain();
+        } finally {
+            closeQuietly(conn);
+        }
+        return null;
+    }
+
+    // Takes blocks until the end of the entries
+    private void drain() throws InterruptedException {
+        while (filledBlocks.take() != endOfEntries) {}
+    }
+
+    private void insert(PreparedStatement stmt, EntryBlock block) throws SQLException {
+        int parameter = 1;
+        for (int k = 0; k < block.size; k++) {
+            stmt.setInt(parameter++, block.movieIds_i[k]);
+            stmt.setInt(parameter++, block.movieIds_j[k]);
+            stmt.setDouble(parameter++, block.avgDifferences[k]);
+            if (hasStatistics) {
+                stmt.setDouble(parameter++, block.sumDifferences[k]);
+                stmt.setInt(parameter++, block.ratingCounts[k]);
+            }
+        }
+        stmt.executeUpdate();
+    }
+
+    // INSERT ... VALUES (?,?,?),(?,?,?),... for the given number of rows
+    private String getInsertSql(int rowCount) {
+        String row = hasStatistics ? "(?,?,?,?,?)" : "(?,?,?)";
+        StringBuilder sql = new StringBuilder(64 + rowCount * (row.length() + 1));
+        sql.append("INSERT INTO ").append(tableName).append(hasStatistics ? INSERT_STATISTICS_COLUMNS : INSERT_COLUMNS);
+        for (int k = 0; k < rowCount; k++) {
+            if (k > 0) sql.append(',');
+            sql.append(row);
+        }
+        return sql.toString();
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException ignored) {}
+    }
+
+
+    /**
+     * Entries inserted by one statement
+     */
+    private static class EntryBlock {
+        private final int[] movieIds_i;
+        private final int[] movieIds_j;
+        private final double[] avgDifferences;
+        private final double[] sumDifferences;
+        private final int[] ratingCounts;
+        private int size;
+
+        private EntryBlock(int capacity) {
+            movieIds_i = new int[capacity];
+            movieIds_j = new int[capacity];
+            avgDifferences = new double[capacity];
+            sumDifferences = new double[capacity];
+            ratingCounts = new int[capacity];
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.flixr.dao;
+
+import com.flixr.exceptions.DAOException;
+import com.flixr.model.BinaryModelFile;
+import com.flixr.model.ModelStatistics;
+import com.flixr.model.PredictionModel;
+import com.flixr.model.PredictionModelHolder;
+import com.flixr.model.TriangularMatrix;
+import com.flixr.threads.ParallelModelCsvReader;
+import com.flixr.threads.ParallelModelTableReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.flixr.configuration.ApplicationConstants.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Used to load the trained Recommendation Model (i.e. Correlation Matrix) from either the CSV files or the database
+ * This is expensive, so it should only be called by the PredictionModelHolder
+ */
+public class ModelDAO {
+
+    private int totalCountOfMoviesInMatrix;
+    private Set<Integer> distinctMovieIds;
+    private TriangularMatrix correlationMatrix;
+    private ModelStatistics modelStatistics; // null if the stored model only has averages, or they are not needed
+    private boolean withModelStatistics; // load the Sums & Counts, if the stored model has them
+    private HashMap<Integer, Integer> movieIdToMatrixIndex; // MovieId -> Index
+
+    private String matrixCsvFilePathPrefix; // location of trained model CSV
+    private String modelTable; // table of the active model version
+
+    public ModelDAO() {}
+
+    /**
+     * Loads the trained model, toggling between the memory-mapped binary model, or the CSV or DB stored Correlation Matrix
+     * @return  Prediction Model snapshot
+     * @throws DAOException
+     */
+    public PredictionModel loadModel() throws DAOException {
+        if (USE_BINARY_MODEL) {
+            return mapBinaryModel(); // already in the encoding it was saved with
+        }
+        // The Sums & Counts are only kept by a model that is updated online
+        return loadStoredModel(PredictionModelHolder.isOnlineUpdatable()).quantize(MODEL_ENCODING);
+    }
+
+    /**
+     * Loads the CSV or DB stored Correlation Matrix, with its Sums & Counts if they were saved (used by delta training)
+     * @return  Prediction Model snapshot
+     * @throws DAOException
+     */
+    public PredictionModel loadModelWithStatistics() throws DAOException {
+        return loadStoredModel(true);
+    }
+
+    // Loads the CSV or DB stored Correlation Matrix, with or without its Sums & Counts
+    private PredictionModel loadStoredModel(boolean withModelStatistics) throws DAOException {
+
+        long startTime = System.currentTimeMillis();
+        this.withModelStatistics = withModelStatistics;
+
+        // Toggle Between CSV or DB stored Correlation Matrix
+        if (USE_CSV_MATRIX) {
+            String path = System.getProperty("user.dir");
+            String ratingInputFilePrefix = CSV_MATRIX_FILE_PATH + CSV_MATRIX_FILE_PREFIX + "-";
+            matrixCsvFilePathPrefix = path + ratingInputFilePrefix;
+            generateMatrixModelFromCSV();
+        }
+        else {
+            // Resolve the active model version once, so a promotion during the load cannot mix two versions
+            modelTable = new ModelVersionDAO().getActiveModelTable();
+
+            setDistinctMovieIds();
+            setTotalCountOfMoviesInMatrix();
+            generateMatrixModelFromDB();
+        }
+
+        long loadTimeMillis = System.currentTimeMillis() - startTime;
+        return new PredictionModel(distinctMovieIds, movieIdToMatrixIndex, correlationMatrix, modelStatistics, loadTimeMillis);
+    }
+
+
+    // Maps the binary model file, its values are read from the page cache on demand
+    private PredictionModel mapBinaryModel() throws DAOException {
+        File modelFile = new File(System.getProperty("user.dir") + BINARY_MODEL_FILE_PATH);
+        try {
+            System.out.println("Mapping Binary Model: " + modelFile);
+            PredictionModel model = BinaryModelFile.map(modelFile);
+            if (TIERED_MODEL_HOT_BYTES > 0) {
+                model.enableTiering(TIERED_MODEL_HOT_BYTES);
+                System.out.println("Most read rows are copied onto the heap, up to " + model.getTieredRows().getMaxHotRows() + " rows.");
+            }
+            return model;
+        } catch (IOException e) {
+            System.out.println("Unable to map Binary Model! Re-train the model to create it.");
+            throw new DAOException(e);
+        }
+    }
+
+
+    private void generateMatrixModelFromDB() throws DAOException {
+
+        // Track Progress
+        System.out.println("Loading Correlation Matrix... ");
+
+        try {
+            // Initialize Matrix & Index Map
+            initializeMatrix(ParallelModelTableReader.hasStatisticsColumns(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD, modelTable));
+
+            // Stream the upper triangle through a few range-partitioned cursors
+            ParallelModelTableReader parallelModelTableReader = new ParallelModelTableReader(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD,
+                    getSortedMovieIds(), correlationMatrix, modelStatistics, DB_MODEL_LOAD_CURSORS, DB_STREAMING_FETCH_SIZE);
+            parallelModelTableReader.read(modelTable);
+
+            // Older tables may have rows saved without their Sums & Counts
+            if (parallelModelTableReader.hasMissingStatistics()) {
+                modelStatistics = null;
+                System.out.println("Stored model has rows without Sum & Count, it can only be replaced by a full re-train.");
+            }
+
+        } catch (SQLException e) {
+            System.out.println("Unable to generate Correlation Matrix! " + e.getMessage());
+            throw new DAOException(e);
+        }
+
+        System.out.println("Correlation Matrix Loaded.");
+    }
+
+
+    private void generateMatrixModelFromCSV() throws DAOException {
+        // Track Progress
+        System.out.println("Loading Correlation Matrix... ");
+
+        // Find the latest complete set of model CSV files (any number of files)
+        List<File> modelCsvFiles = findModelCsvFiles();
+
+        // Parse all files in line-aligned byte ranges, on all cores
+        try {
+            // The files hold their own MovieIds (a CSV re-train does not write the model table)
+            setDistinctMovieIds(ParallelModelCsvReader.readMovieIds(modelCsvFiles, MODEL_LOAD_THREADS));
+            setTotalCountOfMoviesInMatrix();
+
+            // Initialize Matrix & Index Map
+            initializeMatrix(hasModelStatisticsInCSV(modelCsvFiles.get(0).getPath()));
+
+            ParallelModelCsvReader parallelModelCsvReader = new ParallelModelCsvReader(getSortedMovieIds(), correlationMatrix, modelStatistics, MODEL_LOAD_THREADS);
+            parallelModelCsvReader.read(modelCsvFiles);
+        } catch (IOException e) {
+            System.out.println("Unable to generate Correlation Matrix! " + e.getMessage());
+            throw new DAOException(e);
+        }
+
+        System.out.println("Correlation Matrix Loaded.");
+
+    }
+
+    /**
+     * Finds the model CSV files, named "prefix-x-of-y.csv"
+     * If files of different training runs (different y) are present, the most recently written set is used
+     * @return  Files 1..y of the selected set
+     * @throws DAOException if no set is present, or the selected set is incomplete
+     */
+    private List<File> findModelCsvFiles() throws DAOException {
+        File modelCsvFilePrefix = new File(matrixCsvFilePathPrefix);
+        File directory = modelCsvFilePrefix.getParentFile();
+        Pattern fileNamePattern = Pattern.compile(Pattern.quote(modelCsvFilePrefix.getName()) + "(\\d+)-of-(\\d+)\\.csv");
+
+        // Group files by the number of files in their set
+        TreeMap<Integer, TreeMap<Integer, File>> fileSets = new TreeMap<>();
+        File[] files = directory != null ? directory.listFiles() : null;
+        for (File file : files != null ? files : new File[0]) {
+            Matcher matcher = fileNamePattern.matcher(file.getName());
+            if (matcher.matches()) {
+                fileSets.computeIfAbsent(Integer.parseInt(matcher.group(2)), numberOfFiles -> new TreeMap<>())
+                        .put(Integer.parseInt(matcher.group(1)), file);
+            }
+        }
+        if (fileSets.isEmpty()) {
+            throw new DAOException(new IOException("No model CSV files found: " + matrixCsvFilePathPrefix + "x-of-y.csv"));
+        }
+
+        // Select the most recently written set
+        int selectedNumberOfFiles = fileSets.firstKey();
+        long selectedLastModified = -1;
+        for (Map.Entry<Integer, TreeMap<Integer, File>> fileSet : fileSets.entrySet()) {
+            long lastModified = 0;
+            for (File file : fileSet.getValue().values()) lastModified = Math.max(lastModified, file.lastModified());
+            if (lastModified > selectedLastModified) {
+                selectedNumberOfFiles = fileSet.getKey();
+                selectedLastModified = lastModified;
+            }
+        }
+
+        // Every file of the set must be present, otherwise only part of the model would be loaded
+        List<File> modelCsvFiles = new ArrayList<>();
+        for (int i = 1; i <= selectedNumberOfFiles; i++) {
+            File file = fileSets.get(selectedNumberOfFiles).get(i);
+            if (file == null) {
+                throw new DAOException(new IOException("Model CSV file " + i + " of " + selectedNumberOfFiles + " is missing: "
+                        + matrixCsvFilePathPrefix + i + "-of-" + selectedNumberOfFiles + ".csv"));
+            }
+            modelCsvFiles.add(file);
+        }
+        return modelCsvFiles;
+    }
+
+
+    // Initialize Matrix (and its statistics, if stored with the model) & map MovieId to Matrix Index
+    private void initializeMatrix(boolean hasModelStatistics) {
+        correlationMatrix = new TriangularMatrix(totalCountOfMoviesInMatrix);
+        modelStatistics = hasModelStatistics && withModelStatistics ? new ModelStatistics(totalCountOfMoviesInMatrix) : null;
+        if (!hasModelStatistics) {
+            System.out.println("Stored model has no Sum & Count columns, it can only be replaced by a full re-train.");
+        }
+        movieIdToMatrixIndex = new HashMap<>();
+
+        int matrixIndx = 0;
+        for (int movieId: distinctMovieIds) {
+            movieIdToMatrixIndex.put(movieId, matrixIndx);
+            matrixIndx++;
+        }
+    }
+
+
+    /**
+     * @param matrixCsvFilePath     Any model CSV file (all files share the same header)
+     * @return  True if the model CSV files have the SumDifference & RatingCount columns
+     */
+    private boolean hasModelStatisticsInCSV(String matrixCsvFilePath) {
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(matrixCsvFilePath))) {
+            String header = bufferedReader.readLine();
+            return header != null && header.contains("ratingCount");
+        } catch (IOException e) {
+            return false; // reported by the reader threads
+        }
+    }
+
+    /**
+     * Determines the list of Movies in the Matrix stored in the DB
+     * A triangular model has no row for its last movie, which is read from the last row (see ModelRowDAO.readMovieIds)
+     * @throws DAOException
+     */
+    private void setDistinctMovieIds() throws DAOException {
+        try (Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD)) {
+            setDistinctMovieIds(ModelRowDAO.readMovieIds(conn, modelTable));
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
+
+    // Sorted MovieIds (read from the DB, or from the model CSV files)
+    private void setDistinctMovieIds(int[] sortedMovieIds) {
+        distinctMovieIds = new TreeSet<>();
+        for (int movieId : sortedMovieIds) {
+            distinctMovieIds.add(movieId);
+        }
+    }
+
+    // MovieIds in Matrix Index order
+    private int[] getSortedMovieIds() {
+        int[] sortedMovieIds = new int[distinctMovieIds.size()];
+        int matrixIndx = 0;
+        for (int movieId : distinctMovieIds) {
+            sortedMovieIds[matrixIndx++] = movieId;
+        }
+        return sortedMovieIds;
+    }
+
+    /**
+     * Determines the total # of Movies in the Matrix
+     */
+    private void setTotalCountOfMoviesInMatrix() {
+        totalCountOfMoviesInMatrix = distinctMovieIds.size();
+    }
+
+}
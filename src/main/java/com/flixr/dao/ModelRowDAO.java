@@ -0,0 +1,185 @@
+package com.flixr.dao;
+
+import com.flixr.exceptions.DAOException;
+import com.flixr.model.ModelRow;
+
+import java.sql.*;
+import java.util.*;
+
+import static com.flixr.configuration.ApplicationConstants.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Loads single rows of the Correlation Matrix from a model table (used by the ModelRowCache)
+ *
+ * Only the upper triangle (MovieIDi < MovieIDj) is read, so triangular and full models give the same rows:
+ * the row of movie m holds -(i, m) for every stored pair i < m (found through the MovieIDj index),
+ * followed by (m, j) for every stored pair j > m (found through the primary key)
+ */
+public class ModelRowDAO {
+
+    private static final int MAX_MOVIES_PER_QUERY = 500;
+
+    private String connectionUrl;
+    private String username;
+    private String password;
+    private String modelTable;
+
+    /**
+     * @param modelTable    Model table (ex. the active model version)
+     */
+    public ModelRowDAO(String modelTable) {
+        this(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD, modelTable);
+    }
+
+    /**
+     * @param connectionUrl     JDBC URL (ex. MySQL, or H2 for testing)
+     * @param modelTable        Model table
+     */
+    public ModelRowDAO(String connectionUrl, String username, String password, String modelTable) {
+        this.connectionUrl = connectionUrl;
+        this.username = username;
+        this.password = password;
+        this.modelTable = modelTable;
+    }
+
+    /**
+     * Loads the rows of several movies (a few queries per batch of movies, not one per row)
+     * @param movieIds  MovieIds of the rows
+     * @return  MovieId -> Row, for every requested movie (empty if the movie is not in the model)
+     * @throws DAOException
+     */
+    public Map<Integer, ModelRow> loadRows(Collection<Integer> movieIds) throws DAOException {
+        Map<Integer, RowBuilder> rowBuilders = new LinkedHashMap<>();
+        for (int movieId : movieIds) {
+            rowBuilders.putIfAbsent(movieId, new RowBuilder(movieId));
+        }
+        List<Integer> distinctMovieIds = new ArrayList<>(rowBuilders.keySet());
+
+        try (Connection conn = DriverManager.getConnection(connectionUrl, username, password)) {
+            for (int from = 0; from < distinctMovieIds.size(); from += MAX_MOVIES_PER_QUERY) {
+                List<Integer> batch = distinctMovieIds.subList(from, Math.min(from + MAX_MOVIES_PER_QUERY, distinctMovieIds.size()));
+                String inList = String.join(",", Collections.nCopies(batch.size(), "?"));
+
+                // Pairs i < m, stored in the row of movie i (mirrored)
+                PreparedStatement lowerStmt = conn.prepareStatement("SELECT MovieIDj, MovieIDi, AvgDifference FROM " + modelTable
+                        + " WHERE MovieIDj IN (" + inList + ") AND MovieIDi < MovieIDj ORDER BY MovieIDj, MovieIDi");
+                readPairs(lowerStmt, batch, rowBuilders, -1);
+
+                // Pairs m < j, stored in the row of movie m
+                PreparedStatement upperStmt = conn.prepareStatement("SELECT MovieIDi, MovieIDj, AvgDifference FROM " + modelTable
+                        + " WHERE MovieIDi IN (" + inList + ") AND MovieIDj > MovieIDi ORDER BY MovieIDi, MovieIDj");
+                readPairs(upperStmt, batch, rowBuilders, 1);
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+
+        Map<Integer, ModelRow> rows = new LinkedHashMap<>(); // request order
+        for (RowBuilder rowBuilder : rowBuilders.values()) {
+            rows.put(rowBuilder.movieId, rowBuilder.build());
+        }
+        return rows;
+    }
+
+    /**
+     * @return  Sorted MovieIds of every movie in the model (Matrix Index order)
+     * @throws DAOException
+     */
+    public int[] loadMovieIds() throws DAOException {
+        try (Connection conn = DriverManager.getConnection(connectionUrl, username, password)) {
+            return readMovieIds(conn, modelTable);
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
+
+    /**
+     * Reads the MovieIds of a model table through its primary key only (no scan of the MovieIDj column):
+     * every movie has a row of its own (a full model, or the diagonal entry of a sparse model),
+     * except the last movie of a dense triangular model, which is the largest MovieIDj of the last row
+     * @param conn          Open connection, left open
+     * @param modelTable    Model table
+     * @return  Sorted MovieIds of every movie in the model (Matrix Index order)
+     * @throws SQLException
+     */
+    static int[] readMovieIds(Connection conn, String modelTable) throws SQLException {
+        int[] movieIds = new int[1024];
+        int movieCount = 0;
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet resultSet = stmt.executeQuery("SELECT DISTINCT MovieIDi FROM " + modelTable + " ORDER BY MovieIDi");
+            while (resultSet.next()) {
+                if (movieCount == movieIds.length) movieIds = Arrays.copyOf(movieIds, 2 * movieCount);
+                movieIds[movieCount++] = resultSet.getInt(1);
+            }
+            resultSet.close();
+
+            // Last movie of a dense triangular model
+            resultSet = stmt.executeQuery("SELECT MAX(MovieIDj) FROM " + modelTable
+                    + " WHERE MovieIDi = (SELECT MAX(MovieIDi) FROM " + modelTable + ")");
+            if (resultSet.next()) {
+                int lastMovieId = resultSet.getInt(1);
+                if (!resultSet.wasNull() && (movieCount == 0 || lastMovieId > movieIds[movieCount - 1])) {
+                    if (movieCount == movieIds.length) movieIds = Arrays.copyOf(movieIds, movieCount + 1);
+                    movieIds[movieCount++] = lastMovieId;
+                }
+            }
+            resultSet.close();
+        }
+        return Arrays.copyOf(movieIds, movieCount);
+    }
+
+    public String getModelTable() {
+        return modelTable;
+    }
+
+
+    // Appends (rowMovieId, otherMovieId, sign * AvgDifference) pairs, which arrive sorted by otherMovieId within each row
+    private void readPairs(PreparedStatement stmt, List<Integer> batch, Map<Integer, RowBuilder> rowBuilders, int sign) throws SQLException {
+        for (int k = 0; k < batch.size(); k++) {
+            stmt.setInt(k + 1, batch.get(k));
+        }
+        ResultSet resultSet = stmt.executeQuery();
+        RowBuilder rowBuilder = null;
+        while (resultSet.next()) {
+            int rowMovieId = resultSet.getInt(1);
+            if (rowBuilder == null || rowBuilder.movieId != rowMovieId) {
+                rowBuilder = rowBuilders.get(rowMovieId);
+            }
+            rowBuilder.add(resultSet.getInt(2), sign * resultSet.getDouble(3));
+        }
+        resultSet.close();
+        stmt.close();
+    }
+
+
+    /**
+     * Growable primitive arrays of a row
+     */
+    private static class RowBuilder {
+        private final int movieId;
+        private int[] otherMovieIds = new int[16];
+        private double[] avgDifferences = new double[16];
+        private int size;
+
+        private RowBuilder(int movieId) {
+            this.movieId = movieId;
+        }
+
+        private void add(int otherMovieId, double avgDifference) {
+            if (size == otherMovieIds.length) {
+                otherMovieIds = Arrays.copyOf(otherMovieIds, 2 * size);
+                avgDifferences = Arrays.copyOf(avgDifferences, 2 * size);
+            }
+            otherMovieIds[size] = otherMovieId;
+            avgDifferences[size] = avgDifference;
+            size++;
+        }
+
+        private ModelRow build() {
+            return new ModelRow(movieId, otherMovieIds, avgDifferences, size);
+        }
+    }
+
+}
@@ -0,0 +1,291 @@
+package com.flixr.dao;
+
+import com.flixr.exceptions.DAOException;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.flixr.configuration.ApplicationConstants.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Versioned storage of the Correlation Matrix in the database
+ *
+ * Every training run writes into its own table (RecEngineModel_v1, RecEngineModel_v2, ...), while predictions keep
+ * reading the active version. Once the new table is complete it is promoted by updating the single pointer row,
+ * so readers either see the old model or the new one, never an empty or half-written model.
+ * Earlier versions are kept for an instant rollback, and dropped later by the ModelVersionCleanupThread
+ *
+ *   RecEngineModelVersions:   Version, TableName, Status (BUILDING, READY, FAILED, DROPPED), RowCount
+ *   RecEngineModelPointer:    PointerId (always 1), ActiveVersion
+ *
+ * A database without these tables (i.e. the model was uploaded by upload-model-csv-to-db.sql) serves RecEngineModel
+ */
+public class ModelVersionDAO {
+
+    public static final String UNVERSIONED_MODEL_TABLE = "RecEngineModel";
+
+    private static final String STATUS_BUILDING = "BUILDING";
+    private static final String STATUS_READY = "READY";
+    private static final String STATUS_FAILED = "FAILED";
+    private static final String STATUS_DROPPED = "DROPPED";
+
+    private String connectionUrl;
+    private String username;
+    private String password;
+
+    public ModelVersionDAO() {
+        this(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
+    }
+
+    /**
+     * @param connectionUrl     JDBC URL (ex. MySQL, or H2 for testing)
+     */
+    public ModelVersionDAO(String connectionUrl, String username, String password) {
+        this.connectionUrl = connectionUrl;
+        this.username = username;
+        this.password = password;
+    }
+
+
+    /**
+     * Resolves the table of the active model, read once per model load so all of its queries see the same version
+     * @return  Table name of the active version (RecEngineModel if no version was promoted yet)
+     * @throws DAOException if the database cannot be read (the caller keeps its current model)
+     */
+    public String getActiveModelTable() throws DAOException {
+        try (Connection conn = getConnection()) {
+
+            // Versioning tables do not exist yet (only created by the first versioned training run)
+            if (!tableExists(conn, "RecEngineModelPointer") || !tableExists(conn, "RecEngineModelVersions")) {
+                return UNVERSIONED_MODEL_TABLE;
+            }
+
+            PreparedStatement stmt = conn.prepareStatement("SELECT v.TableName FROM RecEngineModelPointer p "
+                    + "JOIN RecEngineModelVersions v ON v.Version = p.ActiveVersion WHERE p.PointerId = 1");
+            ResultSet resultSet = stmt.executeQuery();
+            return resultSet.next() ? resultSet.getString(1) : UNVERSIONED_MODEL_TABLE;
+        } catch (SQLException e) {
+            System.out.println("Unable to resolve the active Model Version! " + e.getMessage());
+            throw new DAOException(e);
+        }
+    }
+
+    /**
+     * @return  Active version (0 if no version was promoted yet)
+     * @throws DAOException
+     */
+    public int getActiveVersion() throws DAOException {
+        try (Connection conn = getConnection()) {
+            createVersionTables(conn);
+            return getActiveVersion(conn);
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
+
+    /**
+     * Creates an empty table for a new model version (not visible to readers until it is promoted)
+     * @return  New version number, its table is getModelTable(version)
+     * @throws DAOException
+     */
+    public int createModelVersion() throws DAOException {
+        try (Connection conn = getConnection()) {
+            createVersionTables(conn);
+
+            // Reserve the next version number (the primary key rejects a concurrent reservation of the same number)
+            ResultSet resultSet = conn.prepareStatement("SELECT COALESCE(MAX(Version), 0) + 1 FROM RecEngineModelVersions").executeQuery();
+            resultSet.next();
+            int version = resultSet.getInt(1);
+            PreparedStatement stmt = conn.prepareStatement("INSERT INTO RecEngineModelVersions (Version, TableName, Status, RowCount) VALUES (?,?,?,0)");
+            stmt.setInt(1, version);
+            stmt.setString(2, getModelTable(version));
+            stmt.setString(3, STATUS_BUILDING);
+            stmt.executeUpdate();
+
+            conn.createStatement().execute("DROP TABLE IF EXISTS " + getModelTable(version));
+            conn.createStatement().execute("CREATE TABLE " + getModelTable(version) + "("
+                    + "MovieIDi int NOT NULL, MovieIDj int NOT NULL, AvgDifference double, SumDifference double, RatingCount int, "
+                    + "PRIMARY KEY (MovieIDi, MovieIDj))");
+            conn.createStatement().execute("CREATE INDEX " + getModelTable(version) + "_MovieIDj ON " + getModelTable(version) + " (MovieIDj, MovieIDi)");
+            System.out.println("Created Model Version " + version + ": " + getModelTable(version));
+            return version;
+
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
+
+    /**
+     * Makes a complete model version the active one, in a single update of the pointer row
+     * @param version   Version created by createModelVersion, fully written
+     * @param rowCount  Number of rows written (recorded with the version)
+     * @throws DAOException if the version does not exist or failed
+     */
+    public void promoteModelVersion(int version, long rowCount) throws DAOException {
+        try (Connection conn = getConnection()) {
+            String status = getStatus(conn, version);
+            if (status == null || STATUS_FAILED.equals(status) || STATUS_DROPPED.equals(status)) {
+                throw new DAOException(new SQLException("Model Version " + version + " cannot be promoted (" + status + ")."));
+            }
+            PreparedStatement stmt = conn.prepareStatement("UPDATE RecEngineModelVersions SET Status = ?, RowCount = ? WHERE Version = ?");
+            stmt.setString(1, STATUS_READY);
+            stmt.setLong(2, rowCount);
+            stmt.setInt(3, version);
+            stmt.executeUpdate();
+
+            setActiveVersion(conn, version);
+            System.out.println("Promoted Model Version " + version + " (" + rowCount + " rows).");
+
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
+
+    /**
+     * Records that a version could not be written (its table is dropped by the next cleanup)
+     * @param version   Version created by createModelVersion
+     */
+    public void failModelVersion(int version) {
+        try (Connection conn = getConnection()) {
+            setStatus(conn, version, STATUS_FAILED);
+        } catch (SQLException e) {
+            System.out.println("Unable to mark Model Version " + version + " as failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Re-activates the newest complete version older than the active one (its table is still in place)
+     * @return  Version that is now active
+     * @throws DAOException if there is no earlier version to roll back to
+     */
+    public int rollbackModelVersion() throws DAOException {
+        try (Connection conn = getConnection()) {
+            int activeVersion = getActiveVersion(conn);
+            PreparedStatement stmt = conn.prepareStatement("SELECT MAX(Version) FROM RecEngineModelVersions WHERE Status = ? AND Version < ?");
+            stmt.setString(1, STATUS_READY);
+            stmt.setInt(2, activeVersion);
+            ResultSet resultSet = stmt.executeQuery();
+            int previousVersion = resultSet.next() ? resultSet.getInt(1) : 0;
+            if (previousVersion == 0) {
+                throw new DAOException(new SQLException("No earlier Model Version to roll back to (active version: " + activeVersion + ")."));
+            }
+
+            setActiveVersion(conn, previousVersion);
+            System.out.println("Rolled back from Model Version " + activeVersion + " to " + previousVersion + ".");
+            return previousVersion;
+
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
+
+    /**
+     * Drops the tables of versions that are no longer needed:
+     * failed or abandoned versions, and complete versions beyond the newest versionsKept (the active version is always kept)
+     * @param versionsKept  Number of complete versions to keep for rollback (including the active version)
+     * @return  Number of tables dropped
+     * @throws DAOException
+     */
+    public int dropRetiredModelVersions(int versionsKept) throws DAOException {
+        try (Connection conn = getConnection()) {
+            createVersionTables(conn);
+            int activeVersion = getActiveVersion(conn);
+
+            // Find retired versions, newest first
+            List<Integer> retiredVersions = new ArrayList<>();
+            ResultSet resultSet = conn.prepareStatement("SELECT Version, Status FROM RecEngineModelVersions "
+                    + "WHERE Status <> '" + STATUS_DROPPED + "' ORDER BY Version DESC").executeQuery();
+            int readyVersions = activeVersion > 0 ? 1 : 0; // the active version is always one of the versions kept
+            int newestVersion = 0;
+            while (resultSet.next()) {
+                int version = resultSet.getInt(1);
+                String status = resultSet.getString(2);
+                newestVersion = Math.max(newestVersion, version);
+                if (version == activeVersion) continue;
+
+                if (STATUS_READY.equals(status)) {
+                    if (++readyVersions > versionsKept) retiredVersions.add(version);
+                }
+                else if (STATUS_FAILED.equals(status) || version < newestVersion) {
+                    retiredVersions.add(version); // a BUILDING version is only abandoned once a newer version exists
+                }
+            }
+
+            // Drop their tables
+            for (int version : retiredVersions) {
+                conn.createStatement().execute("DROP TABLE IF EXISTS " + getModelTable(version));
+                setStatus(conn, version, STATUS_DROPPED);
+                System.out.println("Dropped Model Version " + version + ": " + getModelTable(version));
+            }
+            return retiredVersions.size();
+
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+    }
+
+    /**
+     * @return  Table name of a model version
+     */
+    public static String getModelTable(int version) {
+        return UNVERSIONED_MODEL_TABLE + "_v" + version;
+    }
+
+
+    private Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(connectionUrl, username, password);
+    }
+
+    private void createVersionTables(Connection conn) throws SQLException {
+        conn.createStatement().execute("CREATE TABLE IF NOT EXISTS RecEngineModelVersions("
+                + "Version int NOT NULL, TableName varchar(64) NOT NULL, Status varchar(16) NOT NULL, RowCount bigint, "
+                + "CreatedAt timestamp DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (Version))");
+        conn.createStatement().execute("CREATE TABLE IF NOT EXISTS RecEngineModelPointer("
+                + "PointerId int NOT NULL, ActiveVersion int NOT NULL, PRIMARY KEY (PointerId))");
+    }
+
+    // Table names are stored upper case by some databases (ex. H2) and as created by others (ex. MySQL)
+    private boolean tableExists(Connection conn, String tableName) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        for (String name : new String[] {tableName, tableName.toUpperCase(), tableName.toLowerCase()}) {
+            try (ResultSet resultSet = metaData.getTables(conn.getCatalog(), null, name, new String[] {"TABLE"})) {
+                if (resultSet.next()) return true;
+            }
+        }
+        return false;
+    }
+
+    private int getActiveVersion(Connection conn) throws SQLException {
+        ResultSet resultSet = conn.prepareStatement("SELECT ActiveVersion FROM RecEngineModelPointer WHERE PointerId = 1").executeQuery();
+        return resultSet.next() ? resultSet.getInt(1) : 0;
+    }
+
+    // Single row update, readers see either the old or the new version
+    private void setActiveVersion(Connection conn, int version) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("UPDATE RecEngineModelPointer SET ActiveVersion = ? WHERE PointerId = 1");
+        stmt.setInt(1, version);
+        if (stmt.executeUpdate() == 0) {
+            stmt = conn.prepareStatement("INSERT INTO RecEngineModelPointer (PointerId, ActiveVersion) VALUES (1, ?)");
+            stmt.setInt(1, version);
+            stmt.executeUpdate();
+        }
+    }
+
+    private String getStatus(Connection conn, int version) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT Status FROM RecEngineModelVersions WHERE Version = ?");
+        stmt.setInt(1, version);
+        ResultSet resultSet = stmt.executeQuery();
+        return resultSet.next() ? resultSet.getString(1) : null;
+    }
+
+    private void setStatus(Connection conn, int version, String status) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("UPDATE RecEngineModelVersions SET Status = ? WHERE Version = ?");
+        stmt.setString(1, status);
+        stmt.setInt(2, version);
+        stmt.executeUpdate();
+    }
+
+}
@@ -3,173 +3,72 @@ package com.flixr.dao;
 import com.flixr.beans.MovieWithPrediction;
 import com.flixr.beans.Prediction;
 import com.flixr.exceptions.DAOException;
+import com.flixr.exceptions.EngineException;
+import com.flixr.interfaces.ICorrelationModel;
 import com.flixr.interfaces.IPredictionDAO;
-import com.flixr.threads.PredictionMatrixThread;
-import com.flixr.threads.ReadModelCsvThread;
+import com.flixr.model.LazyCorrelationModel;
+import com.flixr.model.PredictionModel;
+import com.flixr.model.PredictionModelHolder;
 
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static com.flixr.configuration.ApplicationConstants.*;
 
 public class PredictionDAO implements IPredictionDAO {
 
-    private int totalCountOfMoviesInMatrix;
-    private Set<Integer> distinctMovieIds;
-    private double[][] correlationMatrix;
-    private HashMap<Integer, Integer> movieIdToMatrixIndex; // MovieId -> Index
-
-    private String matrixCsvFilePathPrefix; // location of trained model CSV
+    private PredictionModel predictionModel; // shared, read-only trained model (null for a lazy database model)
+    private ICorrelationModel correlationModel; // model read by the Prediction Engine
 
     /**
-     * Constructor without in memory storage
+     * Borrows the process-wide trained model (loaded once by the PredictionModelHolder)
      * Used for much faster querying / prediction generation
+     * The same snapshot is used until release(), even if a newer model is swapped in meanwhile
+     * A lazy database model is read through a per-request view of the shared row cache instead
      */
     public PredictionDAO() throws DAOException {
-        setTotalCountOfMoviesInMatrix();
-        setDistinctMovieIds();
-
-        // Toggle Between CSV or DB stored Correlation Matrix
-        if (USE_CSV_MATRIX) {
-            String path = System.getProperty("user.dir");
-            String ratingInputFilePrefix = CSV_MATRIX_FILE_PATH + CSV_MATRIX_FILE_PREFIX + "-";
-            matrixCsvFilePathPrefix = path + ratingInputFilePrefix;
-            generateMatrixModelFromCSV();
+        if (PredictionModelHolder.isLazyModel()) {
+            correlationModel = new LazyCorrelationModel(PredictionModelHolder.getRowCache());
         }
         else {
-            generateMatrixModelFromDB();
+            predictionModel = PredictionModelHolder.acquireModel();
+            correlationModel = predictionModel;
         }
-
     }
 
     /**
-     * Gets the Correlation between Movies in the trained Recommendation Model
-     * @param movieId_i     MovieId in Matrix position i
-     * @param movieId_j     MovieId in Matrix position j
-     * @return  Correlation (i.e. average preference difference between Movie i and Movie j)
+     * Returns the borrowed model to the PredictionModelHolder (call once the predictions are generated)
      */
-    public double getAveragePreferenceDifference(int movieId_i, int movieId_j) {
-        try {
-            // Convert MovieId to MatrixIndex
-            int i = movieIdToMatrixIndex.get(movieId_i);
-            int j = movieIdToMatrixIndex.get(movieId_j);
-
-            // Return Average Difference
-            return correlationMatrix[i][j];
-
-        } catch (IndexOutOfBoundsException | NullPointerException e) {
-            //System.out.println("Matrix Index was Invalid!");
-            //System.out.println("Assuming correlation to be 0.");
-//            e.printStackTrace();
-            return 0;
-        }
+    public void release() {
+        PredictionModelHolder.releaseModel(predictionModel);
+        correlationModel = null;
     }
 
-
-    private void generateMatrixModelFromDB() throws DAOException {
-
-        // Track Progress
-        System.out.println("Loading Correlation Matrix... ");
-
-        // Initialize Matrix & Index Map
-        correlationMatrix = new double[totalCountOfMoviesInMatrix][totalCountOfMoviesInMatrix];
-        movieIdToMatrixIndex = new HashMap<>();
-
-        // Map MovieId to Matrix Index
-        int matrixIndx = 0;
-        for (int movieId: distinctMovieIds) {
-            movieIdToMatrixIndex.put(movieId, matrixIndx);
-            matrixIndx++;
-        }
-
-        // Determine # of entries per subset of movie list (partitioned by thread count)
-        int dividedCount = 1;
-        try {
-            dividedCount = (int) Math.floor( (double) distinctMovieIds.size() / PRED_ENGINE_THREADS ) ;
-        } catch (ArithmeticException e) {
-            System.out.println("Warning: Number of Prediction Engine Threads must be at least 1!");
-            System.out.println("Proceeding with a single-threaded configuration: PRED_ENGINE_THREADS = 1");
-        }
-
-        // Determine split indices for new movie list sublists
-        int currentIndx = 0;
-        int[] splitIndxs = new int[PRED_ENGINE_THREADS + 1];
-        for (int i = 0; i < splitIndxs.length - 1; i++) {
-            splitIndxs[i] = currentIndx;
-            currentIndx += dividedCount;
-        }
-        splitIndxs[splitIndxs.length - 1] = distinctMovieIds.size(); // any remainders will just get tacked on to the last thread
-
-        // Convert TreeSet to ArrayList (to facilitate splitting by index)
-        List<Integer> listOfDistinctMovieIds = new ArrayList<>(distinctMovieIds);
-
-        // Spawn Threads for faster predictions
-        ExecutorService executor = Executors.newFixedThreadPool(PRED_ENGINE_THREADS);
-        try {
-            for (int i = 1; i <= PRED_ENGINE_THREADS; i++) {
-                // Pass in a subset of the movies
-                Set<Integer> subsetOfDistinctMovieIds = new TreeSet<>( listOfDistinctMovieIds.subList(splitIndxs[i-1], splitIndxs[i]) ) ;
-                // Run a service to compute a subset of the matrix
-                PredictionMatrixThread predictionMatrixThread = new PredictionMatrixThread(i, subsetOfDistinctMovieIds, correlationMatrix, movieIdToMatrixIndex);
-                executor.execute(predictionMatrixThread);
-            }
-
-            // Wait for threads to complete
-            executor.shutdown();
-            while (!executor.isTerminated()) {}
-
-        } catch (RuntimeException e) {
-            System.out.println("Unable to generate Correlation Matrix! Problem encountered within Threads!");
-            e.printStackTrace();
-            throw new DAOException(e);
-        }
-
-        System.out.println("Correlation Matrix Loaded.");
-    }
-
-
-    private void setDistinctMovieIds() throws DAOException {
-        distinctMovieIds = new TreeSet<>();
-        try {
-            Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
-            PreparedStatement stmt = conn.prepareStatement("SELECT DISTINCT MovieIDi FROM recenginemodel ORDER BY MovieIdi");
-            ResultSet resultSet = stmt.executeQuery();
-
-            // Iterate Over MovieIds
-            while (resultSet.next()) {
-                int movieId = resultSet.getInt("MovieIDi");
-                distinctMovieIds.add(movieId);
-            }
-
-            conn.close();
-
-        } catch (SQLException e) {
-            throw new DAOException(e);
-        }
-
+    /**
+     * @return  Borrowed model, or the request view of a lazy database model
+     */
+    @Override
+    public ICorrelationModel getCorrelationModel() {
+        return correlationModel;
     }
 
     /**
-     * Determines the total # of Movies in the Matrix
-     * @throws DAOException
+     * Gets the Correlation between Movies in the trained Recommendation Model
+     * @param movieId_i     MovieId in Matrix position i
+     * @param movieId_j     MovieId in Matrix position j
+     * @return  Correlation (i.e. average preference difference between Movie i and Movie j), 0 for an unknown movie
+     * @throws EngineException if the row of a lazy database model cannot be loaded
      */
-    private void setTotalCountOfMoviesInMatrix() throws DAOException {
-        try {
-            Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
-            PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) AS MovieCount FROM (SELECT DISTINCT MovieIDi FROM recenginemodel) Q1");
-            ResultSet resultSet = stmt.executeQuery();
-
-            resultSet.next();
-            totalCountOfMoviesInMatrix = resultSet.getInt("MovieCount");
-
-            conn.close();
-        } catch (SQLException e) {
-            throw new DAOException(e);
+    public double getAveragePreferenceDifference(int movieId_i, int movieId_j) throws EngineException {
+        int i = correlationModel.getMatrixIndex(movieId_i);
+        int j = correlationModel.getMatrixIndex(movieId_j);
+        if (i < 0 || j < 0) {
+            return 0;
         }
+        return correlationModel.get(i, j);
     }
 
+
     /**
      * Create Movies with Predicted Ratings
      * @param predictions   List of Predictions from the Prediction Engine
@@ -237,47 +136,4 @@ public class PredictionDAO implements IPredictionDAO {
         return filteredListOfMoviesWithPredictions;
     }
 
-
-    private void generateMatrixModelFromCSV() throws DAOException {
-        // Track Progress
-        System.out.println("Loading Correlation Matrix... ");
-
-        // Initialize Matrix & Index Map
-        correlationMatrix = new double[totalCountOfMoviesInMatrix][totalCountOfMoviesInMatrix];
-        movieIdToMatrixIndex = new HashMap<>();
-
-        // Map MovieId to Matrix Index
-        int matrixIndx = 0;
-        for (int movieId: distinctMovieIds) {
-            movieIdToMatrixIndex.put(movieId, matrixIndx);
-            matrixIndx++;
-        }
-
-        // Spawn Threads for faster predictions (NOTE: # of model.csv files must align with threads!!!)
-        ExecutorService executor = Executors.newFixedThreadPool(PRED_ENGINE_THREADS);
-        try {
-            for (int i = 1; i <= PRED_ENGINE_THREADS; i++) {
-                // Read model CSV file x of y
-                String currentFileName = matrixCsvFilePathPrefix + i + "-of-" + PRED_ENGINE_THREADS + ".csv";
-                ReadModelCsvThread readModelCsvThread = new ReadModelCsvThread(i, currentFileName, movieIdToMatrixIndex, correlationMatrix);
-                executor.execute(readModelCsvThread);
-            }
-
-            // Wait for threads to complete
-            executor.shutdown();
-            while (!executor.isTerminated()) {}
-
-
-        } catch (RuntimeException e) {
-            System.out.println("Unable to generate Correlation Matrix! Problem encountered within Threads!");
-            e.printStackTrace();
-            throw new DAOException(e);
-        }
-
-        System.out.println("Correlation Matrix Loaded.");
-
-    }
-
-
-
 }
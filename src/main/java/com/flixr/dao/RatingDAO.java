@@ -8,42 +8,76 @@ package com.flixr.dao;
 
 import com.flixr.beans.MovieStats;
 import com.flixr.exceptions.DAOException;
+import com.flixr.model.PredictionModelHolder;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.flixr.configuration.ApplicationConstants.*;
 
 public class RatingDAO
 {
     // Thomas
-    public void addMovieRating(int userID, int imdbID, double rating) {
-        try {
-            Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD);
-            PreparedStatement stmt0 = conn.prepareStatement("DELETE FROM ratings WHERE userID = ? AND imdbID = ?"); //delete if user already entered it
-            stmt0.setInt(1, userID);
-            stmt0.setInt(2, imdbID);
-            // Insert all matrix row entries in 1 batch
-            stmt0.executeUpdate();
-
-            PreparedStatement stmt = conn.prepareStatement("INSERT INTO ratings(userId, imdbId, rating) VALUES (?, ?, ?)");
-            stmt.setInt(1, userID);
-            stmt.setInt(2, imdbID);
-            stmt.setDouble(3, rating);
-
-            // Insert all matrix row entries in 1 batch
-            stmt.executeUpdate();
-
-            // Close connection
-            String insertedTuple = "(" + userID + "," + imdbID + "," + rating + ")";
-            System.out.println("Insert Query Completed: " + insertedTuple);
-            conn.close();
+    public void addMovieRating(int userID, int imdbID, double rating) throws DAOException {
+        boolean updateModel = PredictionModelHolder.isOnlineUpdatable();
+        String insertedTuple = "(" + userID + "," + imdbID + "," + rating + ")";
+
+        Double previousRating = null;
+        Map<Integer, Double> otherRatings = new HashMap<>();
+        try (Connection conn = DriverManager.getConnection(DB_CONNECTION_URL, DB_USERNAME, DB_PASSWORD)) {
+
+            // Read & write in one transaction: the user's ratings stay locked until the commit, so concurrent
+            // submissions by the same user each see the other's rating (and no movie pair is lost from the model)
+            conn.setAutoCommit(false);
+            try {
+                // Get the user's current ratings (needed to update the model online)
+                if (updateModel) {
+                    PreparedStatement stmtRatings = conn.prepareStatement("SELECT imdbId, rating FROM ratings WHERE userId = ? FOR UPDATE");
+                    stmtRatings.setInt(1, userID);
+                    ResultSet resultSet = stmtRatings.executeQuery();
+                    while (resultSet.next()) {
+                        int ratedImdbId = resultSet.getInt("imdbId");
+                        double ratedRating = resultSet.getDouble("rating");
+                        // Duplicate rows keep their first rating, the same one the training used
+                        if (ratedImdbId == imdbID) {
+                            if (previousRating == null) previousRating = ratedRating;
+                        }
+                        else otherRatings.putIfAbsent(ratedImdbId, ratedRating);
+                    }
+                }
+
+                PreparedStatement stmt0 = conn.prepareStatement("DELETE FROM ratings WHERE userID = ? AND imdbID = ?"); //delete if user already entered it
+                stmt0.setInt(1, userID);
+                stmt0.setInt(2, imdbID);
+                stmt0.executeUpdate();
+
+                PreparedStatement stmt = conn.prepareStatement("INSERT INTO ratings(userId, imdbId, rating) VALUES (?, ?, ?)");
+                stmt.setInt(1, userID);
+                stmt.setInt(2, imdbID);
+                stmt.setDouble(3, rating);
+                stmt.executeUpdate();
+
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
 
         } catch (SQLException e) {
-            System.out.println("Insert Query Failed!");
+            System.out.println("Insert Query Failed: " + insertedTuple);
+            throw new DAOException(e);
         }
+        System.out.println("Insert Query Completed: " + insertedTuple);
 
+        // Update the model held in memory, only once the rating is committed
+        // (a changed rating only shifts the sums of the user's movie pairs)
+        if (updateModel) {
+            int updatedPairs = PredictionModelHolder.applyRating(imdbID, previousRating, rating, otherRatings);
+            System.out.println("Prediction Model Updated: " + updatedPairs + " movie pairs for " + insertedTuple);
+        }
     }
 
     // Zion
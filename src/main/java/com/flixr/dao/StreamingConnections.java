@@ -0,0 +1,40 @@
+package com.flixr.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Connections for large result sets (the Ratings table, the model table), read with a fetch size
+ *
+ * MySQL Connector/J ignores the fetch size of a statement and loads the whole result onto the heap, unless the
+ * connection uses a server side cursor (useCursorFetch). Other databases (ex. H2 for testing) use the fetch size as is
+ */
+public class StreamingConnections {
+
+    /**
+     * @param connectionUrl     JDBC URL
+     * @return  Open connection, whose statements fetch their rows in batches of their fetch size
+     * @throws SQLException
+     */
+    public static Connection getStreamingConnection(String connectionUrl, String username, String password) throws SQLException {
+        return DriverManager.getConnection(connectionUrl, getStreamingProperties(connectionUrl, username, password));
+    }
+
+    /**
+     * @return  Connection properties with a server side cursor for MySQL
+     */
+    static Properties getStreamingProperties(String connectionUrl, String username, String password) {
+        Properties connectionProperties = new Properties();
+        connectionProperties.setProperty("user", username);
+        connectionProperties.setProperty("password", password);
+        if (connectionUrl.startsWith("jdbc:mysql:")) {
+            connectionProperties.setProperty("useCursorFetch", "true");
+        }
+        return connectionProperties;
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.flixr.engine;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Selects how the RecommendationEngine stores its training statistics
+ */
+public enum AccumulatorType {
+
+    // Full (rows x movies) arrays: fastest for small catalogs, but memory grows with movies^2
+    DENSE,
+
+    // Per-row hash maps: memory grows with the number of co-rated (Movie i, Movie j) pairs
+    SPARSE,
+
+    // Thread buffers spilled to sorted run files, merged when the model is saved: memory is capped by REC_ENGINE_MEMORY_BUDGET_BYTES
+    EXTERNAL,
+
+    // DENSE if the matrix fits within DENSE_ACCUMULATOR_MAX_CELLS, otherwise SPARSE
+    AUTO
+
+}
@@ -0,0 +1,81 @@
+package com.flixr.engine;
+
+import com.flixr.interfaces.ICorrelationAccumulator;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Stores the training statistics in full 2D matrices
+ * Every cell is allocated up front, so this should only be used for small movie catalogs
+ */
+public class DenseCorrelationAccumulator implements ICorrelationAccumulator {
+
+    private double[][] matrixOfMovieToMovieRatingDifferenceSums; // (MovieId, MovieId) -> Sum of all Movie to Movie Rating Differences among Users
+    private int[][] matrixOfMovieToMovieRatingFrequency; // (MovieId, MovieId) -> Number of Users who Rated Both Movies in their submission
+
+    public DenseCorrelationAccumulator(int rowCount, int columnCount) {
+        matrixOfMovieToMovieRatingDifferenceSums = new double[rowCount][columnCount];
+        matrixOfMovieToMovieRatingFrequency = new int[rowCount][columnCount];
+    }
+
+    @Override
+    public void add(int i, int j, double ratingDifference) {
+        matrixOfMovieToMovieRatingDifferenceSums[i][j] += ratingDifference;
+        matrixOfMovieToMovieRatingFrequency[i][j] += 1;
+    }
+
+    /**
+     * @return  Sum of Rating Differences of the (i, j) pair
+     */
+    public double getRatingDifferenceSum(int i, int j) {
+        return matrixOfMovieToMovieRatingDifferenceSums[i][j];
+    }
+
+    /**
+     * @return  Number of users who rated both movies of the (i, j) pair
+     */
+    public int getRatingFrequency(int i, int j) {
+        return matrixOfMovieToMovieRatingFrequency[i][j];
+    }
+
+    @Override
+    public int getRow(int i, int[] columns, double[] ratingDifferenceSums, int[] ratingFrequencies) {
+        int size = 0;
+        int[] frequencyRow = matrixOfMovieToMovieRatingFrequency[i];
+        for (int j = 0; j < frequencyRow.length; j++) {
+            if (frequencyRow[j] > 0) {
+                columns[size] = j;
+                ratingDifferenceSums[size] = matrixOfMovieToMovieRatingDifferenceSums[i][j];
+                ratingFrequencies[size] = frequencyRow[j];
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isSequentialRowAccess() {
+        return false;
+    }
+
+    @Override
+    public long getNonZeroCount() {
+        long nonZeroCount = 0;
+        for (int[] row : matrixOfMovieToMovieRatingFrequency) {
+            for (int frequency : row) {
+                if (frequency > 0) nonZeroCount++;
+            }
+        }
+        return nonZeroCount;
+    }
+
+    @Override
+    public long getEstimatedMemoryBytes() {
+        long memoryBytes = 0;
+        for (int i = 0; i < matrixOfMovieToMovieRatingFrequency.length; i++) {
+            memoryBytes += 2 * 16 + 12L * matrixOfMovieToMovieRatingFrequency[i].length;
+        }
+        return memoryBytes;
+    }
+
+}
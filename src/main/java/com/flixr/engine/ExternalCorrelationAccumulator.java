@@ -0,0 +1,355 @@
+package com.flixr.engine;
+
+import com.flixr.interfaces.ICorrelationAccumulator;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Out-of-core storage of the training statistics, for rating sets whose co-rated pairs do not fit in memory
+ *
+ * Every (i, j, Rating Difference) delta is appended to a buffer owned by the training thread. When a buffer
+ * reaches its share of the memory budget, it is sorted by (i, j) and spilled to a temporary run file.
+ * When the model is saved, the run files are k-way merged back into rows of (i, j, Sum, Frequency),
+ * so rows can only be read once, in ascending order. The run files are deleted once they are merged,
+ * or by close() if the training or the save fails.
+ *
+ * Deltas of a matrix cell are always written by the same thread, in the order they were added, and the merge
+ * keeps that order (runs are merged in the order they were spilled), so every cell sums its rating differences
+ * in the same order as the in-memory accumulators and the trained model is identical
+ */
+public class ExternalCorrelationAccumulator implements ICorrelationAccumulator {
+
+    private static final int BYTES_PER_DELTA = 16; // i (4) + j (4) + rating difference (8)
+    private static final int MIN_BUFFER_CAPACITY = 1024;
+    private static final int RUN_FILE_BUFFER_BYTES = 1 << 16;
+
+    private int rowCount;
+    private int columnCount;
+    private int bufferCapacity; // deltas per thread buffer
+    private File spillDirectory;
+
+    // Buffers of the training threads (each thread only writes to its own buffer)
+    private List<DeltaBuffer> deltaBuffers = new ArrayList<>();
+    private ThreadLocal<DeltaBuffer> threadDeltaBuffer = ThreadLocal.withInitial(this::createDeltaBuffer);
+
+    // Spill phase: run files in the order they were written
+    private List<File> runFiles = new ArrayList<>();
+    private long spilledDeltas;
+    private long spilledBytes;
+    private long spillNanos;
+
+    // Merge phase
+    private PriorityQueue<RunReader> mergeQueue;
+    private int nextRow;
+    private long mergedPairs;
+    private long mergeNanos;
+
+    /**
+     * @param rowCount              Number of matrix rows
+     * @param columnCount           Number of matrix columns
+     * @param memoryBudgetBytes     Memory shared by all thread buffers (deltas are spilled to disk beyond this)
+     * @param threadCount           Number of threads adding deltas at the same time
+     * @param spillDirectory        Directory of the temporary run files
+     */
+    public ExternalCorrelationAccumulator(int rowCount, int columnCount, long memoryBudgetBytes, int threadCount, File spillDirectory) {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.spillDirectory = spillDirectory;
+
+        // Each buffered delta is held twice while it is being sorted
+        long capacity = memoryBudgetBytes / Math.max(1, threadCount) / (2 * BYTES_PER_DELTA);
+        bufferCapacity = (int) Math.max(MIN_BUFFER_CAPACITY, Math.min(Integer.MAX_VALUE - 8, capacity));
+    }
+
+    @Override
+    public void add(int i, int j, double ratingDifference) {
+        DeltaBuffer deltaBuffer = threadDeltaBuffer.get();
+        if (deltaBuffer.size == bufferCapacity) {
+            spill(deltaBuffer);
+        }
+        deltaBuffer.add(i, j, ratingDifference);
+    }
+
+    /**
+     * Merges the next row from the run files (the first call spills whatever is left in the thread buffers)
+     * Must only be called once training is complete, with rows in ascending order
+     */
+    @Override
+    public synchronized int getRow(int i, int[] columns, double[] ratingDifferenceSums, int[] ratingFrequencies) {
+        if (i < nextRow) {
+            throw new IllegalStateException("Row " + i + " was requested after row " + (nextRow - 1) + ", rows must be read in ascending order.");
+        }
+        if (mergeQueue == null) {
+            startMerge();
+        }
+
+        long startTime = System.nanoTime();
+        int size = 0;
+        try {
+            while (!mergeQueue.isEmpty() && mergeQueue.peek().row <= i) {
+                RunReader runReader = mergeQueue.poll();
+
+                // Deltas of rows that were skipped by the caller are dropped
+                if (runReader.row == i) {
+                    if (size > 0 && columns[size-1] == runReader.column) {
+                        ratingDifferenceSums[size-1] += runReader.ratingDifference;
+                        ratingFrequencies[size-1] += 1;
+                    }
+                    else {
+                        columns[size] = runReader.column;
+                        ratingDifferenceSums[size] = runReader.ratingDifference;
+                        ratingFrequencies[size] = 1;
+                        size++;
+                    }
+                }
+
+                if (runReader.next()) mergeQueue.add(runReader);
+                else runReader.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to merge training run files!", e);
+        }
+        mergedPairs += size;
+        mergeNanos += System.nanoTime() - startTime;
+
+        nextRow = i + 1;
+        if (nextRow == rowCount) {
+            finishMerge();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isSequentialRowAccess() {
+        return true;
+    }
+
+    /**
+     * @return  Number of co-rated pairs merged so far (all pairs once every row has been read)
+     */
+    @Override
+    public synchronized long getNonZeroCount() {
+        return mergedPairs;
+    }
+
+    @Override
+    public synchronized long getEstimatedMemoryBytes() {
+        return deltaBuffers.size() * 2L * BYTES_PER_DELTA * bufferCapacity + 4L * (rowCount + columnCount);
+    }
+
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public synchronized int getRunFileCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * Closes the run readers & deletes every run file (on success or failure, the accumulator cannot be read afterwards)
+     */
+    @Override
+    public synchronized void close() {
+        if (mergeQueue != null) {
+            for (RunReader runReader : mergeQueue) {
+                runReader.close();
+            }
+            mergeQueue.clear();
+        }
+        for (File runFile : runFiles) {
+            if (runFile.exists() && !runFile.delete()) {
+                System.out.println("Unable to delete training run file " + runFile);
+            }
+        }
+    }
+
+
+    // Spill Phase
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private DeltaBuffer createDeltaBuffer() {
+        DeltaBuffer deltaBuffer = new DeltaBuffer(bufferCapacity);
+        synchronized (this) {
+            deltaBuffers.add(deltaBuffer);
+        }
+        return deltaBuffer;
+    }
+
+    /**
+     * Sorts a buffer by (i, j) and writes it to a new run file
+     */
+    private void spill(DeltaBuffer deltaBuffer) {
+        if (deltaBuffer.size == 0) return;
+        long startTime = System.nanoTime();
+
+        File runFile;
+        synchronized (this) {
+            try {
+                runFile = File.createTempFile("flixr-training-run-", ".bin", spillDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to create training run file in " + spillDirectory, e);
+            }
+            runFiles.add(runFile); // reserves the run's position in the merge order
+        }
+
+        deltaBuffer.sort(rowCount, columnCount);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), RUN_FILE_BUFFER_BYTES))) {
+            out.writeInt(deltaBuffer.size);
+            for (int k = 0; k < deltaBuffer.size; k++) {
+                out.writeInt(deltaBuffer.rows[k]);
+                out.writeInt(deltaBuffer.columns[k]);
+                out.writeDouble(deltaBuffer.ratingDifferences[k]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write training run file " + runFile, e);
+        }
+
+        long runBytes = runFile.length();
+        long runNanos = System.nanoTime() - startTime;
+        synchronized (this) {
+            spilledDeltas += deltaBuffer.size;
+            spilledBytes += runBytes;
+            spillNanos += runNanos;
+        }
+        System.out.println(Thread.currentThread().getName() + " Spilled " + deltaBuffer.size + " pair deltas (" + runBytes / 1024 + " KB) to "
+                + runFile.getName() + " in " + runNanos / 1e9 + " seconds.");
+        deltaBuffer.size = 0;
+    }
+
+
+    // Merge Phase
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private void startMerge() {
+        for (DeltaBuffer deltaBuffer : deltaBuffers) {
+            spill(deltaBuffer);
+        }
+        System.out.println("Spill phase: " + spilledDeltas + " pair deltas written to " + runFiles.size() + " run file(s), "
+                + spilledBytes / (1024 * 1024) + " MB in " + spillNanos / 1e9 + " seconds.");
+
+        long startTime = System.nanoTime();
+        mergeQueue = new PriorityQueue<>(Math.max(1, runFiles.size()));
+        try {
+            for (int runIndex = 0; runIndex < runFiles.size(); runIndex++) {
+                RunReader runReader = new RunReader(runFiles.get(runIndex), runIndex);
+                if (runReader.next()) mergeQueue.add(runReader);
+                else runReader.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open training run files!", e);
+        }
+        mergeNanos += System.nanoTime() - startTime;
+    }
+
+    private void finishMerge() {
+        close();
+        System.out.println("Merge phase: " + runFiles.size() + " run file(s), " + spilledBytes / (1024 * 1024) + " MB merged into "
+                + mergedPairs + " co-rated pairs in " + mergeNanos / 1e9 + " seconds.");
+    }
+
+
+    /**
+     * Pair deltas added by one thread, kept in the order they were added
+     */
+    private static class DeltaBuffer {
+
+        private int[] rows;
+        private int[] columns;
+        private double[] ratingDifferences;
+        private int size;
+
+        private DeltaBuffer(int capacity) {
+            rows = new int[capacity];
+            columns = new int[capacity];
+            ratingDifferences = new double[capacity];
+        }
+
+        private void add(int i, int j, double ratingDifference) {
+            rows[size] = i;
+            columns[size] = j;
+            ratingDifferences[size] = ratingDifference;
+            size++;
+        }
+
+        /**
+         * Stable radix sort by (i, j): counting sort by column, then by row
+         * Deltas of the same cell stay in the order they were added
+         */
+        private void sort(int rowCount, int columnCount) {
+            int[] sortedRows = new int[size];
+            int[] sortedColumns = new int[size];
+            double[] sortedRatingDifferences = new double[size];
+
+            int[] columnStarts = new int[columnCount + 1];
+            for (int k = 0; k < size; k++) columnStarts[columns[k] + 1]++;
+            for (int j = 0; j < columnCount; j++) columnStarts[j+1] += columnStarts[j];
+            for (int k = 0; k < size; k++) {
+                int position = columnStarts[columns[k]]++;
+                sortedRows[position] = rows[k];
+                sortedColumns[position] = columns[k];
+                sortedRatingDifferences[position] = ratingDifferences[k];
+            }
+
+            int[] rowStarts = new int[rowCount + 1];
+            for (int k = 0; k < size; k++) rowStarts[sortedRows[k] + 1]++;
+            for (int i = 0; i < rowCount; i++) rowStarts[i+1] += rowStarts[i];
+            for (int k = 0; k < size; k++) {
+                int position = rowStarts[sortedRows[k]]++;
+                rows[position] = sortedRows[k];
+                columns[position] = sortedColumns[k];
+                ratingDifferences[position] = sortedRatingDifferences[k];
+            }
+        }
+    }
+
+
+    /**
+     * Reads the deltas of one run file in (i, j) order
+     * Readers are ordered by (i, j), then by the order the runs were spilled
+     */
+    private static class RunReader implements Comparable<RunReader> {
+
+        private DataInputStream in;
+        private int runIndex;
+        private int remaining;
+        private int row;
+        private int column;
+        private double ratingDifference;
+
+        private RunReader(File runFile, int runIndex) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), RUN_FILE_BUFFER_BYTES));
+            this.runIndex = runIndex;
+            this.remaining = in.readInt();
+        }
+
+        private boolean next() throws IOException {
+            if (remaining == 0) return false;
+            row = in.readInt();
+            column = in.readInt();
+            ratingDifference = in.readDouble();
+            remaining--;
+            return true;
+        }
+
+        private void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close training run file!");
+            }
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            if (row != other.row) return Integer.compare(row, other.row);
+            if (column != other.column) return Integer.compare(column, other.column);
+            return Integer.compare(runIndex, other.runIndex);
+        }
+    }
+
+}
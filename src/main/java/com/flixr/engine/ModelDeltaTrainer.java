@@ -0,0 +1,162 @@
+package com.flixr.engine;
+
+import com.flixr.beans.UserSubmission;
+import com.flixr.exceptions.EngineException;
+import com.flixr.model.ModelStatistics;
+import com.flixr.model.PredictionModel;
+import com.flixr.threads.RecEngineScheduler;
+
+import java.util.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Delta Training:
+ * Updates a stored model with the ratings that changed since it was trained, instead of re-training every user
+ *
+ * Each average of the stored model is (Sum of Rating Differences) / (Count of Ratings), and both are stored with it.
+ * A changed user's old ratings are subtracted from the Sums & Counts of the pairs they co-rated and the new ratings
+ * are added, so the result is the model a full re-train on the new ratings would produce (rating differences are
+ * multiples of 0.5, so their sums are exact in any order)
+ *
+ * Movies that are not in the stored model have no row to update, their ratings are skipped until the next full re-train
+ */
+public class ModelDeltaTrainer {
+
+    private TreeSet<Integer> sortedListOfAllMovieIds;
+    private HashMap<Integer, Integer> movieIdToMatrixIndex; // MovieId -> Index
+    private ModelStatistics modelStatistics;
+
+    // Delta statistics
+    private int changedUserCount;
+    private long updatedPairCount;
+    private int skippedRatingCount;
+
+    /**
+     * @param storedModel   Model loaded from storage, with its Sums & Counts (it is updated in place)
+     * @throws EngineException if the stored model only has averages
+     */
+    public ModelDeltaTrainer(PredictionModel storedModel) throws EngineException {
+        if (!storedModel.hasModelStatistics()) {
+            EngineException ee = new EngineException(new IllegalStateException("Stored model has no Sum & Count columns."));
+            ee.setEngineMessage("Stored model cannot be delta trained, a full re-train is required.");
+            throw ee;
+        }
+        modelStatistics = storedModel.getModelStatistics();
+
+        // Map MovieId to Matrix Index (same order as the stored model)
+        sortedListOfAllMovieIds = new TreeSet<>(storedModel.getDistinctMovieIds());
+        movieIdToMatrixIndex = new HashMap<>();
+        int index = 0;
+        for (int movieId : sortedListOfAllMovieIds) {
+            movieIdToMatrixIndex.put(movieId, index);
+            index++;
+        }
+    }
+
+    /**
+     * Replaces a user's contribution to the model
+     * @param previousSubmission    Ratings the stored model was trained on (null or empty for a new user)
+     * @param currentSubmission     Current ratings (null or empty for a removed user)
+     */
+    public void applyUserChange(UserSubmission previousSubmission, UserSubmission currentSubmission) {
+        updatedPairCount += applyUserSubmission(previousSubmission, -1);
+        updatedPairCount += applyUserSubmission(currentSubmission, 1);
+        changedUserCount++;
+    }
+
+    // Adds (sign = 1) or subtracts (sign = -1) the rating differences of every pair the user co-rated
+    private long applyUserSubmission(UserSubmission userSubmission, int sign) {
+        if (userSubmission == null) return 0;
+
+        // Convert to Matrix Indices (a movie rated twice keeps its first rating, same as training)
+        Map<Integer, Double> ratingsByIndex = new LinkedHashMap<>();
+        for (int movieId : userSubmission.getMoviesViewed()) {
+            Integer i = movieIdToMatrixIndex.get(movieId);
+            if (i == null) {
+                if (sign > 0) skippedRatingCount++;
+                continue;
+            }
+            ratingsByIndex.putIfAbsent(i, userSubmission.getMovieRating(movieId));
+        }
+
+        // Update every (i < j) pair
+        int[] indices = new int[ratingsByIndex.size()];
+        double[] ratings = new double[ratingsByIndex.size()];
+        int count = 0;
+        for (Map.Entry<Integer, Double> rating : ratingsByIndex.entrySet()) {
+            indices[count] = rating.getKey();
+            ratings[count] = rating.getValue();
+            count++;
+        }
+        long pairCount = 0;
+        for (int a = 0; a < count; a++) {
+            for (int b = a + 1; b < count; b++) {
+                modelStatistics.add(indices[a], indices[b], sign * (ratings[a] - ratings[b]), sign);
+                pairCount++;
+            }
+        }
+        return pairCount;
+    }
+
+
+    /**
+     * Saves the updated model into a number of CSV files (split into equal row ranges)
+     * @param fullOutputFilePrefix  Output path, files are named "prefix-x-of-y.csv"
+     * @param numberOfFiles         Number of CSV files (any number of files can be loaded)
+     * @throws EngineException
+     */
+    public void saveModelToCSV(String fullOutputFilePrefix, int numberOfFiles) throws EngineException {
+        RecommendationEngine recommendationEngine = createRecommendationEngine();
+        int[] splitIndxs = RecEngineScheduler.getMatrixSplitPoints(sortedListOfAllMovieIds.size(), numberOfFiles);
+        for (int i = 1; i <= numberOfFiles; i++) {
+            String fullOutputFilePath = fullOutputFilePrefix + "-" + i + "-of-" + numberOfFiles + ".csv";
+            recommendationEngine.saveModelToCSV(fullOutputFilePath, splitIndxs[i-1], splitIndxs[i]);
+        }
+    }
+
+    /**
+     * Saves the updated model to a binary model file
+     * @param fullOutputFilePath    Output path
+     * @throws EngineException
+     */
+    public void saveModelToBinary(String fullOutputFilePath) throws EngineException {
+        createRecommendationEngine().saveModelToBinary(fullOutputFilePath);
+    }
+
+    /**
+     * Saves the updated model to the database
+     * @throws EngineException
+     */
+    public void saveModelToDB() throws EngineException {
+        createRecommendationEngine().saveModelToDB();
+    }
+
+    /**
+     * @return  Updated model, ready to be published to the PredictionModelHolder
+     */
+    public PredictionModel createPredictionModel() {
+        return createRecommendationEngine().createPredictionModel();
+    }
+
+    // The statistics only hold the upper triangle, so the model is always saved as a triangular model
+    private RecommendationEngine createRecommendationEngine() {
+        RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds, modelStatistics);
+        recommendationEngine.setTriangular(true);
+        return recommendationEngine;
+    }
+
+
+    public int getChangedUserCount() {
+        return changedUserCount;
+    }
+
+    public long getUpdatedPairCount() {
+        return updatedPairCount;
+    }
+
+    public int getSkippedRatingCount() {
+        return skippedRatingCount;
+    }
+
+}
@@ -1,12 +1,19 @@
 package com.flixr.engine;
 
 import com.flixr.exceptions.EngineException;
+import com.flixr.interfaces.ICorrelationModel;
 import com.flixr.interfaces.IPredictionDAO;
+import com.flixr.interfaces.IScoringKernel;
 import com.flixr.beans.Prediction;
 import com.flixr.beans.UserSubmission;
 
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static com.flixr.configuration.ApplicationConstants.*;
 
 /**
  * @author Thomas Thompson
@@ -20,10 +27,21 @@ import java.util.*;
  * http://girlincomputerscience.blogspot.com/search/label/Recommender%20Systems
  *
  * The output of this model gives a sorted list of Predictions
+ *
+ * A large request (rated movies x unrated movies) is split into ranges of unrated movies, scored in parallel on a
+ * ForkJoinPool shared by all requests. The number of partitions adapts to the work & to the idle workers of the pool,
+ * so small users (and busy servers) stay on the request thread. Partitions give identical predictions, since every
+ * prediction is still summed by a single thread in the same order
  */
 
 public class PredictionEngine {
 
+    // Top-K heaps, reused by every request served on the same thread
+    private static final ThreadLocal<TopPredictionSelector> TOP_PREDICTION_SELECTORS = ThreadLocal.withInitial(TopPredictionSelector::new);
+
+    // Partitions of large requests, shared by every request
+    private static final ForkJoinPool SCORING_POOL = new ForkJoinPool(PRED_ENGINE_SCORING_PARALLELISM);
+
     private IPredictionDAO predictionEngineDAO;
 
     private UserSubmission userSubmission;
@@ -31,7 +49,24 @@ public class PredictionEngine {
     private Collection<Integer> movieIdsNotRatedByUser;
     private int numberOfMoviesRatedByUser;
 
-    private List<Prediction> totalPredictions;
+    // Model of the request, with the rated & unrated movies mapped to Matrix Indices once (-1 if not in the model)
+    private ICorrelationModel correlationModel;
+    private int[] matrixIndicesRated;
+    private double[] ratingsRated;
+    private int[] matrixIndicesNotRated;
+
+    // Predicted rating of every unrated movie, in the order of movieIdsNotRatedByUser
+    private int[] movieIdsNotRated;
+    private double[] predictedRatings;
+    private List<Prediction> totalPredictions; // all predictions, sorted (only created if requested)
+
+    private ScoringMode scoringMode = PRED_ENGINE_SCORING_MODE;
+    private final IScoringKernel scoringKernel = ScoringKernels.get(); // same kernel the model rows are added with
+
+    // Intra-request parallelism: ranges of unrated movies, partition p is [partitionBounds[p], partitionBounds[p+1])
+    private ForkJoinPool scoringPool = SCORING_POOL;
+    private long partitionWork = PRED_ENGINE_PARTITION_WORK;
+    private int[] partitionBounds;
 
     public PredictionEngine(UserSubmission userSubmission, Collection<Integer> movieIdsNotRatedByUser, IPredictionDAO predictionEngineDAO) {
         this.userSubmission = userSubmission;
@@ -39,7 +74,6 @@ public class PredictionEngine {
         this.movieIdsRatedByUser = userSubmission.getMoviesViewed();
         this.numberOfMoviesRatedByUser = movieIdsRatedByUser.size();
         this.predictionEngineDAO = predictionEngineDAO;
-        this.totalPredictions = new ArrayList<>();
     }
 
 
@@ -50,18 +84,65 @@ public class PredictionEngine {
             throw new EngineException( new Exception("User" + userSubmission.getUserId() + " has not rated any movies yet!"));
         }
 
-        // For every item i the user u expresses no preference for:
+        // Unrated movies
+        movieIdsNotRated = new int[movieIdsNotRatedByUser.size()];
+        int k = 0;
         for (int movieIdNotRated : movieIdsNotRatedByUser) {
+            movieIdsNotRated[k++] = movieIdNotRated;
+        }
+        predictedRatings = new double[movieIdsNotRated.length];
+        totalPredictions = null;
+
+        // Map the movies to the model once, and load the rows of the rated movies in one batch
+        correlationModel = predictionEngineDAO.getCorrelationModel();
+        matrixIndicesNotRated = correlationModel.getMatrixIndices(movieIdsNotRated);
+        matrixIndicesRated = new int[numberOfMoviesRatedByUser];
+        ratingsRated = new double[numberOfMoviesRatedByUser];
+        k = 0;
+        for (int movieIdRated : movieIdsRatedByUser) {
+            matrixIndicesRated[k] = correlationModel.getMatrixIndex(movieIdRated);
+            ratingsRated[k++] = userSubmission.getMovieRating(movieIdRated);
+        }
+        correlationModel.prefetchRows(matrixIndicesRated);
+
+        // Toggle Between Kernels (both give the same predictions), each partition on its own thread
+        partitionBounds = getPartitionBounds();
+        runPartitions(p -> {
+            if (scoringMode == ScoringMode.ROW_ACCUMULATION) {
+                generatePredictionsByRow(partitionBounds[p], partitionBounds[p + 1]);
+            }
+            else {
+                generatePredictionsByPair(partitionBounds[p], partitionBounds[p + 1]);
+            }
+            return null;
+        });
+        correlationModel = null; // rows of a lazy model are not pinned after the request
+
+        // Predictions are only sorted / selected when they are requested
+
+    }
+
+
+    // Original kernel, looks up every (unrated movie, rated movie) pair of the unrated movies [from, to)
+    private void generatePredictionsByPair(int from, int to) throws EngineException {
+
+        // For every item i the user u expresses no preference for:
+        for (int k = from; k < to; k++) {
+            int matrixIndexNotRated = matrixIndicesNotRated[k];
 
             // For every item j that user u expresses a preference for:
             double sumOfPredictedRatingsForSelectedMovie = 0.0;
-            for (int movieIdRated : movieIdsRatedByUser) {
+            for (int r = 0; r < matrixIndicesRated.length; r++) {
+                int matrixIndexRated = matrixIndicesRated[r];
 
-                // Find the average preference difference between j and i
-                double avgPreferenceDifference = predictionEngineDAO.getAveragePreferenceDifference(movieIdRated, movieIdNotRated);
+                // Find the average preference difference between j and i (none if either movie is not in the model)
+                double avgPreferenceDifference = 0.0;
+                if (matrixIndexRated >= 0 && matrixIndexNotRated >= 0) {
+                    avgPreferenceDifference = correlationModel.get(matrixIndexRated, matrixIndexNotRated);
+                }
 
                 // Add this diff to u’s preference value for j
-                double userPreference = userSubmission.getMovieRating(movieIdRated) + avgPreferenceDifference;
+                double userPreference = ratingsRated[r] + avgPreferenceDifference;
 
                 // Add to a running total
                 sumOfPredictedRatingsForSelectedMovie += userPreference;
@@ -69,30 +150,152 @@ public class PredictionEngine {
             }
 
             // Add this to a running average
-            double predictedRating = sumOfPredictedRatingsForSelectedMovie / numberOfMoviesRatedByUser;
+            predictedRatings[k] = sumOfPredictedRatingsForSelectedMovie / numberOfMoviesRatedByUser;
+        }
+    }
+
+
+    // Row kernel, adds the model row of every rated movie to the running totals of the unrated movies [from, to) at once
+    // Totals are added in the same order as the pair kernel, so the predictions are identical
+    private void generatePredictionsByRow(int from, int to) throws EngineException {
 
-            // Create a new Prediction
-            Prediction prediction = new Prediction(movieIdNotRated, predictedRating);
-            totalPredictions.add(prediction);
+        // A partition works on its own copy of its movies & totals
+        int[] matrixIndicesToScore = matrixIndicesNotRated;
+        double[] sumsOfPredictedRatings = predictedRatings;
+        if (to - from != predictedRatings.length) {
+            matrixIndicesToScore = Arrays.copyOfRange(matrixIndicesNotRated, from, to);
+            sumsOfPredictedRatings = new double[to - from];
         }
 
-        // Sort Predictions Highest to Lowest
-        Collections.sort(totalPredictions, Collections.reverseOrder());
+        // For every item j that user u expresses a preference for, add u's preference value for j + the diff of j & i
+        for (int r = 0; r < matrixIndicesRated.length; r++) {
+            if (matrixIndicesRated[r] >= 0) {
+                correlationModel.accumulateRow(matrixIndicesRated[r], ratingsRated[r], matrixIndicesToScore, sumsOfPredictedRatings);
+            }
+            else {
+                // Movie j is not in the model, no diff to add
+                for (int k = 0; k < sumsOfPredictedRatings.length; k++) {
+                    sumsOfPredictedRatings[k] += ratingsRated[r] + 0.0;
+                }
+            }
+        }
 
+        // Running average of every item i the user u expresses no preference for
+        scoringKernel.divide(sumsOfPredictedRatings, 0, numberOfMoviesRatedByUser, predictedRatings, from, to - from);
     }
 
 
-    public List<Prediction> getTopXMoviePredictions(int numberOfMovies) {
-        List<Prediction> predictions = new ArrayList<>();
-        for (int i = 0; i < numberOfMovies; i++) {
-            predictions.add(totalPredictions.get(i));
+    /**
+     * Splits the unrated movies into equal ranges: one range per PRED_ENGINE_PARTITION_WORK pair reads
+     * (rated movies x unrated movies), at most one per idle worker of the pool + the request thread
+     * The model must also allow reads from several threads
+     */
+    private int[] getPartitionBounds() {
+        long work = (long) numberOfMoviesRatedByUser * movieIdsNotRated.length;
+        int idleWorkers = Math.max(0, scoringPool.getParallelism() - scoringPool.getActiveThreadCount());
+        long partitionCount = Math.min(work / Math.max(1, partitionWork), Math.min(idleWorkers + 1, scoringPool.getParallelism()));
+        partitionCount = Math.max(1, Math.min(partitionCount, movieIdsNotRated.length));
+        if (!correlationModel.isThreadSafe()) {
+            partitionCount = 1;
         }
-        return predictions;
+
+        int[] bounds = new int[(int) partitionCount + 1];
+        for (int p = 0; p <= partitionCount; p++) {
+            bounds[p] = (int) ((long) movieIdsNotRated.length * p / partitionCount);
+        }
+        return bounds;
+    }
+
+    // Work done on each partition of a request
+    private interface PartitionWork<T> {
+        T run(int partition) throws EngineException;
+    }
+
+    // Runs the work of every partition, the 1st partition on the request thread & the others on the pool
+    private <T> List<T> runPartitions(PartitionWork<T> work) throws EngineException {
+        int partitionCount = partitionBounds.length - 1;
+        List<ForkJoinTask<T>> tasks = new ArrayList<>();
+        for (int p = 1; p < partitionCount; p++) {
+            int partition = p;
+            tasks.add(scoringPool.submit(() -> work.run(partition)));
+        }
+
+        List<T> results = new ArrayList<>();
+        try {
+            results.add(work.run(0));
+            for (ForkJoinTask<T> task : tasks) {
+                results.add(task.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof EngineException) {
+                throw (EngineException) cause;
+            }
+            EngineException ee = new EngineException(cause instanceof Exception ? (Exception) cause : e);
+            ee.setEngineMessage("Unable to score the partitions of User " + userSubmission.getUserId() + ".");
+            throw ee;
+        } finally {
+            for (ForkJoinTask<T> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        return results;
     }
 
 
+    /**
+     * @param numberOfMovies    Number of predictions wanted (ex. top 10)
+     * @return  Top predictions, highest to lowest (fewer if fewer movies were predicted)
+     */
+    public List<Prediction> getTopXMoviePredictions(int numberOfMovies) throws EngineException {
+        if (predictedRatings == null) {
+            return new ArrayList<>();
+        }
+        if (partitionBounds.length == 2) {
+            return TOP_PREDICTION_SELECTORS.get().select(movieIdsNotRated, predictedRatings, predictedRatings.length, numberOfMovies);
+        }
+
+        // Top "X" of every partition, merged
+        List<List<Prediction>> partitionPredictions = runPartitions(p -> TOP_PREDICTION_SELECTORS.get().select(
+                movieIdsNotRated, predictedRatings, partitionBounds[p], partitionBounds[p + 1], numberOfMovies));
+        return TopPredictionSelector.merge(partitionPredictions, numberOfMovies);
+    }
+
+
+    /**
+     * @return  Predictions of all unrated movies, highest to lowest
+     */
     public List<Prediction> getAllMoviePredictions() {
+        if (totalPredictions == null) {
+            totalPredictions = new ArrayList<>();
+            for (int k = 0; predictedRatings != null && k < predictedRatings.length; k++) {
+                totalPredictions.add(new Prediction(movieIdsNotRated[k], predictedRatings[k]));
+            }
+
+            // Sort Predictions Highest to Lowest
+            Collections.sort(totalPredictions, Collections.reverseOrder());
+        }
         return totalPredictions;
     }
 
+    public void setScoringMode(ScoringMode scoringMode) {
+        this.scoringMode = scoringMode;
+    }
+
+    /**
+     * @param scoringPool       Pool scoring the partitions of this request (ex. a pool per thread count, for benchmarks)
+     * @param partitionWork     Pair reads (rated movies x unrated movies) per partition
+     */
+    public void setParallelism(ForkJoinPool scoringPool, long partitionWork) {
+        this.scoringPool = scoringPool;
+        this.partitionWork = partitionWork;
+    }
+
+    /**
+     * @return  Number of partitions the last predictions were scored in
+     */
+    public int getPartitionCount() {
+        return partitionBounds != null ? partitionBounds.length - 1 : 0;
+    }
+
 }
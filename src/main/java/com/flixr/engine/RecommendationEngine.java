@@ -1,13 +1,28 @@
 package com.flixr.engine;
 
-import com.flixr.dao.EngineDAO;
+import com.flixr.dao.ModelBulkWriter;
+import com.flixr.dao.ModelVersionDAO;
 import com.flixr.exceptions.DAOException;
 import com.flixr.exceptions.EngineException;
 import com.flixr.beans.UserSubmission;
+import com.flixr.interfaces.ICorrelationAccumulator;
+import com.flixr.model.BinaryModelFile;
+import com.flixr.model.ModelEncoding;
+import com.flixr.model.ModelStatistics;
+import com.flixr.model.PredictionModel;
+import com.flixr.model.PredictionModelHolder;
+import com.flixr.model.QuantizedTriangularMatrix;
+import com.flixr.model.RatingsSnapshot;
+import com.flixr.model.TriangularMatrix;
+import com.flixr.threads.ModelVersionCleanupThread;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
+import static com.flixr.configuration.ApplicationConstants.*;
+
 /**
  * @author Thomas Thompson
  *
@@ -26,41 +41,101 @@ public class RecommendationEngine extends Thread {
     // Engine Number (used for multi-threading)
     private int engineNumber = 1; // (default is 1 for single threading)
 
-    // Represents a 2D matrix
-    private double[][] matrixOfMovieToMovieCorrelation; // Trained Model: (MovieId, MovieId) -> Rating Factor of Prediction
-    private double[][] matrixOfMovieToMovieRatingDifferenceSums; // (MovieId, MovieId) -> Sum of all Movie to Movie Rating Differences among Users
-    private int[][] matrixOfMovieToMovieRatingFrequency; // (MovieId, MovieId) -> Number of Users who Rated Both Movies in their submission
+    // Kernel used to generate the Correlation Matrix
+    private TrainingMode trainingMode = TrainingMode.PAIRWISE;
+
+    // Only the upper triangle (i < j) is trained & saved, the lower triangle is its mirror: (j, i) = -(i, j)
+    private boolean triangular = REC_ENGINE_TRIANGULAR_MODEL;
+
+    // Represents a 2D matrix: (MovieId, MovieId) -> Sum of Rating Differences & Number of Users who Rated Both Movies
+    // The Trained Model (i.e. Average Rating Difference) is computed from these when the model is saved
+    private ICorrelationAccumulator correlationAccumulator;
     private int movieCount_i; // horizontal size of NxM matrix (sublist)
     private int movieCount_j; // vertical size of NxM matrix (full list)
+    private int rowOffset; // index of the first sublist movie within the full list
 
     // Maps all MovieIds to a Matrix Index:
     private HashMap<Integer, Integer> matrixIndexToMovieId; // Index -> MovieId
+    private HashMap<Integer, Integer> movieIdToMatrixIndex; // MovieId -> Index
 
     // Maps all UserIds to all movies they rated: UserID -> (MovieId, Rating)
     private Map<Integer, UserSubmission> userSubmissions;
 
+    // Ratings snapshot (memory-mapped), used instead of the User Submissions when set
+    private RatingsSnapshot ratingsSnapshot;
+
+    // User Submissions converted to (sorted) Matrix Indices, used by the USER_CENTRIC kernel
+    // Stored as one compressed sparse row matrix: user u rated positions userOffsets[u] .. userOffsets[u+1]-1
+    private int[] userOffsets;
+    private int[] userMovieIndices; // sorted Matrix Indices of rated movies, per user
+    private double[] userMovieRatings; // Ratings, aligned with userMovieIndices
+
     /**
      * Creates a RecommendationEngine instance
      * @param sortedSubListOfMovieIds   Sub List of Unique MovieIds
      * @param sortedListOfAllMovieIds   List of All MovieIds
      */
     public RecommendationEngine(TreeSet<Integer> sortedSubListOfMovieIds, TreeSet<Integer> sortedListOfAllMovieIds) {
+        this(sortedSubListOfMovieIds, sortedListOfAllMovieIds, REC_ENGINE_ACCUMULATOR);
+    }
 
-        // Create 2D Matrices
+    /**
+     * Creates a RecommendationEngine instance
+     * @param sortedSubListOfMovieIds   Sub List of Unique MovieIds
+     * @param sortedListOfAllMovieIds   List of All MovieIds
+     * @param accumulatorType           Storage of the training statistics (ex. SPARSE for large catalogs)
+     */
+    public RecommendationEngine(TreeSet<Integer> sortedSubListOfMovieIds, TreeSet<Integer> sortedListOfAllMovieIds,
+                                AccumulatorType accumulatorType) {
+        this(sortedSubListOfMovieIds, sortedListOfAllMovieIds,
+                createCorrelationAccumulator(accumulatorType, sortedSubListOfMovieIds.size(), sortedListOfAllMovieIds.size()));
+    }
+
+    /**
+     * Creates a RecommendationEngine instance with its own accumulator
+     * (ex. an EXTERNAL accumulator with a small budget, or the stored ModelStatistics of a trained model)
+     * @param sortedSubListOfMovieIds   Sub List of Unique MovieIds
+     * @param sortedListOfAllMovieIds   List of All MovieIds
+     * @param correlationAccumulator    Storage of the training statistics, sized (sublist x full list)
+     */
+    public RecommendationEngine(TreeSet<Integer> sortedSubListOfMovieIds, TreeSet<Integer> sortedListOfAllMovieIds,
+                                ICorrelationAccumulator correlationAccumulator) {
+
+        // Size of the 2D Matrices
         movieCount_i = sortedSubListOfMovieIds.size();
         movieCount_j = sortedListOfAllMovieIds.size();
-
-        matrixOfMovieToMovieCorrelation = new double[movieCount_i][movieCount_j];
-        matrixOfMovieToMovieRatingDifferenceSums = new double[movieCount_i][movieCount_j];
-        matrixOfMovieToMovieRatingFrequency = new int[movieCount_i][movieCount_j];
+        this.correlationAccumulator = correlationAccumulator;
 
         // Map MovieId to Matrix Index
         matrixIndexToMovieId = new HashMap<>();
+        movieIdToMatrixIndex = new HashMap<>();
         int index = 0;
         for (Integer movieId : sortedListOfAllMovieIds) {
             matrixIndexToMovieId.put(index, movieId);
+            movieIdToMatrixIndex.put(movieId, index);
             index++;
         }
+
+        // Rows of this engine start at the first movie of the sublist (not at the start of the full list)
+        rowOffset = sortedSubListOfMovieIds.isEmpty() ? 0 : movieIdToMatrixIndex.get(sortedSubListOfMovieIds.first());
+    }
+
+
+    // Selects the storage of the training statistics
+    private static ICorrelationAccumulator createCorrelationAccumulator(AccumulatorType accumulatorType, int rowCount, int columnCount) {
+        if (accumulatorType == AccumulatorType.AUTO) {
+            boolean fitsDenseMatrix = (long) rowCount * columnCount <= DENSE_ACCUMULATOR_MAX_CELLS;
+            accumulatorType = fitsDenseMatrix ? AccumulatorType.DENSE : AccumulatorType.SPARSE;
+        }
+        switch (accumulatorType) {
+            case DENSE:
+                return new DenseCorrelationAccumulator(rowCount, columnCount);
+            case EXTERNAL:
+                return new ExternalCorrelationAccumulator(rowCount, columnCount, REC_ENGINE_MEMORY_BUDGET_BYTES,
+                        REC_ENGINE_PARALLELISM, new File(REC_ENGINE_SPILL_DIRECTORY));
+            default:
+                return new SparseCorrelationAccumulator(rowCount, columnCount);
+        }
     }
 
 
@@ -71,31 +146,57 @@ public class RecommendationEngine extends Thread {
      * @throws EngineException
      */
     public void saveModelToCSV(String fullOutputFilePath) throws EngineException {
+        saveModelToCSV(fullOutputFilePath, 0, movieCount_i);
+    }
+
+
+    /**
+     * Saves a range of rows of the correlation matrix to a CSV file
+     * Different row ranges may be saved in parallel
+     * @param fullOutputFilePath
+     * @param fromRow   First row to save (inclusive)
+     * @param toRow     Last row to save (exclusive)
+     * @throws EngineException
+     */
+    public void saveModelToCSV(String fullOutputFilePath, int fromRow, int toRow) throws EngineException {
 
         // Compute Average Rating Differences and Save to CSV
         PrintWriter writer = null;
         try {
             // Make Write & Print Header Row
             writer = new PrintWriter(fullOutputFilePath, "UTF-8");
-            writer.println("MovieID_i,MovieId_j,correlation");
+            writer.println(SAVE_MODEL_STATISTICS ? "MovieID_i,MovieId_j,correlation,sumDifference,ratingCount" : "MovieID_i,MovieId_j,correlation");
 
             // Iterate over all movies to get (Sum of Rating Difference) / (Count of Ratings)
-            for (int i = 0; i < movieCount_i; i++) {
-                for (int j = 0; j < movieCount_j; j++) {
+            RowBuffer rowBuffer = new RowBuffer(movieCount_j);
+            long savedCellCount = 0;
+            for (int i = fromRow; i < toRow; i++) {
+                rowBuffer.load(i);
+                int movieId_i = matrixIndexToMovieId.get(rowOffset + i);
+
+                // Sparse model: the diagonal entry lists the movie, even if it has no co-rated pairs
+                if (SPARSE_MODEL_OUTPUT) {
+                    writer.println(SAVE_MODEL_STATISTICS ? movieId_i + "," + movieId_i + ",0.0,0.0,0" : movieId_i + "," + movieId_i + ",0.0");
+                    savedCellCount++;
+                }
 
-                    // Only average movies that were rated
-                    if (matrixOfMovieToMovieRatingFrequency[i][j] > 0) {
-                        matrixOfMovieToMovieCorrelation[i][j] = matrixOfMovieToMovieRatingDifferenceSums[i][j] / matrixOfMovieToMovieRatingFrequency[i][j];
-                    }
+                for (int j = getFirstColumn(i); j < movieCount_j; j++) {
+                    if (SPARSE_MODEL_OUTPUT && !rowBuffer.isCoRated(rowOffset + i, j)) continue;
 
-                    // Write to File
-                    writer.println(matrixIndexToMovieId.get(i) + "," + matrixIndexToMovieId.get(j) + "," + matrixOfMovieToMovieCorrelation[i][j]);
+                    // Write to File (with the statistics behind the average, so the model can be updated later)
+                    String entry = movieId_i + "," + matrixIndexToMovieId.get(j) + "," + rowBuffer.averageRatingDifferences[j];
+                    if (SAVE_MODEL_STATISTICS) {
+                        entry += "," + rowBuffer.ratingDifferenceSums[j] + "," + rowBuffer.ratingFrequencies[j];
+                    }
+                    writer.println(entry);
+                    savedCellCount++;
 
                 }
 
                 // Print progress
-                System.out.println("Thread-" + engineNumber + " Saving Correlation Matrix: Completed Row " + (i+1) + " of " + movieCount_i);
+                System.out.println("Thread-" + engineNumber + " Saving Correlation Matrix: Completed Row " + (i+1) + " of " + toRow);
             }
+            System.out.println("Thread-" + engineNumber + " Saved " + savedCellCount + " Matrix entries to " + fullOutputFilePath);
 
         } catch (Exception e) {
             EngineException ee = new EngineException(e);
@@ -110,46 +211,118 @@ public class RecommendationEngine extends Thread {
 
 
     /**
-     * Saves the correlation matrix to the database
+     * Saves the upper triangle of the correlation matrix to a binary model file (see BinaryModelFile),
+     * which the PredictionDAO can serve straight from a memory mapping
+     * Only possible for an engine covering all movies (rows are read in ascending order)
+     * @param fullOutputFilePath
+     * @throws EngineException
+     */
+    public void saveModelToBinary(String fullOutputFilePath) throws EngineException {
+        saveModelToBinary(fullOutputFilePath, MODEL_ENCODING);
+    }
+
+    /**
+     * Saves the upper triangle of the correlation matrix to a binary model file, in the given encoding
+     * @param fullOutputFilePath
+     * @param encoding              Encoding of the values (see ModelEncoding)
+     * @throws EngineException
+     */
+    public void saveModelToBinary(String fullOutputFilePath, ModelEncoding encoding) throws EngineException {
+        if (movieCount_i != movieCount_j) {
+            throw new IllegalStateException("Binary model can only be saved by an engine covering all movies.");
+        }
+
+        // Write to a temporary file first, so a model being served from the old file is never overwritten in place
+        File outputFile = new File(fullOutputFilePath);
+        File temporaryFile = new File(fullOutputFilePath + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16))) {
+
+            // Header & Movie Id table
+            List<Integer> sortedMovieIds = new ArrayList<>();
+            for (int index = 0; index < movieCount_j; index++) {
+                sortedMovieIds.add(matrixIndexToMovieId.get(index));
+            }
+            BinaryModelFile.writeHeader(out, sortedMovieIds, movieCount_j, encoding);
+
+            // Upper triangle, row by row (INT8 rows are scaled to their largest value, the scales follow all values)
+            RowBuffer rowBuffer = new RowBuffer(movieCount_j);
+            float[] rowScales = new float[movieCount_j];
+            for (int i = 0; i < movieCount_i; i++) {
+                rowBuffer.load(i);
+                rowScales[i] = QuantizedTriangularMatrix.getRowScale(encoding, rowBuffer.averageRatingDifferences, i + 1, movieCount_j);
+                QuantizedTriangularMatrix.writeRow(out, encoding, rowBuffer.averageRatingDifferences, i + 1, movieCount_j, rowScales[i]);
+            }
+            QuantizedTriangularMatrix.writeRowScales(out, encoding, rowScales);
+
+        } catch (IOException e) {
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("Unable to Save Trained Model.");
+            throw ee;
+        }
+
+        // Atomically replace the previous model (readers that mapped it keep their mapping, a new reader never sees no file)
+        try {
+            Files.move(temporaryFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("Unable to Save Trained Model.");
+            throw ee;
+        }
+        System.out.println("Thread-" + engineNumber + " Saved Binary Model (" + encoding + "): " + outputFile.length() / 1024 + " KB.");
+    }
+
+
+    /**
+     * Saves the correlation matrix to the database, as a new model version (see ModelVersionDAO)
+     * Predictions keep reading the active version until the new one is complete and promoted
      * @throws EngineException
      */
     public void saveModelToDB() throws EngineException {
 
         // Compute Average Rating Differences and Save to Database
+        ModelVersionDAO modelVersionDAO = new ModelVersionDAO();
+        int version = 0;
         try {
 
-            // Clears the current correlation matrix from the DB
-            EngineDAO engineDAO = new EngineDAO();
-            System.out.println("Deleting current Correlation Matrix from Database...");
-            engineDAO.deleteMatrixFromDB();
-            System.out.println("Correlation Matrix has been deleted from Database.");
+            // Create an empty table for the new version (the active model is left untouched)
+            version = modelVersionDAO.createModelVersion();
 
-            // Iterate over all movies to get (Sum of Rating Difference) / (Count of Ratings)
-            for (int i = 0; i < movieCount_i; i++) {
+            // Stream all entries to the bulk writer (inserted & committed over a few connections while rows are computed)
+            long savedRowCount;
+            try (ModelBulkWriter modelBulkWriter = new ModelBulkWriter(ModelVersionDAO.getModelTable(version), SAVE_MODEL_STATISTICS)) {
 
-                // Collect results of current matrix row
-                List<Number[]> matrixRow = new ArrayList<>();
+                // Iterate over all movies to get (Sum of Rating Difference) / (Count of Ratings)
+                RowBuffer rowBuffer = new RowBuffer(movieCount_j);
+                for (int i = 0; i < movieCount_i; i++) {
+                    rowBuffer.load(i);
+                    int movieId_i = matrixIndexToMovieId.get(rowOffset + i);
 
-                for (int j = 0; j < movieCount_j; j++) {
-
-                    // Only average movies that were rated
-                    if (matrixOfMovieToMovieRatingFrequency[i][j] > 0) {
-                        matrixOfMovieToMovieCorrelation[i][j] = matrixOfMovieToMovieRatingDifferenceSums[i][j] / matrixOfMovieToMovieRatingFrequency[i][j];
+                    // Sparse model: the diagonal entry lists the movie, even if it has no co-rated pairs
+                    if (SPARSE_MODEL_OUTPUT) {
+                        modelBulkWriter.addEntry(movieId_i, movieId_i, 0.0, 0.0, 0);
                     }
 
-                    // Add current matrix index entry for this row
-                    matrixRow.add(new Number[] {matrixIndexToMovieId.get(i), matrixIndexToMovieId.get(j), matrixOfMovieToMovieCorrelation[i][j]});
-
-                }
+                    for (int j = getFirstColumn(i); j < movieCount_j; j++) {
+                        if (SPARSE_MODEL_OUTPUT && !rowBuffer.isCoRated(rowOffset + i, j)) continue;
 
-                // Save Current Matrix Row to Database
-                engineDAO.saveMatrixRowToDB(matrixRow);
+                        // Add current matrix index entry (with the statistics behind the average, if they are saved)
+                        modelBulkWriter.addEntry(movieId_i, matrixIndexToMovieId.get(j), rowBuffer.averageRatingDifferences[j],
+                                rowBuffer.ratingDifferenceSums[j], rowBuffer.ratingFrequencies[j]);
+                    }
 
-                // Print progress
-                System.out.println("Thread-" + engineNumber + " Saving Correlation Matrix: Completed Row " + (i+1) + " of " + movieCount_i);
+                    // Print progress
+                    System.out.println("Thread-" + engineNumber + " Saving Correlation Matrix: Completed Row " + (i+1) + " of " + movieCount_i);
+                }
+                modelBulkWriter.close();
+                savedRowCount = modelBulkWriter.getSavedRowCount();
             }
 
+            // Switch readers to the complete version, then drop retired versions in the background
+            modelVersionDAO.promoteModelVersion(version, savedRowCount);
+            new ModelVersionCleanupThread(modelVersionDAO).start();
+
         } catch (DAOException e) {
+            if (version > 0) modelVersionDAO.failModelVersion(version);
             EngineException ee = new EngineException(e);
             ee.setEngineMessage("Unable to Save Trained Model.");
             throw ee;
@@ -157,21 +330,145 @@ public class RecommendationEngine extends Thread {
     }
 
 
+    /**
+     * Creates a Prediction Model straight from the training statistics, so it can be served without being reloaded
+     * The model keeps its ModelStatistics only if the served model is updated online (see PredictionModelHolder)
+     * Only possible for an engine covering all movies, with an in-memory (DENSE / SPARSE) accumulator
+     * @return  Prediction Model snapshot
+     */
+    public PredictionModel createPredictionModel() {
+        return createPredictionModel(PredictionModelHolder.isOnlineUpdatable());
+    }
+
+    /**
+     * Creates a Prediction Model straight from the training statistics
+     * @param withModelStatistics   Keep the Sum & Count behind every average, so the model can be updated online
+     * @return  Prediction Model snapshot
+     */
+    public PredictionModel createPredictionModel(boolean withModelStatistics) {
+        if (movieCount_i != movieCount_j || correlationAccumulator.isSequentialRowAccess()) {
+            throw new IllegalStateException("Prediction Model can only be created by an in-memory engine covering all movies.");
+        }
+
+        TriangularMatrix correlationMatrix = new TriangularMatrix(movieCount_j);
+        ModelStatistics modelStatistics = withModelStatistics ? new ModelStatistics(movieCount_j) : null;
+        int[] columns = new int[movieCount_j];
+        double[] ratingDifferenceSums = new double[movieCount_j];
+        int[] ratingFrequencies = new int[movieCount_j];
+        for (int i = 0; i < movieCount_i; i++) {
+            int size = correlationAccumulator.getRow(i, columns, ratingDifferenceSums, ratingFrequencies);
+            for (int k = 0; k < size; k++) {
+                int j = columns[k];
+                if (j <= i) continue; // lower triangle is the mirror of the upper triangle
+                correlationMatrix.set(i, j, ratingDifferenceSums[k] / ratingFrequencies[k]);
+                if (modelStatistics != null) modelStatistics.add(i, j, ratingDifferenceSums[k], ratingFrequencies[k]);
+            }
+        }
+
+        return new PredictionModel(new TreeSet<>(movieIdToMatrixIndex.keySet()), new HashMap<>(movieIdToMatrixIndex),
+                correlationMatrix, modelStatistics, 0);
+    }
+
+
+    // First column saved for row i: the full row, or only the cells right of the diagonal
+    private int getFirstColumn(int i) {
+        return triangular ? rowOffset + i + 1 : 0;
+    }
+
+
+    /**
+     * Reads rows of the accumulator (co-rated pairs only) and expands them to full rows of the Trained Model
+     * Each save uses its own buffer, so different row ranges may be saved in parallel
+     */
+    private class RowBuffer {
+
+        // Co-rated pairs of the row
+        private int[] columns;
+        private double[] pairRatingDifferenceSums;
+        private int[] pairRatingFrequencies;
+
+        // Full row, indexed by column j
+        private double[] averageRatingDifferences;
+        private double[] ratingDifferenceSums;
+        private int[] ratingFrequencies;
+
+        private RowBuffer(int columnCount) {
+            columns = new int[columnCount];
+            pairRatingDifferenceSums = new double[columnCount];
+            pairRatingFrequencies = new int[columnCount];
+            averageRatingDifferences = new double[columnCount];
+            ratingDifferenceSums = new double[columnCount];
+            ratingFrequencies = new int[columnCount];
+        }
+
+        /**
+         * Computes (Sum of Rating Difference) / (Count of Ratings) for every cell of row i
+         * Only movies that were rated by at least one common user are averaged, all other cells are 0
+         */
+        private void load(int i) {
+            Arrays.fill(averageRatingDifferences, 0.0);
+            Arrays.fill(ratingDifferenceSums, 0.0);
+            Arrays.fill(ratingFrequencies, 0);
+            int size = correlationAccumulator.getRow(i, columns, pairRatingDifferenceSums, pairRatingFrequencies);
+            for (int k = 0; k < size; k++) {
+                int j = columns[k];
+                averageRatingDifferences[j] = pairRatingDifferenceSums[k] / pairRatingFrequencies[k];
+                ratingDifferenceSums[j] = pairRatingDifferenceSums[k];
+                ratingFrequencies[j] = pairRatingFrequencies[k];
+            }
+        }
+
+        /**
+         * @return  True if cell (i, j) of the loaded row was rated by at least one common user (the diagonal never is)
+         */
+        private boolean isCoRated(int i, int j) {
+            return ratingFrequencies[j] > 0 && i != j;
+        }
+    }
+
+
     /**
      * Runs an implementation of the SlopeOne algorithm to determine the rating correlation between movies
      * Generates the Correlation Matrix between Movie to Movie Ratings & tracks movie rating frequency
+     * The kernel is selected by the engine's TrainingMode
      */
     public void generateCorrelationMatrix() {
+        generateCorrelationMatrixRows(0, movieCount_i);
+    }
+
+
+    /**
+     * Generates a range of rows of the Correlation Matrix
+     * Different row ranges only write to their own rows, so they may be generated in parallel
+     * @param fromRow   First row to generate (inclusive)
+     * @param toRow     Last row to generate (exclusive)
+     */
+    public void generateCorrelationMatrixRows(int fromRow, int toRow) {
+        if (trainingMode == TrainingMode.USER_CENTRIC) {
+            generateCorrelationMatrixByUser(fromRow, toRow);
+        }
+        else {
+            generateCorrelationMatrixByMoviePair(fromRow, toRow);
+        }
+    }
+
+
+    /**
+     * Pairwise kernel: for every (Movie i, Movie j), checks every user's submission for both movies
+     */
+    private void generateCorrelationMatrixByMoviePair(int fromRow, int toRow) {
+
+        prepareUserSubmissions();
 
         // Iterate over every MovieIndex
-        for (int i = 0; i < movieCount_i; i++) {
+        for (int i = fromRow; i < toRow; i++) {
 
             // Iterate over every other MovieIndex
-            for (int j = 0; j < movieCount_j; j++) {
-                if (i!=j) {
+            for (int j = getFirstColumn(i); j < movieCount_j; j++) {
+                if (rowOffset + i != j) {
 
                     // Convert to MovieIndices to MovieIds
-                    int movieId_i = matrixIndexToMovieId.get(i);
+                    int movieId_i = matrixIndexToMovieId.get(rowOffset + i);
                     int movieId_j = matrixIndexToMovieId.get(j);
 
                     // Iterate over every UserId
@@ -179,10 +476,8 @@ public class RecommendationEngine extends Thread {
                         // Add to matrices if the user rated both MovieIds
                         UserSubmission userSubmission = userSubmissions.get(userId);
                         if (userSubmission.getMoviesViewed().contains(movieId_i) && userSubmission.getMoviesViewed().contains(movieId_j)) {
-                            // Add Rating Difference to a running Sum of Differences
-                            matrixOfMovieToMovieRatingDifferenceSums[i][j] +=  userSubmission.getMovieRating(movieId_i) - userSubmission.getMovieRating(movieId_j);
-                            // Increment Rating Count
-                            matrixOfMovieToMovieRatingFrequency[i][j] += 1;
+                            // Add Rating Difference to a running Sum of Differences & Increment Rating Count
+                            correlationAccumulator.add(i, j, userSubmission.getMovieRating(movieId_i) - userSubmission.getMovieRating(movieId_j));
                         }
                     }
 
@@ -195,6 +490,158 @@ public class RecommendationEngine extends Thread {
     }
 
 
+    /**
+     * User-centric kernel: visits each user's rated movies once and adds every co-rated (Movie i, Movie j) pair
+     * Users are visited in the same (sorted) order as the pairwise kernel, so every matrix cell sums its
+     * rating differences in the same order and the trained model is identical
+     */
+    private void generateCorrelationMatrixByUser(int fromRow, int toRow) {
+
+        prepareUserRatings();
+
+        // Range of Matrix Indices (full list) covered by the requested rows
+        int fromIndex = rowOffset + fromRow;
+        int toIndex = rowOffset + toRow;
+
+        int[] movieIndices = userMovieIndices;
+        double[] movieRatings = userMovieRatings;
+        for (int u = 0; u < userOffsets.length - 1; u++) {
+            int userStart = userOffsets[u];
+            int userEnd = userOffsets[u+1];
+
+            // Movie Indices are sorted, so the user's movies within the requested rows are contiguous
+            int first = lowerBound(movieIndices, userStart, userEnd, fromIndex);
+            int last = lowerBound(movieIndices, first, userEnd, toIndex);
+
+            // Add every co-rated pair where Movie i belongs to the requested rows
+            // (Movie Indices are sorted, so a triangular model only needs the movies after Movie i)
+            for (int a = first; a < last; a++) {
+                int i = movieIndices[a] - rowOffset;
+                for (int b = triangular ? a + 1 : userStart; b < userEnd; b++) {
+                    if (a != b) {
+                        // Add Rating Difference to a running Sum of Differences & Increment Rating Count
+                        correlationAccumulator.add(i, movieIndices[b], movieRatings[a] - movieRatings[b]);
+                    }
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Converts the User Submissions to sorted Matrix Indices (only done once per engine)
+     * A movie rated twice by the same user keeps its first rating, same as UserSubmission.getMovieRating
+     */
+    private synchronized void prepareUserRatings() {
+        if (userOffsets != null) return;
+        if (ratingsSnapshot != null) {
+            prepareUserRatingsFromSnapshot();
+            return;
+        }
+
+        int[] preparedOffsets = new int[userSubmissions.size() + 1];
+        int ratingCount = 0;
+        for (UserSubmission userSubmission : userSubmissions.values()) {
+            ratingCount += userSubmission.getRatingCount();
+        }
+        int[] preparedIndices = new int[ratingCount];
+        double[] preparedRatings = new double[ratingCount];
+
+        int u = 0;
+        int position = 0;
+        for (UserSubmission userSubmission : userSubmissions.values()) {
+
+            // Pack (MatrixIndex, Rating) pairs, skipping repeated movies
+            TreeMap<Integer, Double> sortedRatings = new TreeMap<>();
+            for (int k = 0; k < userSubmission.getRatingCount(); k++) {
+                Integer matrixIndex = movieIdToMatrixIndex.get(userSubmission.getMovieIdAt(k));
+                if (matrixIndex != null && !sortedRatings.containsKey(matrixIndex)) {
+                    sortedRatings.put(matrixIndex, userSubmission.getMovieRatingAt(k));
+                }
+            }
+
+            for (Map.Entry<Integer, Double> entry : sortedRatings.entrySet()) {
+                preparedIndices[position] = entry.getKey();
+                preparedRatings[position] = entry.getValue();
+                position++;
+            }
+            preparedOffsets[++u] = position;
+        }
+
+        userMovieRatings = preparedRatings;
+        userMovieIndices = preparedIndices;
+        userOffsets = preparedOffsets;
+    }
+
+    // The PAIRWISE kernel reads UserSubmissions, so a snapshot is converted back (only done once per engine)
+    private synchronized void prepareUserSubmissions() {
+        if (userSubmissions == null && ratingsSnapshot != null) {
+            userSubmissions = ratingsSnapshot.toUserSubmissions();
+        }
+    }
+
+    /**
+     * Copies the memory-mapped snapshot into the kernel's arrays (bulk copies when the snapshot has the same movies
+     * as this engine, otherwise every Movie Index is converted & movies missing from this engine are dropped)
+     */
+    private void prepareUserRatingsFromSnapshot() {
+        int userCount = ratingsSnapshot.getUserCount();
+        int ratingCount = ratingsSnapshot.getRatingCount();
+
+        // Snapshot Movie Index -> Matrix Index (both lists are sorted, so converted indices stay sorted)
+        int[] snapshotIndexToMatrixIndex = new int[ratingsSnapshot.getMovieCount()];
+        boolean sameMovies = snapshotIndexToMatrixIndex.length == movieCount_j;
+        for (int movieIndex = 0; movieIndex < snapshotIndexToMatrixIndex.length; movieIndex++) {
+            Integer matrixIndex = movieIdToMatrixIndex.get(ratingsSnapshot.getMovieId(movieIndex));
+            snapshotIndexToMatrixIndex[movieIndex] = matrixIndex != null ? matrixIndex : -1;
+            sameMovies &= matrixIndex != null && matrixIndex == movieIndex;
+        }
+
+        int[] preparedOffsets;
+        int[] preparedIndices;
+        double[] preparedRatings = new double[ratingCount];
+        if (sameMovies) {
+            preparedOffsets = ratingsSnapshot.copyUserOffsets();
+            preparedIndices = ratingsSnapshot.copyMovieIndices();
+            for (int position = 0; position < ratingCount; position++) {
+                preparedRatings[position] = ratingsSnapshot.getRating(position);
+            }
+        }
+        else {
+            preparedOffsets = new int[userCount + 1];
+            preparedIndices = new int[ratingCount];
+            int size = 0;
+            for (int u = 0; u < userCount; u++) {
+                for (int position = ratingsSnapshot.getUserOffset(u); position < ratingsSnapshot.getUserOffset(u + 1); position++) {
+                    int matrixIndex = snapshotIndexToMatrixIndex[ratingsSnapshot.getMovieIndex(position)];
+                    if (matrixIndex < 0) continue;
+                    preparedIndices[size] = matrixIndex;
+                    preparedRatings[size] = ratingsSnapshot.getRating(position);
+                    size++;
+                }
+                preparedOffsets[u+1] = size;
+            }
+        }
+
+        userMovieRatings = preparedRatings;
+        userMovieIndices = preparedIndices;
+        userOffsets = preparedOffsets;
+    }
+
+    // Returns the first position in a sorted range [from, to) whose value is >= key
+    private static int lowerBound(int[] sortedValues, int from, int to, int key) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedValues[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+
     // Support for Multi Threading
     // -----------------------------------------------------------------------------------------------------------------
     /**
@@ -205,6 +652,15 @@ public class RecommendationEngine extends Thread {
         this.userSubmissions = userSubmissions;
     }
 
+    /**
+     * Trains on a memory-mapped ratings snapshot instead of UserSubmissions (no database access)
+     * The PAIRWISE kernel still needs UserSubmissions, so they are converted from the snapshot for it
+     * @param ratingsSnapshot   Opened ratings snapshot
+     */
+    public void setRatingsSnapshot(RatingsSnapshot ratingsSnapshot) {
+        this.ratingsSnapshot = ratingsSnapshot;
+    }
+
     /**
      * Assigns the Engine Number (to identify the given instance)
      * @param engineNumber  Engine Number (ex. 1)
@@ -213,5 +669,35 @@ public class RecommendationEngine extends Thread {
         this.engineNumber = engineNumber;
     }
 
+    /**
+     * @return  Number of rows in this engine's Correlation Matrix
+     */
+    public int getRowCount() {
+        return movieCount_i;
+    }
+
+    /**
+     * @return  Training statistics of this engine (used to report memory usage)
+     */
+    public ICorrelationAccumulator getCorrelationAccumulator() {
+        return correlationAccumulator;
+    }
+
+    /**
+     * Selects the layout of the trained model (must be set before the Correlation Matrix is generated)
+     * @param triangular    True to only train & save the upper triangle (i < j)
+     */
+    public void setTriangular(boolean triangular) {
+        this.triangular = triangular;
+    }
+
+    /**
+     * Selects the kernel used to generate the Correlation Matrix
+     * @param trainingMode  Training Mode (ex. USER_CENTRIC)
+     */
+    public void setTrainingMode(TrainingMode trainingMode) {
+        this.trainingMode = trainingMode;
+    }
+
 
 }
@@ -0,0 +1,31 @@
+package com.flixr.engine;
+
+import com.flixr.interfaces.IScoringKernel;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Plain Java loops of the row accumulation kernel (the JIT may still unroll & vectorise them)
+ */
+public class ScalarScoringKernel implements IScoringKernel {
+
+    @Override
+    public void addRun(double rating, double[] values, int valuesFrom, double[] accumulator, int accumulatorFrom, int length) {
+        for (int t = 0; t < length; t++) {
+            accumulator[accumulatorFrom + t] += rating + values[valuesFrom + t];
+        }
+    }
+
+    @Override
+    public void divide(double[] sums, int sumsFrom, double divisor, double[] output, int outputFrom, int length) {
+        for (int t = 0; t < length; t++) {
+            output[outputFrom + t] = sums[sumsFrom + t] / divisor;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Scalar";
+    }
+
+}
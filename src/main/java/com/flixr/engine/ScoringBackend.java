@@ -0,0 +1,20 @@
+package com.flixr.engine;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Selects the kernel of the dense loops of the row accumulation kernel (see ScoringKernels)
+ * Every backend gives identical predictions
+ */
+public enum ScoringBackend {
+
+    // Plain Java loops, runs on any JDK
+    SCALAR,
+
+    // SIMD loops of the JDK Vector API (jdk.incubator.vector, JDK 16+), the scalar kernel if it is not available
+    VECTOR,
+
+    // VECTOR if the JDK provides it (built with the vector-api profile & run with --add-modules jdk.incubator.vector), otherwise SCALAR
+    AUTO
+
+}
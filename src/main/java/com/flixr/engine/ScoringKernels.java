@@ -0,0 +1,50 @@
+package com.flixr.engine;
+
+import com.flixr.interfaces.IScoringKernel;
+
+import static com.flixr.configuration.ApplicationConstants.PRED_ENGINE_SCORING_BACKEND;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Chooses the scoring kernel at runtime (see ScoringBackend)
+ *
+ * The Vector API kernel lives in src/main/java-vector, since the rest of the project is built for Java 8: it is only
+ * compiled by the vector-api Maven profile (JDK 16+), and only loads if the JVM runs with --add-modules jdk.incubator.vector.
+ * It is loaded by name, so any other build or JVM falls back to the scalar kernel
+ */
+public class ScoringKernels {
+
+    private static final String VECTOR_KERNEL_CLASS = "com.flixr.engine.VectorScoringKernel";
+
+    private static final IScoringKernel SCORING_KERNEL = createScoringKernel(PRED_ENGINE_SCORING_BACKEND);
+
+    /**
+     * @return  Kernel of the configured PRED_ENGINE_SCORING_BACKEND, shared by every request
+     */
+    public static IScoringKernel get() {
+        return SCORING_KERNEL;
+    }
+
+    /**
+     * @param scoringBackend    Backend wanted
+     * @return  Kernel of the backend, the scalar kernel if the Vector API is not available
+     */
+    public static IScoringKernel createScoringKernel(ScoringBackend scoringBackend) {
+        if (scoringBackend == ScoringBackend.SCALAR) {
+            return new ScalarScoringKernel();
+        }
+        try {
+            IScoringKernel scoringKernel = (IScoringKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+            System.out.println("Prediction Engine scoring kernel: " + scoringKernel.getName());
+            return scoringKernel;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled (JDK 8 build), or jdk.incubator.vector is not in the JVM
+            if (scoringBackend == ScoringBackend.VECTOR) {
+                System.out.println("Vector API scoring kernel is not available (" + e + "), using the scalar kernel.");
+            }
+            return new ScalarScoringKernel();
+        }
+    }
+
+}
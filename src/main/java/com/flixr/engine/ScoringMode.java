@@ -0,0 +1,19 @@
+package com.flixr.engine;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Selects the kernel used by the PredictionEngine to score the movies a user has not rated
+ * Both kernels produce identical predictions, they only differ in run time
+ */
+public enum ScoringMode {
+
+    // Original kernel: for every (unrated Movie, rated Movie) pair, look up the Average Rating Difference
+    // Every lookup maps both MovieIds to their Matrix Index, and reads the matrix column by column
+    PAIRWISE,
+
+    // Reads the model row of each rated movie once, and adds it to a running total of every unrated movie
+    // Unrated MovieIds are mapped once per request, and each row is read sequentially
+    ROW_ACCUMULATION
+
+}
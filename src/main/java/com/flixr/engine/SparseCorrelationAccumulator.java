@@ -0,0 +1,157 @@
+package com.flixr.engine;
+
+import com.flixr.interfaces.ICorrelationAccumulator;
+
+import java.util.Arrays;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Stores the training statistics in one primitive open-addressing hash map per matrix row (keyed by column j)
+ * Only co-rated (Movie i, Movie j) pairs take up memory, so large movie catalogs can be trained
+ *
+ * Each row is a separate map, so different rows may be written by different threads at the same time
+ */
+public class SparseCorrelationAccumulator implements ICorrelationAccumulator {
+
+    private static final int INITIAL_ROW_CAPACITY = 16; // must be a power of 2
+    private static final int EMPTY_SLOT = 0; // keys are stored as (j + 1)
+
+    private int columnCount;
+    private int[][] rowKeys; // Row -> hash table of (j + 1)
+    private double[][] rowRatingDifferenceSums; // Row -> Sum of Rating Differences, aligned with rowKeys
+    private int[][] rowRatingFrequencies; // Row -> Rating Frequency, aligned with rowKeys
+    private int[] rowSizes; // Row -> Number of used slots
+
+    public SparseCorrelationAccumulator(int rowCount, int columnCount) {
+        this.columnCount = columnCount;
+        rowKeys = new int[rowCount][];
+        rowRatingDifferenceSums = new double[rowCount][];
+        rowRatingFrequencies = new int[rowCount][];
+        rowSizes = new int[rowCount];
+    }
+
+    @Override
+    public void add(int i, int j, double ratingDifference) {
+        if (rowKeys[i] == null) {
+            allocateRow(i, INITIAL_ROW_CAPACITY);
+        }
+        else if ((rowSizes[i] + 1) * 4 > rowKeys[i].length * 3) { // keep load factor under 0.75
+            resizeRow(i);
+        }
+
+        int[] keys = rowKeys[i];
+        int slot = findSlot(keys, j);
+        if (keys[slot] == EMPTY_SLOT) {
+            keys[slot] = j + 1;
+            rowSizes[i]++;
+        }
+        rowRatingDifferenceSums[i][slot] += ratingDifference;
+        rowRatingFrequencies[i][slot] += 1;
+    }
+
+    /**
+     * @return  Sum of Rating Differences of the (i, j) pair, 0 if no user rated both movies
+     */
+    public double getRatingDifferenceSum(int i, int j) {
+        int[] keys = rowKeys[i];
+        if (keys == null) return 0.0;
+        int slot = findSlot(keys, j);
+        return keys[slot] == EMPTY_SLOT ? 0.0 : rowRatingDifferenceSums[i][slot];
+    }
+
+    /**
+     * @return  Number of users who rated both movies of the (i, j) pair
+     */
+    public int getRatingFrequency(int i, int j) {
+        int[] keys = rowKeys[i];
+        if (keys == null) return 0;
+        int slot = findSlot(keys, j);
+        return keys[slot] == EMPTY_SLOT ? 0 : rowRatingFrequencies[i][slot];
+    }
+
+    @Override
+    public int getRow(int i, int[] columns, double[] ratingDifferenceSums, int[] ratingFrequencies) {
+        int[] keys = rowKeys[i];
+        if (keys == null) return 0;
+
+        // Sort the used slots by column: (j << 32 | slot)
+        long[] sortedSlots = new long[rowSizes[i]];
+        int size = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY_SLOT) sortedSlots[size++] = ((long) (keys[slot] - 1) << 32) | slot;
+        }
+        Arrays.sort(sortedSlots);
+
+        for (int k = 0; k < size; k++) {
+            int slot = (int) sortedSlots[k];
+            columns[k] = (int) (sortedSlots[k] >>> 32);
+            ratingDifferenceSums[k] = rowRatingDifferenceSums[i][slot];
+            ratingFrequencies[k] = rowRatingFrequencies[i][slot];
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isSequentialRowAccess() {
+        return false;
+    }
+
+    @Override
+    public long getNonZeroCount() {
+        long nonZeroCount = 0;
+        for (int rowSize : rowSizes) {
+            nonZeroCount += rowSize;
+        }
+        return nonZeroCount;
+    }
+
+    @Override
+    public long getEstimatedMemoryBytes() {
+        long memoryBytes = 4 * 16 + (3 * 8L + 4L) * rowKeys.length;
+        for (int[] keys : rowKeys) {
+            if (keys != null) memoryBytes += 3 * 16 + 16L * keys.length; // key (4) + sum (8) + frequency (4)
+        }
+        return memoryBytes;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    // Linear probing, returns either the slot holding column j or the empty slot where it belongs
+    private static int findSlot(int[] keys, int j) {
+        int mask = keys.length - 1;
+        int slot = (j * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask); // high bits of a Fibonacci hash
+        int key = j + 1;
+        while (keys[slot] != EMPTY_SLOT && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocateRow(int i, int capacity) {
+        rowKeys[i] = new int[capacity];
+        rowRatingDifferenceSums[i] = new double[capacity];
+        rowRatingFrequencies[i] = new int[capacity];
+    }
+
+    // Doubles the capacity of a row and re-inserts its entries
+    private void resizeRow(int i) {
+        int[] oldKeys = rowKeys[i];
+        double[] oldSums = rowRatingDifferenceSums[i];
+        int[] oldFrequencies = rowRatingFrequencies[i];
+
+        allocateRow(i, oldKeys.length * 2);
+        int[] keys = rowKeys[i];
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldKeys[oldSlot] != EMPTY_SLOT) {
+                int slot = findSlot(keys, oldKeys[oldSlot] - 1);
+                keys[slot] = oldKeys[oldSlot];
+                rowRatingDifferenceSums[i][slot] = oldSums[oldSlot];
+                rowRatingFrequencies[i][slot] = oldFrequencies[oldSlot];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.flixr.engine;
+
+import com.flixr.beans.Prediction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Selects the K highest predicted ratings with a bounded min-heap over primitive arrays, in O(n log K)
+ * Only the K winners become Prediction objects, the other n - K movies are never boxed or sorted
+ *
+ * The order is the same as a stable sort of all predictions (highest rating first, ties in the order of the movies),
+ * so the winners are exactly the first K predictions of PredictionEngine.getAllMoviePredictions
+ *
+ * The heap arrays are reused between selections, so a selector must only be used by one thread at a time
+ * (the PredictionEngine keeps one per thread)
+ */
+public class TopPredictionSelector {
+
+    // Min-heap of the best candidates so far, the worst one at the root: position in the input & predicted rating
+    private int[] heapPositions = new int[16];
+    private double[] heapRatings = new double[16];
+    private int heapSize;
+
+    /**
+     * @param movieIds          MovieIds of the candidates
+     * @param predictedRatings  Predicted rating of each candidate, in the same order
+     * @param count             Number of candidates (the arrays may be longer)
+     * @param k                 Number of predictions wanted
+     * @return  min(K, count) predictions, highest predicted rating first
+     */
+    public List<Prediction> select(int[] movieIds, double[] predictedRatings, int count, int k) {
+        return select(movieIds, predictedRatings, 0, count, k);
+    }
+
+    /**
+     * @param movieIds          MovieIds of the candidates
+     * @param predictedRatings  Predicted rating of each candidate, in the same order
+     * @param from              First candidate (ex. of a partition)
+     * @param to                End of the candidates, exclusive
+     * @param k                 Number of predictions wanted
+     * @return  min(K, to - from) predictions, highest predicted rating first
+     */
+    public List<Prediction> select(int[] movieIds, double[] predictedRatings, int from, int to, int k) {
+        int capacity = Math.min(k, to - from);
+        if (capacity <= 0) {
+            return new ArrayList<>();
+        }
+        if (heapPositions.length < capacity) {
+            heapPositions = new int[capacity];
+            heapRatings = new double[capacity];
+        }
+
+        // Fill the heap, then only a candidate better than the current worst winner gets in
+        // (a later candidate with an equal rating sorts after it, so it never gets in)
+        heapSize = 0;
+        for (int position = from; position < to; position++) {
+            double predictedRating = predictedRatings[position];
+            if (heapSize < capacity) {
+                heapPositions[heapSize] = position;
+                heapRatings[heapSize] = predictedRating;
+                siftUp(heapSize++);
+            }
+            else if (predictedRating > heapRatings[0]) {
+                heapPositions[0] = position;
+                heapRatings[0] = predictedRating;
+                siftDown(0);
+            }
+        }
+
+        // Remove the worst winner until the heap is empty, filling the result from the back
+        Prediction[] winners = new Prediction[heapSize];
+        for (int n = heapSize - 1; n >= 0; n--) {
+            winners[n] = new Prediction(movieIds[heapPositions[0]], heapRatings[0]);
+            heapSize--;
+            heapPositions[0] = heapPositions[heapSize];
+            heapRatings[0] = heapRatings[heapSize];
+            siftDown(0);
+        }
+        List<Prediction> predictions = new ArrayList<>(winners.length);
+        Collections.addAll(predictions, winners);
+        return predictions;
+    }
+
+
+    /**
+     * Merges the selections of consecutive partitions of the candidates into the selection of all candidates
+     * (on equal ratings, a prediction of an earlier partition comes first, as in a single selection)
+     * @param partitionPredictions  Selection of each partition, in the order of the partitions
+     * @param k                     Number of predictions wanted
+     * @return  Top K predictions, highest predicted rating first
+     */
+    public static List<Prediction> merge(List<List<Prediction>> partitionPredictions, int k) {
+        int[] cursors = new int[partitionPredictions.size()];
+        List<Prediction> predictions = new ArrayList<>();
+        while (predictions.size() < k) {
+            int best = -1;
+            for (int p = 0; p < cursors.length; p++) {
+                if (cursors[p] == partitionPredictions.get(p).size()) continue;
+                if (best < 0 || partitionPredictions.get(p).get(cursors[p]).getPredictedRating()
+                        > partitionPredictions.get(best).get(cursors[best]).getPredictedRating()) {
+                    best = p;
+                }
+            }
+            if (best < 0) break;
+            predictions.add(partitionPredictions.get(best).get(cursors[best]++));
+        }
+        return predictions;
+    }
+
+
+    // True if heap entry a sorts after heap entry b (lower rating, or same rating & later in the input)
+    private boolean isWorse(int a, int b) {
+        if (heapRatings[a] != heapRatings[b]) {
+            return heapRatings[a] < heapRatings[b];
+        }
+        return heapPositions[a] > heapPositions[b];
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isWorse(index, parent)) break;
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int worst = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < heapSize && isWorse(left, worst)) worst = left;
+            if (right < heapSize && isWorse(right, worst)) worst = right;
+            if (worst == index) break;
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int position = heapPositions[a];
+        heapPositions[a] = heapPositions[b];
+        heapPositions[b] = position;
+        double rating = heapRatings[a];
+        heapRatings[a] = heapRatings[b];
+        heapRatings[b] = rating;
+    }
+
+}
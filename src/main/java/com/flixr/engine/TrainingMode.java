@@ -0,0 +1,19 @@
+package com.flixr.engine;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Selects the kernel used by the RecommendationEngine to build the Correlation Matrix
+ * Both kernels produce identical models, they only differ in run time
+ */
+public enum TrainingMode {
+
+    // Original kernel: for every (Movie i, Movie j) pair, scan every user's submission
+    // Run time grows with (movies^2 * users)
+    PAIRWISE,
+
+    // Visits each user's rated movies once, and adds every co-rated (Movie i, Movie j) pair
+    // Run time grows with the sum of (movies rated by user)^2 over all users
+    USER_CENTRIC
+
+}
@@ -1,5 +1,6 @@
 package com.flixr.exceptions;
 
+import java.io.IOException;
 import java.sql.SQLException;
 
 /**
@@ -16,4 +17,7 @@ public class DAOException extends SQLException {
     public DAOException(NullPointerException e) {
         super(e);
     }
+    public DAOException(IOException e) {
+        super(e);
+    }
 }
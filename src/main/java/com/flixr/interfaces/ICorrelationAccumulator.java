@@ -0,0 +1,45 @@
+package com.flixr.interfaces;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Storage for the Recommendation Engine's training statistics: for every (Movie i, Movie j) pair,
+ * the Sum of Rating Differences and the Number of Users who rated both movies
+ *
+ * Rows may be written by different threads at the same time, as long as each row has only one writer
+ */
+public interface ICorrelationAccumulator {
+
+    /**
+     * Adds one user's rating difference for the (i, j) pair, and increments the pair's rating frequency
+     */
+    public void add(int i, int j, double ratingDifference);
+
+    /**
+     * Copies the co-rated pairs of row i into the given arrays (each at least as long as the number of columns)
+     * @return  Number of co-rated pairs in the row, their columns j are in ascending order
+     */
+    public int getRow(int i, int[] columns, double[] ratingDifferenceSums, int[] ratingFrequencies);
+
+    /**
+     * @return  True if rows can only be read once, in ascending order (ex. streamed from disk)
+     */
+    public boolean isSequentialRowAccess();
+
+    /**
+     * @return  Number of (i, j) pairs that were rated by at least one user
+     */
+    public long getNonZeroCount();
+
+    /**
+     * @return  Approximate number of bytes used by the accumulator
+     */
+    public long getEstimatedMemoryBytes();
+
+    /**
+     * Releases the temporary resources of the accumulator (ex. its run files on disk)
+     * Called once the model is saved, or its training failed
+     */
+    public default void close() {}
+
+}
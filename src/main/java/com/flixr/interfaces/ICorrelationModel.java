@@ -0,0 +1,106 @@
+package com.flixr.interfaces;
+
+import com.flixr.exceptions.EngineException;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Read access to a trained Correlation Matrix, used by the PredictionEngine
+ * Implemented by the in-memory / memory-mapped PredictionModel (CSV, database or binary model), the rows loaded
+ * on demand from the database (LazyCorrelationModel) and the PredictionEngineTestHarness
+ *
+ * Movies are addressed by their dense Matrix Index (0..getMovieCount()-1): MovieIds are mapped once per request,
+ * and an unknown movie is found with hasMovie / a -1 index instead of an exception.
+ * Values are the Average Rating Difference of (i, j), where (j, i) = -(i, j) and (i, i) = 0
+ */
+public interface ICorrelationModel {
+
+    /**
+     * @return  Number of movies in the model
+     */
+    public int getMovieCount();
+
+    /**
+     * @return  True if the movie is in the model
+     */
+    public boolean hasMovie(int movieId);
+
+    /**
+     * @return  Matrix Index of the movie, -1 if the movie is not in the model
+     */
+    public int getMatrixIndex(int movieId);
+
+    /**
+     * @param matrixIndex   Matrix Index, 0..getMovieCount()-1
+     * @return  MovieId at the index
+     */
+    public int getMovieId(int matrixIndex);
+
+    /**
+     * @param movieIds  MovieIds
+     * @return  Matrix Index of each movie, -1 if the movie is not in the model
+     */
+    public default int[] getMatrixIndices(int[] movieIds) {
+        int[] matrixIndices = new int[movieIds.length];
+        for (int k = 0; k < movieIds.length; k++) {
+            matrixIndices[k] = getMatrixIndex(movieIds[k]);
+        }
+        return matrixIndices;
+    }
+
+    /**
+     * @return  True if the model can be read by several threads at once (ex. the partitions of a large request)
+     */
+    public default boolean isThreadSafe() {
+        return true;
+    }
+
+    /**
+     * Loads the rows that will be read, in one batch (only needed if rows are loaded on demand)
+     * @param matrixIndices     Rows (ex. the movies rated by the user), -1 entries are ignored
+     * @throws EngineException if the rows cannot be loaded
+     */
+    public default void prefetchRows(int[] matrixIndices) throws EngineException {}
+
+    /**
+     * @param i     Matrix Index of Movie i
+     * @param j     Matrix Index of Movie j
+     * @return  Average Rating Difference of (i, j)
+     * @throws EngineException if row i cannot be loaded
+     */
+    public double get(int i, int j) throws EngineException;
+
+    /**
+     * Reads a full row: row[j] = (i, j) for every Matrix Index j
+     * @param i     Matrix Index of the row
+     * @param row   Output, at least getMovieCount() long
+     * @throws EngineException if the row cannot be loaded
+     */
+    public void getRow(int i, double[] row) throws EngineException;
+
+    /**
+     * Reads part of a row: values[k] = (i, matrixIndices_j[k]), 0 for a -1 index
+     * @param i                 Matrix Index of the row
+     * @param matrixIndices_j   Columns (ex. the movies to score)
+     * @param values            Output, in the order of the columns
+     * @throws EngineException if the row cannot be loaded
+     */
+    public void gather(int i, int[] matrixIndices_j, double[] values) throws EngineException;
+
+    /**
+     * Adds part of a row to running totals: accumulator[k] += rating + (i, matrixIndices_j[k]), 0 for a -1 index
+     * @param i                 Matrix Index of the row
+     * @param rating            Added to every value (ex. the user's rating of Movie i)
+     * @param matrixIndices_j   Columns (ex. the movies to score)
+     * @param accumulator       Running totals, in the order of the columns
+     * @throws EngineException if the row cannot be loaded
+     */
+    public default void accumulateRow(int i, double rating, int[] matrixIndices_j, double[] accumulator) throws EngineException {
+        double[] values = new double[matrixIndices_j.length];
+        gather(i, matrixIndices_j, values);
+        for (int k = 0; k < values.length; k++) {
+            accumulator[k] += rating + values[k];
+        }
+    }
+
+}
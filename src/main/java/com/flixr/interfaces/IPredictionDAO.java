@@ -1,15 +1,19 @@
 package com.flixr.interfaces;
 
-import com.flixr.exceptions.EngineException;
-
 /**
  * @author Thomas Thompson
  *
  * This a used for StandAlone testing, where the PredictionHarness can act as a DAO
  * This is so that the CSV can seem to mimic database actions
+ *
+ * The Prediction Engine reads the trained model through the ICorrelationModel it returns
+ * (whole rows and batches of movies by Matrix Index, instead of one call per pair of MovieIds)
  */
 public interface IPredictionDAO {
 
-    public double getAveragePreferenceDifference(int movieId_i, int movieId_j) throws EngineException;
+    /**
+     * @return  Trained model to score with (the same model for the whole request)
+     */
+    public ICorrelationModel getCorrelationModel();
 
 }
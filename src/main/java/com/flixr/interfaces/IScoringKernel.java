@@ -0,0 +1,30 @@
+package com.flixr.interfaces;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Dense inner loops of the row accumulation kernel (see ScoringMode.ROW_ACCUMULATION), over runs of consecutive
+ * values: the row of a rated movie is added to the running totals of the unrated movies, then the totals are divided
+ * by the number of rated movies
+ *
+ * Implemented by the ScalarScoringKernel, and by a Vector API kernel when the JDK provides it (see ScoringKernels).
+ * Every kernel does the same IEEE operations per value, so all kernels give identical predictions
+ */
+public interface IScoringKernel {
+
+    /**
+     * accumulator[accumulatorFrom + t] += rating + values[valuesFrom + t], for t = 0..length-1
+     */
+    public void addRun(double rating, double[] values, int valuesFrom, double[] accumulator, int accumulatorFrom, int length);
+
+    /**
+     * output[outputFrom + t] = sums[sumsFrom + t] / divisor, for t = 0..length-1 (output may be the sums array)
+     */
+    public void divide(double[] sums, int sumsFrom, double divisor, double[] output, int outputFrom, int length);
+
+    /**
+     * @return  Name of the kernel (for logs & benchmarks)
+     */
+    public String getName();
+
+}
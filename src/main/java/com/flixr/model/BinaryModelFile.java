@@ -0,0 +1,103 @@
+package com.flixr.model;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Binary format of a trained model, served straight from a memory mapping (no parsing when the model is loaded)
+ *
+ *   Header:        magic "FXRM", version, movieCount, encoding (ints, see ModelEncoding.getCode)
+ *   Movie Ids:     int[movieCount], sorted (a movie's position is its Matrix Index)
+ *   Values:        movieCount * (movieCount - 1) / 2 encoded Average Rating Differences of the upper triangle (i < j),
+ *                  row by row, same layout as the TriangularMatrix (FLOAT64: doubles)
+ *   Row Scales:    float[movieCount], INT8 only (see QuantizedTriangularMatrix)
+ *
+ * All values are big-endian. The CSV files / database remain the source of the Sums & Counts (used by delta training)
+ */
+public class BinaryModelFile {
+
+    private static final int MAGIC = 0x4658524D; // "FXRM"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * 4;
+
+    private BinaryModelFile() {}
+
+    /**
+     * Writes the header & Movie Id table, the caller then writes the upper triangle values row by row
+     * @param out               Output stream, positioned at the start of the file
+     * @param sortedMovieIds    Movie Ids of the model, in Matrix Index order
+     * @param encoding          Encoding of the values (files written before encodings existed hold 0, i.e. FLOAT64)
+     * @throws IOException
+     */
+    public static void writeHeader(DataOutputStream out, Iterable<Integer> sortedMovieIds, int movieCount, ModelEncoding encoding) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(movieCount);
+        out.writeInt(encoding.getCode());
+        for (int movieId : sortedMovieIds) {
+            out.writeInt(movieId);
+        }
+    }
+
+    /**
+     * @return  Expected file size of a model with the given number of movies
+     */
+    public static long getFileBytes(int movieCount, ModelEncoding encoding) {
+        return HEADER_BYTES + 4L * movieCount + QuantizedTriangularMatrix.getValueBytes(movieCount, encoding);
+    }
+
+    /**
+     * Memory-maps a binary model file (only the Movie Id table is read onto the heap)
+     * @param modelFile     Model written by RecommendationEngine.saveModelToBinary
+     * @return  Prediction Model snapshot, served from the mapping (read-only, cannot be updated online)
+     * @throws IOException if the file is missing, truncated or not a binary model
+     */
+    public static PredictionModel map(File modelFile) throws IOException {
+        long startTime = System.currentTimeMillis();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(modelFile, "r");
+             FileChannel fileChannel = randomAccessFile.getChannel()) {
+
+            // Header
+            if (fileChannel.size() < HEADER_BYTES) {
+                throw new IOException(modelFile + " is not a binary model.");
+            }
+            IntBuffer header = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).asIntBuffer();
+            if (header.get(0) != MAGIC) {
+                throw new IOException(modelFile + " is not a binary model.");
+            }
+            if (header.get(1) != VERSION) {
+                throw new IOException(modelFile + " has unsupported binary model version " + header.get(1));
+            }
+            int movieCount = header.get(2);
+            ModelEncoding encoding = ModelEncoding.fromCode(header.get(3));
+            if (encoding == null) {
+                throw new IOException(modelFile + " has unsupported model encoding " + header.get(3));
+            }
+            if (fileChannel.size() != getFileBytes(movieCount, encoding)) {
+                throw new IOException(modelFile + " is truncated: " + fileChannel.size() + " bytes, expected " + getFileBytes(movieCount, encoding));
+            }
+
+            // Movie Id table
+            IntBuffer movieIds = fileChannel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, 4L * movieCount).asIntBuffer();
+            TreeSet<Integer> distinctMovieIds = new TreeSet<>();
+            HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+            for (int index = 0; index < movieCount; index++) {
+                distinctMovieIds.add(movieIds.get(index));
+                movieIdToMatrixIndex.put(movieIds.get(index), index);
+            }
+
+            // Values stay in the mapping
+            long valuesPosition = HEADER_BYTES + 4L * movieCount;
+            TriangularMatrix correlationMatrix = encoding == ModelEncoding.FLOAT64
+                    ? TriangularMatrix.map(movieCount, fileChannel, valuesPosition)
+                    : QuantizedTriangularMatrix.map(movieCount, encoding, fileChannel, valuesPosition);
+            return new PredictionModel(distinctMovieIds, movieIdToMatrixIndex, correlationMatrix, System.currentTimeMillis() - startTime);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.flixr.model;
+
+import com.flixr.exceptions.DAOException;
+import com.flixr.exceptions.EngineException;
+import com.flixr.interfaces.ICorrelationModel;
+
+import java.util.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Correlation Matrix served lazily from the database, for a single request
+ *
+ * Rows are read through the shared ModelRowCache, and pinned by this view until the request is done
+ * (so a row cannot be evicted between its prefetch and its use). Matrix Indices follow the sorted MovieIds
+ * of the model version, so the columns of a request are in ascending MovieId order and are merged with the
+ * sparse rows in a single pass
+ */
+public class LazyCorrelationModel implements ICorrelationModel {
+
+    private final ModelRowCache modelRowCache;
+    private final MovieIndexMap movieIndex;
+    private final Map<Integer, ModelRow> requestRows = new HashMap<>(); // Matrix Index -> pinned row
+
+    // MovieIds of the last columns read (the same array for every row of a request)
+    private int[] columnIndices;
+    private int[] columnMovieIds;
+
+    /**
+     * @param modelRowCache     Row cache of the active model version
+     * @throws DAOException if the MovieIds of the model cannot be loaded
+     */
+    public LazyCorrelationModel(ModelRowCache modelRowCache) throws DAOException {
+        this.modelRowCache = modelRowCache;
+        this.movieIndex = modelRowCache.getMovieIndex();
+    }
+
+    /**
+     * Rows are pinned & columns are mapped per request without locking, so a request is scored by a single thread
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    @Override
+    public int getMovieCount() {
+        return movieIndex.size();
+    }
+
+    @Override
+    public boolean hasMovie(int movieId) {
+        return movieIndex.contains(movieId);
+    }
+
+    @Override
+    public int getMatrixIndex(int movieId) {
+        return movieIndex.getIndex(movieId);
+    }
+
+    @Override
+    public int getMovieId(int matrixIndex) {
+        return movieIndex.getMovieId(matrixIndex);
+    }
+
+    /**
+     * Loads all rows that are not cached with a single batch, and pins them for this request
+     */
+    @Override
+    public void prefetchRows(int[] matrixIndices) throws EngineException {
+        List<Integer> movieIds = new ArrayList<>();
+        for (int i : matrixIndices) {
+            if (i >= 0 && !requestRows.containsKey(i)) movieIds.add(movieIndex.getMovieId(i));
+        }
+        if (movieIds.isEmpty()) {
+            return;
+        }
+        try {
+            for (ModelRow row : modelRowCache.getRows(movieIds).values()) {
+                requestRows.put(movieIndex.getIndex(row.getMovieId()), row);
+            }
+        } catch (DAOException e) {
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("Unable to load the model rows of " + movieIds.size() + " movies.");
+            throw ee;
+        }
+    }
+
+    @Override
+    public double get(int i, int j) throws EngineException {
+        return getRequestRow(i).getAveragePreferenceDifference(movieIndex.getMovieId(j));
+    }
+
+    @Override
+    public void getRow(int i, double[] row) throws EngineException {
+        ModelRow modelRow = getRequestRow(i);
+        Arrays.fill(row, 0, movieIndex.size(), 0.0);
+        for (int k = 0; k < modelRow.getSize(); k++) {
+            int j = movieIndex.getIndex(modelRow.getOtherMovieId(k));
+            if (j >= 0) row[j] = modelRow.getAvgDifference(k);
+        }
+    }
+
+    @Override
+    public void gather(int i, int[] matrixIndices_j, double[] values) throws EngineException {
+        getRequestRow(i).gather(getColumnMovieIds(matrixIndices_j), values);
+    }
+
+    @Override
+    public void accumulateRow(int i, double rating, int[] matrixIndices_j, double[] accumulator) throws EngineException {
+        getRequestRow(i).accumulate(rating, getColumnMovieIds(matrixIndices_j), accumulator);
+    }
+
+
+    // Pinned row, loaded through the cache unless it was prefetched
+    private ModelRow getRequestRow(int i) throws EngineException {
+        ModelRow row = requestRows.get(i);
+        if (row == null) {
+            try {
+                row = modelRowCache.getRow(movieIndex.getMovieId(i));
+            } catch (DAOException e) {
+                EngineException ee = new EngineException(e);
+                ee.setEngineMessage("Unable to load the model row of MovieId " + movieIndex.getMovieId(i) + ".");
+                throw ee;
+            }
+            requestRows.put(i, row);
+        }
+        return row;
+    }
+
+    // MovieIds of the columns (mapped once per request), -1 columns become a MovieId without pairs
+    private int[] getColumnMovieIds(int[] matrixIndices_j) {
+        if (matrixIndices_j != columnIndices) {
+            columnIndices = matrixIndices_j;
+            columnMovieIds = new int[matrixIndices_j.length];
+            for (int k = 0; k < matrixIndices_j.length; k++) {
+                columnMovieIds[k] = matrixIndices_j[k] < 0 ? Integer.MIN_VALUE : movieIndex.getMovieId(matrixIndices_j[k]);
+            }
+        }
+        return columnMovieIds;
+    }
+
+}
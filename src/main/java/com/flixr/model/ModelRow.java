@@ -0,0 +1,119 @@
+package com.flixr.model;
+
+import java.util.Arrays;
+
+/**
+ * @author Thomas Thompson
+ *
+ * One row of the Correlation Matrix: the Average Rating Difference between a movie and every movie it was co-rated with
+ * Loaded on demand from the database (see ModelRowCache), only the stored pairs are held, sorted by MovieId
+ */
+public class ModelRow {
+
+    private static final long ARRAY_HEADER_BYTES = 16;
+
+    private final int movieId;
+    private final int[] otherMovieIds; // sorted
+    private final double[] avgDifferences; // (movieId, otherMovieId)
+
+    /**
+     * @param movieId           MovieId of the row
+     * @param otherMovieIds     Sorted MovieIds of the stored pairs
+     * @param avgDifferences    Average Rating Difference of each pair, in the same order
+     * @param size              Number of pairs (the arrays may be longer)
+     */
+    public ModelRow(int movieId, int[] otherMovieIds, double[] avgDifferences, int size) {
+        this.movieId = movieId;
+        this.otherMovieIds = otherMovieIds.length == size ? otherMovieIds : Arrays.copyOf(otherMovieIds, size);
+        this.avgDifferences = avgDifferences.length == size ? avgDifferences : Arrays.copyOf(avgDifferences, size);
+    }
+
+    /**
+     * @param otherMovieId  MovieId in Matrix position j
+     * @return  Average preference difference between this movie and the other movie, 0 if the pair is not stored
+     */
+    public double getAveragePreferenceDifference(int otherMovieId) {
+        int low = 0;
+        int high = otherMovieIds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (otherMovieIds[mid] < otherMovieId) low = mid + 1;
+            else if (otherMovieIds[mid] > otherMovieId) high = mid - 1;
+            else return avgDifferences[mid];
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the row to a running total of the given movies: accumulator[k] += rating + (movieId, otherMovieIds_j[k])
+     * Ascending MovieIds (the usual case) are merged with the stored pairs in a single pass
+     * @param rating            Added to every value
+     * @param otherMovieIds_j   Movies to add the row to
+     * @param accumulator       Running totals, in the order of otherMovieIds_j
+     */
+    public void accumulate(double rating, int[] otherMovieIds_j, double[] accumulator) {
+        int cursor = 0;
+        int previousMovieId = Integer.MIN_VALUE;
+        for (int k = 0; k < otherMovieIds_j.length; k++) {
+            int otherMovieId = otherMovieIds_j[k];
+            if (otherMovieId < previousMovieId) cursor = 0; // not ascending, search from the start
+            previousMovieId = otherMovieId;
+            while (cursor < otherMovieIds.length && otherMovieIds[cursor] < otherMovieId) cursor++;
+            double avgDifference = cursor < otherMovieIds.length && otherMovieIds[cursor] == otherMovieId ? avgDifferences[cursor] : 0;
+            accumulator[k] += rating + avgDifference;
+        }
+    }
+
+    /**
+     * Reads the row at the given movies: values[k] = (movieId, otherMovieIds_j[k]), 0 if the pair is not stored
+     * Ascending MovieIds (the usual case) are merged with the stored pairs in a single pass
+     * @param otherMovieIds_j   Movies to read
+     * @param values            Output, in the order of otherMovieIds_j
+     */
+    public void gather(int[] otherMovieIds_j, double[] values) {
+        int cursor = 0;
+        int previousMovieId = Integer.MIN_VALUE;
+        for (int k = 0; k < otherMovieIds_j.length; k++) {
+            int otherMovieId = otherMovieIds_j[k];
+            if (otherMovieId < previousMovieId) cursor = 0; // not ascending, search from the start
+            previousMovieId = otherMovieId;
+            while (cursor < otherMovieIds.length && otherMovieIds[cursor] < otherMovieId) cursor++;
+            values[k] = cursor < otherMovieIds.length && otherMovieIds[cursor] == otherMovieId ? avgDifferences[cursor] : 0;
+        }
+    }
+
+    /**
+     * @param k     Stored pair, 0..getSize()-1
+     * @return  Other MovieId of the pair
+     */
+    public int getOtherMovieId(int k) {
+        return otherMovieIds[k];
+    }
+
+    /**
+     * @param k     Stored pair, 0..getSize()-1
+     * @return  Average Rating Difference of the pair
+     */
+    public double getAvgDifference(int k) {
+        return avgDifferences[k];
+    }
+
+    public int getMovieId() {
+        return movieId;
+    }
+
+    /**
+     * @return  Number of stored pairs
+     */
+    public int getSize() {
+        return otherMovieIds.length;
+    }
+
+    /**
+     * @return  Approximate number of bytes used by the row
+     */
+    public long getEstimatedMemoryBytes() {
+        return 32 + 2 * ARRAY_HEADER_BYTES + 12L * otherMovieIds.length;
+    }
+
+}
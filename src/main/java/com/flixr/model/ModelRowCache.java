@@ -0,0 +1,146 @@
+package com.flixr.model;
+
+import com.flixr.dao.ModelRowDAO;
+import com.flixr.exceptions.DAOException;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Size-bounded cache of Correlation Matrix rows, used instead of the full model when it is served lazily from the database
+ *
+ * A request only needs the rows of the movies its user rated, so only those rows are loaded (missing rows of a request
+ * in a single batch), and the least recently used rows are evicted once the cached rows exceed the byte budget.
+ * A node only needs heap for the rows that are in demand, not for the whole N x N model
+ *
+ * A cache reads a single model version, the PredictionModelHolder replaces it when a new version is promoted
+ */
+public class ModelRowCache {
+
+    private final ModelRowDAO modelRowDAO;
+    private final long maxBytes;
+    private volatile MovieIndexMap movieIndex; // Matrix Indices of the model version (loaded once)
+
+    // Access-ordered: iteration starts at the least recently used row (guarded by this)
+    private final LinkedHashMap<Integer, ModelRow> rows = new LinkedHashMap<>(1024, 0.75f, true);
+    private long cachedBytes;
+
+    // Cache statistics
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param modelRowDAO   Loads rows of the model version served by this cache
+     * @param maxBytes      Byte budget of the cached rows
+     */
+    public ModelRowCache(ModelRowDAO modelRowDAO, long maxBytes) {
+        this.modelRowDAO = modelRowDAO;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param movieId   MovieId of the row
+     * @return  Row of the movie (empty if the movie is not in the model)
+     * @throws DAOException if the row is not cached and cannot be loaded
+     */
+    public ModelRow getRow(int movieId) throws DAOException {
+        return getRows(Collections.singletonList(movieId)).get(movieId);
+    }
+
+    /**
+     * Returns the rows of several movies, loading all rows that are not cached with a single batch
+     * The returned rows stay usable even if they are evicted meanwhile
+     * @param movieIds  MovieIds of the rows (ex. all movies rated by a user)
+     * @return  MovieId -> Row, for every requested movie
+     * @throws DAOException if a row is not cached and cannot be loaded
+     */
+    public Map<Integer, ModelRow> getRows(Collection<Integer> movieIds) throws DAOException {
+        Map<Integer, ModelRow> requestedRows = new HashMap<>();
+        Set<Integer> missingMovieIds = new LinkedHashSet<>();
+        synchronized (this) {
+            for (int movieId : movieIds) {
+                ModelRow row = rows.get(movieId);
+                if (row != null) requestedRows.put(movieId, row);
+                else missingMovieIds.add(movieId);
+            }
+        }
+        hitCount.addAndGet(requestedRows.size());
+        if (missingMovieIds.isEmpty()) {
+            return requestedRows;
+        }
+
+        // Load outside of the lock, so cached rows keep serving during the query
+        missCount.addAndGet(missingMovieIds.size());
+        Map<Integer, ModelRow> loadedRows = modelRowDAO.loadRows(missingMovieIds);
+        requestedRows.putAll(loadedRows);
+        synchronized (this) {
+            for (ModelRow row : loadedRows.values()) {
+                ModelRow previousRow = rows.put(row.getMovieId(), row);
+                cachedBytes += row.getEstimatedMemoryBytes();
+                if (previousRow != null) cachedBytes -= previousRow.getEstimatedMemoryBytes(); // loaded concurrently
+            }
+            evict();
+        }
+        return requestedRows;
+    }
+
+    /**
+     * @return  MovieId <-> Matrix Index mapping of the model version served by this cache (loaded on first use)
+     * @throws DAOException if the MovieIds cannot be loaded
+     */
+    public MovieIndexMap getMovieIndex() throws DAOException {
+        MovieIndexMap index = movieIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = movieIndex;
+                if (index == null) {
+                    index = new MovieIndexMap(modelRowDAO.loadMovieIds());
+                    movieIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    // Removes the least recently used rows until the cache is within its budget
+    private void evict() {
+        Iterator<ModelRow> iterator = rows.values().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            cachedBytes -= iterator.next().getEstimatedMemoryBytes();
+            iterator.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public synchronized int getRowCount() {
+        return rows.size();
+    }
+
+    /**
+     * @return  Approximate number of bytes used by the cached rows
+     */
+    public synchronized long getEstimatedMemoryBytes() {
+        return cachedBytes;
+    }
+
+    public String getModelTable() {
+        return modelRowDAO.getModelTable();
+    }
+
+}
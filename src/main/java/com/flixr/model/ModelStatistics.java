@@ -0,0 +1,117 @@
+package com.flixr.model;
+
+import com.flixr.interfaces.ICorrelationAccumulator;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Sufficient statistics of a trained model: for every (Movie i, Movie j) pair with i < j,
+ * the Sum of Rating Differences and the Number of Users who rated both movies
+ * Unlike the Average Rating Differences, these can be updated when a single rating is added or changed
+ *
+ * Packed in the same upper triangle layout as the TriangularMatrix
+ * As an accumulator, its rows only hold the upper triangle, so it must be saved as a triangular model
+ */
+public class ModelStatistics implements ICorrelationAccumulator {
+
+    private static final long ARRAY_HEADER_BYTES = 16;
+
+    private final int size;
+    private final double[] ratingDifferenceSums;
+    private final int[] ratingFrequencies;
+
+    /**
+     * @param size  Number of movies in the model
+     */
+    public ModelStatistics(int size) {
+        this.size = size;
+        int cellCount = (int) Math.max(0, (long) size * (size - 1) / 2);
+        ratingDifferenceSums = new double[cellCount];
+        ratingFrequencies = new int[cellCount];
+    }
+
+    /**
+     * Adds to the statistics of the (i, j) pair, oriented as Rating(i) - Rating(j)
+     * The (j, i) orientation is stored as its mirror, i.e. the difference is negated
+     * @param ratingDifferenceChange    Change to the Sum of Rating Differences
+     * @param ratingFrequencyChange     Change to the Number of Users who rated both movies
+     */
+    public void add(int i, int j, double ratingDifferenceChange, int ratingFrequencyChange) {
+        if (i == j) return;
+        int position = i < j ? TriangularMatrix.getPosition(size, i, j) : TriangularMatrix.getPosition(size, j, i);
+        ratingDifferenceSums[position] += i < j ? ratingDifferenceChange : 0.0 - ratingDifferenceChange;
+        ratingFrequencies[position] += ratingFrequencyChange;
+    }
+
+    @Override
+    public void add(int i, int j, double ratingDifference) {
+        add(i, j, ratingDifference, 1);
+    }
+
+    /**
+     * @return  Sum of Rating(i) - Rating(j) over the users who rated both movies
+     */
+    public double getRatingDifferenceSum(int i, int j) {
+        if (i < j) return ratingDifferenceSums[TriangularMatrix.getPosition(size, i, j)];
+        if (i > j) return 0.0 - ratingDifferenceSums[TriangularMatrix.getPosition(size, j, i)];
+        return 0.0;
+    }
+
+    /**
+     * @return  Number of users who rated both movies
+     */
+    public int getRatingFrequency(int i, int j) {
+        if (i == j) return 0;
+        return ratingFrequencies[i < j ? TriangularMatrix.getPosition(size, i, j) : TriangularMatrix.getPosition(size, j, i)];
+    }
+
+    /**
+     * Copies the co-rated pairs of row i that are right of the diagonal (j > i)
+     */
+    @Override
+    public int getRow(int i, int[] columns, double[] ratingDifferenceSums, int[] ratingFrequencies) {
+        int count = 0;
+        int position = i + 1 < size ? TriangularMatrix.getPosition(size, i, i + 1) : 0;
+        for (int j = i + 1; j < size; j++, position++) {
+            if (this.ratingFrequencies[position] != 0) {
+                columns[count] = j;
+                ratingDifferenceSums[count] = this.ratingDifferenceSums[position];
+                ratingFrequencies[count] = this.ratingFrequencies[position];
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isSequentialRowAccess() {
+        return false;
+    }
+
+    @Override
+    public long getNonZeroCount() {
+        long nonZeroCount = 0;
+        for (int ratingFrequency : ratingFrequencies) {
+            if (ratingFrequency != 0) nonZeroCount++;
+        }
+        return nonZeroCount;
+    }
+
+    /**
+     * @return  (Sum of Rating Differences) / (Count of Ratings) of the (i < j) pair, 0 if no user rated both movies
+     */
+    public double getAverageRatingDifference(int i, int j) {
+        int position = TriangularMatrix.getPosition(size, i, j);
+        return ratingFrequencies[position] > 0 ? ratingDifferenceSums[position] / ratingFrequencies[position] : 0.0;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public long getEstimatedMemoryBytes() {
+        return 2 * ARRAY_HEADER_BYTES + 12L * ratingFrequencies.length;
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.flixr.model;
+
+import java.util.Map;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Primitive MovieId <-> Matrix Index mapping of a model (no boxing, no hashing of Integer objects)
+ *
+ *   MovieId -> Index:  open-addressing hash table (linear probing, at most half full)
+ *   Index -> MovieId:  array
+ *
+ * Read-only once built, so it can be shared by any number of threads
+ */
+public class MovieIndexMap {
+
+    private static final long ARRAY_HEADER_BYTES = 16;
+
+    private final int[] movieIds; // Index -> MovieId
+    private final int[] keys; // MovieIds of the hash table
+    private final int[] slots; // Index + 1 of each key, 0 for an empty slot
+    private final int mask;
+
+    /**
+     * @param movieIds  MovieIds in Matrix Index order (ex. sorted), without duplicates
+     * @throws IllegalArgumentException if a MovieId is repeated
+     */
+    public MovieIndexMap(int[] movieIds) {
+        this.movieIds = movieIds.clone();
+        int capacity = Integer.highestOneBit(Math.max(2, movieIds.length) * 2 - 1) << 1;
+        this.keys = new int[capacity];
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        for (int index = 0; index < movieIds.length; index++) {
+            int slot = findSlot(movieIds[index]);
+            if (slots[slot] != 0) {
+                throw new IllegalArgumentException("MovieId " + movieIds[index] + " is repeated.");
+            }
+            keys[slot] = movieIds[index];
+            slots[slot] = index + 1;
+        }
+    }
+
+    /**
+     * @param movieIdToMatrixIndex  MovieId -> Matrix Index, the indices must be 0..size-1
+     * @return  Primitive copy of the mapping
+     */
+    public static MovieIndexMap fromMap(Map<Integer, Integer> movieIdToMatrixIndex) {
+        int[] movieIds = new int[movieIdToMatrixIndex.size()];
+        for (Map.Entry<Integer, Integer> entry : movieIdToMatrixIndex.entrySet()) {
+            movieIds[entry.getValue()] = entry.getKey();
+        }
+        return new MovieIndexMap(movieIds);
+    }
+
+    /**
+     * @return  Matrix Index of the movie, -1 if the movie is not in the model
+     */
+    public int getIndex(int movieId) {
+        return slots[findSlot(movieId)] - 1;
+    }
+
+    /**
+     * @return  True if the movie is in the model
+     */
+    public boolean contains(int movieId) {
+        return slots[findSlot(movieId)] != 0;
+    }
+
+    /**
+     * @param index     Matrix Index, 0..size-1
+     * @return  MovieId at the index
+     */
+    public int getMovieId(int index) {
+        return movieIds[index];
+    }
+
+    public int size() {
+        return movieIds.length;
+    }
+
+    /**
+     * @return  Approximate number of heap bytes of the mapping
+     */
+    public long getEstimatedMemoryBytes() {
+        return 3 * ARRAY_HEADER_BYTES + 4L * movieIds.length + 8L * keys.length;
+    }
+
+    // Slot holding the movie, or the empty slot where it would be inserted
+    private int findSlot(int movieId) {
+        int hash = movieId * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0 && keys[slot] != movieId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.flixr.model;
+
+import com.flixr.interfaces.ICorrelationModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Snapshot of a trained Recommendation Model (i.e. the Correlation Matrix) that is held in memory
+ * A single instance is shared by every PredictionEngine, so it is read-only once it has been loaded,
+ * except for online rating updates (only if the model carries its ModelStatistics)
+ *
+ * Serves the PredictionEngine through the ICorrelationModel interface, whether the matrix is on the heap (CSV or
+ * database model), memory-mapped (binary model), tiered or quantized
+ */
+public class PredictionModel implements ICorrelationModel {
+
+    private final Set<Integer> distinctMovieIds;
+    private final MovieIndexMap movieIndex; // MovieId <-> Index
+    private final TriangularMatrix correlationMatrix; // upper triangle only, (j, i) = -(i, j)
+    private final ModelStatistics modelStatistics; // Sum & Count behind each average (null if the source only has averages)
+    private TieredModelRows tieredRows; // hot rows on the heap (null if every row is read from the correlationMatrix)
+
+    // Load statistics
+    private final long loadTimeMillis;
+
+    // Readers currently using the snapshot (see PredictionModelHolder.acquireModel), it is released once it is
+    // replaced and its last reader is done
+    private final AtomicInteger readerCount = new AtomicInteger();
+    private volatile boolean retired;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Creates a Prediction Model snapshot
+     * @param distinctMovieIds      Sorted list of MovieIds in the model
+     * @param movieIdToMatrixIndex  Maps MovieId to Matrix Index
+     * @param correlationMatrix     Average Rating Difference between Movie i and Movie j
+     * @param loadTimeMillis        Time taken to load the model
+     */
+    public PredictionModel(Set<Integer> distinctMovieIds, HashMap<Integer, Integer> movieIdToMatrixIndex,
+                           TriangularMatrix correlationMatrix, long loadTimeMillis) {
+        this(distinctMovieIds, movieIdToMatrixIndex, correlationMatrix, null, loadTimeMillis);
+    }
+
+    /**
+     * Creates a Prediction Model snapshot that can be updated online
+     * @param distinctMovieIds      Sorted list of MovieIds in the model
+     * @param movieIdToMatrixIndex  Maps MovieId to Matrix Index
+     * @param correlationMatrix     Average Rating Difference between Movie i and Movie j
+     * @param modelStatistics       Sum of Rating Differences & Rating Frequency behind each average (may be null)
+     * @param loadTimeMillis        Time taken to load the model
+     */
+    public PredictionModel(Set<Integer> distinctMovieIds, HashMap<Integer, Integer> movieIdToMatrixIndex,
+                           TriangularMatrix correlationMatrix, ModelStatistics modelStatistics, long loadTimeMillis) {
+        this(distinctMovieIds, MovieIndexMap.fromMap(movieIdToMatrixIndex), correlationMatrix, modelStatistics, loadTimeMillis);
+    }
+
+    private PredictionModel(Set<Integer> distinctMovieIds, MovieIndexMap movieIndex,
+                            TriangularMatrix correlationMatrix, ModelStatistics modelStatistics, long loadTimeMillis) {
+        this.distinctMovieIds = distinctMovieIds;
+        this.movieIndex = movieIndex;
+        this.correlationMatrix = correlationMatrix;
+        this.modelStatistics = modelStatistics;
+        this.loadTimeMillis = loadTimeMillis;
+    }
+
+    /**
+     * Gets the Correlation between Movies in the trained Recommendation Model
+     * @param movieId_i     MovieId in Matrix position i
+     * @param movieId_j     MovieId in Matrix position j
+     * @return  Correlation (i.e. average preference difference between Movie i and Movie j), 0 if either movie is unknown
+     */
+    public double getAveragePreferenceDifference(int movieId_i, int movieId_j) {
+        int i = movieIndex.getIndex(movieId_i);
+        int j = movieIndex.getIndex(movieId_j);
+        if (i < 0 || j < 0) {
+            return 0;
+        }
+        return get(i, j);
+    }
+
+    @Override
+    public boolean hasMovie(int movieId) {
+        return movieIndex.contains(movieId);
+    }
+
+    @Override
+    public int getMatrixIndex(int movieId) {
+        return movieIndex.getIndex(movieId);
+    }
+
+    @Override
+    public int getMovieId(int matrixIndex) {
+        return movieIndex.getMovieId(matrixIndex);
+    }
+
+    @Override
+    public double get(int i, int j) {
+        if (tieredRows != null) {
+            return tieredRows.get(i, j);
+        }
+        return correlationMatrix.get(i, j);
+    }
+
+    @Override
+    public void getRow(int i, double[] row) {
+        for (int j = 0; j < movieIndex.size(); j++) {
+            row[j] = get(i, j);
+        }
+    }
+
+    @Override
+    public void gather(int i, int[] matrixIndices_j, double[] values) {
+        if (tieredRows != null) {
+            for (int k = 0; k < matrixIndices_j.length; k++) {
+                values[k] = matrixIndices_j[k] < 0 ? 0.0 : tieredRows.get(i, matrixIndices_j[k]);
+            }
+            return;
+        }
+        correlationMatrix.gather(i, matrixIndices_j, values);
+    }
+
+    @Override
+    public void accumulateRow(int i, double rating, int[] matrixIndices_j, double[] accumulator) {
+        if (tieredRows != null) {
+            tieredRows.accumulateRow(i, rating, matrixIndices_j, accumulator);
+            return;
+        }
+        correlationMatrix.accumulateRow(i, rating, matrixIndices_j, accumulator);
+    }
+
+    /**
+     * Creates a read-only copy of the model with its Correlation Matrix stored in fewer bits (see QuantizedTriangularMatrix)
+     * @param encoding  Encoding of the Average Rating Differences
+     * @return  Quantized snapshot without statistics (this snapshot for FLOAT64)
+     */
+    public PredictionModel quantize(ModelEncoding encoding) {
+        if (encoding == ModelEncoding.FLOAT64) {
+            return this;
+        }
+        long startTime = System.currentTimeMillis();
+        TriangularMatrix quantizedMatrix = QuantizedTriangularMatrix.quantize(correlationMatrix, encoding);
+        return new PredictionModel(distinctMovieIds, movieIndex, quantizedMatrix, null,
+                loadTimeMillis + System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Serves the most read rows from dense on-heap copies, and all other rows from the Correlation Matrix
+     * (see TieredModelRows), must be called before the model is published
+     * @param hotBytes  Heap budget of the hot rows
+     * @throws IllegalStateException if the model can be updated online (the copies would not follow the updates)
+     */
+    public void enableTiering(long hotBytes) {
+        if (modelStatistics != null) {
+            throw new IllegalStateException("Only a read-only model can be tiered.");
+        }
+        tieredRows = new TieredModelRows(correlationMatrix, hotBytes);
+    }
+
+    /**
+     * @return  Storage tiers of the model (null if tiering is not enabled)
+     */
+    public TieredModelRows getTieredRows() {
+        return tieredRows;
+    }
+
+    /**
+     * Applies a user's new (or changed) rating to every movie pair the user has co-rated, in O(k) for k rated movies
+     * A new rating adds Rating - OtherRating to each pair and increments its frequency,
+     * a changed rating (DELETE + INSERT) only shifts each pair's sum by Rating - PreviousRating
+     * Updates are serialized, requests reading the model concurrently see either the old or the new averages
+     * @param movieId           Rated MovieId
+     * @param previousRating    User's previous rating of the movie (null if the movie was not rated before)
+     * @param rating            User's new rating of the movie
+     * @param otherRatings      User's ratings of all other movies: MovieId -> Rating
+     * @return  Number of movie pairs updated (0 if the model has no statistics or does not contain the movie)
+     */
+    public synchronized int applyRating(int movieId, Double previousRating, double rating, Map<Integer, Double> otherRatings) {
+        int i = movieIndex.getIndex(movieId);
+        if (modelStatistics == null || i < 0 || (previousRating != null && previousRating == rating)) {
+            return 0;
+        }
+
+        int updatedPairs = 0;
+        for (Map.Entry<Integer, Double> otherRating : otherRatings.entrySet()) {
+            int j = movieIndex.getIndex(otherRating.getKey());
+            if (j < 0 || j == i) continue; // movies added after training are picked up by the next re-train
+
+            // Update Sum of Rating Differences (& Rating Frequency for a new rating)
+            if (previousRating == null) {
+                modelStatistics.add(i, j, rating - otherRating.getValue(), 1);
+            }
+            else {
+                modelStatistics.add(i, j, rating - previousRating, 0);
+            }
+
+            // Update the served average
+            int upper_i = Math.min(i, j);
+            int upper_j = Math.max(i, j);
+            correlationMatrix.set(upper_i, upper_j, modelStatistics.getAverageRatingDifference(upper_i, upper_j));
+            updatedPairs++;
+        }
+        return updatedPairs;
+    }
+
+    /**
+     * @return  True if the model can be updated online (i.e. it has the statistics behind its averages)
+     */
+    public boolean hasModelStatistics() {
+        return modelStatistics != null;
+    }
+
+    /**
+     * @return  Approximate number of bytes used by the Correlation Matrix and its Index Map
+     */
+    public long getEstimatedMemoryBytes() {
+        long matrixBytes = correlationMatrix.getEstimatedMemoryBytes();
+        if (modelStatistics != null) matrixBytes += modelStatistics.getEstimatedMemoryBytes();
+        if (tieredRows != null) matrixBytes += tieredRows.getEstimatedMemoryBytes() + tieredRows.getMaxHotBytes();
+        long indexBytes = movieIndex.getEstimatedMemoryBytes();
+        return matrixBytes + indexBytes;
+    }
+
+    /**
+     * @return  Sum & Count behind each average (null if the model only has averages)
+     */
+    public ModelStatistics getModelStatistics() {
+        return modelStatistics;
+    }
+
+    /**
+     * @return  Number of requests currently reading this snapshot
+     */
+    public int getReaderCount() {
+        return readerCount.get();
+    }
+
+    int addReader() {
+        return readerCount.incrementAndGet();
+    }
+
+    int removeReader() {
+        return readerCount.decrementAndGet();
+    }
+
+    // Marks the snapshot as replaced, it is released once it has no readers
+    void retire() {
+        retired = true;
+    }
+
+    /**
+     * @return  True exactly once: for the caller that finds the snapshot retired without readers
+     */
+    boolean releaseIfUnused() {
+        return retired && readerCount.get() == 0 && released.compareAndSet(false, true);
+    }
+
+    public long getLoadTimeMillis() {
+        return loadTimeMillis;
+    }
+
+    @Override
+    public int getMovieCount() {
+        return correlationMatrix.getSize();
+    }
+
+    public Set<Integer> getDistinctMovieIds() {
+        return distinctMovieIds;
+    }
+
+}
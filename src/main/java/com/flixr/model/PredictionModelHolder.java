@@ -0,0 +1,330 @@
+package com.flixr.model;
+
+import com.flixr.beans.ModelRegistryMetrics;
+import com.flixr.dao.ModelDAO;
+import com.flixr.dao.ModelRowDAO;
+import com.flixr.dao.ModelVersionDAO;
+import com.flixr.exceptions.DAOException;
+import com.flixr.threads.ModelReloadThread;
+import com.flixr.threads.ModelTieringThread;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.flixr.configuration.ApplicationConstants.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Process-wide holder for the trained Recommendation Model
+ * The Correlation Matrix is loaded once (at startup, or on first use) and then shared read-only by all requests,
+ * instead of being re-read from the CSV files / database on every call to /recommend
+ *
+ * A new model can be loaded in the background (reloadInBackground) while the current model keeps serving,
+ * and is then swapped in with a single volatile write. Requests that acquired the old snapshot finish on it,
+ * and the old snapshot is released once its last reader is done
+ *
+ * A lazy database model (LAZY_DB_MODEL) is never loaded as a whole, requests read its rows through the ModelRowCache,
+ * which is replaced (i.e. emptied) whenever a new model version is published or reloaded
+ */
+public class PredictionModelHolder {
+
+    private static volatile PredictionModel predictionModel;
+
+    // Replaced snapshots that are still read by in-flight requests
+    private static final Set<PredictionModel> retiredModels = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean reloading = new AtomicBoolean();
+    private static final AtomicBoolean tiering = new AtomicBoolean(); // ModelTieringThread started
+
+    // Rows of the lazy database model (created on first use, for the active model version)
+    private static volatile ModelRowCache modelRowCache;
+    private static final Object rowCacheLock = new Object();
+
+    // Metrics (guarded by metricsLock, so releasing a snapshot never waits for a model load)
+    private static final Object metricsLock = new Object();
+    private static long reloadCount;
+    private static long lastLoadMillis;
+    private static long lastSwapNanos;
+    private static long residentModelBytes;
+    private static long highWaterModelBytes;
+    private static long highWaterHeapBytes;
+
+    private PredictionModelHolder() {}
+
+    /**
+     * Returns the shared Prediction Model, loading it if it has not been loaded yet
+     * Only one thread will perform the load, all other callers wait for it to complete
+     * @return  Prediction Model snapshot
+     * @throws DAOException Thrown if the model could not be loaded
+     */
+    public static PredictionModel getModel() throws DAOException {
+        PredictionModel model = predictionModel;
+        if (model == null) {
+            synchronized (PredictionModelHolder.class) {
+                model = predictionModel;
+                if (model == null) {
+                    model = loadModel();
+                    swap(model);
+                }
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Returns the shared Prediction Model for the duration of a request, which must call releaseModel when it is done
+     * The snapshot stays usable (and counted as in use) even if a newer model is swapped in meanwhile
+     * @return  Prediction Model snapshot
+     * @throws DAOException Thrown if the model could not be loaded
+     */
+    public static PredictionModel acquireModel() throws DAOException {
+        while (true) {
+            PredictionModel model = getModel();
+            model.addReader();
+            if (model == predictionModel) {
+                return model;
+            }
+            releaseModel(model); // swapped out before it was counted, use the new model
+        }
+    }
+
+    /**
+     * Ends a request's use of a snapshot, the last reader of a replaced snapshot releases it
+     * @param model     Snapshot returned by acquireModel (ignored if null)
+     */
+    public static void releaseModel(PredictionModel model) {
+        if (model == null) return;
+        model.removeReader();
+        if (model.releaseIfUnused()) {
+            release(model);
+        }
+    }
+
+    /**
+     * Drops the current model, so that the next call to getModel() will load the latest trained model
+     * Requests that already borrowed the old model will finish using it
+     */
+    public static synchronized void invalidate() {
+        modelRowCache = null;
+        PredictionModel previousModel = predictionModel;
+        predictionModel = null;
+        retire(previousModel);
+    }
+
+    /**
+     * Replaces the current model with a newly trained one, without reloading it from the CSV files / database
+     * @param model     Prediction Model snapshot
+     */
+    public static synchronized void publish(PredictionModel model) {
+        if (isLazyModel()) {
+            modelRowCache = null; // the new version was saved to the database, its rows are loaded on demand
+            System.out.println("Prediction Model Published: rows of the new model will be loaded on demand.");
+            return;
+        }
+        swap(model);
+        System.out.println("Prediction Model Published: " + model.getMovieCount() + " movies, using ~"
+                + model.getEstimatedMemoryBytes() / (1024 * 1024) + " MB.");
+    }
+
+    /**
+     * Loads the latest stored model in a background thread, the current model is served until it is swapped in
+     * @return  False if a reload is already running
+     */
+    public static boolean reloadInBackground() {
+        if (isLazyModel()) {
+            modelRowCache = null; // next request resolves the active version
+            return true;
+        }
+        if (!reloading.compareAndSet(false, true)) {
+            return false;
+        }
+        new ModelReloadThread().start();
+        return true;
+    }
+
+    /**
+     * Loads the latest stored model, and swaps it in once it is complete (the current model serves meanwhile)
+     * @return  Newly loaded Prediction Model snapshot
+     * @throws DAOException Thrown if the model could not be loaded (the current model is kept)
+     */
+    public static PredictionModel reload() throws DAOException {
+        reloading.set(true);
+        try {
+            PredictionModel model = loadModel();
+            synchronized (PredictionModelHolder.class) {
+                swap(model);
+            }
+            System.out.println("Prediction Model Reloaded: swapped in " + getMetrics().getLastSwapNanos() + " ns, "
+                    + retiredModels.size() + " replaced model(s) still in use.");
+            return model;
+        } finally {
+            reloading.set(false);
+        }
+    }
+
+    /**
+     * Returns the row cache of the lazy database model, for the active model version
+     * Requests keep the cache they started with, a new version gets a new (empty) cache
+     * @return  Row cache
+     * @throws DAOException if the active model version cannot be resolved
+     */
+    public static ModelRowCache getRowCache() throws DAOException {
+        ModelRowCache rowCache = modelRowCache;
+        if (rowCache == null) {
+            synchronized (rowCacheLock) {
+                rowCache = modelRowCache;
+                if (rowCache == null) {
+                    String modelTable = new ModelVersionDAO().getActiveModelTable();
+                    rowCache = new ModelRowCache(new ModelRowDAO(modelTable), MODEL_ROW_CACHE_BYTES);
+                    modelRowCache = rowCache;
+                    System.out.println("Serving Prediction Model rows on demand from " + modelTable + ", caching up to "
+                            + MODEL_ROW_CACHE_BYTES / (1024 * 1024) + " MB of rows.");
+                }
+            }
+        }
+        return rowCache;
+    }
+
+    /**
+     * Promotes the most read rows of the current model onto the heap and demotes the rest (if the model is tiered)
+     * @return  Number of rows promoted or demoted
+     */
+    public static int rebalanceModelTiers() {
+        PredictionModel model = predictionModel;
+        if (model == null || model.getTieredRows() == null) {
+            return 0;
+        }
+        int changes = model.getTieredRows().rebalance();
+        if (changes > 0) {
+            TieredModelRows tieredRows = model.getTieredRows();
+            System.out.println("Prediction Model Tiers: " + tieredRows.getHotRowCount() + " of " + tieredRows.getMaxHotRows()
+                    + " hot rows (" + changes + " promoted / demoted), using ~" + tieredRows.getHotBytes() / (1024 * 1024) + " MB.");
+        }
+        return changes;
+    }
+
+    /**
+     * @return  True if the model is served row by row from the database (LAZY_DB_MODEL), instead of being loaded as a whole
+     */
+    public static boolean isLazyModel() {
+        return LAZY_DB_MODEL && !USE_CSV_MATRIX && !USE_BINARY_MODEL;
+    }
+
+    /**
+     * @return  True if the served model keeps its ModelStatistics, so new ratings update it online
+     *          (ONLINE_MODEL_UPDATES is on, and the model is not quantized, mapped or lazy, which all drop them)
+     */
+    public static boolean isOnlineUpdatable() {
+        return ONLINE_MODEL_UPDATES && MODEL_ENCODING == ModelEncoding.FLOAT64 && !USE_BINARY_MODEL && !isLazyModel();
+    }
+
+    /**
+     * Applies a new (or changed) rating to the model held in memory, so predictions stay current without a re-train
+     * Nothing is done if no model is loaded (the next load reads the latest model)
+     * @param movieId           Rated MovieId
+     * @param previousRating    User's previous rating of the movie (null if the movie was not rated before)
+     * @param rating            User's new rating of the movie
+     * @param otherRatings      User's ratings of all other movies: MovieId -> Rating
+     * @return  Number of movie pairs updated
+     */
+    public static int applyRating(int movieId, Double previousRating, double rating, Map<Integer, Double> otherRatings) {
+        PredictionModel model = predictionModel;
+        if (model == null) {
+            return 0;
+        }
+        if (!model.hasModelStatistics()) {
+            System.out.println("Prediction Model has no rating statistics, the rating will be included by the next re-train.");
+            return 0;
+        }
+        return model.applyRating(movieId, previousRating, rating, otherRatings);
+    }
+
+    /**
+     * @return  Returns "true" if a model is currently held in memory
+     */
+    public static boolean isLoaded() {
+        return predictionModel != null;
+    }
+
+    /**
+     * @return  Swap & load times, and the memory used by the current and replaced models
+     */
+    public static ModelRegistryMetrics getMetrics() {
+        PredictionModel model = predictionModel;
+        ModelRegistryMetrics metrics;
+        synchronized (metricsLock) {
+            metrics = new ModelRegistryMetrics(model != null, reloading.get(), model != null ? model.getMovieCount() : 0,
+                    model != null ? model.getReaderCount() : 0, retiredModels.size(), reloadCount, lastLoadMillis, lastSwapNanos,
+                    residentModelBytes, highWaterModelBytes, highWaterHeapBytes);
+        }
+        if (model != null && model.getTieredRows() != null) {
+            TieredModelRows tieredRows = model.getTieredRows();
+            metrics.setTierMetrics(tieredRows.getHotRowCount(), tieredRows.getHotBytes(),
+                    tieredRows.getPromotionCount(), tieredRows.getDemotionCount());
+        }
+        ModelRowCache rowCache = modelRowCache;
+        if (rowCache != null) {
+            metrics.setRowCacheMetrics(rowCache.getRowCount(), rowCache.getEstimatedMemoryBytes(),
+                    rowCache.getHitCount(), rowCache.getMissCount(), rowCache.getEvictionCount());
+        }
+        return metrics;
+    }
+
+    // Loads the model & reports load time and memory usage
+    private static PredictionModel loadModel() throws DAOException {
+        long startTime = System.currentTimeMillis();
+        ModelDAO modelDAO = new ModelDAO();
+        PredictionModel model = modelDAO.loadModel();
+        synchronized (metricsLock) {
+            lastLoadMillis = System.currentTimeMillis() - startTime;
+        }
+        System.out.println("Prediction Model Loaded: " + model.getMovieCount() + " movies in "
+                + model.getLoadTimeMillis() / 1000.0 + " seconds, using ~"
+                + model.getEstimatedMemoryBytes() / (1024 * 1024) + " MB.");
+        return model;
+    }
+
+    // Publishes a model with a single volatile write, then retires the previous one (caller holds the class lock)
+    private static void swap(PredictionModel model) {
+        long startTime = System.nanoTime();
+        PredictionModel previousModel = predictionModel;
+        predictionModel = model;
+        long swapNanos = System.nanoTime() - startTime;
+
+        // Both models are in memory until the previous one is released
+        synchronized (metricsLock) {
+            lastSwapNanos = swapNanos;
+            reloadCount++;
+            residentModelBytes += model.getEstimatedMemoryBytes();
+            highWaterModelBytes = Math.max(highWaterModelBytes, residentModelBytes);
+            Runtime runtime = Runtime.getRuntime();
+            highWaterHeapBytes = Math.max(highWaterHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+        }
+        retire(previousModel);
+
+        // Rows of a tiered model are promoted in the background
+        if (model.getTieredRows() != null && tiering.compareAndSet(false, true)) {
+            new ModelTieringThread(TIERED_MODEL_REBALANCE_SECONDS * 1000L).start();
+        }
+    }
+
+    // Releases a replaced model right away, or leaves it to its last reader
+    private static void retire(PredictionModel model) {
+        if (model == null) return;
+        retiredModels.add(model);
+        model.retire();
+        if (model.releaseIfUnused()) {
+            release(model);
+        }
+    }
+
+    private static void release(PredictionModel model) {
+        synchronized (metricsLock) {
+            retiredModels.remove(model);
+            residentModelBytes -= model.getEstimatedMemoryBytes();
+        }
+    }
+
+}
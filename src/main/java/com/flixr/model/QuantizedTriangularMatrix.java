@@ -0,0 +1,266 @@
+package com.flixr.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Read-only TriangularMatrix with its upper triangle stored in fewer bits (see ModelEncoding)
+ *
+ *   FLOAT32:   float per value
+ *   FLOAT16:   IEEE half precision per value (decoded through a 64K entry table)
+ *   INT8:      signed byte per value, times the scale of its upper triangle row (largest |value| of the row / 127)
+ *
+ * Values are held in big-endian byte buffers, either on the heap or memory-mapped from a binary model file:
+ * values row by row (same layout as the TriangularMatrix), followed by the row scales (INT8 only, one float per row)
+ */
+public class QuantizedTriangularMatrix extends TriangularMatrix {
+
+    private static final long ARRAY_HEADER_BYTES = 16;
+
+    // A mapping is limited to 2 GB, so values are split into segments of 2^27 values (at most 512 MB)
+    private static final int SEGMENT_SHIFT = 27;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+    static {
+        for (int half = 0; half < HALF_TO_FLOAT.length; half++) {
+            HALF_TO_FLOAT[half] = halfToFloat((short) half);
+        }
+    }
+
+    private final ModelEncoding encoding;
+    private final ByteBuffer[] segments;
+    private final float[] rowScales; // INT8 only
+    private final boolean mapped;
+
+    private QuantizedTriangularMatrix(int size, ModelEncoding encoding, ByteBuffer[] segments, float[] rowScales, boolean mapped) {
+        super(size, null);
+        this.encoding = encoding;
+        this.segments = segments;
+        this.rowScales = rowScales;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Encodes a matrix on the heap
+     * @param source    Matrix to encode
+     * @param encoding  Target encoding
+     * @return  Encoded matrix (the source itself for FLOAT64)
+     */
+    public static TriangularMatrix quantize(TriangularMatrix source, ModelEncoding encoding) {
+        if (encoding == ModelEncoding.FLOAT64) {
+            return source;
+        }
+        int size = source.getSize();
+        long cellCount = getCellCount(size);
+        ByteBuffer[] segments = new ByteBuffer[getSegmentCount(cellCount)];
+        for (int segment = 0; segment < segments.length; segment++) {
+            long segmentCells = Math.min(1L << SEGMENT_SHIFT, cellCount - ((long) segment << SEGMENT_SHIFT));
+            segments[segment] = ByteBuffer.allocate((int) segmentCells * encoding.getValueBytes());
+        }
+        float[] rowScales = encoding == ModelEncoding.INT8 ? new float[size] : null;
+
+        // Encode row by row
+        double[] row = new double[size];
+        for (int i = 0; i < size - 1; i++) {
+            for (int j = i + 1; j < size; j++) row[j] = source.get(i, j);
+            float rowScale = getRowScale(encoding, row, i + 1, size);
+            if (rowScales != null) rowScales[i] = rowScale;
+            int position = getPosition(size, i, i + 1);
+            for (int j = i + 1; j < size; j++, position++) {
+                ByteBuffer segment = segments[position >>> SEGMENT_SHIFT];
+                int index = (position & SEGMENT_MASK) * encoding.getValueBytes();
+                switch (encoding) {
+                    case FLOAT32: segment.putFloat(index, (float) row[j]); break;
+                    case FLOAT16: segment.putShort(index, floatToHalf((float) row[j])); break;
+                    default: segment.put(index, toInt8(row[j], rowScale)); break;
+                }
+            }
+        }
+        return new QuantizedTriangularMatrix(size, encoding, segments, rowScales, false);
+    }
+
+    /**
+     * Memory-maps an encoded upper triangle written by writeRow / writeRowScales
+     * The mapping stays valid after the channel is closed
+     * @param size          Number of rows (and columns) of the full matrix
+     * @param encoding      Encoding of the values (not FLOAT64, see TriangularMatrix.map)
+     * @param fileChannel   Open file channel
+     * @param position      File position of the first value
+     * @return  Read-only matrix
+     * @throws IOException if the file is truncated
+     */
+    public static QuantizedTriangularMatrix map(int size, ModelEncoding encoding, FileChannel fileChannel, long position) throws IOException {
+        long cellCount = getCellCount(size);
+        if (fileChannel.size() < position + getValueBytes(size, encoding)) {
+            throw new IOException("Model file is truncated: " + fileChannel.size() + " bytes, expected " + (position + getValueBytes(size, encoding)));
+        }
+
+        ByteBuffer[] segments = new ByteBuffer[getSegmentCount(cellCount)];
+        for (int segment = 0; segment < segments.length; segment++) {
+            long firstCell = (long) segment << SEGMENT_SHIFT;
+            long segmentCells = Math.min(1L << SEGMENT_SHIFT, cellCount - firstCell);
+            segments[segment] = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                    position + firstCell * encoding.getValueBytes(), segmentCells * encoding.getValueBytes());
+        }
+
+        // Row scales are small, they are read onto the heap
+        float[] rowScales = null;
+        if (encoding == ModelEncoding.INT8) {
+            rowScales = new float[size];
+            fileChannel.map(FileChannel.MapMode.READ_ONLY, position + cellCount, 4L * size).asFloatBuffer().get(rowScales);
+        }
+        return new QuantizedTriangularMatrix(size, encoding, segments, rowScales, true);
+    }
+
+    /**
+     * @return  Bytes of the encoded values (and row scales) of a matrix
+     */
+    public static long getValueBytes(int size, ModelEncoding encoding) {
+        return getCellCount(size) * encoding.getValueBytes() + (encoding == ModelEncoding.INT8 ? 4L * size : 0);
+    }
+
+    /**
+     * @return  Scale of an upper triangle row (INT8: largest |value| / 127, other encodings: 1)
+     */
+    public static float getRowScale(ModelEncoding encoding, double[] row, int from, int to) {
+        if (encoding != ModelEncoding.INT8) {
+            return 1.0f;
+        }
+        double maxAbsValue = 0;
+        for (int j = from; j < to; j++) maxAbsValue = Math.max(maxAbsValue, Math.abs(row[j]));
+        return maxAbsValue > 0 ? (float) (maxAbsValue / 127) : 1.0f;
+    }
+
+    /**
+     * Writes the encoded values row[from..to) of an upper triangle row
+     * @param rowScale  Scale of the row, from getRowScale
+     */
+    public static void writeRow(DataOutputStream out, ModelEncoding encoding, double[] row, int from, int to, float rowScale) throws IOException {
+        for (int j = from; j < to; j++) {
+            switch (encoding) {
+                case FLOAT64: out.writeDouble(row[j]); break;
+                case FLOAT32: out.writeFloat((float) row[j]); break;
+                case FLOAT16: out.writeShort(floatToHalf((float) row[j])); break;
+                default: out.writeByte(toInt8(row[j], rowScale)); break;
+            }
+        }
+    }
+
+    /**
+     * Writes the row scales after all values (INT8 only)
+     */
+    public static void writeRowScales(DataOutputStream out, ModelEncoding encoding, float[] rowScales) throws IOException {
+        if (encoding != ModelEncoding.INT8) return;
+        for (float rowScale : rowScales) {
+            out.writeFloat(rowScale);
+        }
+    }
+
+
+    @Override
+    public double get(int i, int j) {
+        if (i < j) {
+            return getUpper(i, getPosition(getSize(), i, j));
+        }
+        if (i > j) {
+            return 0.0 - getUpper(j, getPosition(getSize(), j, i));
+        }
+        return 0.0;
+    }
+
+    private double getUpper(int row, int position) {
+        ByteBuffer segment = segments[position >>> SEGMENT_SHIFT];
+        int index = position & SEGMENT_MASK;
+        switch (encoding) {
+            case FLOAT32: return segment.getFloat(index << 2);
+            case FLOAT16: return HALF_TO_FLOAT[segment.getShort(index << 1) & 0xFFFF];
+            default: return segment.get(index) * rowScales[row];
+        }
+    }
+
+    @Override
+    public void set(int i, int j, double value) {
+        throw new UnsupportedOperationException("Quantized matrix is read-only.");
+    }
+
+    @Override
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    @Override
+    public long getEstimatedMemoryBytes() {
+        long scaleBytes = rowScales != null ? ARRAY_HEADER_BYTES + 4L * rowScales.length : 0;
+        if (mapped) {
+            return ARRAY_HEADER_BYTES + 64L * segments.length + scaleBytes;
+        }
+        return ARRAY_HEADER_BYTES + getCellCount(getSize()) * encoding.getValueBytes() + scaleBytes;
+    }
+
+    public ModelEncoding getEncoding() {
+        return encoding;
+    }
+
+
+    private static long getCellCount(int size) {
+        return Math.max(0, (long) size * (size - 1) / 2);
+    }
+
+    private static int getSegmentCount(long cellCount) {
+        return (int) ((cellCount + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+    }
+
+    private static byte toInt8(double value, float rowScale) {
+        return (byte) Math.max(-127, Math.min(127, Math.round(value / rowScale)));
+    }
+
+    // Float to IEEE half precision, rounded to nearest even
+    static short floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int floatExponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (floatExponent == 0xFF) {
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0)); // Infinity & NaN
+        }
+        int exponent = floatExponent - 127 + 15;
+        if (exponent >= 0x1F) {
+            return (short) (sign | 0x7C00); // too large, Infinity
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) return (short) sign; // too small, 0
+            mantissa |= 0x800000; // subnormal half, the implicit bit becomes explicit
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) half++;
+            return (short) (sign | half);
+        }
+        int half = (exponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) half++; // a carry rounds up the exponent
+        return (short) (sign | half);
+    }
+
+    static float halfToFloat(short value) {
+        int bits = value & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+        if (exponent == 0) {
+            float subnormal = Math.scalb((float) mantissa, -24);
+            return sign != 0 ? -subnormal : subnormal;
+        }
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+}
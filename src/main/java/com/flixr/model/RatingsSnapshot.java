@@ -0,0 +1,248 @@
+package com.flixr.model;
+
+import com.flixr.beans.UserSubmission;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Binary snapshot of the ratings table, used as Recommendation Engine training input without querying the database
+ * Stored as a compressed sparse row (CSR) matrix of Users x Movies, and memory-mapped when it is opened:
+ *
+ *   Header:        magic "FXRS", version, userCount, movieCount, ratingCount (ints)
+ *   Movie Ids:     int[movieCount], sorted (a movie's position is its Movie Index)
+ *   User Ids:      int[userCount], sorted
+ *   User Offsets:  int[userCount + 1], ratings of user u are at positions userOffsets[u] .. userOffsets[u+1]-1
+ *   Movie Indices: int[ratingCount], sorted within each user
+ *   Ratings:       byte[ratingCount], rating * 2 (i.e. ratings are stored in 0.5 steps, from 0.0 to 127.5)
+ *
+ * All ints are big-endian. A user who rated the same movie twice keeps the first rating, same as training
+ */
+public class RatingsSnapshot {
+
+    private static final int MAGIC = 0x46585253; // "FXRS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * 4;
+
+    private int userCount;
+    private int movieCount;
+    private int ratingCount;
+
+    // Sections of the mapped file
+    private IntBuffer movieIds;
+    private IntBuffer userIds;
+    private IntBuffer userOffsets;
+    private IntBuffer movieIndices;
+    private ByteBuffer ratings;
+
+
+    private RatingsSnapshot() {}
+
+    /**
+     * Writes the ratings to a snapshot file
+     * @param snapshotFile      Output file
+     * @param userSubmissions   All UserSubmissions: UserId -> (MovieId, Rating)
+     * @throws IOException
+     * @throws IllegalArgumentException if a rating is not a multiple of 0.5 between 0.0 and 127.5
+     */
+    public static void write(File snapshotFile, Map<Integer, UserSubmission> userSubmissions) throws IOException {
+
+        // Sorted list of all MovieIds & Users
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        for (UserSubmission userSubmission : userSubmissions.values()) {
+            sortedListOfAllMovieIds.addAll(userSubmission.getMoviesViewed());
+        }
+        HashMap<Integer, Integer> movieIdToMovieIndex = new HashMap<>();
+        for (int movieId : sortedListOfAllMovieIds) {
+            movieIdToMovieIndex.put(movieId, movieIdToMovieIndex.size());
+        }
+        TreeMap<Integer, UserSubmission> sortedUserSubmissions = new TreeMap<>(userSubmissions);
+
+        // Each user's (Movie Index, Rating) pairs, sorted by Movie Index
+        List<TreeMap<Integer, Byte>> userRatings = new ArrayList<>(sortedUserSubmissions.size());
+        int ratingCount = 0;
+        for (UserSubmission userSubmission : sortedUserSubmissions.values()) {
+            TreeMap<Integer, Byte> sortedRatings = new TreeMap<>();
+            for (int k = 0; k < userSubmission.getRatingCount(); k++) {
+                int movieIndex = movieIdToMovieIndex.get(userSubmission.getMovieIdAt(k));
+                sortedRatings.putIfAbsent(movieIndex, quantize(userSubmission.getMovieRatingAt(k)));
+            }
+            userRatings.add(sortedRatings);
+            ratingCount += sortedRatings.size();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile), 1 << 16))) {
+
+            // Header
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sortedUserSubmissions.size());
+            out.writeInt(sortedListOfAllMovieIds.size());
+            out.writeInt(ratingCount);
+
+            // Movie & User Ids
+            for (int movieId : sortedListOfAllMovieIds) out.writeInt(movieId);
+            for (int userId : sortedUserSubmissions.keySet()) out.writeInt(userId);
+
+            // User Offsets
+            int offset = 0;
+            out.writeInt(offset);
+            for (TreeMap<Integer, Byte> sortedRatings : userRatings) {
+                offset += sortedRatings.size();
+                out.writeInt(offset);
+            }
+
+            // Movie Indices, then Ratings
+            for (TreeMap<Integer, Byte> sortedRatings : userRatings) {
+                for (int movieIndex : sortedRatings.keySet()) out.writeInt(movieIndex);
+            }
+            for (TreeMap<Integer, Byte> sortedRatings : userRatings) {
+                for (byte rating : sortedRatings.values()) out.writeByte(rating);
+            }
+        }
+    }
+
+    /**
+     * Memory-maps a snapshot file (nothing is read until it is used)
+     * @param snapshotFile  Snapshot written by RatingsSnapshot.write
+     * @return  Read-only snapshot
+     * @throws IOException if the file is not a ratings snapshot
+     */
+    public static RatingsSnapshot open(File snapshotFile) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(snapshotFile, "r");
+             FileChannel fileChannel = randomAccessFile.getChannel()) {
+
+            // Header
+            MappedByteBuffer header = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_BYTES, fileChannel.size()));
+            if (header.limit() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new IOException(snapshotFile + " is not a ratings snapshot.");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(snapshotFile + " has unsupported ratings snapshot version " + version);
+            }
+            RatingsSnapshot ratingsSnapshot = new RatingsSnapshot();
+            ratingsSnapshot.userCount = header.getInt();
+            ratingsSnapshot.movieCount = header.getInt();
+            ratingsSnapshot.ratingCount = header.getInt();
+
+            long expectedBytes = HEADER_BYTES + 4L * ratingsSnapshot.movieCount + 4L * ratingsSnapshot.userCount
+                    + 4L * (ratingsSnapshot.userCount + 1) + 5L * ratingsSnapshot.ratingCount;
+            if (fileChannel.size() != expectedBytes) {
+                throw new IOException(snapshotFile + " is truncated: " + fileChannel.size() + " bytes, expected " + expectedBytes);
+            }
+
+            // Map each section (a mapping stays valid after its channel is closed)
+            long position = HEADER_BYTES;
+            ratingsSnapshot.movieIds = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, 4L * ratingsSnapshot.movieCount).asIntBuffer();
+            position += 4L * ratingsSnapshot.movieCount;
+            ratingsSnapshot.userIds = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, 4L * ratingsSnapshot.userCount).asIntBuffer();
+            position += 4L * ratingsSnapshot.userCount;
+            ratingsSnapshot.userOffsets = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, 4L * (ratingsSnapshot.userCount + 1)).asIntBuffer();
+            position += 4L * (ratingsSnapshot.userCount + 1);
+            ratingsSnapshot.movieIndices = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, 4L * ratingsSnapshot.ratingCount).asIntBuffer();
+            position += 4L * ratingsSnapshot.ratingCount;
+            ratingsSnapshot.ratings = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, ratingsSnapshot.ratingCount);
+            return ratingsSnapshot;
+        }
+    }
+
+
+    /**
+     * @return  Sorted list of all MovieIds (the position of a MovieId is its Movie Index)
+     */
+    public TreeSet<Integer> getMovieIds() {
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        for (int movieIndex = 0; movieIndex < movieCount; movieIndex++) {
+            sortedListOfAllMovieIds.add(movieIds.get(movieIndex));
+        }
+        return sortedListOfAllMovieIds;
+    }
+
+    public int getMovieId(int movieIndex) {
+        return movieIds.get(movieIndex);
+    }
+
+    public int getUserId(int u) {
+        return userIds.get(u);
+    }
+
+    /**
+     * @return  Position of the first rating of user u (the user's ratings end at the next user's first rating)
+     */
+    public int getUserOffset(int u) {
+        return userOffsets.get(u);
+    }
+
+    public int getMovieIndex(int position) {
+        return movieIndices.get(position);
+    }
+
+    public double getRating(int position) {
+        return ratings.get(position) * 0.5;
+    }
+
+    /**
+     * Bulk copies the User Offsets (userCount + 1 entries)
+     */
+    public int[] copyUserOffsets() {
+        int[] copy = new int[userCount + 1];
+        userOffsets.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Bulk copies the Movie Indices of all ratings
+     */
+    public int[] copyMovieIndices() {
+        int[] copy = new int[ratingCount];
+        movieIndices.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Converts the snapshot back into UserSubmissions (ex. for the PAIRWISE kernel, or to record the trained ratings)
+     * @return  UserId -> (MovieId, Rating), ratings sorted by MovieId
+     */
+    public TreeMap<Integer, UserSubmission> toUserSubmissions() {
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        for (int u = 0; u < userCount; u++) {
+            UserSubmission userSubmission = new UserSubmission(getUserId(u));
+            for (int position = getUserOffset(u); position < getUserOffset(u + 1); position++) {
+                userSubmission.addMovieRating(getMovieId(getMovieIndex(position)), getRating(position));
+            }
+            userSubmission.trimToSize();
+            userSubmissions.put(userSubmission.getUserId(), userSubmission);
+        }
+        return userSubmissions;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public int getMovieCount() {
+        return movieCount;
+    }
+
+    public int getRatingCount() {
+        return ratingCount;
+    }
+
+
+    // Stores a rating as a byte in 0.5 steps
+    private static byte quantize(double rating) {
+        double steps = rating * 2;
+        if (steps != Math.rint(steps) || steps < 0 || steps > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Rating " + rating + " cannot be stored in a ratings snapshot (0.5 steps from 0.0 to 127.5 only).");
+        }
+        return (byte) steps;
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.flixr.model;
+
+import com.flixr.engine.ScoringKernels;
+import com.flixr.interfaces.IScoringKernel;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Two storage tiers for a read-only (ex. memory-mapped) Correlation Matrix
+ *
+ * Rating activity is skewed: a few hundred popular movies are in almost every user's submission, and every prediction
+ * reads the rows of the movies the user rated. The rows read most often are copied into dense on-heap arrays
+ * (hot tier, a single array read per lookup), all other rows are served by the underlying matrix (cold tier, ex. the
+ * page cache behind the memory mapping). The heap used by the hot tier is bounded by a byte budget
+ *
+ * Row reads are counted, and rebalance() (run periodically by the ModelTieringThread) promotes the most read rows and
+ * demotes the rest. Counts are halved on every rebalance, so the hot tier follows changes in popularity
+ */
+public class TieredModelRows {
+
+    private static final long ARRAY_HEADER_BYTES = 16;
+
+    private final TriangularMatrix coldTier;
+    private final int maxHotRows;
+    private final AtomicReferenceArray<double[]> hotRows; // Matrix Index -> dense row (null if cold)
+
+    // Reads per row since the last rebalance (plain increments: lost updates only make the counts approximate)
+    private final int[] readCounts;
+
+    // Tier statistics (written by rebalance only)
+    private volatile int hotRowCount;
+    private volatile long promotionCount;
+    private volatile long demotionCount;
+
+    /**
+     * @param coldTier      Read-only matrix holding every row
+     * @param hotBytes      Heap budget of the hot tier
+     */
+    public TieredModelRows(TriangularMatrix coldTier, long hotBytes) {
+        this.coldTier = coldTier;
+        int size = coldTier.getSize();
+        this.maxHotRows = (int) Math.min(size, hotBytes / getRowBytes(size));
+        this.hotRows = new AtomicReferenceArray<>(size);
+        this.readCounts = new int[size];
+    }
+
+    /**
+     * @return  Value at (i, j), from the hot tier if row i is hot
+     */
+    public double get(int i, int j) {
+        readCounts[i]++;
+        double[] hotRow = hotRows.get(i);
+        return hotRow != null ? hotRow[j] : coldTier.get(i, j);
+    }
+
+    /**
+     * Adds row i to a running total of the given columns (see TriangularMatrix.accumulateRow), from the hot tier if row i is hot
+     */
+    public void accumulateRow(int i, double rating, int[] columns, double[] accumulator) {
+        readCounts[i] += columns.length;
+        double[] hotRow = hotRows.get(i);
+        if (hotRow == null) {
+            coldTier.accumulateRow(i, rating, columns, accumulator);
+            return;
+        }
+        IScoringKernel scoringKernel = ScoringKernels.get();
+        int k = 0;
+        while (k < columns.length) {
+            int j = columns[k];
+            if (j < 0) {
+                accumulator[k++] += rating + 0.0;
+                continue;
+            }
+            // Run of consecutive columns of the dense row
+            int run = 1;
+            while (k + run < columns.length && columns[k + run] == j + run) run++;
+            scoringKernel.addRun(rating, hotRow, j, accumulator, k, run);
+            k += run;
+        }
+    }
+
+    /**
+     * Moves the most read rows into the hot tier (up to the budget) and demotes all others
+     * A row is copied in full before it is published, so concurrent readers see either the cold or the complete hot row
+     * @return  Number of rows promoted or demoted
+     */
+    public synchronized int rebalance() {
+        int size = readCounts.length;
+
+        // Most read rows first (ties keep the current tier)
+        Integer[] rowsByReads = new Integer[size];
+        long[] reads = new long[size];
+        for (int i = 0; i < size; i++) {
+            rowsByReads[i] = i;
+            reads[i] = 2L * readCounts[i] + (hotRows.get(i) != null ? 1 : 0);
+            readCounts[i] >>= 1; // decay
+        }
+        Arrays.sort(rowsByReads, (a, b) -> Long.compare(reads[b], reads[a]));
+
+        boolean[] keepHot = new boolean[size];
+        for (int k = 0; k < maxHotRows && reads[rowsByReads[k]] > 1; k++) {
+            keepHot[rowsByReads[k]] = true;
+        }
+
+        // Promote & demote
+        int changes = 0;
+        int hotRowsAfter = 0;
+        for (int i = 0; i < size; i++) {
+            boolean isHot = hotRows.get(i) != null;
+            if (keepHot[i] && !isHot) {
+                hotRows.set(i, copyRow(i));
+                promotionCount++;
+                changes++;
+            }
+            else if (!keepHot[i] && isHot) {
+                hotRows.set(i, null);
+                demotionCount++;
+                changes++;
+            }
+            if (keepHot[i]) hotRowsAfter++;
+        }
+        hotRowCount = hotRowsAfter;
+        return changes;
+    }
+
+    // Dense copy of row i, (i, j) for every j
+    private double[] copyRow(int i) {
+        double[] row = new double[coldTier.getSize()];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = coldTier.get(i, j);
+        }
+        return row;
+    }
+
+    private static long getRowBytes(int size) {
+        return ARRAY_HEADER_BYTES + 8L * Math.max(1, size);
+    }
+
+    /**
+     * @param i     Matrix Index
+     * @return  True if row i is served from the hot tier
+     */
+    public boolean isHot(int i) {
+        return hotRows.get(i) != null;
+    }
+
+    public int getHotRowCount() {
+        return hotRowCount;
+    }
+
+    public int getMaxHotRows() {
+        return maxHotRows;
+    }
+
+    /**
+     * @return  Approximate heap bytes used by the hot rows
+     */
+    public long getHotBytes() {
+        return hotRowCount * getRowBytes(readCounts.length);
+    }
+
+    /**
+     * @return  Heap budget of the hot rows (the most they can use)
+     */
+    public long getMaxHotBytes() {
+        return maxHotRows * getRowBytes(readCounts.length);
+    }
+
+    /**
+     * @return  Approximate heap bytes of the read counts & row references
+     */
+    public long getEstimatedMemoryBytes() {
+        return 2 * ARRAY_HEADER_BYTES + 12L * readCounts.length;
+    }
+
+    public long getPromotionCount() {
+        return promotionCount;
+    }
+
+    public long getDemotionCount() {
+        return demotionCount;
+    }
+
+}
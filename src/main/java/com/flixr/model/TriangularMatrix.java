@@ -0,0 +1,216 @@
+package com.flixr.model;
+
+import com.flixr.engine.ScoringKernels;
+import com.flixr.interfaces.IScoringKernel;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Packed storage of an antisymmetric matrix, i.e. the Slope One Correlation Matrix where (i, j) = -(j, i)
+ * Only the upper triangle (i < j) is stored, row by row, in a single array:
+ * the lower triangle is negated on lookup and the diagonal is always 0
+ *
+ * The upper triangle is either held on the heap, or memory-mapped (read-only) from a binary model file,
+ * in which case it lives in the OS page cache instead of the Java heap
+ */
+public class TriangularMatrix {
+
+    private static final long ARRAY_HEADER_BYTES = 16;
+
+    // A mapping is limited to 2 GB, so a mapped upper triangle is split into segments of 2^27 values (1 GB)
+    private static final int SEGMENT_SHIFT = 27;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final int size;
+    private final double[] upperTriangle; // null if mapped
+    private final DoubleBuffer[] mappedSegments; // null if on the heap
+
+    /**
+     * @param size  Number of rows (and columns) of the full matrix
+     */
+    public TriangularMatrix(int size) {
+        long cellCount = (long) size * (size - 1) / 2;
+        if (cellCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Matrix of " + size + " movies is too large for a packed triangular matrix.");
+        }
+        this.size = size;
+        this.upperTriangle = new double[(int) Math.max(0, cellCount)];
+        this.mappedSegments = null;
+    }
+
+    /**
+     * @param size              Number of rows (and columns) of the full matrix
+     * @param mappedSegments    Mapped upper triangle (null if a subclass stores the values itself)
+     */
+    protected TriangularMatrix(int size, DoubleBuffer[] mappedSegments) {
+        this.size = size;
+        this.upperTriangle = null;
+        this.mappedSegments = mappedSegments;
+    }
+
+    /**
+     * Memory-maps a packed upper triangle (big-endian doubles, row by row) from a file
+     * The mapping stays valid after the channel is closed
+     * @param size          Number of rows (and columns) of the full matrix
+     * @param fileChannel   Open file channel
+     * @param position      File position of the first value
+     * @return  Read-only matrix
+     * @throws IOException
+     */
+    public static TriangularMatrix map(int size, FileChannel fileChannel, long position) throws IOException {
+        long cellCount = Math.max(0, (long) size * (size - 1) / 2);
+        if (cellCount > Integer.MAX_VALUE - 8) {
+            throw new IOException("Matrix of " + size + " movies is too large for a packed triangular matrix.");
+        }
+        if (fileChannel.size() < position + 8 * cellCount) {
+            throw new IOException("Model file is truncated: " + fileChannel.size() + " bytes, expected " + (position + 8 * cellCount));
+        }
+
+        DoubleBuffer[] mappedSegments = new DoubleBuffer[(int) ((cellCount + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        for (int segment = 0; segment < mappedSegments.length; segment++) {
+            long firstCell = (long) segment << SEGMENT_SHIFT;
+            long segmentCells = Math.min(1L << SEGMENT_SHIFT, cellCount - firstCell);
+            mappedSegments[segment] = fileChannel.map(FileChannel.MapMode.READ_ONLY, position + 8 * firstCell, 8 * segmentCells).asDoubleBuffer();
+        }
+        return new TriangularMatrix(size, mappedSegments);
+    }
+
+    /**
+     * @return  Value at (i, j), where (j, i) = -(i, j) and (i, i) = 0
+     */
+    public double get(int i, int j) {
+        if (i < j) {
+            return getUpper(getPosition(i, j));
+        }
+        if (i > j) {
+            return 0.0 - getUpper(getPosition(j, i)); // 0.0 - x so that 0.0 is mirrored to 0.0 (not -0.0)
+        }
+        return 0.0;
+    }
+
+    private double getUpper(int position) {
+        if (upperTriangle != null) {
+            return upperTriangle[position];
+        }
+        return mappedSegments[position >>> SEGMENT_SHIFT].get(position & SEGMENT_MASK);
+    }
+
+    /**
+     * Sets a value in the upper triangle, the mirrored (j, i) value follows from it
+     * Different cells may be set by different threads at the same time
+     * @param i     Row, must be less than j
+     * @param j     Column
+     * @throws UnsupportedOperationException if the matrix is memory-mapped
+     */
+    public void set(int i, int j, double value) {
+        if (upperTriangle == null) {
+            throw new UnsupportedOperationException("Memory-mapped matrix is read-only.");
+        }
+        if (i >= j) {
+            throw new IllegalArgumentException("Only the upper triangle (i < j) is stored: (" + i + ", " + j + ")");
+        }
+        upperTriangle[getPosition(i, j)] = value;
+    }
+
+    /**
+     * Reads row i at the given columns: values[k] = (i, columns[k])
+     * The upper triangle part of the row (columns > i) is read sequentially
+     * @param i         Row
+     * @param columns   Columns, -1 for a column that is not in the matrix (value 0)
+     * @param values    Output, in the order of the columns
+     */
+    public void gather(int i, int[] columns, double[] values) {
+        if (upperTriangle == null) {
+            // Mapped, or stored by a subclass
+            for (int k = 0; k < columns.length; k++) {
+                int j = columns[k];
+                values[k] = j < 0 ? 0.0 : get(i, j);
+            }
+            return;
+        }
+        int rowOffset = getPosition(i, i + 1) - (i + 1); // position of (i, j) is rowOffset + j
+        for (int k = 0; k < columns.length; k++) {
+            int j = columns[k];
+            if (j > i) values[k] = upperTriangle[rowOffset + j];
+            else if (j >= 0 && j < i) values[k] = 0.0 - upperTriangle[getPosition(j, i)];
+            else values[k] = 0.0;
+        }
+    }
+
+    /**
+     * Adds row i to a running total of the given columns: accumulator[k] += rating + (i, columns[k])
+     * The upper triangle part of the row (columns > i) is read sequentially
+     * @param i             Row
+     * @param rating        Added to every value
+     * @param columns       Columns, -1 for a column that is not in the matrix (value 0)
+     * @param accumulator   Running totals, in the order of the columns
+     */
+    public void accumulateRow(int i, double rating, int[] columns, double[] accumulator) {
+        accumulateRow(i, rating, columns, accumulator, ScoringKernels.get());
+    }
+
+    /**
+     * Adds row i to a running total of the given columns, with the given kernel (see accumulateRow)
+     * Runs of consecutive columns in the upper triangle part of the row are added by the kernel in one call
+     */
+    public void accumulateRow(int i, double rating, int[] columns, double[] accumulator, IScoringKernel scoringKernel) {
+        if (upperTriangle == null) {
+            // Mapped, or stored by a subclass
+            for (int k = 0; k < columns.length; k++) {
+                int j = columns[k];
+                accumulator[k] += rating + (j < 0 ? 0.0 : get(i, j));
+            }
+            return;
+        }
+        int rowOffset = getPosition(i, i + 1) - (i + 1); // position of (i, j) is rowOffset + j
+        int k = 0;
+        while (k < columns.length) {
+            int j = columns[k];
+            if (j > i) {
+                // Run of consecutive columns, i.e. consecutive values of the upper triangle
+                int run = 1;
+                while (k + run < columns.length && columns[k + run] == j + run) run++;
+                scoringKernel.addRun(rating, upperTriangle, rowOffset + j, accumulator, k, run);
+                k += run;
+                continue;
+            }
+            double value = j >= 0 && j < i ? 0.0 - upperTriangle[getPosition(j, i)] : 0.0;
+            accumulator[k++] += rating + value;
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return  True if the values are memory-mapped from a file (read-only, not on the Java heap)
+     */
+    public boolean isMapped() {
+        return upperTriangle == null;
+    }
+
+    /**
+     * @return  Approximate number of heap bytes (a mapped matrix only holds its buffer objects)
+     */
+    public long getEstimatedMemoryBytes() {
+        if (upperTriangle == null) {
+            return ARRAY_HEADER_BYTES + 64L * mappedSegments.length;
+        }
+        return ARRAY_HEADER_BYTES + 8L * upperTriangle.length;
+    }
+
+    private int getPosition(int i, int j) {
+        return getPosition(size, i, j);
+    }
+
+    // Position of upper triangle cell (i, j): rows 0..i-1 hold (size-1) + (size-2) + ... + (size-i) cells
+    static int getPosition(int size, int i, int j) {
+        return (int) ((long) i * (2L * size - i - 1) / 2) + (j - i - 1);
+    }
+
+}
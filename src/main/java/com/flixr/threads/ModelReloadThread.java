@@ -0,0 +1,28 @@
+package com.flixr.threads;
+
+import com.flixr.exceptions.DAOException;
+import com.flixr.model.PredictionModelHolder;
+
+/**
+ * @author Thomas Thompson
+ *
+ * This thread is used by the PredictionModelHolder to load a new model in the background,
+ * while the current model keeps serving predictions
+ */
+public class ModelReloadThread extends Thread {
+
+    public ModelReloadThread() {
+        setName("model-reload");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            PredictionModelHolder.reload();
+        } catch (DAOException e) {
+            // The current model keeps serving
+            System.out.println("Unable to reload Prediction Model, the current model is still served: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.flixr.threads;
+
+import com.flixr.model.PredictionModelHolder;
+
+/**
+ * @author Thomas Thompson
+ *
+ * This thread is used by the PredictionModelHolder to periodically move the most read rows of a tiered model
+ * onto the heap (see TieredModelRows), outside of the request threads
+ */
+public class ModelTieringThread extends Thread {
+
+    private long intervalMillis;
+
+    /**
+     * @param intervalMillis    Time between two rebalances
+     */
+    public ModelTieringThread(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        setName("model-tiering");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(intervalMillis);
+                PredictionModelHolder.rebalanceModelTiers();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
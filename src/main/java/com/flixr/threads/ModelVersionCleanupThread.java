@@ -0,0 +1,39 @@
+package com.flixr.threads;
+
+import com.flixr.dao.ModelVersionDAO;
+import com.flixr.exceptions.DAOException;
+
+import static com.flixr.configuration.ApplicationConstants.*;
+
+/**
+ * @author Thomas Thompson
+ *
+ * This thread is used after a model version is promoted, to drop the tables of retired model versions
+ * in the background (dropping a large table can take a while, and the new model is already being served)
+ */
+public class ModelVersionCleanupThread extends Thread {
+
+    private ModelVersionDAO modelVersionDAO;
+
+    public ModelVersionCleanupThread() {
+        this(new ModelVersionDAO());
+    }
+
+    public ModelVersionCleanupThread(ModelVersionDAO modelVersionDAO) {
+        this.modelVersionDAO = modelVersionDAO;
+        setName("model-version-cleanup");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            int droppedVersions = modelVersionDAO.dropRetiredModelVersions(MODEL_VERSIONS_KEPT);
+            System.out.println("Model Version Cleanup: " + droppedVersions + " retired version(s) dropped.");
+        } catch (DAOException e) {
+            // Retired versions are retried after the next promotion
+            System.out.println("Model Version Cleanup failed!");
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.flixr.threads;
+
+import com.flixr.model.ModelStatistics;
+import com.flixr.model.TriangularMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Parallel reader for the model CSV files, used by the ModelDAO
+ *
+ * Any number of files is split into byte ranges ("chunks") that start & end on a line boundary,
+ * and the chunks are parsed by a pool of threads straight from memory-mapped buffers:
+ * digits are parsed in place, without creating Strings or boxed Integers, and MovieIds are converted to
+ * Matrix Indices by a binary search of the sorted MovieId list instead of a HashMap lookup
+ *
+ * Files with the Sum & Count columns get each average as Sum / Count, which is exactly how it was computed
+ * when it was saved, so every value can be parsed without rounding issues. Only averages of files without those
+ * columns fall back to Double.parseDouble when they have more digits than can be converted exactly
+ *
+ * Any line that cannot be parsed, or that refers to a movie that is not in the model, fails the whole load
+ *
+ * The MovieIds of the model are read from the files themselves (readMovieIds), so a model saved as CSV
+ * does not depend on the model table in the DB
+ */
+public class ParallelModelCsvReader {
+
+    private static final long MAX_CHUNK_BYTES = 64L * 1024 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MAX_LINE_BYTES = 1024;
+
+    // Powers of 10 that are exact doubles (used for exact conversion of short decimals)
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int k = 1; k < POWERS_OF_TEN.length; k++) POWERS_OF_TEN[k] = POWERS_OF_TEN[k-1] * 10;
+    }
+
+    private int[] sortedMovieIds; // Matrix Index -> MovieId
+    private TriangularMatrix correlationMatrix;
+    private ModelStatistics modelStatistics; // null if the statistics columns are not needed
+    private int threadCount;
+
+    // Load statistics
+    private AtomicLong lineCount = new AtomicLong();
+    private AtomicLong slowPathValueCount = new AtomicLong();
+    private long loadNanos;
+    private int chunkCount;
+
+    /**
+     * @param sortedMovieIds        MovieIds in Matrix Index order (sorted)
+     * @param correlationMatrix     Matrix to fill (upper triangle)
+     * @param modelStatistics       Statistics to fill (may be null)
+     * @param threadCount           Number of parser threads (ex. number of available cores)
+     */
+    public ParallelModelCsvReader(int[] sortedMovieIds, TriangularMatrix correlationMatrix, ModelStatistics modelStatistics, int threadCount) {
+        this.sortedMovieIds = sortedMovieIds;
+        this.correlationMatrix = correlationMatrix;
+        this.modelStatistics = modelStatistics;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Reads all model files into the matrix (and statistics), blocking until every chunk is parsed
+     * @param modelCsvFiles     Model CSV files (each starts with a header row)
+     * @throws IOException if a file cannot be read, or any line cannot be parsed / converted to Matrix Indices
+     */
+    public void read(List<File> modelCsvFiles) throws IOException {
+        long startTime = System.nanoTime();
+
+        // Parse all files, split into line-aligned chunks
+        long totalBytes = 0;
+        for (File modelCsvFile : modelCsvFiles) totalBytes += modelCsvFile.length();
+        chunkCount = readChunks(modelCsvFiles, threadCount, this::readChunk);
+        loadNanos = System.nanoTime() - startTime;
+
+        double seconds = loadNanos / 1e9;
+        System.out.println(String.format("Parsed %d model lines from %d file(s) (%d MB, %d chunks) in %.3f seconds using %d threads: %.0f lines/sec.",
+                lineCount.get(), modelCsvFiles.size(), totalBytes / (1024 * 1024), chunkCount, seconds, threadCount,
+                seconds > 0 ? lineCount.get() / seconds : 0.0));
+        if (slowPathValueCount.get() > 0) {
+            System.out.println("  " + slowPathValueCount.get() + " values were parsed with Double.parseDouble (model saved without Sums & Counts).");
+        }
+    }
+
+    public long getLineCount() {
+        return lineCount.get();
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public double getLoadSeconds() {
+        return loadNanos / 1e9;
+    }
+
+    /**
+     * Reads the MovieIds of a model from its CSV files (first pass, before the matrix can be created)
+     *
+     * Every movie of a model has a row of its own (MovieId_i): a full model has all of them, and a sparse model keeps
+     * the diagonal entry of each movie. The only exception is the last movie of a dense triangular model,
+     * which only appears as the largest MovieId_j
+     * @param modelCsvFiles     Model CSV files (each starts with a header row)
+     * @param threadCount       Number of parser threads
+     * @return MovieIds of the model, sorted (Matrix Index -> MovieId)
+     * @throws IOException if a file cannot be read, or any line cannot be parsed
+     */
+    public static int[] readMovieIds(List<File> modelCsvFiles, int threadCount) throws IOException {
+        long startTime = System.nanoTime();
+        TreeSet<Integer> distinctMovieIds = new TreeSet<>();
+        AtomicInteger maxMovieId_j = new AtomicInteger(Integer.MIN_VALUE);
+        readChunks(modelCsvFiles, Math.max(1, threadCount), (chunk, modelCsvFile, chunkOffset) -> {
+
+            // Rows are grouped by MovieId_i, so only changes of MovieId_i are collected
+            ChunkParser parser = new ChunkParser(chunk);
+            List<Integer> chunkMovieIds = new ArrayList<>();
+            int lastMovieId_i = 0;
+            int chunkMaxMovieId_j = Integer.MIN_VALUE;
+            while (parser.hasRemaining()) {
+                int lineStart = parser.position;
+                if (parser.skipBlankLine()) continue;
+                try {
+                    int movieId_i = parser.parseInt();
+                    parser.skip(',');
+                    int movieId_j = parser.parseInt();
+                    parser.skipLine();
+                    if (chunkMovieIds.isEmpty() || movieId_i != lastMovieId_i) chunkMovieIds.add(movieId_i);
+                    lastMovieId_i = movieId_i;
+                    chunkMaxMovieId_j = Math.max(chunkMaxMovieId_j, movieId_j);
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    throw new IOException("Unable to parse model line at byte " + (chunkOffset + lineStart) + " of " + modelCsvFile
+                            + ": " + parser.getLineText(lineStart), e);
+                }
+            }
+            synchronized (distinctMovieIds) {
+                distinctMovieIds.addAll(chunkMovieIds);
+            }
+            int chunkMax = chunkMaxMovieId_j;
+            maxMovieId_j.accumulateAndGet(chunkMax, Math::max);
+        });
+        if (maxMovieId_j.get() != Integer.MIN_VALUE) distinctMovieIds.add(maxMovieId_j.get());
+
+        int[] sortedMovieIds = new int[distinctMovieIds.size()];
+        int index = 0;
+        for (int movieId : distinctMovieIds) sortedMovieIds[index++] = movieId;
+        System.out.println(String.format("Read %d MovieIds from %d model file(s) in %.3f seconds.",
+                sortedMovieIds.length, modelCsvFiles.size(), (System.nanoTime() - startTime) / 1e9));
+        return sortedMovieIds;
+    }
+
+
+    // Reads the lines of one chunk
+    private interface ChunkReader {
+        void read(ByteBuffer chunk, File modelCsvFile, long chunkOffset) throws IOException;
+    }
+
+    // Splits all files into line-aligned chunks & reads them with a pool of threads, returns the number of chunks
+    private static int readChunks(List<File> modelCsvFiles, int threadCount, ChunkReader reader) throws IOException {
+        long totalBytes = 0;
+        for (File modelCsvFile : modelCsvFiles) totalBytes += modelCsvFile.length();
+        long targetChunkBytes = Math.max(MAX_LINE_BYTES, Math.min(MAX_CHUNK_BYTES, totalBytes / (threadCount * CHUNKS_PER_THREAD) + 1));
+        List<Callable<Void>> chunkReaders = new ArrayList<>();
+        for (File modelCsvFile : modelCsvFiles) {
+            chunkReaders.addAll(createChunkReaders(modelCsvFile, targetChunkBytes, reader));
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(1, chunkReaders.size())));
+        try {
+            for (Future<Void> chunkReader : executorService.invokeAll(chunkReaders)) {
+                chunkReader.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Model CSV load was interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Unable to read model CSV files: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executorService.shutdown();
+        }
+        return chunkReaders.size();
+    }
+
+
+    // Byte ranges of a file, each starting at the beginning of a line and ending after a line break (or the end of the file)
+    private static List<Callable<Void>> createChunkReaders(File modelCsvFile, long targetChunkBytes, ChunkReader reader) throws IOException {
+        List<Callable<Void>> chunkReaders = new ArrayList<>();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(modelCsvFile, "r");
+             FileChannel fileChannel = randomAccessFile.getChannel()) {
+            long fileBytes = fileChannel.size();
+
+            // The header row is skipped
+            long chunkStart = findNextLineStart(fileChannel, 0);
+            while (chunkStart < fileBytes) {
+                long chunkEnd = chunkStart + targetChunkBytes >= fileBytes ? fileBytes : findNextLineStart(fileChannel, chunkStart + targetChunkBytes);
+                MappedByteBuffer chunk = fileChannel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkEnd - chunkStart);
+                long chunkOffset = chunkStart;
+                chunkReaders.add(() -> {
+                    reader.read(chunk, modelCsvFile, chunkOffset);
+                    return null;
+                });
+                chunkStart = chunkEnd;
+            }
+        }
+        return chunkReaders;
+    }
+
+    // Position after the first line break at or after the given position
+    private static long findNextLineStart(FileChannel fileChannel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE_BYTES);
+        long fileBytes = fileChannel.size();
+        while (position < fileBytes) {
+            buffer.clear();
+            int read = fileChannel.read(buffer, position);
+            for (int k = 0; k < read; k++) {
+                if (buffer.get(k) == '\n') return position + k + 1;
+            }
+            position += Math.max(read, 0);
+        }
+        return fileBytes;
+    }
+
+
+    /**
+     * Parses every line of a chunk: (MovieId_i,MovieId_j,Rating) or (MovieId_i,MovieId_j,Rating,SumDifference,RatingCount)
+     */
+    private void readChunk(ByteBuffer chunk, File modelCsvFile, long chunkOffset) throws IOException {
+        ChunkParser parser = new ChunkParser(chunk);
+        long lines = 0;
+        long slowPathValues = 0;
+        while (parser.hasRemaining()) {
+            int lineStart = parser.position;
+            if (parser.skipBlankLine()) continue;
+            try {
+                int movieId_i = parser.parseInt();
+                parser.skip(',');
+                int movieId_j = parser.parseInt();
+                parser.skip(',');
+                double avgRatingDifference = parser.parseDouble();
+                boolean slowPathAverage = parser.slowPathValue;
+                int averageStart = parser.lastValueStart;
+                int averageEnd = parser.lastValueEnd;
+                boolean hasStatistics = parser.peek() == ',';
+                double sumDifference = 0;
+                int ratingCount = 0;
+                if (hasStatistics) {
+                    parser.skip(',');
+                    sumDifference = parser.parseDouble();
+                    if (parser.slowPathValue) {
+                        sumDifference = Double.parseDouble(parser.getText(parser.lastValueStart, parser.lastValueEnd)); // rare, allocates
+                        slowPathValues++;
+                    }
+                    parser.skip(',');
+                    ratingCount = parser.parseInt();
+                }
+                else if (modelStatistics != null) {
+                    throw new NumberFormatException("Expected the SumDifference & RatingCount columns");
+                }
+                parser.endLine();
+
+                // Convert MovieId to Matrix Index
+                int i = toMatrixIndex(movieId_i, modelCsvFile, chunkOffset + lineStart);
+                int j = toMatrixIndex(movieId_j, modelCsvFile, chunkOffset + lineStart);
+
+                // Add to internal matrix (lower triangle rows of a full model are mirrors of the upper triangle)
+                if (i < j) {
+                    if (hasStatistics && ratingCount > 0) {
+                        avgRatingDifference = sumDifference / ratingCount; // same computation as the saved average
+                    }
+                    else if (slowPathAverage) {
+                        avgRatingDifference = Double.parseDouble(parser.getText(averageStart, averageEnd)); // rare, allocates
+                        slowPathValues++;
+                    }
+                    correlationMatrix.set(i, j, avgRatingDifference);
+                    if (hasStatistics && modelStatistics != null) modelStatistics.add(i, j, sumDifference, ratingCount);
+                }
+                lines++;
+
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                throw new IOException("Unable to parse model line at byte " + (chunkOffset + lineStart) + " of " + modelCsvFile
+                        + ": " + parser.getLineText(lineStart), e);
+            }
+        }
+        lineCount.addAndGet(lines);
+        slowPathValueCount.addAndGet(slowPathValues);
+    }
+
+    private int toMatrixIndex(int movieId, File modelCsvFile, long lineOffset) throws IOException {
+        int low = 0;
+        int high = sortedMovieIds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (sortedMovieIds[mid] < movieId) low = mid + 1;
+            else if (sortedMovieIds[mid] > movieId) high = mid - 1;
+            else return mid;
+        }
+        throw new IOException("Model line at byte " + lineOffset + " of " + modelCsvFile + " refers to MovieId " + movieId
+                + ", which is not in the model. Ensure that the model CSV files and the stored MovieIds are aligned.");
+    }
+
+
+    /**
+     * Parses numbers in place from a buffer (one instance per chunk, so it holds no shared state)
+     */
+    private static class ChunkParser {
+
+        private ByteBuffer buffer;
+        private int position;
+        private int limit;
+
+        // Set when the last parsed double could not be converted exactly
+        private boolean slowPathValue;
+        private int lastValueStart;
+        private int lastValueEnd;
+
+        private ChunkParser(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.position = 0;
+            this.limit = buffer.limit();
+        }
+
+        private boolean hasRemaining() {
+            return position < limit;
+        }
+
+        private int peek() {
+            return position < limit ? buffer.get(position) : '\n';
+        }
+
+        private boolean skipBlankLine() {
+            int c = peek();
+            if (c == '\n' || c == '\r') {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skip(char expected) {
+            if (peek() != expected) throw new NumberFormatException("Expected '" + expected + "'");
+            position++;
+        }
+
+        // Line must end here (optionally with '\r'), or the chunk must end
+        private void endLine() {
+            if (peek() == '\r') position++;
+            if (position < limit) skip('\n');
+        }
+
+        // Rest of the line is not needed
+        private void skipLine() {
+            while (position < limit && buffer.get(position) != '\n') position++;
+            if (position < limit) position++;
+        }
+
+        private int parseInt() {
+            boolean negative = false;
+            if (peek() == '-') {
+                negative = true;
+                position++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (position < limit) {
+                int c = buffer.get(position);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+                if (value > Integer.MAX_VALUE + 1L) throw new NumberFormatException("Integer overflow");
+                digits++;
+                position++;
+            }
+            if (digits == 0) throw new NumberFormatException("Expected a digit");
+            int c = peek();
+            if (c != ',' && c != '\n' && c != '\r') throw new NumberFormatException("Unexpected character '" + (char) c + "'");
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) throw new NumberFormatException("Integer overflow");
+            return (int) value;
+        }
+
+        /**
+         * Parses a decimal, as written by Double.toString (ex. "-1.5", "0.3333333333333333", "8.333333333333333E-6")
+         * Decimals with up to 15 significant digits & small exponents are converted exactly (a single correctly
+         * rounded multiplication or division), others are marked for Double.parseDouble
+         */
+        private double parseDouble() {
+            lastValueStart = position;
+            slowPathValue = false;
+            boolean negative = false;
+            if (peek() == '-') {
+                negative = true;
+                position++;
+            }
+
+            long mantissa = 0;
+            int significantDigits = 0;
+            int exponent = 0;
+            boolean seenDigit = false;
+            boolean seenPoint = false;
+            while (position < limit) {
+                int c = buffer.get(position);
+                if (c >= '0' && c <= '9') {
+                    seenDigit = true;
+                    if (mantissa != 0 || c != '0') significantDigits++;
+                    if (significantDigits <= 18) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        if (seenPoint) exponent--;
+                    }
+                    else if (!seenPoint) {
+                        exponent++;
+                    }
+                }
+                else if (c == '.' && !seenPoint) {
+                    seenPoint = true;
+                }
+                else {
+                    break;
+                }
+                position++;
+            }
+            if (!seenDigit) throw new NumberFormatException("Expected a digit");
+
+            if (peek() == 'E' || peek() == 'e') {
+                position++;
+                boolean negativeExponent = false;
+                if (peek() == '-' || peek() == '+') {
+                    negativeExponent = peek() == '-';
+                    position++;
+                }
+                int exponentDigits = 0;
+                int exponentValue = 0;
+                while (position < limit && buffer.get(position) >= '0' && buffer.get(position) <= '9') {
+                    exponentValue = Math.min(10000, exponentValue * 10 + (buffer.get(position) - '0'));
+                    exponentDigits++;
+                    position++;
+                }
+                if (exponentDigits == 0) throw new NumberFormatException("Expected an exponent");
+                exponent += negativeExponent ? -exponentValue : exponentValue;
+            }
+            lastValueEnd = position;
+            int c = peek();
+            if (c != ',' && c != '\n' && c != '\r') throw new NumberFormatException("Unexpected character '" + (char) c + "'");
+
+            // Exact conversion: mantissa & power of 10 are both exact doubles
+            double value;
+            if (significantDigits <= 15 && exponent >= -22 && exponent <= 22) {
+                value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            }
+            else if (mantissa == 0) {
+                value = 0.0;
+            }
+            else {
+                slowPathValue = true;
+                value = Double.NaN;
+            }
+            return negative ? -value : value;
+        }
+
+        // Only used for error messages
+        private String getLineText(int lineStart) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n' && lineEnd - lineStart < MAX_LINE_BYTES) lineEnd++;
+            return getText(lineStart, lineEnd);
+        }
+
+        private String getText(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            for (int k = start; k < end; k++) bytes[k - start] = buffer.get(k);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.flixr.threads;
+
+import com.flixr.dao.StreamingConnections;
+import com.flixr.model.ModelStatistics;
+import com.flixr.model.TriangularMatrix;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Parallel reader for a model table, used by the ModelDAO
+ *
+ * The upper triangle of the model is read in a single pass: the rows of the matrix are split into a few ranges of
+ * MovieIDi, and each range is streamed in primary key order by its own cursor (one query per range, instead of one
+ * query per matrix row). Columns are read by position straight into the matrix, and MovieIds are converted to
+ * Matrix Indices by a binary search of the sorted MovieId list instead of a HashMap lookup
+ *
+ * Ranges are sized by the number of upper triangle entries of their rows, so the cursors finish at about the same time
+ * Each cursor fetches its rows in batches (see StreamingConnections), so a range is never held in memory as a whole
+ */
+public class ParallelModelTableReader {
+
+    private String connectionUrl;
+    private String username;
+    private String password;
+    private int cursorCount;
+    private int fetchSize;
+
+    private int[] sortedMovieIds; // Matrix Index -> MovieId
+    private TriangularMatrix correlationMatrix;
+    private ModelStatistics modelStatistics; // null if the statistics columns are not needed
+
+    // Load statistics
+    private AtomicLong rowCount = new AtomicLong();
+    private AtomicBoolean missingStatistics = new AtomicBoolean();
+    private long loadNanos;
+
+    /**
+     * @param connectionUrl         JDBC URL (ex. MySQL, or H2 for testing)
+     * @param sortedMovieIds        MovieIds in Matrix Index order (sorted)
+     * @param correlationMatrix     Matrix to fill (upper triangle)
+     * @param modelStatistics       Statistics to fill (may be null)
+     * @param cursorCount           Number of ranges read in parallel, each over its own connection
+     * @param fetchSize             Rows per fetch of each cursor
+     */
+    public ParallelModelTableReader(String connectionUrl, String username, String password, int[] sortedMovieIds,
+                                    TriangularMatrix correlationMatrix, ModelStatistics modelStatistics, int cursorCount, int fetchSize) {
+        this.connectionUrl = connectionUrl;
+        this.username = username;
+        this.password = password;
+        this.sortedMovieIds = sortedMovieIds;
+        this.correlationMatrix = correlationMatrix;
+        this.modelStatistics = modelStatistics;
+        this.cursorCount = Math.max(1, Math.min(cursorCount, sortedMovieIds.length));
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @param connectionUrl     JDBC URL (ex. MySQL, or H2 for testing)
+     * @param modelTable        Model table
+     * @return  True if the table has the SumDifference & RatingCount columns
+     * @throws SQLException
+     */
+    public static boolean hasStatisticsColumns(String connectionUrl, String username, String password, String modelTable) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(connectionUrl, username, password)) {
+            ResultSetMetaData metaData = conn.createStatement().executeQuery("SELECT * FROM " + modelTable + " WHERE 1 = 0").getMetaData();
+            boolean hasSumDifference = false;
+            boolean hasRatingCount = false;
+            for (int c = 1; c <= metaData.getColumnCount(); c++) {
+                hasSumDifference |= "SumDifference".equalsIgnoreCase(metaData.getColumnLabel(c));
+                hasRatingCount |= "RatingCount".equalsIgnoreCase(metaData.getColumnLabel(c));
+            }
+            return hasSumDifference && hasRatingCount;
+        }
+    }
+
+    /**
+     * Reads the upper triangle of a model table into the matrix (and statistics), blocking until every range is read
+     * @param modelTable    Model table (ex. the active model version)
+     * @throws SQLException if a range cannot be read, or a row refers to a movie that is not in the model
+     */
+    public void read(String modelTable) throws SQLException {
+        long startTime = System.nanoTime();
+
+        // One cursor per range of matrix rows
+        int[] splitIndxs = getBalancedSplitPoints(sortedMovieIds.length, cursorCount);
+        List<Callable<Void>> rangeReaders = new ArrayList<>();
+        for (int r = 1; r < splitIndxs.length; r++) {
+            int fromRow = splitIndxs[r-1];
+            int toRow = splitIndxs[r];
+            if (fromRow < toRow) {
+                rangeReaders.add(() -> {
+                    readRange(modelTable, fromRow, toRow);
+                    return null;
+                });
+            }
+        }
+
+        // Read all ranges
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, rangeReaders.size()));
+        try {
+            for (Future<Void> rangeReader : executorService.invokeAll(rangeReaders)) {
+                rangeReader.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Model load was interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw new SQLException("Unable to read " + modelTable + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executorService.shutdown();
+        }
+        loadNanos = System.nanoTime() - startTime;
+
+        double seconds = loadNanos / 1e9;
+        System.out.println(String.format("Read %d model rows from %s in %.3f seconds using %d cursors: %.0f rows/sec.",
+                rowCount.get(), modelTable, seconds, rangeReaders.size(), seconds > 0 ? rowCount.get() / seconds : 0.0));
+    }
+
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    /**
+     * @return  True if any row was saved without its Sum & Count (the statistics are then incomplete)
+     */
+    public boolean hasMissingStatistics() {
+        return missingStatistics.get();
+    }
+
+    public double getLoadSeconds() {
+        return loadNanos / 1e9;
+    }
+
+
+    // Streams the upper triangle entries of rows [fromRow, toRow) in primary key order
+    private void readRange(String modelTable, int fromRow, int toRow) throws SQLException {
+        String columns = modelStatistics != null ? "MovieIDi, MovieIDj, AvgDifference, SumDifference, RatingCount" : "MovieIDi, MovieIDj, AvgDifference";
+        // Server side cursor, so MySQL sends the range in fetches instead of loading it onto the heap
+        try (Connection conn = StreamingConnections.getStreamingConnection(connectionUrl, username, password)) {
+            PreparedStatement stmt = conn.prepareStatement("SELECT " + columns + " FROM " + modelTable
+                    + " WHERE MovieIDi >= ? AND MovieIDi <= ? AND MovieIDj > MovieIDi ORDER BY MovieIDi, MovieIDj",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(fetchSize);
+            stmt.setInt(1, sortedMovieIds[fromRow]);
+            stmt.setInt(2, sortedMovieIds[toRow - 1]);
+            ResultSet resultSet = stmt.executeQuery();
+
+            // Rows arrive in MovieIDi order, so the row index only changes when a new matrix row starts
+            long rows = 0;
+            int movieId_i = Integer.MIN_VALUE;
+            int i = -1;
+            while (resultSet.next()) {
+                int nextMovieId_i = resultSet.getInt(1);
+                if (nextMovieId_i != movieId_i) {
+                    movieId_i = nextMovieId_i;
+                    i = toMatrixIndex(movieId_i, modelTable);
+                }
+                int j = toMatrixIndex(resultSet.getInt(2), modelTable);
+                correlationMatrix.set(i, j, resultSet.getDouble(3));
+
+                // Add the Sum & Count behind the average
+                if (modelStatistics != null) {
+                    double sumDifference = resultSet.getDouble(4);
+                    int ratingCount = resultSet.getInt(5);
+                    if (resultSet.wasNull()) missingStatistics.set(true);
+                    modelStatistics.add(i, j, sumDifference, ratingCount);
+                }
+                rows++;
+            }
+            rowCount.addAndGet(rows);
+        }
+    }
+
+    private int toMatrixIndex(int movieId, String modelTable) throws SQLException {
+        int low = 0;
+        int high = sortedMovieIds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (sortedMovieIds[mid] < movieId) low = mid + 1;
+            else if (sortedMovieIds[mid] > movieId) high = mid - 1;
+            else return mid;
+        }
+        throw new SQLException("A row of " + modelTable + " refers to MovieId " + movieId + ", which is not in the model.");
+    }
+
+    /**
+     * Splits the rows of an upper triangle into ranges with about the same number of entries
+     * (row i holds movieCount - 1 - i entries, so the early ranges have fewer rows)
+     * @return  Split indices, range r is [splitIndxs[r], splitIndxs[r+1])
+     */
+    static int[] getBalancedSplitPoints(int movieCount, int numberOfParts) {
+        int[] splitIndxs = new int[numberOfParts + 1];
+        long totalEntries = (long) movieCount * (movieCount - 1) / 2;
+        long entries = 0;
+        int row = 0;
+        for (int part = 1; part < numberOfParts; part++) {
+            long targetEntries = totalEntries * part / numberOfParts;
+            while (row < movieCount && entries < targetEntries) {
+                entries += movieCount - 1 - row;
+                row++;
+            }
+            splitIndxs[part] = row;
+        }
+        splitIndxs[numberOfParts] = movieCount;
+        return splitIndxs;
+    }
+
+}
@@ -1,5 +1,8 @@
 package com.flixr.threads;
 
+import com.flixr.model.ModelStatistics;
+import com.flixr.model.TriangularMatrix;
+
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
@@ -15,14 +18,21 @@ public class ReadModelCsvThread extends Thread {
     private int threadNumber;
     private String matrixCsvFilePath;
     private HashMap<Integer, Integer> movieIdToMatrixIndex;
-    private double[][] correlationMatrix;
+    private TriangularMatrix correlationMatrix;
+    private ModelStatistics modelStatistics; // null if the statistics columns are not needed
 
 
     public ReadModelCsvThread(int threadNumber, String matrixCsvFilePath,
-                              HashMap<Integer, Integer> movieIdToMatrixIndex, double[][] correlationMatrix) {
+                              HashMap<Integer, Integer> movieIdToMatrixIndex, TriangularMatrix correlationMatrix) {
+        this(threadNumber, matrixCsvFilePath, movieIdToMatrixIndex, correlationMatrix, null);
+    }
+
+    public ReadModelCsvThread(int threadNumber, String matrixCsvFilePath, HashMap<Integer, Integer> movieIdToMatrixIndex,
+                              TriangularMatrix correlationMatrix, ModelStatistics modelStatistics) {
 
         this.threadNumber = threadNumber;
         this.correlationMatrix = correlationMatrix;
+        this.modelStatistics = modelStatistics;
         this.matrixCsvFilePath = matrixCsvFilePath;
         this.movieIdToMatrixIndex = movieIdToMatrixIndex;
 
@@ -40,7 +50,7 @@ public class ReadModelCsvThread extends Thread {
             bufferedReader.readLine(); // skips header row
             while ( (line = bufferedReader.readLine()) != null ) {
 
-                // Assumes format: (MovieId_i,MovieId_j,Rating)
+                // Assumes format: (MovieId_i,MovieId_j,Rating) or (MovieId_i,MovieId_j,Rating,SumDifference,RatingCount)
                 String[] input = line.split(",");
                 int movieIdMatrix_i = Integer.parseInt(input[0]);
                 int movieIdMatrix_j = Integer.parseInt(input[1]);
@@ -50,8 +60,13 @@ public class ReadModelCsvThread extends Thread {
                 int i = movieIdToMatrixIndex.get(movieIdMatrix_i);
                 int j = movieIdToMatrixIndex.get(movieIdMatrix_j);
 
-                // Add to internal matrix
-                correlationMatrix[i][j] = avgRatingDifference;
+                // Add to internal matrix (lower triangle rows of a full model are mirrors of the upper triangle)
+                if (i < j) correlationMatrix.set(i, j, avgRatingDifference);
+
+                // Add the Sum & Count behind the average
+                if (i < j && modelStatistics != null && input.length >= 5) {
+                    modelStatistics.add(i, j, Double.parseDouble(input[3]), Integer.parseInt(input[4]));
+                }
 
             }
             bufferedReader.close();
@@ -0,0 +1,372 @@
+package com.flixr.threads;
+
+import com.flixr.beans.UserSubmission;
+import com.flixr.engine.RecommendationEngine;
+import com.flixr.engine.TrainingMode;
+import com.flixr.exceptions.EngineException;
+import com.flixr.interfaces.ICorrelationAccumulator;
+import com.flixr.model.PredictionModel;
+import com.flixr.model.RatingsSnapshot;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.flixr.configuration.ApplicationConstants.REC_ENGINE_TRIANGULAR_MODEL;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Work-stealing scheduler used by the Recommendation Controller to train the movie Correlation Matrix
+ * The matrix rows are split into small tasks on a ForkJoinPool, weighted by the amount of work in each row,
+ * so idle threads steal rows from busy ones instead of waiting on a fixed, equal split of the movies
+ */
+public class RecEngineScheduler {
+
+    // Target number of tasks per worker (more tasks = better balancing, but more overhead)
+    private static final int TASKS_PER_WORKER = 16;
+
+    private RecommendationEngine recommendationEngine;
+    private int parallelism;
+    private int rowCount;
+    private long[] cumulativeRowWeights; // cumulativeRowWeights[i] = total weight of rows 0..i-1
+    private long taskWeightThreshold;
+
+    // Worker Utilisation Statistics
+    private ConcurrentHashMap<String, AtomicLong> workerBusyNanos = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, AtomicInteger> workerTaskCounts = new ConcurrentHashMap<>();
+    private AtomicInteger completedRows = new AtomicInteger();
+    private long wallClockNanos;
+
+    /**
+     * Creates a Scheduler for a single RecommendationEngine covering all MovieIds
+     * @param sortedListOfAllMovieIds   List of all Movie Ids
+     * @param allUserSubmissions        List of all UserSubmissions (ie all movies rated by users)
+     * @param trainingMode              Kernel used to generate the Correlation Matrix
+     * @param parallelism               Number of worker threads (ex. number of available cores)
+     */
+    public RecEngineScheduler(TreeSet<Integer> sortedListOfAllMovieIds, Map<Integer, UserSubmission> allUserSubmissions,
+                              TrainingMode trainingMode, int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.rowCount = sortedListOfAllMovieIds.size();
+
+        recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(allUserSubmissions);
+        recommendationEngine.setTrainingMode(trainingMode);
+
+        setRowWeights(sortedListOfAllMovieIds, allUserSubmissions, trainingMode);
+    }
+
+    /**
+     * Creates a Scheduler that trains on a memory-mapped ratings snapshot (no database access)
+     * @param ratingsSnapshot   Opened ratings snapshot (all of its movies are trained)
+     * @param trainingMode      Kernel used to generate the Correlation Matrix
+     * @param parallelism       Number of worker threads (ex. number of available cores)
+     */
+    public RecEngineScheduler(RatingsSnapshot ratingsSnapshot, TrainingMode trainingMode, int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.rowCount = ratingsSnapshot.getMovieCount();
+
+        TreeSet<Integer> sortedListOfAllMovieIds = ratingsSnapshot.getMovieIds();
+        recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setRatingsSnapshot(ratingsSnapshot);
+        recommendationEngine.setTrainingMode(trainingMode);
+
+        // Snapshot Movie Indices are the Matrix Indices, already sorted per user
+        long[] rowWeights = createRowWeights(trainingMode);
+        if (trainingMode == TrainingMode.USER_CENTRIC) {
+            int[] userOffsets = ratingsSnapshot.copyUserOffsets();
+            int[] movieIndices = ratingsSnapshot.copyMovieIndices();
+            for (int u = 0; u < ratingsSnapshot.getUserCount(); u++) {
+                addUserRowWeights(rowWeights, movieIndices, userOffsets[u], userOffsets[u+1]);
+            }
+        }
+        setCumulativeRowWeights(rowWeights);
+    }
+
+
+    /**
+     * Computes the full Correlation Matrix, blocking until all rows are complete
+     * @throws EngineException
+     */
+    public void generateCorrelationMatrix() throws EngineException {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+        boolean completed = false;
+        try {
+            long startTime = System.nanoTime();
+            forkJoinPool.invoke(new CorrelationRowTask(0, rowCount));
+            wallClockNanos = System.nanoTime() - startTime;
+            completed = true;
+        } catch (RuntimeException e) {
+            System.out.println("Unable to compute Correlation Matrix! Problem encountered within Threads!");
+            e.printStackTrace();
+            throw new EngineException(e);
+        } finally {
+            forkJoinPool.shutdown();
+            if (!completed) {
+                recommendationEngine.getCorrelationAccumulator().close(); // nothing will be saved
+            }
+        }
+
+        printWorkerUtilisation();
+    }
+
+
+    /**
+     * Saves the Correlation Matrix into a number of CSV files (split into equal row ranges), in parallel
+     * An EXTERNAL accumulator streams its rows from disk, so its files are written one after another
+     * @param fullOutputFilePrefix  Output path, files are named "prefix-x-of-y.csv"
+     * @param numberOfFiles         Number of CSV files (any number of files can be loaded)
+     * @throws EngineException
+     */
+    public void saveModelToCSV(String fullOutputFilePrefix, int numberOfFiles) throws EngineException {
+        int[] splitIndxs = getMatrixSplitPoints(rowCount, numberOfFiles);
+
+        List<Callable<Void>> fileWriters = new ArrayList<>();
+        for (int i = 1; i <= numberOfFiles; i++) {
+            String fullOutputFilePath = fullOutputFilePrefix + "-" + i + "-of-" + numberOfFiles + ".csv";
+            int fromRow = splitIndxs[i-1];
+            int toRow = splitIndxs[i];
+            fileWriters.add(() -> {
+                recommendationEngine.saveModelToCSV(fullOutputFilePath, fromRow, toRow);
+                return null;
+            });
+        }
+
+        int writerThreads = recommendationEngine.getCorrelationAccumulator().isSequentialRowAccess() ? 1 : Math.min(parallelism, numberOfFiles);
+        ExecutorService executorService = writerThreads == 1 ? Executors.newSingleThreadExecutor() : new ForkJoinPool(writerThreads);
+        try {
+            for (Future<Void> fileWriter : executorService.invokeAll(fileWriters)) {
+                fileWriter.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            EngineException ee = new EngineException(e);
+            ee.setEngineMessage("Unable to Save Trained Model.");
+            throw ee;
+        } finally {
+            executorService.shutdown();
+            closeSequentialAccumulator();
+        }
+    }
+
+
+    /**
+     * Saves the Correlation Matrix to a binary model file, served from a memory mapping by the PredictionDAO
+     * @param fullOutputFilePath    Output path
+     * @throws EngineException
+     */
+    public void saveModelToBinary(String fullOutputFilePath) throws EngineException {
+        recommendationEngine.saveModelToBinary(fullOutputFilePath);
+    }
+
+
+    /**
+     * Saves the Correlation Matrix to the database
+     * @throws EngineException
+     */
+    public void saveModelToDB() throws EngineException {
+        try {
+            recommendationEngine.saveModelToDB();
+        } finally {
+            closeSequentialAccumulator();
+        }
+    }
+
+
+    // Rows of an EXTERNAL accumulator are only read once, so its run files are released by the first save (on success or failure)
+    private void closeSequentialAccumulator() {
+        ICorrelationAccumulator correlationAccumulator = recommendationEngine.getCorrelationAccumulator();
+        if (correlationAccumulator.isSequentialRowAccess()) {
+            correlationAccumulator.close();
+        }
+    }
+
+
+    /**
+     * @return  Trained model, ready to be published to the PredictionModelHolder
+     *          (null for an EXTERNAL accumulator, whose statistics are streamed from disk only once)
+     */
+    public PredictionModel createPredictionModel() {
+        if (recommendationEngine.getCorrelationAccumulator().isSequentialRowAccess()) {
+            return null;
+        }
+        return recommendationEngine.createPredictionModel();
+    }
+
+
+    /**
+     * Determines the Start / End indices that evenly divide a number of rows into parts
+     * @param rowCount          Number of rows
+     * @param numberOfParts     Number of parts
+     * @return  Indexes that dictate start/end points of each part
+     */
+    public static int[] getMatrixSplitPoints(int rowCount, int numberOfParts) {
+        // Determine # of entries per part
+        int dividedCount = 1;
+        try {
+            dividedCount = (int) Math.floor( (double) rowCount / numberOfParts ) ;
+        } catch (ArithmeticException e) {
+            System.out.println("Warning: Number of parts must be at least 1!");
+        }
+
+        // Determine split indices
+        int currentIndx = 0;
+        int[] splitIndxs = new int[numberOfParts + 1];
+        for (int i = 0; i < splitIndxs.length - 1; i++) {
+            splitIndxs[i] = currentIndx;
+            currentIndx += dividedCount;
+        }
+        splitIndxs[splitIndxs.length - 1] = rowCount; // any remainders will just get tacked on to the last part
+
+        return splitIndxs;
+    }
+
+
+    /**
+     * Determines the work per row (used to split the rows into tasks)
+     * USER_CENTRIC: a row costs one update per co-rating, i.e. the sum of the ratings counts of every user who rated that movie
+     * PAIRWISE: every row scans every (movie, user) pair, so rows are equally weighted
+     * A triangular model only computes the movies after the row's movie, so later rows cost less
+     */
+    private void setRowWeights(TreeSet<Integer> sortedListOfAllMovieIds, Map<Integer, UserSubmission> allUserSubmissions,
+                               TrainingMode trainingMode) {
+        long[] rowWeights = createRowWeights(trainingMode);
+
+        if (trainingMode == TrainingMode.USER_CENTRIC) {
+            HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+            int index = 0;
+            for (int movieId : sortedListOfAllMovieIds) {
+                movieIdToMatrixIndex.put(movieId, index++);
+            }
+            for (UserSubmission userSubmission : allUserSubmissions.values()) {
+                int[] ratedRows = new int[userSubmission.getRatingCount()];
+                int ratedCount = 0;
+                for (int k = 0; k < userSubmission.getRatingCount(); k++) {
+                    Integer row = movieIdToMatrixIndex.get(userSubmission.getMovieIdAt(k));
+                    if (row != null) ratedRows[ratedCount++] = row;
+                }
+                Arrays.sort(ratedRows, 0, ratedCount);
+                addUserRowWeights(rowWeights, ratedRows, 0, ratedCount);
+            }
+        }
+
+        setCumulativeRowWeights(rowWeights);
+    }
+
+    // Fixed overhead per row (& the PAIRWISE cost, which does not depend on the ratings)
+    private long[] createRowWeights(TrainingMode trainingMode) {
+        long[] rowWeights = new long[rowCount];
+        Arrays.fill(rowWeights, 1); // every row has some fixed overhead
+        if (trainingMode != TrainingMode.USER_CENTRIC && REC_ENGINE_TRIANGULAR_MODEL) {
+            for (int i = 0; i < rowCount; i++) {
+                rowWeights[i] += rowCount - i;
+            }
+        }
+        return rowWeights;
+    }
+
+    // USER_CENTRIC cost of one user, whose rated rows are sorted in ratedRows[from .. to-1]
+    private void addUserRowWeights(long[] rowWeights, int[] ratedRows, int from, int to) {
+        int ratedCount = to - from;
+        for (int position = from; position < to; position++) {
+            rowWeights[ratedRows[position]] += REC_ENGINE_TRIANGULAR_MODEL ? to - position : ratedCount;
+        }
+    }
+
+    private void setCumulativeRowWeights(long[] rowWeights) {
+        cumulativeRowWeights = new long[rowCount + 1];
+        for (int i = 0; i < rowCount; i++) {
+            cumulativeRowWeights[i+1] = cumulativeRowWeights[i] + rowWeights[i];
+        }
+        taskWeightThreshold = Math.max(1, cumulativeRowWeights[rowCount] / ((long) parallelism * TASKS_PER_WORKER));
+    }
+
+
+    /**
+     * Displays the busy time and utilisation of every worker thread
+     */
+    private void printWorkerUtilisation() {
+        double wallClockSeconds = wallClockNanos / 1e9;
+        System.out.println("Correlation Matrix Computation completed in " + wallClockSeconds + " seconds, using " + parallelism + " worker(s).");
+        ICorrelationAccumulator correlationAccumulator = recommendationEngine.getCorrelationAccumulator();
+        if (correlationAccumulator.isSequentialRowAccess()) {
+            System.out.println("  " + correlationAccumulator.getClass().getSimpleName() + ": co-rated pairs are merged from disk when the model is saved, using ~"
+                    + correlationAccumulator.getEstimatedMemoryBytes() / (1024 * 1024) + " MB of buffers.");
+        }
+        else {
+            System.out.println("  " + correlationAccumulator.getClass().getSimpleName() + ": " + correlationAccumulator.getNonZeroCount()
+                    + " co-rated pairs, using ~" + correlationAccumulator.getEstimatedMemoryBytes() / (1024 * 1024) + " MB.");
+        }
+        for (String workerName : new TreeSet<>(workerBusyNanos.keySet())) {
+            double busySeconds = workerBusyNanos.get(workerName).get() / 1e9;
+            double utilisation = wallClockNanos > 0 ? 100.0 * workerBusyNanos.get(workerName).get() / wallClockNanos : 0.0;
+            System.out.println(String.format("  %s: %d tasks, busy %.3f sec, utilisation %.1f%%",
+                    workerName, workerTaskCounts.get(workerName).get(), busySeconds, utilisation));
+        }
+    }
+
+    /**
+     * @return  Busy time (in seconds) of each worker thread in the last run
+     */
+    public Map<String, Double> getWorkerBusySeconds() {
+        Map<String, Double> busySeconds = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : workerBusyNanos.entrySet()) {
+            busySeconds.put(entry.getKey(), entry.getValue().get() / 1e9);
+        }
+        return busySeconds;
+    }
+
+    public double getWallClockSeconds() {
+        return wallClockNanos / 1e9;
+    }
+
+
+    /**
+     * Computes a range of rows, splitting it in two (by weight) until it is small enough to run directly
+     */
+    private class CorrelationRowTask extends RecursiveAction {
+
+        private int fromRow;
+        private int toRow;
+
+        private CorrelationRowTask(int fromRow, int toRow) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            long weight = cumulativeRowWeights[toRow] - cumulativeRowWeights[fromRow];
+            if (toRow - fromRow <= 1 || weight <= taskWeightThreshold) {
+                computeDirectly();
+                return;
+            }
+
+            // Split where half of the weight is on either side
+            long halfWeight = cumulativeRowWeights[fromRow] + weight / 2;
+            int splitRow = Arrays.binarySearch(cumulativeRowWeights, fromRow, toRow + 1, halfWeight);
+            if (splitRow < 0) splitRow = -splitRow - 1;
+            splitRow = Math.max(fromRow + 1, Math.min(toRow - 1, splitRow));
+
+            invokeAll(new CorrelationRowTask(fromRow, splitRow), new CorrelationRowTask(splitRow, toRow));
+        }
+
+        private void computeDirectly() {
+            long startTime = System.nanoTime();
+            recommendationEngine.generateCorrelationMatrixRows(fromRow, toRow);
+            long busyNanos = System.nanoTime() - startTime;
+
+            // Track Utilisation of current worker
+            String workerName = Thread.currentThread().getName();
+            workerBusyNanos.computeIfAbsent(workerName, k -> new AtomicLong()).addAndGet(busyNanos);
+            workerTaskCounts.computeIfAbsent(workerName, k -> new AtomicInteger()).incrementAndGet();
+
+            // Print progress
+            int rowsCompleted = completedRows.addAndGet(toRow - fromRow);
+            System.out.println(workerName + " Correlation Matrix Computation: Completed Rows " + (fromRow+1) + "-" + toRow
+                    + " (" + rowsCompleted + " of " + rowCount + ")");
+        }
+    }
+
+}
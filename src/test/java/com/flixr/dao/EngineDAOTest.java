@@ -2,13 +2,18 @@ package com.flixr.dao;
 
 import com.flixr.beans.UserSubmission;
 import com.flixr.exceptions.DAOException;
+import com.flixr.exceptions.EngineException;
+import com.flixr.model.*;
+import com.flixr.threads.ParallelModelTableReader;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Random;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.flixr.configuration.ApplicationConstants.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -109,6 +114,457 @@ public class EngineDAOTest {
     }
 
 
+    /**
+     * @author Thomas Thompson
+     * Test ID: 35
+     * Test Type: Unit
+     * Test Name: EngineDAOTest-3
+     *
+     * Ensure that the single streaming scan of the Ratings table builds every UserSubmission
+     * (runs against an in-memory H2 database, ratings inserted out of order)
+     */
+    @Test
+    void testReadAllUserSubmissionsInOneScan() throws SQLException {
+
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:engineDaoTest;MODE=MySQL", "sa", "")) {
+            conn.createStatement().execute("CREATE TABLE ratings(userId int, imdbId int, rating double, PRIMARY KEY (userId, imdbId))");
+            PreparedStatement stmt = conn.prepareStatement("INSERT INTO ratings VALUES (?,?,?)");
+            int[][] ratings = new int[][] {{3, 20, 4}, {1, 30, 2}, {3, 10, 5}, {1, 10, 1}, {2, 20, 3}, {1, 20, 4}};
+            for (int[] rating : ratings) {
+                stmt.setInt(1, rating[0]);
+                stmt.setInt(2, rating[1]);
+                stmt.setDouble(3, rating[2] + 0.5);
+                stmt.execute();
+            }
+
+            TreeMap<Integer, UserSubmission> userSubmissions = new EngineDAO().readAllUserSubmissions(conn);
+
+            assertEquals(Arrays.asList(1, 2, 3), new ArrayList<>(userSubmissions.keySet()), "Every user must have a UserSubmission!");
+            assertEquals(Arrays.asList(10, 20, 30), userSubmissions.get(1).getMoviesViewed(), "Ratings must be in MovieId order!");
+            assertEquals(Arrays.asList(1.5, 4.5, 2.5), userSubmissions.get(1).getMovieRatings());
+            assertEquals(Arrays.asList(20), userSubmissions.get(2).getMoviesViewed());
+            assertEquals(5.5, userSubmissions.get(3).getMovieRating(10));
+            assertEquals(4.5, userSubmissions.get(3).getMovieRating(20));
+        }
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 57
+     * Test Type: Unit
+     * Test Name: EngineDAOTest-9
+     *
+     * Ensure that the UserSubmissions of a set of users are built from batched "IN (...)" scans over one connection,
+     * across batch boundaries, and that a user without ratings gets an empty UserSubmission
+     */
+    @Test
+    void testReadUserSubmissionsInBatches() throws SQLException {
+
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:engineDaoBatchTest;MODE=MySQL", "sa", "")) {
+            conn.createStatement().execute("CREATE TABLE ModelRatings(userId int, imdbId int, rating double, PRIMARY KEY (userId, imdbId))");
+            PreparedStatement stmt = conn.prepareStatement("INSERT INTO ModelRatings VALUES (?,?,?)");
+            for (int userId = 1; userId <= 10; userId++) {
+                for (int movieId = userId; movieId > 0; movieId -= 3) {
+                    stmt.setInt(1, userId);
+                    stmt.setInt(2, 10 * movieId);
+                    stmt.setDouble(3, 0.5 * (userId % 10));
+                    stmt.execute();
+                }
+            }
+
+            List<Integer> userIds = Arrays.asList(9, 2, 5, 7, 4, 42, 1);
+            TreeMap<Integer, UserSubmission> userSubmissions = new EngineDAO().readUserSubmissions(conn, "ModelRatings", userIds, 3);
+
+            assertEquals(Arrays.asList(1, 2, 4, 5, 7, 9, 42), new ArrayList<>(userSubmissions.keySet()), "Every user must have a UserSubmission!");
+            assertEquals(Arrays.asList(10, 40, 70), userSubmissions.get(7).getMoviesViewed(), "Ratings must be in MovieId order!");
+            assertEquals(Arrays.asList(30, 60, 90), userSubmissions.get(9).getMoviesViewed());
+            assertEquals(2.0, userSubmissions.get(4).getMovieRating(40));
+            assertEquals(1, userSubmissions.get(1).getRatingCount());
+            assertEquals(0, userSubmissions.get(42).getRatingCount(), "A user without ratings must have an empty UserSubmission!");
+        }
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 40
+     * Test Type: Unit
+     * Test Name: EngineDAOTest-4
+     *
+     * Ensure that the bulk model writer inserts every entry over several connections, with & without statistics,
+     * and fails loudly when an insert fails
+     * (runs against an in-memory H2 database)
+     */
+    @Test
+    void testModelBulkWriterSavesEveryEntry() throws SQLException, DAOException {
+
+        String connectionUrl = "jdbc:h2:mem:modelBulkWriterTest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+        try (Connection conn = DriverManager.getConnection(connectionUrl, "sa", "")) {
+            conn.createStatement().execute("CREATE TABLE RecEngineModel(MovieIDi int NOT NULL, MovieIDj int NOT NULL, AvgDifference double, "
+                    + "SumDifference double, RatingCount int, PRIMARY KEY (MovieIDi, MovieIDj))");
+
+            // 2,503 entries: several full statements & commit chunks per connection, plus a partial last statement
+            int entryCount = 2503;
+            for (boolean hasStatistics : new boolean[] {true, false}) {
+                conn.createStatement().execute("DELETE FROM RecEngineModel");
+                ModelBulkWriter modelBulkWriter = new ModelBulkWriter(connectionUrl, "sa", "", "RecEngineModel", hasStatistics, 3, 100, 500);
+                for (int k = 0; k < entryCount; k++) {
+                    modelBulkWriter.addEntry(k / 100, k % 100, k * 0.5, k * 1.5, k);
+                }
+                modelBulkWriter.close();
+                assertEquals(entryCount, modelBulkWriter.getSavedRowCount(), "Every entry must be committed!");
+
+                ResultSet resultSet = conn.createStatement().executeQuery(
+                        "SELECT COUNT(*), SUM(AvgDifference), COUNT(SumDifference), SUM(RatingCount) FROM RecEngineModel");
+                resultSet.next();
+                assertEquals(entryCount, resultSet.getInt(1), "Every entry must be inserted!");
+                assertEquals(0.5 * entryCount * (entryCount - 1) / 2, resultSet.getDouble(2), "Averages must be inserted!");
+                assertEquals(hasStatistics ? entryCount : 0, resultSet.getInt(3), "Statistics must only be inserted when requested!");
+                if (hasStatistics) {
+                    assertEquals((long) entryCount * (entryCount - 1) / 2, resultSet.getLong(4));
+                }
+            }
+
+            // A duplicate entry fails the insert
+            conn.createStatement().execute("DELETE FROM RecEngineModel");
+            ModelBulkWriter failingBulkWriter = new ModelBulkWriter(connectionUrl, "sa", "", "RecEngineModel", true, 2, 10, 10);
+            for (int k = 0; k < 25; k++) {
+                failingBulkWriter.addEntry(1, k % 20, 0.0, 0.0, 0);
+            }
+            assertThrows(DAOException.class, failingBulkWriter::close, "A failed insert must fail the save!");
+
+            conn.createStatement().execute("DROP TABLE RecEngineModel");
+        }
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 43
+     * Test Type: Unit
+     * Test Name: EngineDAOTest-5
+     *
+     * Ensure that the range-partitioned table reader loads every upper triangle entry (with its Sum & Count) exactly
+     * once, skips diagonal & mirrored rows, detects rows without statistics, and fails on an unknown movie
+     * (runs against an in-memory H2 database)
+     */
+    @Test
+    void testParallelModelTableReaderLoadsEveryEntry() throws SQLException, DAOException {
+
+        String connectionUrl = "jdbc:h2:mem:modelTableReaderTest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+        try (Connection conn = DriverManager.getConnection(connectionUrl, "sa", "")) {
+            conn.createStatement().execute("CREATE TABLE RecEngineModel(MovieIDi int NOT NULL, MovieIDj int NOT NULL, AvgDifference double, "
+                    + "SumDifference double, RatingCount int, PRIMARY KEY (MovieIDi, MovieIDj))");
+
+            // Full upper triangle of 60 movies (MovieIds 10, 20, ...), plus diagonal & mirrored rows that must be skipped
+            int movieCount = 60;
+            int[] sortedMovieIds = new int[movieCount];
+            for (int i = 0; i < movieCount; i++) sortedMovieIds[i] = 10 * (i + 1);
+            try (ModelBulkWriter modelBulkWriter = new ModelBulkWriter(connectionUrl, "sa", "", "RecEngineModel", true, 2, 100, 500)) {
+                for (int i = 0; i < movieCount; i++) {
+                    modelBulkWriter.addEntry(sortedMovieIds[i], sortedMovieIds[i], 0.0, 0.0, 0);
+                    for (int j = i + 1; j < movieCount; j++) {
+                        modelBulkWriter.addEntry(sortedMovieIds[i], sortedMovieIds[j], 0.5 * (j - i), 0.5 * (j - i) * (i + 1), i + 1);
+                        if (i == 0) modelBulkWriter.addEntry(sortedMovieIds[j], sortedMovieIds[i], 99.0, 99.0, 1);
+                    }
+                }
+            }
+            assertTrue(ParallelModelTableReader.hasStatisticsColumns(connectionUrl, "sa", "", "RecEngineModel"));
+
+            // Read with more cursors than a single range, so every range boundary is crossed
+            TriangularMatrix correlationMatrix = new TriangularMatrix(movieCount);
+            ModelStatistics modelStatistics = new ModelStatistics(movieCount);
+            ParallelModelTableReader parallelModelTableReader = new ParallelModelTableReader(connectionUrl, "sa", "", sortedMovieIds,
+                    correlationMatrix, modelStatistics, 3, 7);
+            parallelModelTableReader.read("RecEngineModel");
+            assertEquals((long) movieCount * (movieCount - 1) / 2, parallelModelTableReader.getRowCount(), "Every upper triangle entry must be read once!");
+            assertFalse(parallelModelTableReader.hasMissingStatistics());
+            for (int i = 0; i < movieCount; i++) {
+                for (int j = i + 1; j < movieCount; j++) {
+                    assertEquals(0.5 * (j - i), correlationMatrix.get(i, j), "Entry (" + i + "," + j + ") must be loaded!");
+                    assertEquals(-0.5 * (j - i), correlationMatrix.get(j, i), "Lower triangle must mirror the upper triangle!");
+                    assertEquals(i + 1, modelStatistics.getRatingFrequency(i, j), "Each entry must be counted once!");
+                }
+            }
+
+            // A row without its Sum & Count is reported
+            conn.createStatement().execute("UPDATE RecEngineModel SET RatingCount = NULL WHERE MovieIDi = 20 AND MovieIDj = 30");
+            ParallelModelTableReader missingStatisticsReader = new ParallelModelTableReader(connectionUrl, "sa", "", sortedMovieIds,
+                    new TriangularMatrix(movieCount), new ModelStatistics(movieCount), 2, 100);
+            missingStatisticsReader.read("RecEngineModel");
+            assertTrue(missingStatisticsReader.hasMissingStatistics(), "Rows without statistics must be detected!");
+
+            // A movie that is not in the model fails the load
+            int[] missingMovieIds = Arrays.copyOf(sortedMovieIds, movieCount - 1);
+            ParallelModelTableReader failingReader = new ParallelModelTableReader(connectionUrl, "sa", "", missingMovieIds,
+                    new TriangularMatrix(movieCount - 1), null, 2, 100);
+            assertThrows(SQLException.class, () -> failingReader.read("RecEngineModel"), "An unknown movie must fail the load!");
+
+            conn.createStatement().execute("DROP TABLE RecEngineModel");
+        }
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 44
+     * Test Type: Unit
+     * Test Name: EngineDAOTest-6
+     *
+     * Ensure that rows loaded on demand match the stored model in both directions (i, j) & (j, i),
+     * and that the row cache counts hits & misses and stays within its byte budget
+     * (runs against an in-memory H2 database)
+     */
+    @Test
+    void testModelRowCacheLoadsRowsOnDemand() throws SQLException, DAOException {
+
+        String connectionUrl = "jdbc:h2:mem:modelRowCacheTest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+        try (Connection conn = DriverManager.getConnection(connectionUrl, "sa", "")) {
+            conn.createStatement().execute("CREATE TABLE RecEngineModel(MovieIDi int NOT NULL, MovieIDj int NOT NULL, AvgDifference double, "
+                    + "SumDifference double, RatingCount int, PRIMARY KEY (MovieIDi, MovieIDj))");
+            conn.createStatement().execute("CREATE INDEX RecEngineModel_MovieIDj ON RecEngineModel (MovieIDj, MovieIDi)");
+
+            // Sparse triangular model of 40 movies: every third pair is stored, plus a diagonal row & a mirrored row
+            int movieCount = 40;
+            double[][] expected = new double[movieCount + 1][movieCount + 1];
+            try (ModelBulkWriter modelBulkWriter = new ModelBulkWriter(connectionUrl, "sa", "", "RecEngineModel", false, 2, 50, 200)) {
+                for (int i = 1; i <= movieCount; i++) {
+                    modelBulkWriter.addEntry(i, i, 0.0, 0.0, 0);
+                    for (int j = i + 1; j <= movieCount; j++) {
+                        if ((i + j) % 3 != 0) continue;
+                        double avgDifference = 0.5 * (i - j) + i;
+                        modelBulkWriter.addEntry(i, j, avgDifference, 0.0, 0);
+                        expected[i][j] = avgDifference;
+                        expected[j][i] = -avgDifference;
+                    }
+                }
+                modelBulkWriter.addEntry(7, 2, 99.0, 0.0, 0); // lower triangle row of a full model, ignored
+            }
+
+            // Every row matches the stored model, an unknown movie has an empty row
+            ModelRowCache modelRowCache = new ModelRowCache(new ModelRowDAO(connectionUrl, "sa", "", "RecEngineModel"), Long.MAX_VALUE);
+            List<Integer> allMovieIds = new ArrayList<>();
+            for (int m = 1; m <= movieCount; m++) allMovieIds.add(m);
+            Map<Integer, ModelRow> rows = modelRowCache.getRows(allMovieIds);
+            for (int i = 1; i <= movieCount; i++) {
+                for (int j = 1; j <= movieCount; j++) {
+                    assertEquals(expected[i][j], rows.get(i).getAveragePreferenceDifference(j), "Row " + i + " must match the model at " + j + "!");
+                }
+            }
+            assertEquals(0, modelRowCache.getRow(999).getSize(), "An unknown movie has no stored pairs!");
+            assertEquals(movieCount + 1, modelRowCache.getMissCount());
+            assertEquals(0, modelRowCache.getHitCount());
+
+            // Cached rows are not loaded again
+            modelRowCache.getRows(Arrays.asList(1, 2, 3));
+            assertEquals(3, modelRowCache.getHitCount());
+            assertEquals(movieCount + 1, modelRowCache.getMissCount());
+
+            // A small budget evicts the least recently used rows
+            long rowBytes = rows.get(1).getEstimatedMemoryBytes();
+            ModelRowCache smallRowCache = new ModelRowCache(new ModelRowDAO(connectionUrl, "sa", "", "RecEngineModel"), 5 * rowBytes);
+            smallRowCache.getRows(allMovieIds);
+            assertTrue(smallRowCache.getEstimatedMemoryBytes() <= 5 * rowBytes, "Row cache must stay within its budget!");
+            assertTrue(smallRowCache.getEvictionCount() > 0);
+            smallRowCache.getRow(movieCount);
+            assertEquals(1, smallRowCache.getHitCount(), "The most recently loaded row must still be cached!");
+            smallRowCache.getRow(1);
+            assertEquals(movieCount + 1, smallRowCache.getMissCount(), "The least recently used row must be evicted!");
+
+            conn.createStatement().execute("DROP TABLE RecEngineModel");
+        }
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 51
+     * Test Type: Unit
+     * Test Name: EngineDAOTest-7
+     *
+     * Ensure that the lazily loaded database model and the in-memory model answer every batch lookup of the
+     * ICorrelationModel the same way: MovieId <-> Matrix Index mapping, pairs, whole rows, gathers & accumulated rows,
+     * including movies that are not in the model (runs against an in-memory H2 database)
+     */
+    @Test
+    void testLazyCorrelationModelMatchesInMemoryModel() throws SQLException, DAOException, EngineException {
+
+        String connectionUrl = "jdbc:h2:mem:lazyCorrelationModelTest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+        try (Connection conn = DriverManager.getConnection(connectionUrl, "sa", "")) {
+            conn.createStatement().execute("CREATE TABLE RecEngineModel(MovieIDi int NOT NULL, MovieIDj int NOT NULL, AvgDifference double, "
+                    + "SumDifference double, RatingCount int, PRIMARY KEY (MovieIDi, MovieIDj))");
+            conn.createStatement().execute("CREATE INDEX RecEngineModel_MovieIDj ON RecEngineModel (MovieIDj, MovieIDi)");
+
+            // Sparse triangular model of 30 movies with MovieIds 10, 20, ..., 300 (Matrix Index != MovieId)
+            int movieCount = 30;
+            Set<Integer> movieIds = new TreeSet<>();
+            HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+            for (int m = 0; m < movieCount; m++) {
+                movieIds.add(10 * (m + 1));
+                movieIdToMatrixIndex.put(10 * (m + 1), m);
+            }
+            TriangularMatrix correlationMatrix = new TriangularMatrix(movieCount);
+            try (ModelBulkWriter modelBulkWriter = new ModelBulkWriter(connectionUrl, "sa", "", "RecEngineModel", false, 2, 50, 200)) {
+                for (int i = 0; i < movieCount; i++) {
+                    modelBulkWriter.addEntry(10 * (i + 1), 10 * (i + 1), 0.0, 0.0, 0);
+                    for (int j = i + 1; j < movieCount; j++) {
+                        if ((i + j) % 3 != 0) continue;
+                        double avgDifference = 0.25 * (i - j) + 1;
+                        modelBulkWriter.addEntry(10 * (i + 1), 10 * (j + 1), avgDifference, 0.0, 0);
+                        correlationMatrix.set(i, j, avgDifference);
+                    }
+                }
+            }
+            PredictionModel heapModel = new PredictionModel(movieIds, movieIdToMatrixIndex, correlationMatrix, 0);
+            ModelRowCache modelRowCache = new ModelRowCache(new ModelRowDAO(connectionUrl, "sa", "", "RecEngineModel"), Long.MAX_VALUE);
+            LazyCorrelationModel lazyModel = new LazyCorrelationModel(modelRowCache);
+
+            // Same movies & Matrix Indices
+            assertEquals(heapModel.getMovieCount(), lazyModel.getMovieCount());
+            for (int movieId : movieIds) {
+                assertTrue(lazyModel.hasMovie(movieId));
+                assertEquals(heapModel.getMatrixIndex(movieId), lazyModel.getMatrixIndex(movieId));
+                assertEquals(movieId, lazyModel.getMovieId(lazyModel.getMatrixIndex(movieId)));
+            }
+            assertFalse(lazyModel.hasMovie(15), "Unknown movies are not in the model!");
+            assertEquals(-1, lazyModel.getMatrixIndex(15));
+            int[] matrixIndices_j = lazyModel.getMatrixIndices(new int[] {300, 15, 10, 20, 150, 160, 999, 290});
+            assertArrayEquals(heapModel.getMatrixIndices(new int[] {300, 15, 10, 20, 150, 160, 999, 290}), matrixIndices_j);
+
+            // Same pairs, rows, gathers & accumulated rows
+            lazyModel.prefetchRows(new int[] {0, -1, 5, 29});
+            assertEquals(3, modelRowCache.getMissCount(), "Prefetched rows must be loaded in one batch!");
+            double[] heapRow = new double[movieCount];
+            double[] lazyRow = new double[movieCount];
+            double[] heapValues = new double[matrixIndices_j.length];
+            double[] lazyValues = new double[matrixIndices_j.length];
+            double[] heapAccumulator = new double[matrixIndices_j.length];
+            double[] lazyAccumulator = new double[matrixIndices_j.length];
+            for (int i = 0; i < movieCount; i++) {
+                for (int j = 0; j < movieCount; j++) {
+                    assertEquals(heapModel.get(i, j), lazyModel.get(i, j), 0.0, "Pair (" + i + ", " + j + ") must match!");
+                }
+                heapModel.getRow(i, heapRow);
+                lazyModel.getRow(i, lazyRow);
+                assertArrayEquals(heapRow, lazyRow, 0.0, "Row " + i + " must match!");
+                heapModel.gather(i, matrixIndices_j, heapValues);
+                lazyModel.gather(i, matrixIndices_j, lazyValues);
+                assertArrayEquals(heapValues, lazyValues, 0.0, "Gather of row " + i + " must match!");
+                heapModel.accumulateRow(i, 0.5 * (i % 10), matrixIndices_j, heapAccumulator);
+                lazyModel.accumulateRow(i, 0.5 * (i % 10), matrixIndices_j, lazyAccumulator);
+                assertArrayEquals(heapAccumulator, lazyAccumulator, 0.0, "Accumulated rows must match after row " + i + "!");
+            }
+            assertEquals(movieCount, modelRowCache.getMissCount(), "Every row must be loaded once per request!");
+
+            conn.createStatement().execute("DROP TABLE RecEngineModel");
+        }
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 56
+     * Test Type: Unit
+     * Test Name: EngineDAOTest-8
+     *
+     * Ensure that the cursors of the ParallelModelTableReader fetch a MySQL model table in batches of their fetch size,
+     * instead of loading each range onto the heap at once
+     * MySQL Connector/J only honours the fetch size on a connection with useCursorFetch, so a recording driver for
+     * "jdbc:mysql:" URLs (backed by an in-memory H2 database) serves the rows the same way, and counts the fetches
+     */
+    @Test
+    void testModelTableIsReadInFetchBatches() throws SQLException {
+
+        String connectionUrl = "jdbc:h2:mem:fetchBatchTest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+        String mysqlUrl = "jdbc:mysql://flixr-fetch-test/flixr";
+        List<Driver> mysqlDrivers = new ArrayList<>();
+        FetchRecordingDriver recordingDriver = new FetchRecordingDriver(mysqlUrl, connectionUrl);
+        try (Connection conn = DriverManager.getConnection(connectionUrl, "sa", "")) {
+            conn.createStatement().execute("CREATE TABLE RecEngineModel(MovieIDi int NOT NULL, MovieIDj int NOT NULL, AvgDifference double, "
+                    + "SumDifference double, RatingCount int, PRIMARY KEY (MovieIDi, MovieIDj))");
+            int movieCount = 30;
+            int[] sortedMovieIds = new int[movieCount];
+            for (int i = 0; i < movieCount; i++) sortedMovieIds[i] = 10 * (i + 1);
+            try (ModelBulkWriter modelBulkWriter = new ModelBulkWriter(connectionUrl, "sa", "", "RecEngineModel", false, 2, 50, 200)) {
+                for (int i = 0; i < movieCount; i++) {
+                    for (int j = i + 1; j < movieCount; j++) {
+                        modelBulkWriter.addEntry(sortedMovieIds[i], sortedMovieIds[j], 0.5 * (j - i), 0.0, 1);
+                    }
+                }
+            }
+
+            // Replace the MySQL driver with the recording driver
+            for (Driver driver : Collections.list(DriverManager.getDrivers())) {
+                if (driver.acceptsURL(mysqlUrl)) {
+                    mysqlDrivers.add(driver);
+                    DriverManager.deregisterDriver(driver);
+                }
+            }
+            DriverManager.registerDriver(recordingDriver);
+
+            // Every range is read over a cursor connection, in batches of the fetch size
+            int fetchSize = 20;
+            TriangularMatrix correlationMatrix = new TriangularMatrix(movieCount);
+            ParallelModelTableReader parallelModelTableReader = new ParallelModelTableReader(mysqlUrl, "sa", "", sortedMovieIds,
+                    correlationMatrix, null, 3, fetchSize);
+            parallelModelTableReader.read("RecEngineModel");
+            long rowCount = (long) movieCount * (movieCount - 1) / 2;
+            assertEquals(rowCount, parallelModelTableReader.getRowCount());
+            assertEquals(0.5 * 7, correlationMatrix.get(2, 9));
+            assertEquals(3, recordingDriver.connectionCount.get(), "Each range must be read over its own connection!");
+            assertEquals(3, recordingDriver.cursorConnectionCount.get(), "Every range connection must use a server side cursor!");
+            assertEquals(rowCount, recordingDriver.fetchedRowCount.get());
+            assertTrue(recordingDriver.fetchCount.get() >= rowCount / fetchSize, "Rows must be fetched in batches of the fetch size!");
+            assertEquals(fetchSize, recordingDriver.maxFetchedRows.get(), "No fetch may hold more rows than the fetch size!");
+
+            conn.createStatement().execute("DROP TABLE RecEngineModel");
+        } finally {
+            DriverManager.deregisterDriver(recordingDriver);
+            for (Driver driver : mysqlDrivers) DriverManager.registerDriver(driver);
+        }
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 59
+     * Test Type: Unit
+     * Test Name: EngineDAOTest-10
+     *
+     * Ensure that the MovieIds of a model table are read from its rows (MovieIDi) and last row only,
+     * and still include the last movie of a dense triangular model, which has no row of its own
+     * (runs against an in-memory H2 database)
+     */
+    @Test
+    void testModelMovieIdsIncludeLastMovie() throws SQLException, DAOException {
+
+        String connectionUrl = "jdbc:h2:mem:modelMovieIdsTest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+        try (Connection conn = DriverManager.getConnection(connectionUrl, "sa", "")) {
+            conn.createStatement().execute("CREATE TABLE RecEngineModel(MovieIDi int NOT NULL, MovieIDj int NOT NULL, AvgDifference double, "
+                    + "SumDifference double, RatingCount int, PRIMARY KEY (MovieIDi, MovieIDj))");
+            ModelRowDAO modelRowDAO = new ModelRowDAO(connectionUrl, "sa", "", "RecEngineModel");
+            assertArrayEquals(new int[0], modelRowDAO.loadMovieIds(), "Empty model has no movies!");
+
+            // Dense triangular model: the last movie only appears as MovieIDj
+            int[] sortedMovieIds = {10, 20, 30, 40};
+            for (int i = 0; i < sortedMovieIds.length; i++) {
+                for (int j = i + 1; j < sortedMovieIds.length; j++) {
+                    conn.createStatement().execute("INSERT INTO RecEngineModel (MovieIDi, MovieIDj, AvgDifference) VALUES ("
+                            + sortedMovieIds[i] + ", " + sortedMovieIds[j] + ", 0.5)");
+                }
+            }
+            assertArrayEquals(sortedMovieIds, modelRowDAO.loadMovieIds(), "Dense triangular model must list its last movie!");
+
+            // Sparse model: a pair nobody co-rated is not stored, but every movie keeps its diagonal entry
+            conn.createStatement().execute("DELETE FROM RecEngineModel WHERE MovieIDj = 40");
+            for (int movieId : sortedMovieIds) {
+                conn.createStatement().execute("INSERT INTO RecEngineModel (MovieIDi, MovieIDj, AvgDifference) VALUES ("
+                        + movieId + ", " + movieId + ", 0.0)");
+            }
+            assertArrayEquals(sortedMovieIds, modelRowDAO.loadMovieIds(), "Sparse model must list every movie!");
+
+            conn.createStatement().execute("DROP TABLE RecEngineModel");
+        }
+    }
+
 
     // -----------------------------------------------------------------------------------------------------------------
 
@@ -217,4 +673,127 @@ public class EngineDAOTest {
 
     }
 
+
+    // JDBC driver for a "jdbc:mysql:" URL, backed by an H2 database, that fetches rows like MySQL Connector/J:
+    // in batches of the fetch size with useCursorFetch, otherwise the whole result at once
+    private static class FetchRecordingDriver implements Driver {
+
+        private final String mysqlUrl;
+        private final String connectionUrl;
+        private final AtomicInteger connectionCount = new AtomicInteger();
+        private final AtomicInteger cursorConnectionCount = new AtomicInteger();
+        private final AtomicLong fetchCount = new AtomicLong();
+        private final AtomicLong fetchedRowCount = new AtomicLong();
+        private final AtomicInteger maxFetchedRows = new AtomicInteger();
+
+        private FetchRecordingDriver(String mysqlUrl, String connectionUrl) {
+            this.mysqlUrl = mysqlUrl;
+            this.connectionUrl = connectionUrl;
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) return null;
+            connectionCount.incrementAndGet();
+            boolean cursorFetch = "true".equals(info.getProperty("useCursorFetch"));
+            if (cursorFetch) cursorConnectionCount.incrementAndGet();
+            Connection conn = DriverManager.getConnection(connectionUrl, "sa", "");
+            return proxy(Connection.class, conn, (method, args, result) -> {
+                if (!(result instanceof PreparedStatement)) return result;
+                PreparedStatement stmt = (PreparedStatement) result;
+                int[] fetchSize = {0};
+                return proxy(PreparedStatement.class, stmt, (stmtMethod, stmtArgs, stmtResult) -> {
+                    if (stmtMethod.getName().equals("setFetchSize")) fetchSize[0] = (Integer) stmtArgs[0];
+                    if (!(stmtResult instanceof ResultSet)) return stmtResult;
+                    int batchSize = cursorFetch && fetchSize[0] > 0 ? fetchSize[0] : Integer.MAX_VALUE;
+                    return fetch((ResultSet) stmtResult, batchSize);
+                });
+            });
+        }
+
+        // Result set served from batches of at most batchSize rows
+        private ResultSet fetch(ResultSet resultSet, int batchSize) throws SQLException {
+            List<Object[]> batch = new ArrayList<>();
+            int columnCount = resultSet.getMetaData().getColumnCount();
+            boolean[] exhausted = {false};
+            Object[][] row = {null};
+            boolean[] wasNull = {false};
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "next":
+                        if (batch.isEmpty() && !exhausted[0]) {
+                            while (batch.size() < batchSize && resultSet.next()) {
+                                Object[] values = new Object[columnCount];
+                                for (int c = 0; c < columnCount; c++) values[c] = resultSet.getObject(c + 1);
+                                batch.add(values);
+                            }
+                            exhausted[0] = batch.size() < batchSize;
+                            if (!batch.isEmpty()) {
+                                fetchCount.incrementAndGet();
+                                fetchedRowCount.addAndGet(batch.size());
+                                maxFetchedRows.accumulateAndGet(batch.size(), Math::max);
+                            }
+                        }
+                        row[0] = batch.isEmpty() ? null : batch.remove(0);
+                        return row[0] != null;
+                    case "getInt":
+                    case "getDouble":
+                        Object value = row[0][(Integer) args[0] - 1];
+                        wasNull[0] = value == null;
+                        if (value == null) return method.getName().equals("getInt") ? (Object) 0 : (Object) 0.0;
+                        return method.getName().equals("getInt") ? (Object) ((Number) value).intValue() : (Object) ((Number) value).doubleValue();
+                    case "wasNull":
+                        return wasNull[0];
+                    default:
+                        return method.invoke(resultSet, args);
+                }
+            });
+        }
+
+        private interface ResultWrapper {
+            Object wrap(Method method, Object[] args, Object result) throws SQLException;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, T target, ResultWrapper resultWrapper) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+                try {
+                    return resultWrapper.wrap(method, args, method.invoke(target, args));
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith(mysqlUrl);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
 }
@@ -0,0 +1,128 @@
+package com.flixr.dao;
+
+import com.flixr.exceptions.DAOException;
+import org.junit.jupiter.api.Test;
+
+import java.sql.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Thomas Thompson
+ * Unit Tests related to the ModelVersionDAO
+ */
+public class ModelVersionDAOTest {
+
+    private static final String CONNECTION_URL = "jdbc:h2:mem:modelVersionDaoTest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 41
+     * Test Type: Unit
+     * Test Name: ModelVersionDAOTest-1
+     *
+     * Ensure that readers keep the active model while a new version is written, that promotion & rollback only move
+     * the pointer row, and that retired versions are dropped
+     * (runs against an in-memory H2 database)
+     */
+    @Test
+    void testVersionedModelPromotionAndRollback() throws SQLException, DAOException {
+
+        try (Connection conn = DriverManager.getConnection(CONNECTION_URL, "sa", "")) {
+            ModelVersionDAO modelVersionDAO = new ModelVersionDAO(CONNECTION_URL, "sa", "");
+
+            // Nothing promoted yet: the unversioned table is served
+            assertEquals(ModelVersionDAO.UNVERSIONED_MODEL_TABLE, modelVersionDAO.getActiveModelTable());
+
+            // Version 1 is only served once it is promoted
+            int version1 = modelVersionDAO.createModelVersion();
+            writeModel(version1, 10);
+            assertEquals(ModelVersionDAO.UNVERSIONED_MODEL_TABLE, modelVersionDAO.getActiveModelTable(), "An incomplete version must not be served!");
+            modelVersionDAO.promoteModelVersion(version1, 10);
+            assertEquals(ModelVersionDAO.getModelTable(version1), modelVersionDAO.getActiveModelTable());
+
+            // While version 2 is being written, version 1 stays active & complete
+            int version2 = modelVersionDAO.createModelVersion();
+            writeModel(version2, 5);
+            assertEquals(ModelVersionDAO.getModelTable(version1), modelVersionDAO.getActiveModelTable(), "Readers must keep the active version!");
+            assertEquals(10, countRows(conn, modelVersionDAO.getActiveModelTable()));
+            modelVersionDAO.promoteModelVersion(version2, 5);
+            assertEquals(version2, modelVersionDAO.getActiveVersion());
+
+            // A failed version cannot be promoted
+            int version3 = modelVersionDAO.createModelVersion();
+            modelVersionDAO.failModelVersion(version3);
+            assertThrows(DAOException.class, () -> modelVersionDAO.promoteModelVersion(version3, 0));
+            assertEquals(version2, modelVersionDAO.getActiveVersion());
+
+            // Rollback re-activates version 1, whose table is still complete
+            assertEquals(version1, modelVersionDAO.rollbackModelVersion());
+            assertEquals(10, countRows(conn, modelVersionDAO.getActiveModelTable()));
+            assertThrows(DAOException.class, modelVersionDAO::rollbackModelVersion, "There is no version before version 1!");
+
+            // Cleanup drops the failed version, and keeps the active version
+            assertEquals(1, modelVersionDAO.dropRetiredModelVersions(2));
+            assertFalse(tableExists(conn, ModelVersionDAO.getModelTable(version3)), "Failed version must be dropped!");
+            assertTrue(tableExists(conn, ModelVersionDAO.getModelTable(version2)));
+
+            // Keeping a single version only keeps the active one
+            assertEquals(1, modelVersionDAO.dropRetiredModelVersions(1));
+            assertFalse(tableExists(conn, ModelVersionDAO.getModelTable(version2)));
+            assertEquals(ModelVersionDAO.getModelTable(version1), modelVersionDAO.getActiveModelTable());
+
+            conn.createStatement().execute("DROP ALL OBJECTS");
+        }
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 58
+     * Test Type: Unit
+     * Test Name: ModelVersionDAOTest-2
+     *
+     * Ensure that only a database without the versioning tables serves the unversioned model, and that any other
+     * database error is reported instead of silently falling back to it
+     */
+    @Test
+    void testActiveModelTableOnlyFallsBackWithoutVersionTables() throws SQLException, DAOException {
+
+        String connectionUrl = "jdbc:h2:mem:modelVersionFallbackTest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+        try (Connection conn = DriverManager.getConnection(connectionUrl, "sa", "")) {
+            ModelVersionDAO modelVersionDAO = new ModelVersionDAO(connectionUrl, "sa", "");
+            assertEquals(ModelVersionDAO.UNVERSIONED_MODEL_TABLE, modelVersionDAO.getActiveModelTable());
+
+            // Versioning tables that cannot be read (ex. a broken schema) must not serve the unversioned model
+            conn.createStatement().execute("CREATE TABLE RecEngineModelPointer(PointerId int NOT NULL)");
+            conn.createStatement().execute("CREATE TABLE RecEngineModelVersions(Version int NOT NULL)");
+            assertThrows(DAOException.class, modelVersionDAO::getActiveModelTable);
+
+            conn.createStatement().execute("DROP ALL OBJECTS");
+        }
+
+        // Database that cannot be reached
+        ModelVersionDAO unreachableModelVersionDAO = new ModelVersionDAO("jdbc:h2:mem:missingDatabase;IFEXISTS=TRUE", "sa", "");
+        assertThrows(DAOException.class, unreachableModelVersionDAO::getActiveModelTable);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private void writeModel(int version, int rowCount) throws DAOException {
+        ModelBulkWriter modelBulkWriter = new ModelBulkWriter(CONNECTION_URL, "sa", "", ModelVersionDAO.getModelTable(version), true, 2, 3, 3);
+        for (int k = 0; k < rowCount; k++) {
+            modelBulkWriter.addEntry(1, k + 2, 0.5, 1.0, 2);
+        }
+        modelBulkWriter.close();
+    }
+
+    private int countRows(Connection conn, String tableName) throws SQLException {
+        ResultSet resultSet = conn.createStatement().executeQuery("SELECT COUNT(*) FROM " + tableName);
+        resultSet.next();
+        return resultSet.getInt(1);
+    }
+
+    private boolean tableExists(Connection conn, String tableName) throws SQLException {
+        ResultSet resultSet = conn.getMetaData().getTables(null, null, tableName.toUpperCase(), null);
+        return resultSet.next();
+    }
+
+}
@@ -7,12 +7,14 @@ import com.flixr.dao.PredictionDAO;
 import com.flixr.exceptions.DAOException;
 import com.flixr.exceptions.EngineException;
 import com.flixr.exceptions.TestException;
+import com.flixr.interfaces.IPredictionDAO;
+import com.flixr.interfaces.IScoringKernel;
+import com.flixr.model.PredictionModel;
+import com.flixr.model.TriangularMatrix;
 import org.junit.jupiter.api.Test;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -77,6 +79,183 @@ class PredictionEngineTest {
     }
 
 
+    /**
+     * @author Thomas Thompson
+     * Test ID: 50
+     * Test Type: Unit
+     * Test Name: PredictionEngineTest-2
+     *
+     * Ensure that the top "X" predictions are exactly the first "X" of all sorted predictions (ties included),
+     * for both scoring kernels, and that asking for more predictions than available returns all of them
+     */
+    @Test
+    void testTopXMoviePredictionsMatchSortedPredictions() throws EngineException {
+
+        // Model with many tied differences (multiples of 0.5), no database needed
+        PredictionModel predictionModel = createTiedModel(200);
+        IPredictionDAO predictionDAO = () -> predictionModel;
+        UserSubmission userSubmission = createTiedUserSubmission();
+        List<Integer> listOfMovieIdsNotRatedByUser = new ArrayList<>();
+        for (int movieId = 1; movieId <= 200; movieId++) {
+            listOfMovieIdsNotRatedByUser.add(movieId);
+        }
+
+        for (ScoringMode scoringMode : ScoringMode.values()) {
+            PredictionEngine predictionEngine = new PredictionEngine(userSubmission, listOfMovieIdsNotRatedByUser, predictionDAO);
+            predictionEngine.setScoringMode(scoringMode);
+            predictionEngine.generatePredictions();
+            List<Prediction> allPredictions = predictionEngine.getAllMoviePredictions();
+            assertEquals(200, allPredictions.size());
+
+            for (int numberOfPredictions : new int[] {100, 10, 1, 0, 200, 250}) {
+                List<Prediction> predictions = predictionEngine.getTopXMoviePredictions(numberOfPredictions);
+                List<Prediction> expectedPredictions = allPredictions.subList(0, Math.min(numberOfPredictions, allPredictions.size()));
+                assertEquals(expectedPredictions.size(), predictions.size(), "Must return min(X, available) predictions!");
+                for (int k = 0; k < predictions.size(); k++) {
+                    assertEquals(expectedPredictions.get(k).getMovieId(), predictions.get(k).getMovieId(),
+                            scoringMode + " top " + numberOfPredictions + " must match the sorted predictions at " + k);
+                    assertEquals(expectedPredictions.get(k).getPredictedRating(), predictions.get(k).getPredictedRating(), 0.0);
+                }
+            }
+        }
+
+        // No unrated movies
+        PredictionEngine predictionEngine = new PredictionEngine(userSubmission, new ArrayList<>(), predictionDAO);
+        predictionEngine.generatePredictions();
+        assertTrue(predictionEngine.getTopXMoviePredictions(NUM_OF_MOVIE_PREDICIONS).isEmpty());
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 52
+     * Test Type: Unit
+     * Test Name: PredictionEngineTest-3
+     *
+     * Ensure that a request scored in partitions on a pool gives exactly the predictions of a single thread
+     * (same movies, same order, same bits), for both scoring kernels, and that the merged top "X" of the partitions
+     * matches the top "X" of a single selection. A small request must stay on the request thread
+     */
+    @Test
+    void testPartitionedScoringMatchesSingleThread() throws EngineException {
+
+        PredictionModel predictionModel = createTiedModel(1000);
+        IPredictionDAO predictionDAO = () -> predictionModel;
+        UserSubmission userSubmission = createTiedUserSubmission();
+        List<Integer> listOfMovieIdsNotRatedByUser = new ArrayList<>();
+        for (int movieId = 1000; movieId >= 1; movieId--) {
+            listOfMovieIdsNotRatedByUser.add(movieId); // not in Matrix Index order
+        }
+
+        ForkJoinPool scoringPool = new ForkJoinPool(4);
+        try {
+            for (ScoringMode scoringMode : ScoringMode.values()) {
+                PredictionEngine singleEngine = new PredictionEngine(userSubmission, listOfMovieIdsNotRatedByUser, predictionDAO);
+                singleEngine.setScoringMode(scoringMode);
+                singleEngine.setParallelism(scoringPool, Long.MAX_VALUE);
+                singleEngine.generatePredictions();
+                assertEquals(1, singleEngine.getPartitionCount(), "A small request must stay on the request thread!");
+
+                for (int partitionWork : new int[] {1, 2000}) {
+                    PredictionEngine partitionedEngine = new PredictionEngine(userSubmission, listOfMovieIdsNotRatedByUser, predictionDAO);
+                    partitionedEngine.setScoringMode(scoringMode);
+                    partitionedEngine.setParallelism(scoringPool, partitionWork);
+                    partitionedEngine.generatePredictions();
+                    assertTrue(partitionedEngine.getPartitionCount() > 1, "A large request must be split into partitions!");
+                    assertTrue(partitionedEngine.getPartitionCount() <= 4, "At most one partition per worker!");
+
+                    List<Prediction> expectedPredictions = singleEngine.getAllMoviePredictions();
+                    List<Prediction> predictions = partitionedEngine.getAllMoviePredictions();
+                    assertEquals(expectedPredictions.size(), predictions.size());
+                    for (int k = 0; k < predictions.size(); k++) {
+                        assertEquals(expectedPredictions.get(k).getMovieId(), predictions.get(k).getMovieId());
+                        assertEquals(Double.doubleToLongBits(expectedPredictions.get(k).getPredictedRating()),
+                                Double.doubleToLongBits(predictions.get(k).getPredictedRating()), scoringMode + " predictions must be identical!");
+                    }
+                    for (int numberOfPredictions : new int[] {1, 10, 333, 1000, 2000}) {
+                        List<Prediction> expectedTop = singleEngine.getTopXMoviePredictions(numberOfPredictions);
+                        List<Prediction> top = partitionedEngine.getTopXMoviePredictions(numberOfPredictions);
+                        assertEquals(expectedTop.size(), top.size());
+                        for (int k = 0; k < top.size(); k++) {
+                            assertEquals(expectedTop.get(k).getMovieId(), top.get(k).getMovieId(),
+                                    "Merged top " + numberOfPredictions + " must match a single selection at " + k);
+                        }
+                    }
+                }
+            }
+        } finally {
+            scoringPool.shutdown();
+        }
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 54
+     * Test Type: Unit
+     * Test Name: PredictionEngineTest-4
+     *
+     * Ensure that every scoring kernel (the Vector API kernel if this JVM provides it, otherwise the scalar fallback)
+     * gives the same bits as the scalar kernel, for runs of every length (vector loop + scalar tail) at any offset
+     */
+    @Test
+    void testScoringKernelsGiveIdenticalResults() {
+
+        IScoringKernel scalarKernel = ScoringKernels.createScoringKernel(ScoringBackend.SCALAR);
+        Random random = new Random(42);
+        double[] values = new double[100];
+        for (int t = 0; t < values.length; t++) values[t] = random.nextDouble() * 9 - 4.5;
+
+        for (ScoringBackend scoringBackend : ScoringBackend.values()) {
+            IScoringKernel scoringKernel = ScoringKernels.createScoringKernel(scoringBackend);
+            for (int length = 0; length <= 40; length++) {
+                int valuesFrom = length % 7;
+                int accumulatorFrom = length % 5;
+                double[] expected = new double[50];
+                double[] accumulator = new double[50];
+                for (double rating : new double[] {0.5, 3.5, 5.0}) {
+                    scalarKernel.addRun(rating, values, valuesFrom, expected, accumulatorFrom, length);
+                    scoringKernel.addRun(rating, values, valuesFrom, accumulator, accumulatorFrom, length);
+                }
+                assertArrayEquals(expected, accumulator, 0.0, scoringKernel.getName() + " sums of length " + length + " must be identical!");
+
+                scalarKernel.divide(expected, accumulatorFrom, 3, expected, 0, length);
+                scoringKernel.divide(accumulator, accumulatorFrom, 3, accumulator, 0, length);
+                assertArrayEquals(expected, accumulator, 0.0, scoringKernel.getName() + " averages of length " + length + " must be identical!");
+            }
+        }
+        assertEquals("Scalar", scalarKernel.getName());
+    }
+
+
+    // Model of the unrated movies 1..movieCount & the rated movies 1001..1005 (movieCount < 1001), with many tied
+    // differences (multiples of 0.5)
+    private PredictionModel createTiedModel(int movieCount) {
+        Set<Integer> movieIds = new TreeSet<>();
+        for (int movieId = 1; movieId <= movieCount; movieId++) movieIds.add(movieId);
+        for (int movieId = 1001; movieId <= 1005; movieId++) movieIds.add(movieId);
+        HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+        for (int movieId : movieIds) movieIdToMatrixIndex.put(movieId, movieIdToMatrixIndex.size());
+        TriangularMatrix correlationMatrix = new TriangularMatrix(movieIds.size());
+        for (int movieId_i : movieIds) {
+            for (int movieId_j : movieIds) {
+                int i = movieIdToMatrixIndex.get(movieId_i);
+                int j = movieIdToMatrixIndex.get(movieId_j);
+                if (i < j) correlationMatrix.set(i, j, ((movieId_i * 31 + movieId_j * 17) % 7) * 0.5 - 1.5);
+            }
+        }
+        return new PredictionModel(movieIds, movieIdToMatrixIndex, correlationMatrix, 0);
+    }
+
+    private UserSubmission createTiedUserSubmission() {
+        UserSubmission userSubmission = new UserSubmission(TEST_USER_ID);
+        for (int movieId = 1001; movieId <= 1005; movieId++) {
+            userSubmission.addMovieRating(movieId, 0.5 * (movieId % 10));
+        }
+        return userSubmission;
+    }
+
+
     // -----------------------------------------------------------------------------------------------------------------
 
     // Test Oracle
@@ -0,0 +1,369 @@
+package com.flixr.engine;
+
+import com.flixr.beans.UserSubmission;
+import com.flixr.exceptions.EngineException;
+import com.flixr.model.ModelStatistics;
+import com.flixr.model.PredictionModel;
+import com.flixr.model.RatingsSnapshot;
+import com.flixr.model.TriangularMatrix;
+import com.flixr.threads.ReadModelCsvThread;
+import com.flixr.threads.RecEngineScheduler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static com.flixr.utils.helpers.RatingsFileReader.readRatings;
+import static com.flixr.configuration.ApplicationConstants.SPARSE_MODEL_OUTPUT;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Thomas Thompson
+ * Unit Tests related to the RecommendationEngine
+ */
+class RecommendationEngineTest {
+
+    private static String TEST_RATINGS_FILE = "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv";
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 27
+     * Test Type: Unit
+     * Test Name: RecommendationEngineTest-1
+     *
+     * Ensure that the USER_CENTRIC kernel produces a byte-identical model to the PAIRWISE kernel
+     * The full movie list is split into sublists (as done for multi-threading) to also check the row offsets
+     */
+    @Test
+    void testTrainingModesProduceIdenticalModels(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + TEST_RATINGS_FILE, sortedListOfAllMovieIds, userSubmissions);
+
+        // Split movies into 3 uneven sublists
+        List<Integer> listOfAllMovieIds = new ArrayList<>(sortedListOfAllMovieIds);
+        int[] splitIndxs = new int[] {0, 7, listOfAllMovieIds.size() / 2, listOfAllMovieIds.size()};
+
+        for (int part = 1; part < splitIndxs.length; part++) {
+            TreeSet<Integer> subListOfMovieIds = new TreeSet<>(listOfAllMovieIds.subList(splitIndxs[part-1], splitIndxs[part]));
+
+            Path pairwiseOutput = outputDirectory.resolve("pairwise-" + part + ".csv");
+            Path userCentricOutput = outputDirectory.resolve("user-centric-" + part + ".csv");
+            trainModel(TrainingMode.PAIRWISE, subListOfMovieIds, sortedListOfAllMovieIds, userSubmissions, pairwiseOutput);
+            trainModel(TrainingMode.USER_CENTRIC, subListOfMovieIds, sortedListOfAllMovieIds, userSubmissions, userCentricOutput);
+
+            assertArrayEquals(Files.readAllBytes(pairwiseOutput), Files.readAllBytes(userCentricOutput),
+                    "Training modes must produce identical models for sublist " + part + "!");
+        }
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 29
+     * Test Type: Unit
+     * Test Name: RecommendationEngineTest-2
+     *
+     * Ensure that the SPARSE accumulator produces a byte-identical model to the DENSE accumulator,
+     * while only storing the co-rated movie pairs
+     */
+    @Test
+    void testAccumulatorTypesProduceIdenticalModels(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + TEST_RATINGS_FILE, sortedListOfAllMovieIds, userSubmissions);
+
+        // Train with both accumulators
+        RecommendationEngine denseEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds, AccumulatorType.DENSE);
+        RecommendationEngine sparseEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds, AccumulatorType.SPARSE);
+        Path denseOutput = outputDirectory.resolve("dense.csv");
+        Path sparseOutput = outputDirectory.resolve("sparse.csv");
+        for (RecommendationEngine recommendationEngine : new RecommendationEngine[] {denseEngine, sparseEngine}) {
+            recommendationEngine.setUserSubmissions(userSubmissions);
+            recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+            recommendationEngine.generateCorrelationMatrix();
+        }
+        denseEngine.saveModelToCSV(denseOutput.toString());
+        sparseEngine.saveModelToCSV(sparseOutput.toString());
+
+        assertArrayEquals(Files.readAllBytes(denseOutput), Files.readAllBytes(sparseOutput), "Accumulator types must produce identical models!");
+        assertEquals(denseEngine.getCorrelationAccumulator().getNonZeroCount(), sparseEngine.getCorrelationAccumulator().getNonZeroCount(),
+                "Both accumulators must hold the same co-rated pairs!");
+        assertTrue(sparseEngine.getCorrelationAccumulator().getEstimatedMemoryBytes() < denseEngine.getCorrelationAccumulator().getEstimatedMemoryBytes(),
+                "Sparse accumulator must use less memory than the dense matrix!");
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 30
+     * Test Type: Unit
+     * Test Name: RecommendationEngineTest-3
+     *
+     * Ensure that the EXTERNAL accumulator (spilled to many small run files) produces a byte-identical model
+     * to the DENSE accumulator, and cleans up its run files once the model is saved (or closed without being saved)
+     */
+    @Test
+    void testExternalAccumulatorProducesIdenticalModel(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + TEST_RATINGS_FILE, sortedListOfAllMovieIds, userSubmissions);
+
+        // Tiny memory budget, so the deltas are spilled to many run files
+        Path spillDirectory = Files.createDirectory(outputDirectory.resolve("spill"));
+        int movieCount = sortedListOfAllMovieIds.size();
+        ExternalCorrelationAccumulator externalAccumulator = new ExternalCorrelationAccumulator(movieCount, movieCount,
+                64 * 1024, 1, spillDirectory.toFile());
+
+        // Train with both accumulators
+        RecommendationEngine denseEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds, AccumulatorType.DENSE);
+        RecommendationEngine externalEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds, externalAccumulator);
+        Path denseOutput = outputDirectory.resolve("dense.csv");
+        Path externalOutput = outputDirectory.resolve("external.csv");
+        for (RecommendationEngine recommendationEngine : new RecommendationEngine[] {denseEngine, externalEngine}) {
+            recommendationEngine.setUserSubmissions(userSubmissions);
+            recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+            recommendationEngine.generateCorrelationMatrix();
+        }
+        denseEngine.saveModelToCSV(denseOutput.toString());
+        externalEngine.saveModelToCSV(externalOutput.toString());
+
+        assertTrue(externalAccumulator.getRunFileCount() > 1, "Tiny memory budget must spill more than one run file!");
+        assertArrayEquals(Files.readAllBytes(denseOutput), Files.readAllBytes(externalOutput), "External accumulator must produce an identical model!");
+        assertEquals(denseEngine.getCorrelationAccumulator().getNonZeroCount(), externalAccumulator.getNonZeroCount(),
+                "Both accumulators must hold the same co-rated pairs!");
+        assertEquals(0, spillDirectory.toFile().list().length, "Run files must be deleted once merged!");
+
+        // A failed training or save closes the accumulator before its rows are merged
+        ExternalCorrelationAccumulator unsavedAccumulator = new ExternalCorrelationAccumulator(movieCount, movieCount,
+                64 * 1024, 1, spillDirectory.toFile());
+        RecommendationEngine unsavedEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds, unsavedAccumulator);
+        unsavedEngine.setUserSubmissions(userSubmissions);
+        unsavedEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        unsavedEngine.generateCorrelationMatrix();
+        assertTrue(spillDirectory.toFile().list().length > 0, "Tiny memory budget must spill run files during training!");
+        unsavedAccumulator.close();
+        assertEquals(0, spillDirectory.toFile().list().length, "Run files must be deleted when the accumulator is closed!");
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 31
+     * Test Type: Unit
+     * Test Name: RecommendationEngineTest-4
+     *
+     * Ensure that a triangular model holds exactly the upper triangle of the full model,
+     * and that every lower triangle value of the full model is its mirror: (j, i) = -(i, j)
+     */
+    @Test
+    void testTriangularModelMirrorsFullModel(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + TEST_RATINGS_FILE, sortedListOfAllMovieIds, userSubmissions);
+
+        // Train both layouts
+        Path fullOutput = outputDirectory.resolve("full.csv");
+        Path triangularOutput = outputDirectory.resolve("triangular.csv");
+        for (boolean triangular : new boolean[] {false, true}) {
+            RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+            recommendationEngine.setUserSubmissions(userSubmissions);
+            recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+            recommendationEngine.setTriangular(triangular);
+            recommendationEngine.generateCorrelationMatrix();
+            recommendationEngine.saveModelToCSV((triangular ? triangularOutput : fullOutput).toString());
+        }
+
+        // Triangular model must be the upper triangle of the full model
+        List<String> fullLines = Files.readAllLines(fullOutput);
+        List<String> triangularLines = Files.readAllLines(triangularOutput);
+        int movieCount = sortedListOfAllMovieIds.size();
+        Map<String, String> upperTriangle = new HashMap<>();
+        int diagonalLineCount = 0;
+        for (String line : triangularLines.subList(1, triangularLines.size())) {
+            String[] input = line.split(",");
+            if (input[0].equals(input[1])) {
+                diagonalLineCount++;
+                continue;
+            }
+            assertTrue(Integer.parseInt(input[0]) < Integer.parseInt(input[1]), "Triangular model must only hold the cells above the diagonal: " + line);
+            upperTriangle.put(input[0] + "," + input[1], input[2]);
+        }
+
+        // A sparse model only lists the diagonal of every movie & the co-rated pairs
+        assertEquals(SPARSE_MODEL_OUTPUT ? movieCount : 0, diagonalLineCount, "Sparse model must list each movie once on the diagonal!");
+        assertEquals(fullLines.size() - 1 - movieCount, 2 * upperTriangle.size(), "Triangular model must hold half of the off-diagonal cells!");
+        if (!SPARSE_MODEL_OUTPUT) {
+            assertEquals(movieCount * (movieCount - 1) / 2, upperTriangle.size(), "Triangular model must only hold the cells above the diagonal!");
+        }
+        for (String line : fullLines.subList(1, fullLines.size())) {
+            String[] input = line.split(",");
+            int movieId_i = Integer.parseInt(input[0]);
+            int movieId_j = Integer.parseInt(input[1]);
+            if (movieId_i < movieId_j) {
+                assertEquals(input[2], upperTriangle.get(input[0] + "," + input[1]), "Upper triangle must match the full model: " + line);
+            }
+            else if (movieId_i > movieId_j) {
+                double mirroredValue = 0.0 - Double.parseDouble(upperTriangle.get(input[1] + "," + input[0]));
+                assertEquals(input[2], Double.toString(mirroredValue), "Lower triangle must mirror the upper triangle: " + line);
+            }
+            else {
+                assertEquals("0.0", input[2], "Matrix diagonal must be 0.0!");
+            }
+        }
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 34
+     * Test Type: Unit
+     * Test Name: RecommendationEngineTest-5
+     *
+     * Ensure that delta training a stored model (with its Sums & Counts) on changed, added & removed ratings
+     * produces a byte-identical model to a full re-train on the new ratings
+     */
+    @Test
+    void testDeltaTrainingMatchesFullReTrain(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + TEST_RATINGS_FILE, sortedListOfAllMovieIds, userSubmissions);
+
+        // Train & save the stored model (with its statistics)
+        Path storedOutput = outputDirectory.resolve("stored.csv");
+        trainTriangularModel(sortedListOfAllMovieIds, userSubmissions, storedOutput);
+        assertTrue(Files.readAllLines(storedOutput).get(0).endsWith("ratingCount"), "Stored model must include its Sums & Counts!");
+
+        // Change the ratings: 1st user changes ratings, 2nd user removes ratings, 3rd user is removed, a new user is added
+        List<Integer> userIds = new ArrayList<>(userSubmissions.keySet());
+        List<Integer> movieIds = new ArrayList<>(sortedListOfAllMovieIds);
+        TreeMap<Integer, UserSubmission> newUserSubmissions = new TreeMap<>(userSubmissions);
+        newUserSubmissions.put(userIds.get(0), copySubmission(userSubmissions.get(userIds.get(0)), 2, 1.5));
+        newUserSubmissions.put(userIds.get(1), copySubmission(userSubmissions.get(userIds.get(1)), 3, null));
+        newUserSubmissions.remove(userIds.get(2));
+        int newUserId = userIds.get(userIds.size() - 1) + 1;
+        UserSubmission newUser = new UserSubmission(newUserId);
+        for (int k = 0; k < movieIds.size(); k += 5) {
+            newUser.addMovieRating(movieIds.get(k), 0.5 + (k % 10) * 0.5);
+        }
+        newUserSubmissions.put(newUserId, newUser);
+
+        // Load the stored model & apply the changed users only
+        int movieCount = sortedListOfAllMovieIds.size();
+        HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+        for (int movieId : sortedListOfAllMovieIds) movieIdToMatrixIndex.put(movieId, movieIdToMatrixIndex.size());
+        TriangularMatrix correlationMatrix = new TriangularMatrix(movieCount);
+        ModelStatistics modelStatistics = new ModelStatistics(movieCount);
+        new ReadModelCsvThread(1, storedOutput.toString(), movieIdToMatrixIndex, correlationMatrix, modelStatistics).run();
+        PredictionModel storedModel = new PredictionModel(sortedListOfAllMovieIds, movieIdToMatrixIndex, correlationMatrix, modelStatistics, 0);
+
+        ModelDeltaTrainer modelDeltaTrainer = new ModelDeltaTrainer(storedModel);
+        for (int userId : new int[] {userIds.get(0), userIds.get(1), userIds.get(2), newUserId}) {
+            modelDeltaTrainer.applyUserChange(userSubmissions.get(userId), newUserSubmissions.get(userId));
+        }
+        modelDeltaTrainer.saveModelToCSV(outputDirectory.resolve("delta").toString(), 1);
+
+        // Fully re-train on the new ratings
+        Path reTrainedOutput = outputDirectory.resolve("re-trained.csv");
+        trainTriangularModel(sortedListOfAllMovieIds, newUserSubmissions, reTrainedOutput);
+
+        assertEquals(4, modelDeltaTrainer.getChangedUserCount());
+        assertEquals(0, modelDeltaTrainer.getSkippedRatingCount(), "All movies are in the stored model!");
+        assertArrayEquals(Files.readAllBytes(reTrainedOutput), Files.readAllBytes(outputDirectory.resolve("delta-1-of-1.csv")),
+                "Delta training must produce the same model as a full re-train!");
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 36
+     * Test Type: Unit
+     * Test Name: RecommendationEngineTest-6
+     *
+     * Ensure that a ratings snapshot holds the same ratings as the UserSubmissions it was written from,
+     * and that training on the memory-mapped snapshot produces a byte-identical model
+     */
+    @Test
+    void testRatingsSnapshotProducesIdenticalModel(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + TEST_RATINGS_FILE, sortedListOfAllMovieIds, userSubmissions);
+
+        // Write & map the snapshot
+        File snapshotFile = outputDirectory.resolve("ratings-snapshot.bin").toFile();
+        RatingsSnapshot.write(snapshotFile, userSubmissions);
+        RatingsSnapshot ratingsSnapshot = RatingsSnapshot.open(snapshotFile);
+        assertEquals(sortedListOfAllMovieIds, ratingsSnapshot.getMovieIds());
+        assertEquals(userSubmissions.size(), ratingsSnapshot.getUserCount());
+        for (UserSubmission userSubmission : ratingsSnapshot.toUserSubmissions().values()) {
+            UserSubmission expectedUserSubmission = userSubmissions.get(userSubmission.getUserId());
+            assertEquals(expectedUserSubmission.getRatingCount(), userSubmission.getRatingCount());
+            for (int movieId : userSubmission.getMoviesViewed()) {
+                assertEquals(expectedUserSubmission.getMovieRating(movieId), userSubmission.getMovieRating(movieId),
+                        "Snapshot rating must match for user " + userSubmission.getUserId() + ", movie " + movieId);
+            }
+        }
+
+        // Train on both
+        Path submissionsOutput = outputDirectory.resolve("submissions");
+        Path snapshotOutput = outputDirectory.resolve("snapshot");
+        RecEngineScheduler submissionsScheduler = new RecEngineScheduler(sortedListOfAllMovieIds, userSubmissions, TrainingMode.USER_CENTRIC, 2);
+        RecEngineScheduler snapshotScheduler = new RecEngineScheduler(ratingsSnapshot, TrainingMode.USER_CENTRIC, 2);
+        submissionsScheduler.generateCorrelationMatrix();
+        snapshotScheduler.generateCorrelationMatrix();
+        submissionsScheduler.saveModelToCSV(submissionsOutput.toString(), 1);
+        snapshotScheduler.saveModelToCSV(snapshotOutput.toString(), 1);
+
+        assertArrayEquals(Files.readAllBytes(outputDirectory.resolve("submissions-1-of-1.csv")), Files.readAllBytes(outputDirectory.resolve("snapshot-1-of-1.csv")),
+                "Training on a ratings snapshot must produce an identical model!");
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    private void trainTriangularModel(TreeSet<Integer> listOfAllMovieIds, Map<Integer, UserSubmission> userSubmissions, Path outputFile) throws EngineException {
+        RecommendationEngine recommendationEngine = new RecommendationEngine(listOfAllMovieIds, listOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        recommendationEngine.setTriangular(true);
+        recommendationEngine.generateCorrelationMatrix();
+        recommendationEngine.saveModelToCSV(outputFile.toString());
+    }
+
+    // Copies a submission, either changing every ratingStep-th rating to newRating or (if newRating is null) dropping it
+    private UserSubmission copySubmission(UserSubmission userSubmission, int ratingStep, Double newRating) {
+        UserSubmission copy = new UserSubmission(userSubmission.getUserId());
+        List<Integer> moviesViewed = userSubmission.getMoviesViewed();
+        for (int k = 0; k < moviesViewed.size(); k++) {
+            double rating = userSubmission.getMovieRating(moviesViewed.get(k));
+            if (k % ratingStep != 0) {
+                copy.addMovieRating(moviesViewed.get(k), rating);
+            }
+            else if (newRating != null) {
+                copy.addMovieRating(moviesViewed.get(k), newRating);
+            }
+        }
+        return copy;
+    }
+
+    private void trainModel(TrainingMode trainingMode, TreeSet<Integer> subListOfMovieIds, TreeSet<Integer> listOfAllMovieIds,
+                            Map<Integer, UserSubmission> userSubmissions, Path outputFile) throws EngineException {
+        RecommendationEngine recommendationEngine = new RecommendationEngine(subListOfMovieIds, listOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(trainingMode);
+        recommendationEngine.generateCorrelationMatrix();
+        recommendationEngine.saveModelToCSV(outputFile.toString());
+    }
+
+}
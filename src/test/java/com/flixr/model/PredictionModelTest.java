@@ -0,0 +1,666 @@
+package com.flixr.model;
+
+import com.flixr.beans.ModelRegistryMetrics;
+import com.flixr.beans.UserSubmission;
+import com.flixr.engine.RecommendationEngine;
+import com.flixr.engine.TrainingMode;
+import com.flixr.exceptions.EngineException;
+import com.flixr.threads.ParallelModelCsvReader;
+import com.flixr.threads.ReadModelCsvThread;
+import com.flixr.threads.RecEngineScheduler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static com.flixr.utils.helpers.RatingsFileReader.readRatings;
+import static com.flixr.configuration.ApplicationConstants.SAVE_MODEL_STATISTICS;
+import static com.flixr.configuration.ApplicationConstants.SPARSE_MODEL_OUTPUT;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Thomas Thompson
+ * Unit Tests related to the shared PredictionModel
+ */
+class PredictionModelTest {
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 26
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-1
+     *
+     * Ensure that the shared model returns the stored correlations, and treats unknown movies as "no correlation"
+     */
+    @Test
+    void testGetAveragePreferenceDifference() {
+
+        // Build a small 2x2 model
+        Set<Integer> movieIds = new TreeSet<>();
+        movieIds.add(100);
+        movieIds.add(200);
+        HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+        movieIdToMatrixIndex.put(100, 0);
+        movieIdToMatrixIndex.put(200, 1);
+        TriangularMatrix correlationMatrix = new TriangularMatrix(2);
+        correlationMatrix.set(0, 1, 1.5);
+        PredictionModel predictionModel = new PredictionModel(movieIds, movieIdToMatrixIndex, correlationMatrix, 0);
+
+        // Known movies
+        assertEquals(1.5, predictionModel.getAveragePreferenceDifference(100, 200));
+        assertEquals(-1.5, predictionModel.getAveragePreferenceDifference(200, 100));
+
+        // Unknown movies must not throw
+        assertEquals(0.0, predictionModel.getAveragePreferenceDifference(100, 300));
+
+        // Memory must at least cover the matrix values
+        assertTrue(predictionModel.getEstimatedMemoryBytes() >= 8, "Memory estimate must include the matrix!");
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 32
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-2
+     *
+     * Ensure that a triangular model file and a full model file load into the same packed matrix,
+     * which returns the full model's value for every (i, j)
+     */
+    @Test
+    void testTriangularAndFullModelsLoadIdentically(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv", sortedListOfAllMovieIds, userSubmissions);
+        HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+        for (int movieId : sortedListOfAllMovieIds) {
+            movieIdToMatrixIndex.put(movieId, movieIdToMatrixIndex.size());
+        }
+
+        // Train & load both layouts
+        int movieCount = sortedListOfAllMovieIds.size();
+        TriangularMatrix fullModel = new TriangularMatrix(movieCount);
+        TriangularMatrix triangularModel = new TriangularMatrix(movieCount);
+        double[][] expectedMatrix = new double[movieCount][movieCount];
+        for (boolean triangular : new boolean[] {false, true}) {
+            String outputFile = outputDirectory.resolve(triangular ? "triangular.csv" : "full.csv").toString();
+            RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+            recommendationEngine.setUserSubmissions(userSubmissions);
+            recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+            recommendationEngine.setTriangular(triangular);
+            recommendationEngine.generateCorrelationMatrix();
+            recommendationEngine.saveModelToCSV(outputFile);
+
+            new ReadModelCsvThread(1, outputFile, movieIdToMatrixIndex, triangular ? triangularModel : fullModel).run();
+            if (!triangular) readMatrix(outputFile, movieIdToMatrixIndex, expectedMatrix);
+        }
+
+        // Both must match the full (unpacked) matrix
+        for (int i = 0; i < movieCount; i++) {
+            for (int j = 0; j < movieCount; j++) {
+                assertEquals(expectedMatrix[i][j], fullModel.get(i, j), "Full model mismatch at (" + i + ", " + j + ")");
+                assertEquals(expectedMatrix[i][j], triangularModel.get(i, j), "Triangular model mismatch at (" + i + ", " + j + ")");
+            }
+        }
+        assertTrue(triangularModel.getEstimatedMemoryBytes() < 8L * movieCount * movieCount / 2 + 64, "Packed matrix must hold half of the cells!");
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 33
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-3
+     *
+     * Ensure that new and changed ratings applied online give the same model as a full re-train on the final ratings
+     */
+    @Test
+    void testOnlineRatingUpdatesMatchRetrainedModel() throws IOException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv", sortedListOfAllMovieIds, userSubmissions);
+
+        // Hold back the last 5 ratings of the first user, they are added online
+        int userId = userSubmissions.firstKey();
+        Map<Integer, Double> finalRatings = new LinkedHashMap<>();
+        UserSubmission fullSubmission = userSubmissions.get(userId);
+        for (int k = 0; k < fullSubmission.getMoviesViewed().size(); k++) {
+            finalRatings.putIfAbsent(fullSubmission.getMoviesViewed().get(k), fullSubmission.getMovieRatings().get(k));
+        }
+        List<Integer> ratedMovieIds = new ArrayList<>(finalRatings.keySet());
+        List<Integer> heldBackMovieIds = ratedMovieIds.subList(ratedMovieIds.size() - 5, ratedMovieIds.size());
+        Map<Integer, Double> currentRatings = new LinkedHashMap<>(finalRatings);
+        currentRatings.keySet().removeAll(heldBackMovieIds);
+
+        // Train on the initial ratings
+        userSubmissions.put(userId, toUserSubmission(userId, currentRatings));
+        PredictionModel onlineModel = trainModel(sortedListOfAllMovieIds, userSubmissions);
+        assertTrue(onlineModel.hasModelStatistics(), "Trained model must keep its statistics!");
+
+        // Add the held back ratings online
+        for (int movieId : heldBackMovieIds) {
+            int updatedPairs = onlineModel.applyRating(movieId, null, finalRatings.get(movieId), new HashMap<>(currentRatings));
+            assertEquals(currentRatings.size(), updatedPairs, "Every co-rated movie pair must be updated!");
+            currentRatings.put(movieId, finalRatings.get(movieId));
+        }
+
+        // Change one of the initial ratings online (DELETE + INSERT)
+        int changedMovieId = ratedMovieIds.get(0);
+        double previousRating = finalRatings.get(changedMovieId);
+        double changedRating = previousRating >= 5.0 ? previousRating - 1.5 : previousRating + 0.5;
+        finalRatings.put(changedMovieId, changedRating);
+        Map<Integer, Double> otherRatings = new HashMap<>(currentRatings);
+        otherRatings.remove(changedMovieId);
+        onlineModel.applyRating(changedMovieId, previousRating, changedRating, otherRatings);
+
+        // Re-train on the final ratings
+        userSubmissions.put(userId, toUserSubmission(userId, finalRatings));
+        PredictionModel retrainedModel = trainModel(sortedListOfAllMovieIds, userSubmissions);
+
+        for (int movieId_i : sortedListOfAllMovieIds) {
+            for (int movieId_j : sortedListOfAllMovieIds) {
+                assertEquals(retrainedModel.getAveragePreferenceDifference(movieId_i, movieId_j),
+                        onlineModel.getAveragePreferenceDifference(movieId_i, movieId_j), 1e-9,
+                        "Online model must match the re-trained model at (" + movieId_i + ", " + movieId_j + ")");
+            }
+        }
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 37
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-4
+     *
+     * Ensure that a memory-mapped binary model serves the same correlations as the model it was saved from,
+     * without holding the values on the heap
+     */
+    @Test
+    void testBinaryModelMatchesTrainedModel(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv", sortedListOfAllMovieIds, userSubmissions);
+
+        // Train, save & map the binary model
+        RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        recommendationEngine.generateCorrelationMatrix();
+        File modelFile = outputDirectory.resolve("model.bin").toFile();
+        recommendationEngine.saveModelToBinary(modelFile.toString(), ModelEncoding.FLOAT64);
+        PredictionModel trainedModel = recommendationEngine.createPredictionModel();
+        PredictionModel mappedModel = BinaryModelFile.map(modelFile);
+
+        assertEquals(BinaryModelFile.getFileBytes(sortedListOfAllMovieIds.size(), ModelEncoding.FLOAT64), modelFile.length());
+        assertEquals(sortedListOfAllMovieIds, mappedModel.getDistinctMovieIds());
+        for (int movieId_i : sortedListOfAllMovieIds) {
+            for (int movieId_j : sortedListOfAllMovieIds) {
+                assertEquals(trainedModel.getAveragePreferenceDifference(movieId_i, movieId_j),
+                        mappedModel.getAveragePreferenceDifference(movieId_i, movieId_j),
+                        "Binary model must match the trained model at (" + movieId_i + ", " + movieId_j + ")");
+            }
+        }
+        assertEquals(0, mappedModel.getAveragePreferenceDifference(-1, sortedListOfAllMovieIds.first()), "Unknown movies have no correlation!");
+        assertFalse(mappedModel.hasModelStatistics(), "Binary model is read-only!");
+        assertTrue(mappedModel.getEstimatedMemoryBytes() < trainedModel.getEstimatedMemoryBytes() / 4, "Binary model values must not be on the heap!");
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 38
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-5
+     *
+     * Ensure that the parallel CSV reader loads any number of model files (split into many chunks) bit-for-bit the same
+     * as the line-by-line reader, and fails loudly on lines it cannot parse or map to the model
+     * The MovieIds read from the files alone must be those of the trained model (also for a dense triangular file)
+     */
+    @Test
+    void testParallelCsvReaderMatchesLineReader(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv", sortedListOfAllMovieIds, userSubmissions);
+        HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+        int[] sortedMovieIds = new int[sortedListOfAllMovieIds.size()];
+        for (int movieId : sortedListOfAllMovieIds) {
+            sortedMovieIds[movieIdToMatrixIndex.size()] = movieId;
+            movieIdToMatrixIndex.put(movieId, movieIdToMatrixIndex.size());
+        }
+
+        // Train & save into 3 files (a number unrelated to the reader's thread count)
+        int movieCount = sortedListOfAllMovieIds.size();
+        RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        recommendationEngine.setTriangular(true);
+        recommendationEngine.generateCorrelationMatrix();
+        int[] splitIndxs = RecEngineScheduler.getMatrixSplitPoints(movieCount, 3);
+        List<File> modelCsvFiles = new ArrayList<>();
+        TriangularMatrix expectedMatrix = new TriangularMatrix(movieCount);
+        for (int i = 1; i <= 3; i++) {
+            File modelCsvFile = outputDirectory.resolve("model-" + i + "-of-3.csv").toFile();
+            recommendationEngine.saveModelToCSV(modelCsvFile.toString(), splitIndxs[i-1], splitIndxs[i]);
+            new ReadModelCsvThread(i, modelCsvFile.toString(), movieIdToMatrixIndex, expectedMatrix).run();
+            modelCsvFiles.add(modelCsvFile);
+        }
+
+        // MovieIds are read from the files themselves
+        assertArrayEquals(sortedMovieIds, ParallelModelCsvReader.readMovieIds(modelCsvFiles, 7), "Files must list every movie of the model!");
+        File denseModelCsvFile = outputDirectory.resolve("dense.csv").toFile();
+        try (PrintWriter writer = new PrintWriter(denseModelCsvFile)) {
+            writer.println("MovieID_i,MovieId_j,correlation");
+            writer.println("10,20,0.5");
+            writer.println("10,30,-1.0");
+            writer.println("20,30,0.0");
+        }
+        assertArrayEquals(new int[] {10, 20, 30}, ParallelModelCsvReader.readMovieIds(Collections.singletonList(denseModelCsvFile), 2),
+                "Last movie of a dense triangular model has no row of its own!");
+
+        // Parallel load
+        TriangularMatrix parallelMatrix = new TriangularMatrix(movieCount);
+        ModelStatistics modelStatistics = SAVE_MODEL_STATISTICS ? new ModelStatistics(movieCount) : null;
+        ParallelModelCsvReader parallelModelCsvReader = new ParallelModelCsvReader(sortedMovieIds, parallelMatrix, modelStatistics, 7);
+        parallelModelCsvReader.read(modelCsvFiles);
+
+        assertTrue(parallelModelCsvReader.getChunkCount() > modelCsvFiles.size(), "Files must be split into several chunks!");
+        long expectedLineCount = 0;
+        for (File modelCsvFile : modelCsvFiles) expectedLineCount += Files.readAllLines(modelCsvFile.toPath()).size() - 1;
+        assertEquals(expectedLineCount, parallelModelCsvReader.getLineCount(), "Every line must be parsed!");
+        for (int i = 0; i < movieCount; i++) {
+            for (int j = 0; j < movieCount; j++) {
+                assertEquals(Double.doubleToLongBits(expectedMatrix.get(i, j)), Double.doubleToLongBits(parallelMatrix.get(i, j)),
+                        "Parallel reader mismatch at (" + i + ", " + j + ")");
+            }
+        }
+
+        // Lines that refer to an unknown movie, or cannot be parsed, must fail the load
+        for (String badLine : new String[] {"-1," + sortedMovieIds[0] + ",0.5", sortedMovieIds[0] + "," + sortedMovieIds[1] + ",abc"}) {
+            File badModelCsvFile = outputDirectory.resolve("bad.csv").toFile();
+            try (PrintWriter writer = new PrintWriter(badModelCsvFile)) {
+                writer.println("MovieID_i,MovieId_j,correlation");
+                writer.println(badLine);
+            }
+            ParallelModelCsvReader badModelCsvReader = new ParallelModelCsvReader(sortedMovieIds, new TriangularMatrix(movieCount), null, 2);
+            assertThrows(IOException.class, () -> badModelCsvReader.read(Collections.singletonList(badModelCsvFile)), "Bad line must fail the load: " + badLine);
+        }
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 39
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-6
+     *
+     * Ensure that a sparse model file only holds the co-rated pairs (plus a diagonal entry per movie),
+     * and still loads into the exact model it was trained as
+     */
+    @Test
+    void testSparseModelFileMatchesTrainedModel(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv", sortedListOfAllMovieIds, userSubmissions);
+        HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+        for (int movieId : sortedListOfAllMovieIds) {
+            movieIdToMatrixIndex.put(movieId, movieIdToMatrixIndex.size());
+        }
+
+        // Train, save & load
+        int movieCount = sortedListOfAllMovieIds.size();
+        RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        recommendationEngine.setTriangular(true);
+        recommendationEngine.generateCorrelationMatrix();
+        File modelCsvFile = outputDirectory.resolve("model-1-of-1.csv").toFile();
+        recommendationEngine.saveModelToCSV(modelCsvFile.toString());
+        PredictionModel trainedModel = recommendationEngine.createPredictionModel();
+        TriangularMatrix loadedMatrix = new TriangularMatrix(movieCount);
+        new ReadModelCsvThread(1, modelCsvFile.toString(), movieIdToMatrixIndex, loadedMatrix).run();
+
+        // Every movie is listed, and only co-rated pairs are stored
+        List<String> lines = Files.readAllLines(modelCsvFile.toPath());
+        Set<Integer> listedMovieIds = new TreeSet<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] input = line.split(",");
+            listedMovieIds.add(Integer.parseInt(input[0]));
+            listedMovieIds.add(Integer.parseInt(input[1]));
+            if (SPARSE_MODEL_OUTPUT && SAVE_MODEL_STATISTICS && !input[0].equals(input[1])) {
+                assertTrue(Integer.parseInt(input[4]) > 0, "Pairs nobody co-rated must not be saved: " + line);
+            }
+        }
+        assertEquals(sortedListOfAllMovieIds, listedMovieIds, "Sparse model must still list every movie!");
+        if (SPARSE_MODEL_OUTPUT) {
+            assertTrue(lines.size() - 1 < (long) movieCount * (movieCount - 1) / 2, "Sparse model must be smaller than the triangular model!");
+        }
+
+        // Missing pairs load as "no evidence", so every correlation is unchanged
+        for (int movieId_i : sortedListOfAllMovieIds) {
+            for (int movieId_j : sortedListOfAllMovieIds) {
+                assertEquals(Double.doubleToLongBits(trainedModel.getAveragePreferenceDifference(movieId_i, movieId_j)),
+                        Double.doubleToLongBits(loadedMatrix.get(movieIdToMatrixIndex.get(movieId_i), movieIdToMatrixIndex.get(movieId_j))),
+                        "Sparse model must match the trained model at (" + movieId_i + ", " + movieId_j + ")");
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 42
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-7
+     *
+     * Ensure that swapping in a new model does not disturb a request reading the old one,
+     * and that the old model is released once its last reader is done
+     */
+    @Test
+    void testModelSwapKeepsReadersOnTheirSnapshot() throws Exception {
+
+        // Two versions of a small model
+        PredictionModel oldModel = createModel(1.5);
+        PredictionModel newModel = createModel(-0.5);
+
+        try {
+            // A request reads the old model...
+            PredictionModelHolder.publish(oldModel);
+            PredictionModel snapshot = PredictionModelHolder.acquireModel();
+            assertSame(oldModel, snapshot);
+            assertEquals(1, PredictionModelHolder.getMetrics().getActiveReaders());
+
+            // ... while the new model is swapped in
+            long reloadCount = PredictionModelHolder.getMetrics().getReloadCount();
+            PredictionModelHolder.publish(newModel);
+            assertEquals(1.5, snapshot.getAveragePreferenceDifference(100, 200), "Snapshot must not change during a request!");
+            ModelRegistryMetrics metrics = PredictionModelHolder.getMetrics();
+            assertEquals(reloadCount + 1, metrics.getReloadCount());
+            assertEquals(1, metrics.getRetiredModelsInUse(), "Old model must be held until its reader is done!");
+            assertTrue(metrics.getHighWaterModelBytes() >= oldModel.getEstimatedMemoryBytes() + newModel.getEstimatedMemoryBytes(),
+                    "High-water memory must cover both models!");
+            assertTrue(metrics.getLastSwapNanos() >= 0);
+
+            // Old model is released by its last reader, new requests read the new model
+            PredictionModelHolder.releaseModel(snapshot);
+            assertEquals(0, PredictionModelHolder.getMetrics().getRetiredModelsInUse());
+            PredictionModel nextSnapshot = PredictionModelHolder.acquireModel();
+            assertSame(newModel, nextSnapshot);
+            assertEquals(-0.5, nextSnapshot.getAveragePreferenceDifference(100, 200));
+            PredictionModelHolder.releaseModel(nextSnapshot);
+            assertEquals(0, PredictionModelHolder.getMetrics().getActiveReaders());
+
+        } finally {
+            PredictionModelHolder.invalidate(); // other tests load their own model
+        }
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 45
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-8
+     *
+     * Ensure that a tiered model promotes its most read rows onto the heap within the budget, demotes rows that are
+     * no longer read, and serves the same correlations as the untiered model from either tier
+     */
+    @Test
+    void testTieredModelPromotesMostReadRows(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Train, save & map the binary model twice (one tiered)
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv", sortedListOfAllMovieIds, userSubmissions);
+        RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        recommendationEngine.generateCorrelationMatrix();
+        File modelFile = outputDirectory.resolve("model.bin").toFile();
+        recommendationEngine.saveModelToBinary(modelFile.toString());
+        PredictionModel mappedModel = BinaryModelFile.map(modelFile);
+        PredictionModel tieredModel = BinaryModelFile.map(modelFile);
+
+        // Budget of 3 rows
+        int movieCount = sortedListOfAllMovieIds.size();
+        tieredModel.enableTiering(3 * (16 + 8L * movieCount));
+        TieredModelRows tieredRows = tieredModel.getTieredRows();
+        assertEquals(3, tieredRows.getMaxHotRows());
+
+        // Rows 0..4 are read 50, 40, 30, 20 & 10 times
+        List<Integer> movieIds = new ArrayList<>(sortedListOfAllMovieIds);
+        for (int row = 0; row < 5; row++) {
+            for (int read = 0; read < 10 * (5 - row); read++) {
+                tieredModel.getAveragePreferenceDifference(movieIds.get(row), movieIds.get(read % movieCount));
+            }
+        }
+        assertEquals(3, tieredRows.rebalance());
+        assertTrue(tieredRows.isHot(0) && tieredRows.isHot(1) && tieredRows.isHot(2), "Most read rows must be promoted!");
+        assertFalse(tieredRows.isHot(3) || tieredRows.isHot(4), "Hot rows must stay within the budget!");
+        assertEquals(3, tieredRows.getHotRowCount());
+
+        // Both tiers serve the untiered values
+        for (int movieId_i : sortedListOfAllMovieIds) {
+            for (int movieId_j : sortedListOfAllMovieIds) {
+                assertEquals(Double.doubleToLongBits(mappedModel.getAveragePreferenceDifference(movieId_i, movieId_j)),
+                        Double.doubleToLongBits(tieredModel.getAveragePreferenceDifference(movieId_i, movieId_j)),
+                        "Tiered model must match the mapped model at (" + movieId_i + ", " + movieId_j + ")");
+            }
+        }
+
+        // Popularity shifts to row 4, row 0 is no longer read
+        for (int rebalance = 0; rebalance < 3; rebalance++) {
+            for (int read = 0; read < 1000; read++) {
+                tieredModel.getAveragePreferenceDifference(movieIds.get(4), movieIds.get(read % movieCount));
+                tieredModel.getAveragePreferenceDifference(movieIds.get(1), movieIds.get(read % movieCount));
+                tieredModel.getAveragePreferenceDifference(movieIds.get(2), movieIds.get(read % movieCount));
+            }
+            tieredRows.rebalance();
+        }
+        assertTrue(tieredRows.isHot(4), "Newly popular row must be promoted!");
+        assertFalse(tieredRows.isHot(0), "Row that is no longer read must be demoted!");
+        assertTrue(tieredRows.getDemotionCount() >= 1);
+
+        // A model that is updated online cannot be tiered
+        PredictionModel onlineModel = trainModel(sortedListOfAllMovieIds, userSubmissions);
+        if (onlineModel.hasModelStatistics()) {
+            assertThrows(IllegalStateException.class, () -> onlineModel.enableTiering(1024));
+        }
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 46
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-9
+     *
+     * Ensure that every model encoding stays within its quantization error of the double model, uses proportionally
+     * less memory, and that a binary model saved in an encoding serves exactly the values of the in-memory encoding
+     */
+    @Test
+    void testQuantizedModelsMatchDoubleModel(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Train the double model
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv", sortedListOfAllMovieIds, userSubmissions);
+        RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        recommendationEngine.generateCorrelationMatrix();
+        PredictionModel trainedModel = recommendationEngine.createPredictionModel();
+        assertSame(trainedModel, trainedModel.quantize(ModelEncoding.FLOAT64), "FLOAT64 is the trained model!");
+
+        // Largest error of each encoding for averages within [-4.5, 4.5]
+        Map<ModelEncoding, Double> maxErrors = new EnumMap<>(ModelEncoding.class);
+        maxErrors.put(ModelEncoding.FLOAT32, 4.5 / (1 << 23));
+        maxErrors.put(ModelEncoding.FLOAT16, 4.5 / (1 << 10));
+        maxErrors.put(ModelEncoding.INT8, 4.5 / 254 * 1.0001);
+
+        long previousMemoryBytes = trainedModel.getEstimatedMemoryBytes();
+        for (Map.Entry<ModelEncoding, Double> maxError : maxErrors.entrySet()) {
+            ModelEncoding encoding = maxError.getKey();
+            PredictionModel quantizedModel = trainedModel.quantize(encoding);
+            File modelFile = outputDirectory.resolve("model-" + encoding + ".bin").toFile();
+            recommendationEngine.saveModelToBinary(modelFile.toString(), encoding);
+            PredictionModel mappedModel = BinaryModelFile.map(modelFile);
+
+            assertEquals(BinaryModelFile.getFileBytes(sortedListOfAllMovieIds.size(), encoding), modelFile.length());
+            assertFalse(quantizedModel.hasModelStatistics(), "Quantized model is read-only!");
+            for (int movieId_i : sortedListOfAllMovieIds) {
+                for (int movieId_j : sortedListOfAllMovieIds) {
+                    double expected = trainedModel.getAveragePreferenceDifference(movieId_i, movieId_j);
+                    double quantized = quantizedModel.getAveragePreferenceDifference(movieId_i, movieId_j);
+                    assertEquals(expected, quantized, maxError.getValue(),
+                            encoding + " model must be within its error at (" + movieId_i + ", " + movieId_j + ")");
+                    assertEquals(-quantized, quantizedModel.getAveragePreferenceDifference(movieId_j, movieId_i), 0.0,
+                            encoding + " model must stay antisymmetric at (" + movieId_i + ", " + movieId_j + ")");
+                    assertEquals(quantized, mappedModel.getAveragePreferenceDifference(movieId_i, movieId_j), 0.0,
+                            encoding + " binary model must match the in-memory model at (" + movieId_i + ", " + movieId_j + ")");
+                }
+            }
+            assertTrue(quantizedModel.getEstimatedMemoryBytes() < previousMemoryBytes, encoding + " model must use less memory!");
+            previousMemoryBytes = quantizedModel.getEstimatedMemoryBytes();
+        }
+
+        // Half precision rounds to nearest even, and keeps 0, signs & the largest averages
+        assertEquals(0.0, QuantizedTriangularMatrix.halfToFloat(QuantizedTriangularMatrix.floatToHalf(0.0f)));
+        assertEquals(-4.5f, QuantizedTriangularMatrix.halfToFloat(QuantizedTriangularMatrix.floatToHalf(-4.5f)));
+        assertEquals(1.0f, QuantizedTriangularMatrix.halfToFloat(QuantizedTriangularMatrix.floatToHalf(1.0f + 1.0f / 2048)));
+        assertEquals(1.0f + 2.0f / 1024, QuantizedTriangularMatrix.halfToFloat(QuantizedTriangularMatrix.floatToHalf(1.0f + 3.0f / 2048)));
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 49
+     * Test Type: Unit
+     * Test Name: PredictionModelTest-10
+     *
+     * Ensure that adding a whole model row to running totals gives exactly the per-pair sums, for a heap, tiered and
+     * lazily loaded row, including unknown movies, the diagonal and movies that are not in ascending order
+     */
+    @Test
+    void testAccumulatedRowsMatchPairLookups(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Train the heap model, and a tiered binary model with every row hot
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv", sortedListOfAllMovieIds, userSubmissions);
+        RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        recommendationEngine.generateCorrelationMatrix();
+        PredictionModel heapModel = recommendationEngine.createPredictionModel();
+        File modelFile = outputDirectory.resolve("model.bin").toFile();
+        recommendationEngine.saveModelToBinary(modelFile.toString(), ModelEncoding.FLOAT64);
+        PredictionModel tieredModel = BinaryModelFile.map(modelFile);
+        tieredModel.enableTiering(Long.MAX_VALUE);
+
+        // Every movie, an unknown movie, in ascending order then partly reversed
+        List<Integer> movieIds = new ArrayList<>(sortedListOfAllMovieIds);
+        movieIds.add(-1);
+        Collections.reverse(movieIds.subList(0, movieIds.size() / 3));
+        int[] movieIds_j = movieIds.stream().mapToInt(Integer::intValue).toArray();
+        List<Integer> movieIds_i = new ArrayList<>(sortedListOfAllMovieIds).subList(0, 20);
+        movieIds_i.add(-1);
+
+        for (PredictionModel model : Arrays.asList(heapModel, tieredModel)) {
+            for (int round = 0; round < 2; round++) {
+                int[] matrixIndices_j = model.getMatrixIndices(movieIds_j);
+                double[] accumulator = new double[movieIds_j.length];
+                double[] expected = new double[movieIds_j.length];
+                for (int movieId_i : movieIds_i) {
+                    int i = model.getMatrixIndex(movieId_i);
+                    if (i < 0) {
+                        assertFalse(model.hasMovie(movieId_i), "Unknown movies have no Matrix Index!");
+                        continue;
+                    }
+                    double rating = 0.5 + (movieId_i & 7) * 0.5;
+                    model.accumulateRow(i, rating, matrixIndices_j, accumulator);
+                    for (int k = 0; k < movieIds_j.length; k++) {
+                        expected[k] += rating + model.getAveragePreferenceDifference(movieId_i, movieIds_j[k]);
+                    }
+                }
+                assertArrayEquals(expected, accumulator, 0.0, "Accumulated rows must match the pair lookups!");
+                if (model.getTieredRows() != null) model.getTieredRows().rebalance(); // 2nd round from the hot tier
+            }
+        }
+        assertTrue(tieredModel.getTieredRows().isHot(heapModel.getMatrixIndices(new int[] {movieIds_i.get(0)})[0]));
+
+        // Lazily loaded (sparse) rows
+        for (int movieId_i : movieIds_i) {
+            List<Integer> otherMovieIds = new ArrayList<>();
+            List<Double> avgDifferences = new ArrayList<>();
+            for (int movieId_j : sortedListOfAllMovieIds) {
+                double avgDifference = heapModel.getAveragePreferenceDifference(movieId_i, movieId_j);
+                if (avgDifference != 0) {
+                    otherMovieIds.add(movieId_j);
+                    avgDifferences.add(avgDifference);
+                }
+            }
+            ModelRow row = new ModelRow(movieId_i, otherMovieIds.stream().mapToInt(Integer::intValue).toArray(),
+                    avgDifferences.stream().mapToDouble(Double::doubleValue).toArray(), otherMovieIds.size());
+            double[] accumulator = new double[movieIds_j.length];
+            row.accumulate(4.0, movieIds_j, accumulator);
+            for (int k = 0; k < movieIds_j.length; k++) {
+                assertEquals(4.0 + row.getAveragePreferenceDifference(movieIds_j[k]), accumulator[k], 0.0,
+                        "Accumulated row must match the pair lookups at (" + movieId_i + ", " + movieIds_j[k] + ")");
+            }
+        }
+    }
+
+
+    private PredictionModel createModel(double averageDifference) {
+        Set<Integer> movieIds = new TreeSet<>(Arrays.asList(100, 200));
+        HashMap<Integer, Integer> movieIdToMatrixIndex = new HashMap<>();
+        movieIdToMatrixIndex.put(100, 0);
+        movieIdToMatrixIndex.put(200, 1);
+        TriangularMatrix correlationMatrix = new TriangularMatrix(2);
+        correlationMatrix.set(0, 1, averageDifference);
+        return new PredictionModel(movieIds, movieIdToMatrixIndex, correlationMatrix, 0);
+    }
+
+    private PredictionModel trainModel(TreeSet<Integer> sortedListOfAllMovieIds, Map<Integer, UserSubmission> userSubmissions) {
+        RecommendationEngine recommendationEngine = new RecommendationEngine(sortedListOfAllMovieIds, sortedListOfAllMovieIds);
+        recommendationEngine.setUserSubmissions(userSubmissions);
+        recommendationEngine.setTrainingMode(TrainingMode.USER_CENTRIC);
+        recommendationEngine.generateCorrelationMatrix();
+        return recommendationEngine.createPredictionModel(true);
+    }
+
+    private UserSubmission toUserSubmission(int userId, Map<Integer, Double> ratings) {
+        UserSubmission userSubmission = new UserSubmission(userId);
+        for (Map.Entry<Integer, Double> rating : ratings.entrySet()) {
+            userSubmission.addMovieRating(rating.getKey(), rating.getValue());
+        }
+        return userSubmission;
+    }
+
+    // Assumes format: (MovieId_i,MovieId_j,Rating)
+    private void readMatrix(String inputFilePath, HashMap<Integer, Integer> movieIdToMatrixIndex, double[][] matrix) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new FileReader(inputFilePath));
+        bufferedReader.readLine(); // skips header row
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            String[] input = line.split(",");
+            matrix[movieIdToMatrixIndex.get(Integer.parseInt(input[0]))][movieIdToMatrixIndex.get(Integer.parseInt(input[1]))] = Double.parseDouble(input[2]);
+        }
+        bufferedReader.close();
+    }
+
+}
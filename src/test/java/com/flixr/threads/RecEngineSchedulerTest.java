@@ -0,0 +1,70 @@
+package com.flixr.threads;
+
+import com.flixr.beans.UserSubmission;
+import com.flixr.engine.RecommendationEngine;
+import com.flixr.engine.TrainingMode;
+import com.flixr.exceptions.EngineException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static com.flixr.utils.helpers.RatingsFileReader.readRatings;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Thomas Thompson
+ * Unit Tests related to the work-stealing RecEngineScheduler
+ */
+class RecEngineSchedulerTest {
+
+    private static String TEST_RATINGS_FILE = "/src/test/resources/ml-models/inputs/ml-ratings-u10.csv";
+    private static int NUMBER_OF_FILES = 4;
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 28
+     * Test Type: Unit
+     * Test Name: RecEngineSchedulerTest-1
+     *
+     * Ensure that the scheduled (multi-threaded) model matches a model trained by single engines over the same rows
+     * Also ensures that every worker reported its utilisation
+     */
+    @Test
+    void testScheduledModelMatchesSingleEngineModel(@TempDir Path outputDirectory) throws IOException, EngineException {
+
+        // Read Ratings into UserSubmissions
+        TreeSet<Integer> sortedListOfAllMovieIds = new TreeSet<>();
+        TreeMap<Integer, UserSubmission> userSubmissions = new TreeMap<>();
+        readRatings(System.getProperty("user.dir") + TEST_RATINGS_FILE, sortedListOfAllMovieIds, userSubmissions);
+
+        // Train with the scheduler
+        String scheduledFilePrefix = outputDirectory.resolve("scheduled").toString();
+        RecEngineScheduler recEngineScheduler = new RecEngineScheduler(sortedListOfAllMovieIds, userSubmissions, TrainingMode.USER_CENTRIC, 3);
+        recEngineScheduler.generateCorrelationMatrix();
+        recEngineScheduler.saveModelToCSV(scheduledFilePrefix, NUMBER_OF_FILES);
+        assertFalse(recEngineScheduler.getWorkerBusySeconds().isEmpty(), "Worker utilisation must be reported!");
+
+        // Train the same rows with single engines (original pairwise kernel)
+        int[] splitIndxs = RecEngineScheduler.getMatrixSplitPoints(sortedListOfAllMovieIds.size(), NUMBER_OF_FILES);
+        List<Integer> listOfAllMovieIds = new ArrayList<>(sortedListOfAllMovieIds);
+        for (int i = 1; i <= NUMBER_OF_FILES; i++) {
+            TreeSet<Integer> subListOfMovieIds = new TreeSet<>(listOfAllMovieIds.subList(splitIndxs[i-1], splitIndxs[i]));
+            Path expectedFile = outputDirectory.resolve("expected-" + i + ".csv");
+            RecommendationEngine recommendationEngine = new RecommendationEngine(subListOfMovieIds, sortedListOfAllMovieIds);
+            recommendationEngine.setUserSubmissions(userSubmissions);
+            recommendationEngine.setTrainingMode(TrainingMode.PAIRWISE);
+            recommendationEngine.generateCorrelationMatrix();
+            recommendationEngine.saveModelToCSV(expectedFile.toString());
+
+            Path scheduledFile = outputDirectory.resolve("scheduled-" + i + "-of-" + NUMBER_OF_FILES + ".csv");
+            assertArrayEquals(Files.readAllBytes(expectedFile), Files.readAllBytes(scheduledFile),
+                    "Scheduled model file " + i + " must match the single engine model!");
+        }
+    }
+
+}
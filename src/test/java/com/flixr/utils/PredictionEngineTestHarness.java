@@ -2,6 +2,14 @@ package com.flixr.utils;
 
 import com.flixr.beans.Prediction;
 import com.flixr.beans.UserSubmission;
+import com.flixr.engine.PredictionEngine;
+import com.flixr.engine.ScoringBackend;
+import com.flixr.engine.ScoringKernels;
+import com.flixr.engine.ScoringMode;
+import com.flixr.interfaces.IScoringKernel;
+import com.flixr.model.ModelEncoding;
+import com.flixr.model.QuantizedTriangularMatrix;
+import com.flixr.model.TriangularMatrix;
 
 import com.flixr.utils.helpers.PredictionEngine.PredictionEngineHarnessTestDriver;
 import com.flixr.utils.helpers.PredictionEngine.PredictionEngineHarnessTestOracle;
@@ -9,7 +17,9 @@ import com.flixr.utils.helpers.PredictionEngine.PredictionEngineHarnessTestOracl
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -133,4 +143,388 @@ public class PredictionEngineTestHarness {
 
     }
 
-}
\ No newline at end of file
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 47
+     * Test Type: Integration
+     * Test Name: PredictionEngineTestHarness-3
+     *
+     * Assess the accuracy lost by each model encoding (see ModelEncoding) for a given set of userIds
+     *
+     * Uses the same split-half approach as PredictionEngineTestHarness-2, once with the double model and once with
+     * each quantized copy of it, and compares the Root Mean Squared Error of every user, as well as every raw
+     * predicted rating (the RMSE is computed from ratings rounded to the nearest 0.5, which hides small changes)
+     * The RMSE, prediction change & memory of each encoding are stored to CSV for further analysis
+     */
+    @Test
+    void testPredictionAccuracyOfQuantizedModels() {
+
+        // Largest RMSE change of any user allowed for each encoding
+        Map<ModelEncoding, Double> maxRmseDeltas = new EnumMap<>(ModelEncoding.class);
+        maxRmseDeltas.put(ModelEncoding.FLOAT64, 0.0);
+        maxRmseDeltas.put(ModelEncoding.FLOAT32, 0.001);
+        maxRmseDeltas.put(ModelEncoding.FLOAT16, 0.01);
+        maxRmseDeltas.put(ModelEncoding.INT8, 0.05);
+
+        // Largest change of any raw predicted rating allowed for each encoding
+        Map<ModelEncoding, Double> maxPredictionDeltas = new EnumMap<>(ModelEncoding.class);
+        maxPredictionDeltas.put(ModelEncoding.FLOAT64, 0.0);
+        maxPredictionDeltas.put(ModelEncoding.FLOAT32, 1e-6);
+        maxPredictionDeltas.put(ModelEncoding.FLOAT16, 0.001);
+        maxPredictionDeltas.put(ModelEncoding.INT8, 0.02);
+
+        try {
+
+            // Load Correlation Matrix
+            predictionEngineHarnessTestDriver.loadCorrelationMatrix();
+            TriangularMatrix doubleMatrix = predictionEngineHarnessTestDriver.getCorrelationMatrix();
+            int[] userIds = predictionEngineHarnessTestDriver.getListOfUserIdsToTest();
+
+            // Make Write & Print Header Row
+            String outputFilePath = predictionEngineHarnessTestDriver.getMeanSquareOutputFullFilePath().replace(".csv", "-quantized.csv");
+            PrintWriter writer = new PrintWriter(outputFilePath, "UTF-8");
+            String csvHeaderEntry = "Encoding, MatrixBytes, MeanRootMeanSquaredError, MaxRootMeanSquaredErrorDelta, MaxPredictedRatingDelta";
+            System.out.println(csvHeaderEntry);
+            writer.println(csvHeaderEntry);
+
+            Map<Integer, Double> doubleRootMeanSquaredErrors = null;
+            Map<Integer, Map<Integer, Double>> doublePredictedRatings = new HashMap<>(); // UserId -> MovieId -> Rating
+            for (Map.Entry<ModelEncoding, Double> maxRmseDelta : maxRmseDeltas.entrySet()) {
+
+                // Serve the quantized copy of the matrix
+                TriangularMatrix quantizedMatrix = QuantizedTriangularMatrix.quantize(doubleMatrix, maxRmseDelta.getKey());
+                predictionEngineHarnessTestDriver.setCorrelationMatrix(quantizedMatrix);
+
+                // Split each user's ratings in half, predict the 2nd half from the 1st
+                PredictionEngineHarnessTestOracle oracle = new PredictionEngineHarnessTestOracle();
+                double maxPredictionDelta = 0.0;
+                for (int userId : userIds) {
+                    UserSubmission fullUserSubmission = predictionEngineHarnessTestDriver.generateFullUserSubmission(userId);
+                    List<UserSubmission> splitUserSubmissions = predictionEngineHarnessTestDriver.splitUserSubmissionInHalf(fullUserSubmission, oracle);
+                    Set<Integer> testListOfMovieIdsNotViewedByUserId = predictionEngineHarnessTestDriver.getMovieIdsNotViewedByUserId(splitUserSubmissions.get(0));
+                    List<Prediction> allPredictions = predictionEngineHarnessTestDriver.generatePrediction(splitUserSubmissions.get(0), testListOfMovieIdsNotViewedByUserId);
+                    oracle.setRootMeanSquaredError(allPredictions, splitUserSubmissions.get(1));
+
+                    // Compare each raw predicted rating against the double model (FLOAT64 runs first)
+                    Map<Integer, Double> predictedRatings = doublePredictedRatings.computeIfAbsent(userId, id -> new HashMap<>());
+                    boolean isDoubleModel = predictedRatings.isEmpty();
+                    for (Prediction prediction : allPredictions) {
+                        if (isDoubleModel) {
+                            predictedRatings.put(prediction.getMovieId(), prediction.getPredictedRating());
+                        }
+                        else {
+                            maxPredictionDelta = Math.max(maxPredictionDelta, Math.abs(prediction.getPredictedRating() - predictedRatings.get(prediction.getMovieId())));
+                        }
+                    }
+                }
+
+                // Compare each user's RMSE against the double model (FLOAT64 runs first)
+                Map<Integer, Double> rootMeanSquaredErrors = oracle.getUserIdToMeanSquaredErrorMap();
+                if (doubleRootMeanSquaredErrors == null) {
+                    doubleRootMeanSquaredErrors = rootMeanSquaredErrors;
+                }
+                double sumOfRootMeanSquaredErrors = 0.0;
+                double maxDelta = 0.0;
+                for (int userId : userIds) {
+                    sumOfRootMeanSquaredErrors += rootMeanSquaredErrors.get(userId);
+                    maxDelta = Math.max(maxDelta, Math.abs(rootMeanSquaredErrors.get(userId) - doubleRootMeanSquaredErrors.get(userId)));
+                }
+
+                // Save & Display Test Results
+                String csvRowEntry = maxRmseDelta.getKey() + ", " +
+                        quantizedMatrix.getEstimatedMemoryBytes() + ", " +
+                        sumOfRootMeanSquaredErrors / userIds.length + ", " +
+                        maxDelta + ", " +
+                        maxPredictionDelta;
+                System.out.println(csvRowEntry);
+                writer.println(csvRowEntry);
+
+                assertTrue(maxDelta <= maxRmseDelta.getValue(),
+                        maxRmseDelta.getKey() + " model changed a user's RMSE by " + maxDelta + ", at most " + maxRmseDelta.getValue() + " is allowed!");
+                assertTrue(maxPredictionDelta <= maxPredictionDeltas.get(maxRmseDelta.getKey()),
+                        maxRmseDelta.getKey() + " model changed a predicted rating by " + maxPredictionDelta + ", at most " + maxPredictionDeltas.get(maxRmseDelta.getKey()) + " is allowed!");
+            }
+
+            // Closes CSV output writer
+            writer.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unable to complete prediction! Error was thrown: " + e.getMessage());
+        }
+
+    }
+
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 48
+     * Test Type: Integration
+     * Test Name: PredictionEngineTestHarness-4
+     *
+     * Benchmarks the PredictionEngine kernels (see ScoringMode) for a given set of userIds
+     *
+     * Both kernels must give identical predictions (same movies, same order, same bits), for the double model and a
+     * quantized copy of it. Each kernel then scores every user several times, and the total time of each kernel
+     * (best of all rounds) is stored to CSV for further analysis
+     */
+    @Test
+    void testScoringModesGiveIdenticalPredictions() {
+
+        int rounds = 5;
+
+        try {
+
+            // Load Correlation Matrix
+            predictionEngineHarnessTestDriver.loadCorrelationMatrix();
+            TriangularMatrix doubleMatrix = predictionEngineHarnessTestDriver.getCorrelationMatrix();
+            int[] userIds = predictionEngineHarnessTestDriver.getListOfUserIdsToTest();
+
+            // Generate User Submissions once (not part of the benchmark)
+            List<UserSubmission> userSubmissions = new ArrayList<>();
+            List<Set<Integer>> listsOfMovieIdsNotViewed = new ArrayList<>();
+            for (int userId : userIds) {
+                UserSubmission userSubmission = predictionEngineHarnessTestDriver.generateFullUserSubmission(userId);
+                userSubmissions.add(userSubmission);
+                listsOfMovieIdsNotViewed.add(predictionEngineHarnessTestDriver.getMovieIdsNotViewedByUserId(userSubmission));
+            }
+
+            // Make Write & Print Header Row
+            String outputFilePath = predictionEngineHarnessTestDriver.getMeanSquareOutputFullFilePath().replace("prediction-rmse-test.csv", "prediction-scoring-benchmark.csv");
+            PrintWriter writer = new PrintWriter(outputFilePath, "UTF-8");
+            String csvHeaderEntry = "Encoding, PairwiseMillis, RowAccumulationMillis, Speedup";
+            System.out.println(csvHeaderEntry);
+            writer.println(csvHeaderEntry);
+
+            for (ModelEncoding encoding : new ModelEncoding[] {ModelEncoding.FLOAT64, ModelEncoding.FLOAT16}) {
+                predictionEngineHarnessTestDriver.setCorrelationMatrix(QuantizedTriangularMatrix.quantize(doubleMatrix, encoding));
+
+                // Both kernels give identical predictions
+                for (int u = 0; u < userSubmissions.size(); u++) {
+                    List<Prediction> pairPredictions = predictionEngineHarnessTestDriver.generatePrediction(userSubmissions.get(u), listsOfMovieIdsNotViewed.get(u), ScoringMode.PAIRWISE);
+                    List<Prediction> rowPredictions = predictionEngineHarnessTestDriver.generatePrediction(userSubmissions.get(u), listsOfMovieIdsNotViewed.get(u), ScoringMode.ROW_ACCUMULATION);
+                    assertEquals(pairPredictions.size(), rowPredictions.size());
+                    for (int k = 0; k < pairPredictions.size(); k++) {
+                        assertEquals(pairPredictions.get(k).getMovieId(), rowPredictions.get(k).getMovieId(),
+                                encoding + " predictions of UserId " + userIds[u] + " must be in the same order!");
+                        assertEquals(Double.doubleToLongBits(pairPredictions.get(k).getPredictedRating()), Double.doubleToLongBits(rowPredictions.get(k).getPredictedRating()),
+                                encoding + " prediction of UserId " + userIds[u] + ", MovieId " + pairPredictions.get(k).getMovieId() + " must be identical!");
+                    }
+                }
+
+                // Best time of each kernel over all rounds (the first rounds also warm up the JIT)
+                long bestPairNanos = Long.MAX_VALUE;
+                long bestRowNanos = Long.MAX_VALUE;
+                for (int round = 0; round < rounds; round++) {
+                    bestPairNanos = Math.min(bestPairNanos, timePredictions(userSubmissions, listsOfMovieIdsNotViewed, ScoringMode.PAIRWISE));
+                    bestRowNanos = Math.min(bestRowNanos, timePredictions(userSubmissions, listsOfMovieIdsNotViewed, ScoringMode.ROW_ACCUMULATION));
+                }
+
+                // Save & Display Test Results
+                String csvRowEntry = encoding + ", " +
+                        bestPairNanos / 1e6 + ", " +
+                        bestRowNanos / 1e6 + ", " +
+                        (double) bestPairNanos / bestRowNanos;
+                System.out.println(csvRowEntry);
+                writer.println(csvRowEntry);
+            }
+
+            // Closes CSV output writer
+            writer.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unable to complete prediction! Error was thrown: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 53
+     * Test Type: Integration
+     * Test Name: PredictionEngineTestHarness-5
+     *
+     * Benchmarks intra-request parallel scoring (top 10 predictions of a user) for a given set of userIds
+     *
+     * Every request is split into as many partitions as the pool allows, for several pool sizes. The top 10 must be
+     * identical to a single-threaded request. The p50 / p99 latency of all requests (every user, several rounds) of
+     * each pool size is stored to CSV for further analysis
+     */
+    @Test
+    void testParallelScoringLatency() {
+
+        int rounds = 20;
+        int numberOfPredictions = 10;
+
+        try {
+
+            // Load Correlation Matrix
+            predictionEngineHarnessTestDriver.loadCorrelationMatrix();
+            int[] userIds = predictionEngineHarnessTestDriver.getListOfUserIdsToTest();
+
+            // Generate User Submissions & the single-threaded top 10 once (not part of the benchmark)
+            List<UserSubmission> userSubmissions = new ArrayList<>();
+            List<Set<Integer>> listsOfMovieIdsNotViewed = new ArrayList<>();
+            List<List<Prediction>> expectedPredictions = new ArrayList<>();
+            ForkJoinPool singlePool = new ForkJoinPool(1);
+            for (int userId : userIds) {
+                UserSubmission userSubmission = predictionEngineHarnessTestDriver.generateFullUserSubmission(userId);
+                userSubmissions.add(userSubmission);
+                listsOfMovieIdsNotViewed.add(predictionEngineHarnessTestDriver.getMovieIdsNotViewedByUserId(userSubmission));
+                PredictionEngine predictionEngine = predictionEngineHarnessTestDriver.createPredictionEngine(userSubmission, listsOfMovieIdsNotViewed.get(listsOfMovieIdsNotViewed.size() - 1));
+                predictionEngine.setParallelism(singlePool, Long.MAX_VALUE);
+                predictionEngine.generatePredictions();
+                expectedPredictions.add(predictionEngine.getTopXMoviePredictions(numberOfPredictions));
+            }
+            singlePool.shutdown();
+
+            // Make Write & Print Header Row
+            String outputFilePath = predictionEngineHarnessTestDriver.getMeanSquareOutputFullFilePath().replace("prediction-rmse-test.csv", "prediction-parallel-benchmark.csv");
+            PrintWriter writer = new PrintWriter(outputFilePath, "UTF-8");
+            String csvHeaderEntry = "PoolThreads, AvailableProcessors, MaxPartitions, P50Millis, P99Millis";
+            System.out.println(csvHeaderEntry);
+            writer.println(csvHeaderEntry);
+
+            for (int poolThreads : new int[] {1, 2, 4, 8}) {
+                ForkJoinPool scoringPool = new ForkJoinPool(poolThreads);
+                long[] latencies = new long[rounds * userSubmissions.size()];
+                int maxPartitions = 0;
+                for (int round = 0; round < rounds; round++) {
+                    for (int u = 0; u < userSubmissions.size(); u++) {
+                        long startTime = System.nanoTime();
+                        PredictionEngine predictionEngine = predictionEngineHarnessTestDriver.createPredictionEngine(userSubmissions.get(u), listsOfMovieIdsNotViewed.get(u));
+                        predictionEngine.setParallelism(scoringPool, 1);
+                        predictionEngine.generatePredictions();
+                        List<Prediction> predictions = predictionEngine.getTopXMoviePredictions(numberOfPredictions);
+                        latencies[round * userSubmissions.size() + u] = System.nanoTime() - startTime;
+                        maxPartitions = Math.max(maxPartitions, predictionEngine.getPartitionCount());
+
+                        // Same top 10 as a single thread
+                        for (int k = 0; k < predictions.size(); k++) {
+                            assertEquals(expectedPredictions.get(u).get(k).getMovieId(), predictions.get(k).getMovieId(),
+                                    "Top predictions of UserId " + userIds[u] + " must not depend on the pool size!");
+                        }
+                    }
+                }
+                scoringPool.shutdown();
+
+                // Save & Display Test Results (the 1st round also warms up the JIT, so it is left out)
+                long[] measuredLatencies = Arrays.copyOfRange(latencies, userSubmissions.size(), latencies.length);
+                Arrays.sort(measuredLatencies);
+                String csvRowEntry = poolThreads + ", " +
+                        Runtime.getRuntime().availableProcessors() + ", " +
+                        maxPartitions + ", " +
+                        measuredLatencies[(int) (0.50 * (measuredLatencies.length - 1))] / 1e6 + ", " +
+                        measuredLatencies[(int) Math.ceil(0.99 * (measuredLatencies.length - 1))] / 1e6;
+                System.out.println(csvRowEntry);
+                writer.println(csvRowEntry);
+            }
+
+            // Closes CSV output writer
+            writer.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unable to complete prediction! Error was thrown: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * @author Thomas Thompson
+     * Test ID: 55
+     * Test Type: Integration
+     * Test Name: PredictionEngineTestHarness-6
+     *
+     * Benchmarks the scoring kernels of the row accumulation kernel (see ScoringBackend) on the production model,
+     * for a given set of userIds
+     *
+     * Both kernels must give identical predictions (same movies, same order, same bits). Each kernel then scores every
+     * user several times, and the total time of each kernel (best of all rounds) is stored to CSV for further analysis.
+     * The Vector API kernel is only measured if the build & JVM provide it (JDK 16+, see the vector-api Maven profile),
+     * otherwise the fallback is recorded
+     */
+    @Test
+    void testScoringKernelsGiveIdenticalPredictions() {
+
+        int rounds = 50;
+
+        try {
+
+            // Load Correlation Matrix
+            predictionEngineHarnessTestDriver.loadCorrelationMatrix();
+            int[] userIds = predictionEngineHarnessTestDriver.getListOfUserIdsToTest();
+
+            // Generate User Submissions once (not part of the benchmark)
+            List<UserSubmission> userSubmissions = new ArrayList<>();
+            List<Set<Integer>> listsOfMovieIdsNotViewed = new ArrayList<>();
+            for (int userId : userIds) {
+                UserSubmission userSubmission = predictionEngineHarnessTestDriver.generateFullUserSubmission(userId);
+                userSubmissions.add(userSubmission);
+                listsOfMovieIdsNotViewed.add(predictionEngineHarnessTestDriver.getMovieIdsNotViewedByUserId(userSubmission));
+            }
+
+            // Both kernels give identical predictions
+            IScoringKernel scalarKernel = ScoringKernels.createScoringKernel(ScoringBackend.SCALAR);
+            IScoringKernel vectorKernel = ScoringKernels.createScoringKernel(ScoringBackend.VECTOR);
+            for (int u = 0; u < userSubmissions.size(); u++) {
+                predictionEngineHarnessTestDriver.setScoringKernel(scalarKernel);
+                List<Prediction> scalarPredictions = predictionEngineHarnessTestDriver.generatePrediction(userSubmissions.get(u), listsOfMovieIdsNotViewed.get(u), ScoringMode.ROW_ACCUMULATION);
+                predictionEngineHarnessTestDriver.setScoringKernel(vectorKernel);
+                List<Prediction> vectorPredictions = predictionEngineHarnessTestDriver.generatePrediction(userSubmissions.get(u), listsOfMovieIdsNotViewed.get(u), ScoringMode.ROW_ACCUMULATION);
+                assertEquals(scalarPredictions.size(), vectorPredictions.size());
+                for (int k = 0; k < scalarPredictions.size(); k++) {
+                    assertEquals(scalarPredictions.get(k).getMovieId(), vectorPredictions.get(k).getMovieId(),
+                            "Predictions of UserId " + userIds[u] + " must be in the same order!");
+                    assertEquals(Double.doubleToLongBits(scalarPredictions.get(k).getPredictedRating()), Double.doubleToLongBits(vectorPredictions.get(k).getPredictedRating()),
+                            "Prediction of UserId " + userIds[u] + ", MovieId " + scalarPredictions.get(k).getMovieId() + " must be identical!");
+                }
+            }
+
+            // Best time of each kernel over all rounds (the first rounds also warm up the JIT)
+            long bestScalarNanos = Long.MAX_VALUE;
+            long bestVectorNanos = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                predictionEngineHarnessTestDriver.setScoringKernel(scalarKernel);
+                bestScalarNanos = Math.min(bestScalarNanos, timePredictions(userSubmissions, listsOfMovieIdsNotViewed, ScoringMode.ROW_ACCUMULATION));
+                predictionEngineHarnessTestDriver.setScoringKernel(vectorKernel);
+                bestVectorNanos = Math.min(bestVectorNanos, timePredictions(userSubmissions, listsOfMovieIdsNotViewed, ScoringMode.ROW_ACCUMULATION));
+            }
+            predictionEngineHarnessTestDriver.setScoringKernel(ScoringKernels.get());
+
+            // Save & Display Test Results
+            String outputFilePath = predictionEngineHarnessTestDriver.getMeanSquareOutputFullFilePath().replace("prediction-rmse-test.csv", "prediction-kernel-benchmark.csv");
+            PrintWriter writer = new PrintWriter(outputFilePath, "UTF-8");
+            String csvHeaderEntry = "JavaVersion, ScalarKernel, ScalarMillis, VectorKernel, VectorMillis, Speedup";
+            String csvRowEntry = System.getProperty("java.version") + ", " +
+                    scalarKernel.getName() + ", " +
+                    bestScalarNanos / 1e6 + ", " +
+                    vectorKernel.getName() + ", " +
+                    bestVectorNanos / 1e6 + ", " +
+                    (double) bestScalarNanos / bestVectorNanos;
+            System.out.println(csvHeaderEntry);
+            System.out.println(csvRowEntry);
+            writer.println(csvHeaderEntry);
+            writer.println(csvRowEntry);
+            writer.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unable to complete prediction! Error was thrown: " + e.getMessage());
+        }
+
+    }
+
+    // Time taken to score every user with the given kernel
+    private long timePredictions(List<UserSubmission> userSubmissions, List<Set<Integer>> listsOfMovieIdsNotViewed, ScoringMode scoringMode) throws Exception {
+        long startTime = System.nanoTime();
+        for (int u = 0; u < userSubmissions.size(); u++) {
+            predictionEngineHarnessTestDriver.generatePrediction(userSubmissions.get(u), listsOfMovieIdsNotViewed.get(u), scoringMode);
+        }
+        return System.nanoTime() - startTime;
+    }
+
+}
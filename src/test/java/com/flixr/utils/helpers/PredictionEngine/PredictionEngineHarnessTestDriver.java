@@ -3,10 +3,16 @@ package com.flixr.utils.helpers.PredictionEngine;
 import com.flixr.beans.Prediction;
 import com.flixr.beans.UserSubmission;
 import com.flixr.engine.PredictionEngine;
+import com.flixr.engine.ScoringKernels;
+import com.flixr.engine.ScoringMode;
 import com.flixr.exceptions.DAOException;
 import com.flixr.exceptions.EngineException;
 import com.flixr.exceptions.TestException;
+import com.flixr.interfaces.ICorrelationModel;
 import com.flixr.interfaces.IPredictionDAO;
+import com.flixr.interfaces.IScoringKernel;
+import com.flixr.model.MovieIndexMap;
+import com.flixr.model.TriangularMatrix;
 import com.flixr.threads.ReadModelCsvThread;
 
 import java.io.BufferedReader;
@@ -16,14 +22,16 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import static com.flixr.configuration.ApplicationConstants.PRED_ENGINE_SCORING_MODE;
 import static com.flixr.configuration.ApplicationConstants.PRED_ENGINE_THREADS;
 
 /**
  * @author Thomas Thompson
  *
  * Test Driver for Prediction Engine
+ * Acts as the DAO & the model of the Prediction Engine (over the Correlation Matrix loaded from the CSV files)
  */
-public class PredictionEngineHarnessTestDriver implements IPredictionDAO {
+public class PredictionEngineHarnessTestDriver implements IPredictionDAO, ICorrelationModel {
 
     // I/O paths
     private String projectPath;
@@ -37,9 +45,11 @@ public class PredictionEngineHarnessTestDriver implements IPredictionDAO {
 
     // Instance Variables
     private int[] listOfUserIdsToTest;
-    private double[][] correlationMatrix;
+    private TriangularMatrix correlationMatrix;
     HashMap<Integer, Integer> movieIdToMatrixIndex;
+    private MovieIndexMap movieIndex;
     Set<Integer> totalMovieIds;
+    private IScoringKernel scoringKernel = ScoringKernels.get();
 
 
     public PredictionEngineHarnessTestDriver() {
@@ -66,26 +76,58 @@ public class PredictionEngineHarnessTestDriver implements IPredictionDAO {
 
     /**
      * Helper Methods to support DAO
-     * @param movieId_i     Movie Index "i" in Matrix
-     * @param movieId_j     Movie Index "j" in Matrix
-     * @return  Preference Difference
+     * @return  The driver itself, reading the loaded Correlation Matrix
      */
-    public double getAveragePreferenceDifference(int movieId_i, int movieId_j) throws EngineException {
+    @Override
+    public ICorrelationModel getCorrelationModel() {
+        return this;
+    }
 
-        try {
-            // Convert MovieId to MatrixIndex
-            int i = movieIdToMatrixIndex.get(movieId_i);
-            int j = movieIdToMatrixIndex.get(movieId_j);
+    @Override
+    public int getMovieCount() {
+        return movieIndex.size();
+    }
+
+    @Override
+    public boolean hasMovie(int movieId) {
+        return movieIndex.contains(movieId);
+    }
+
+    @Override
+    public int getMatrixIndex(int movieId) {
+        return movieIndex.getIndex(movieId);
+    }
+
+    @Override
+    public int getMovieId(int matrixIndex) {
+        return movieIndex.getMovieId(matrixIndex);
+    }
 
-            // Return Average Difference
-            return correlationMatrix[i][j];
+    /**
+     * @param i     Movie Index "i" in Matrix
+     * @param j     Movie Index "j" in Matrix
+     * @return  Preference Difference
+     */
+    @Override
+    public double get(int i, int j) {
+        return correlationMatrix.get(i, j);
+    }
 
-        } catch (IndexOutOfBoundsException | NullPointerException e) {
-//                System.out.println("Unable to find entry i=" + movieId_i +", j=" +movieId_j);
-//                System.out.println("Assuming correlation to be 0.");
-            return 0;
+    @Override
+    public void getRow(int i, double[] row) {
+        for (int j = 0; j < correlationMatrix.getSize(); j++) {
+            row[j] = correlationMatrix.get(i, j);
         }
+    }
 
+    @Override
+    public void gather(int i, int[] matrixIndices_j, double[] values) {
+        correlationMatrix.gather(i, matrixIndices_j, values);
+    }
+
+    @Override
+    public void accumulateRow(int i, double rating, int[] matrixIndices_j, double[] accumulator) {
+        correlationMatrix.accumulateRow(i, rating, matrixIndices_j, accumulator, scoringKernel);
     }
 
     /**
@@ -106,13 +148,14 @@ public class PredictionEngineHarnessTestDriver implements IPredictionDAO {
                 bufferedReader.readLine(); // skips header row
                 while ( (line = bufferedReader.readLine()) != null ) {
 
-                    // Assumes format: (UserId,MovieId,Rating)
+                    // Assumes format: (MovieId_i,MovieId_j,Rating)
                     String[] input = line.split(",");
-                    int userId = Integer.parseInt(input[0]);
-                    int movieId = Integer.parseInt(input[1]);
+                    int movieId_i = Integer.parseInt(input[0]);
+                    int movieId_j = Integer.parseInt(input[1]);
 
-                    // Add to list of (unique) sorted MovieIds
-                    totalMovieIds.add(movieId);
+                    // Add to list of (unique) sorted MovieIds (a triangular model has no row for its last movie)
+                    totalMovieIds.add(movieId_i);
+                    totalMovieIds.add(movieId_j);
 
                 }
                 bufferedReader.close();
@@ -130,7 +173,7 @@ public class PredictionEngineHarnessTestDriver implements IPredictionDAO {
         // Initialize Matrix & Index Map
         System.out.println("Loading Correlation Matrix... ");
         int totalCountOfMovies = totalMovieIds.size();
-        correlationMatrix = new double[totalCountOfMovies][totalCountOfMovies];
+        correlationMatrix = new TriangularMatrix(totalCountOfMovies);
         movieIdToMatrixIndex = new HashMap<>();
 
         // Map MovieId to Matrix Index
@@ -139,6 +182,7 @@ public class PredictionEngineHarnessTestDriver implements IPredictionDAO {
             movieIdToMatrixIndex.put(movieId, matrixIndx);
             matrixIndx++;
         }
+        movieIndex = MovieIndexMap.fromMap(movieIdToMatrixIndex);
 
         // Reads file, assuming it is in CSV format
         // Spawn Threads for faster predictions (NOTE: # of model.csv files must align with threads!!!)
@@ -273,9 +317,22 @@ public class PredictionEngineHarnessTestDriver implements IPredictionDAO {
      * @return Returns a (sorted) list of movie predictions
      */
     public List<Prediction> generatePrediction(UserSubmission userSubmission, Set<Integer> movieIdsNotViewedByUserId) throws EngineException {
+        return generatePrediction(userSubmission, movieIdsNotViewedByUserId, PRED_ENGINE_SCORING_MODE);
+    }
+
+    /**
+     * Run an instance of the Prediction Engine with the given kernel
+     * @param userSubmission
+     * @param movieIdsNotViewedByUserId
+     * @param scoringMode
+     * @throws EngineException
+     * @return Returns a (sorted) list of movie predictions
+     */
+    public List<Prediction> generatePrediction(UserSubmission userSubmission, Set<Integer> movieIdsNotViewedByUserId, ScoringMode scoringMode) throws EngineException {
 
         // Initialize & Run PredictionEngine
-        PredictionEngine predictionEngine = new PredictionEngine(userSubmission, movieIdsNotViewedByUserId, this);
+        PredictionEngine predictionEngine = createPredictionEngine(userSubmission, movieIdsNotViewedByUserId);
+        predictionEngine.setScoringMode(scoringMode);
         predictionEngine.generatePredictions();
 
         // Return list of predictions
@@ -283,14 +340,38 @@ public class PredictionEngineHarnessTestDriver implements IPredictionDAO {
 
     }
 
+    /**
+     * @param userSubmission
+     * @param movieIdsNotViewedByUserId
+     * @return  Prediction Engine reading the loaded Correlation Matrix (predictions not generated yet)
+     */
+    public PredictionEngine createPredictionEngine(UserSubmission userSubmission, Set<Integer> movieIdsNotViewedByUserId) {
+        return new PredictionEngine(userSubmission, movieIdsNotViewedByUserId, this);
+    }
+
     public int[] getListOfUserIdsToTest() {
         return listOfUserIdsToTest;
     }
 
-    public double[][] getCorrelationMatrix() {
+    public TriangularMatrix getCorrelationMatrix() {
         return correlationMatrix;
     }
 
+    /**
+     * @param correlationMatrix     Replaces the loaded matrix (ex. with a quantized copy), same Matrix Indices
+     */
+    public void setCorrelationMatrix(TriangularMatrix correlationMatrix) {
+        this.correlationMatrix = correlationMatrix;
+    }
+
+    /**
+     * @param scoringKernel     Kernel adding the model rows of this driver (ex. scalar or Vector API, for benchmarks),
+     *                          the production model always uses ScoringKernels.get()
+     */
+    public void setScoringKernel(IScoringKernel scoringKernel) {
+        this.scoringKernel = scoringKernel;
+    }
+
     public HashMap<Integer, Integer> getMovieIdToMatrixIndex() {
         return movieIdToMatrixIndex;
     }
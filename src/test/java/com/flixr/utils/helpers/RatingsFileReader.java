@@ -0,0 +1,42 @@
+package com.flixr.utils.helpers;
+
+import com.flixr.beans.UserSubmission;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * @author Thomas Thompson
+ *
+ * Reads the ratings CSV files used as test inputs into UserSubmissions
+ */
+public class RatingsFileReader {
+
+    private RatingsFileReader() {}
+
+    /**
+     * Assumes format: (UserId,MovieId,Rating), with a header row
+     * @param inputFilePath     Full path of the ratings CSV file
+     * @param movieIds          Receives the MovieIds of all ratings
+     * @param userSubmissions   Receives the ratings of every user: UserId -> UserSubmission
+     * @throws IOException
+     */
+    public static void readRatings(String inputFilePath, TreeSet<Integer> movieIds, TreeMap<Integer, UserSubmission> userSubmissions) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new FileReader(inputFilePath));
+        bufferedReader.readLine(); // skips header row
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            String[] input = line.split(",");
+            int userId = Integer.parseInt(input[0]);
+            int movieId = Integer.parseInt(input[1]);
+            double rating = Double.parseDouble(input[2]);
+            userSubmissions.computeIfAbsent(userId, UserSubmission::new).addMovieRating(movieId, rating);
+            movieIds.add(movieId);
+        }
+        bufferedReader.close();
+    }
+
+}
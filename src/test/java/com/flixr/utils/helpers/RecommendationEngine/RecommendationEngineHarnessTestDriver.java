@@ -1,17 +1,19 @@
 package com.flixr.utils.helpers.RecommendationEngine;
 
 import com.flixr.beans.UserSubmission;
+import com.flixr.engine.TrainingMode;
 import com.flixr.exceptions.EngineException;
-import com.flixr.threads.RecEngineThread;
+import com.flixr.threads.RecEngineScheduler;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import static com.flixr.configuration.ApplicationConstants.REC_ENGINE_PARALLELISM;
 import static com.flixr.configuration.ApplicationConstants.REC_ENGINE_THREADS;
+import static com.flixr.configuration.ApplicationConstants.REC_ENGINE_TRAINING_MODE;
+import static com.flixr.configuration.ApplicationConstants.REC_ENGINE_TRIANGULAR_MODEL;
 
 /**
  * @author Thomas Thompson
@@ -125,66 +127,37 @@ public class RecommendationEngineHarnessTestDriver {
     }
 
     /**
-     * Trains the ML model (and saves matrix to CSV)
+     * Trains the ML model with the default kernel (and saves matrix to CSV)
      */
     public double trainModel() {
+        return trainModel(REC_ENGINE_TRAINING_MODE);
+    }
 
-        long startTime = System.currentTimeMillis();
-
-        // Split Up List of MovieIds
-        int[] splitIndxs = getMatrixSplitPoints(this.sortedListOfAllMovieIds);
-        List<Integer> listOfDistinctMovieIds = new ArrayList<>(this.sortedListOfAllMovieIds);
-
-        // Run MultiThreaded
-        ExecutorService executor = Executors.newFixedThreadPool(REC_ENGINE_THREADS);
-        for (int i = 1; i <= REC_ENGINE_THREADS; i++) {
-            // Create a subset of the movies for Rec Engine Thread
-            TreeSet<Integer> subsetOfDistinctMovieIds = new TreeSet<>( listOfDistinctMovieIds.subList(splitIndxs[i-1], splitIndxs[i]) ) ;
-
-            // Create New Output File for given Thread
-            String currentOutputFilePath = projectPath + outputFilePrefix + "-" + i +"-of-" + REC_ENGINE_THREADS + ".csv";
+    /**
+     * Trains the ML model (and saves matrix to CSV)
+     * @param trainingMode  Kernel used to generate the Correlation Matrix
+     */
+    public double trainModel(TrainingMode trainingMode) {
 
-            // Instantiate the given Engine Thread
-            RecEngineThread recEngineThread = new RecEngineThread(i, subsetOfDistinctMovieIds, this.sortedListOfAllMovieIds, this.sortedListOfUserSubmissions, currentOutputFilePath);
+        long startTime = System.currentTimeMillis();
 
-            // Run a service to compute a subset of the matrix, using the given Engine Thread
-            executor.execute(recEngineThread);
+        // Run on a work-stealing pool & save to CSV
+        try {
+            RecEngineScheduler recEngineScheduler = new RecEngineScheduler(this.sortedListOfAllMovieIds, this.sortedListOfUserSubmissions,
+                    trainingMode, REC_ENGINE_PARALLELISM);
+            recEngineScheduler.generateCorrelationMatrix();
+            recEngineScheduler.saveModelToCSV(projectPath + outputFilePrefix, REC_ENGINE_THREADS);
+        } catch (EngineException e) {
+            throw new RuntimeException(e);
         }
 
-        // Wait for threads to complete
-        executor.shutdown();
-        while (!executor.isTerminated()) {}
-
         // Logs Run Time
         long endTime = System.currentTimeMillis();
         double totalRunTime = (endTime - startTime)/1000.0;
-        System.out.println("\nTotal Run Time: " + totalRunTime + " seconds.");
+        System.out.println("\nTotal Run Time (" + trainingMode + "): " + totalRunTime + " seconds.");
         return totalRunTime;
     }
 
-    // Copied from RecommendationController
-    private int[] getMatrixSplitPoints(TreeSet<Integer> sortedListOfMovieIds) {
-        // Determine # of entries per subset of movie list (partitioned by thread count)
-        int dividedCount = 1;
-        try {
-            dividedCount = (int) Math.floor( (double) sortedListOfMovieIds.size() / REC_ENGINE_THREADS ) ;
-        } catch (ArithmeticException e) {
-            System.out.println("Warning: Number of Recommendation Engine Threads must be at least 1!");
-            System.out.println("Proceeding with a single-threaded configuration: REC_ENGINE_THREADS = 1");
-        }
-
-        // Determine split indices for new movie list sublists
-        int currentIndx = 0;
-        int[] splitIndxs = new int[REC_ENGINE_THREADS + 1];
-        for (int i = 0; i < splitIndxs.length - 1; i++) {
-            splitIndxs[i] = currentIndx;
-            currentIndx += dividedCount;
-        }
-        splitIndxs[splitIndxs.length - 1] = sortedListOfMovieIds.size(); // any remainders will just get tacked on to the last thread
-
-        return splitIndxs;
-    }
-
     /**
      * @return  Returns the Correlation Matrix from the ml-model outputs
      * @throws EngineException
@@ -203,13 +176,14 @@ public class RecommendationEngineHarnessTestDriver {
                 bufferedReader.readLine(); // skips header row
                 while ( (line = bufferedReader.readLine()) != null ) {
 
-                    // Assumes format: (UserId,MovieId,Rating)
+                    // Assumes format: (MovieId_i,MovieId_j,Rating)
                     String[] input = line.split(",");
-                    int userId = Integer.parseInt(input[0]);
-                    int movieId = Integer.parseInt(input[1]);
+                    int movieId_i = Integer.parseInt(input[0]);
+                    int movieId_j = Integer.parseInt(input[1]);
 
-                    // Add to list of (unique) sorted MovieIds
-                    totalMovieIds.add(movieId);
+                    // Add to list of (unique) sorted MovieIds (a triangular model has no row for its last movie)
+                    totalMovieIds.add(movieId_i);
+                    totalMovieIds.add(movieId_j);
                 }
                 bufferedReader.close();
             } catch (IOException e) {
@@ -255,8 +229,9 @@ public class RecommendationEngineHarnessTestDriver {
                     int i = movieIdToMatrixIndex.get(movieIdMatrix_i);
                     int j = movieIdToMatrixIndex.get(movieIdMatrix_j);
 
-                    // Add to internal matrix
+                    // Add to internal matrix (a triangular model only holds i < j, the mirrored cell is filled in)
                     correlationMatrix[i][j] = avgRatingDifference;
+                    if (REC_ENGINE_TRIANGULAR_MODEL) correlationMatrix[j][i] = 0.0 - avgRatingDifference;
                 }
                 bufferedReader.close();
             } catch (IOException e) {